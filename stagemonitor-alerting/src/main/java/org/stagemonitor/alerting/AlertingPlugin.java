@@ -13,8 +13,8 @@ import org.stagemonitor.alerting.alerter.TestAlertSenderServlet;
 import org.stagemonitor.alerting.annotation.SlaCheckCreatingClassPathScanner;
 import org.stagemonitor.alerting.check.Check;
 import org.stagemonitor.alerting.incident.ConcurrentMapIncidentRepository;
-import org.stagemonitor.alerting.incident.ElasticsearchIncidentRepository;
 import org.stagemonitor.alerting.incident.IncidentRepository;
+import org.stagemonitor.alerting.incident.WriteBehindIncidentRepository;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.source.SimpleSource;
 import org.stagemonitor.core.CorePlugin;
@@ -212,7 +212,7 @@ public class AlertingPlugin extends StagemonitorPlugin {
 		alertSender = new AlertSender(initArguments.getConfiguration());
 		CorePlugin corePlugin = initArguments.getPlugin(CorePlugin.class);
 		if (!corePlugin.getElasticsearchUrls().isEmpty()) {
-			incidentRepository = new ElasticsearchIncidentRepository(corePlugin.getElasticsearchClient());
+			incidentRepository = new WriteBehindIncidentRepository(corePlugin.getElasticsearchClient());
 		} else {
 			incidentRepository = new ConcurrentMapIncidentRepository();
 		}
@@ -238,6 +238,9 @@ public class AlertingPlugin extends StagemonitorPlugin {
 		if (thresholdMonitoringReporter != null) {
 			thresholdMonitoringReporter.close();
 		}
+		if (incidentRepository instanceof WriteBehindIncidentRepository) {
+			((WriteBehindIncidentRepository) incidentRepository).close();
+		}
 	}
 
 	@Override
@@ -12,17 +12,16 @@ import org.slf4j.LoggerFactory;
 import org.stagemonitor.alerting.alerter.AlertSender;
 import org.stagemonitor.alerting.check.Check;
 import org.stagemonitor.alerting.check.CheckResult;
+import org.stagemonitor.alerting.check.MetricValues;
 import org.stagemonitor.alerting.incident.Incident;
 import org.stagemonitor.alerting.incident.IncidentRepository;
 import org.stagemonitor.core.MeasurementSession;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 import org.stagemonitor.core.metrics.metrics2.MetricName;
 import org.stagemonitor.core.metrics.metrics2.ScheduledMetrics2Reporter;
-import org.stagemonitor.core.util.JsonUtils;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -35,6 +34,7 @@ public class ThresholdMonitoringReporter extends ScheduledMetrics2Reporter {
 	private final IncidentRepository incidentRepository;
 	private final MeasurementSession measurementSession;
 	private final AlertingPlugin alertingPlugin;
+	private ResolvedChecks resolvedChecks;
 
 	public static ThresholdMonitoringReporterBuilder forRegistry(Metric2Registry registry) {
 		return new ThresholdMonitoringReporterBuilder(registry);
@@ -50,45 +50,36 @@ public class ThresholdMonitoringReporter extends ScheduledMetrics2Reporter {
 
 	@Override
 	public void reportMetrics(Map<MetricName, Gauge> gauges, Map<MetricName, Counter> counters, Map<MetricName, Histogram> histograms, Map<MetricName, Meter> meters, Map<MetricName, Timer> timers) {
-		Map<String, Map<MetricName, Metric>> metricsGroupedByName = new HashMap<String, Map<MetricName, Metric>>();
-		addMetrics(metricsGroupedByName, gauges);
-		addMetrics(metricsGroupedByName, counters);
-		addMetrics(metricsGroupedByName, histograms);
-		addMetrics(metricsGroupedByName, meters);
-		addMetrics(metricsGroupedByName, timers);
-
-		for (Check check : alertingPlugin.getChecks().values()) {
-			if (measurementSession.getApplicationName().equals(check.getApplication()) && check.isActive()) {
-				checkMetrics(metricsGroupedByName, check);
-			}
+		final ResolvedChecks resolvedChecks = getResolvedChecks(gauges, counters, histograms, meters, timers);
+		for (ResolvedCheck resolvedCheck : resolvedChecks.getChecks()) {
+			checkMetrics(resolvedCheck);
 		}
 	}
 
-	private <T extends Metric> void addMetrics(Map<String, Map<MetricName, Metric>> metricsGroupedByName, Map<MetricName, T > metrics) {
-		for (Map.Entry<MetricName, T> entry : metrics.entrySet()) {
-			Map<MetricName, Metric> metricsForName = metricsGroupedByName.get(entry.getKey().getName());
-			if (metricsForName == null) {
-				metricsForName = new HashMap<MetricName, Metric>();
-				metricsGroupedByName.put(entry.getKey().getName(), metricsForName);
-			}
-			metricsForName.put(entry.getKey(), entry.getValue());
+	/**
+	 * Returns the checks and the metrics which match their targets. The result is only re-computed if the checks or the
+	 * metrics have changed. Metric maps are considered unchanged as long as they are the same instances, as is the case
+	 * for the views returned by {@link Metric2Registry} as long as no metric is added or removed.
+	 */
+	private synchronized ResolvedChecks getResolvedChecks(Map<MetricName, Gauge> gauges, Map<MetricName, Counter> counters,
+														  Map<MetricName, Histogram> histograms, Map<MetricName, Meter> meters,
+														  Map<MetricName, Timer> timers) {
+		final Map<String, Check> checks = alertingPlugin.getChecks();
+		final ResolvedChecks resolvedChecks = this.resolvedChecks;
+		if (resolvedChecks != null && resolvedChecks.isUpToDate(checks, gauges, counters, histograms, meters, timers)) {
+			return resolvedChecks;
 		}
+		return this.resolvedChecks = new ResolvedChecks(checks, gauges, counters, histograms, meters, timers);
 	}
 
-	private void checkMetrics(Map<String, Map<MetricName, Metric>> metricsGroupedByName, Check check) {
-		List<CheckResult> checkResults = new LinkedList<CheckResult>();
-
-		Map<MetricName, Metric> metricsOfName = metricsGroupedByName.get(check.getTarget().getName());
-		if (metricsOfName == null) {
-			metricsOfName = Collections.emptyMap();
-		}
-		for (Map.Entry<MetricName, Metric> entry : metricsOfName.entrySet()) {
-			if (entry.getKey().matches(check.getTarget())) {
-				try {
-					checkResults.addAll(check.check(entry.getKey(), asMap(entry.getValue())));
-				} catch (RuntimeException e) {
-					logger.warn(e.getMessage(), e);
-				}
+	private void checkMetrics(ResolvedCheck resolvedCheck) {
+		final Check check = resolvedCheck.check;
+		List<CheckResult> checkResults = new ArrayList<CheckResult>();
+		for (int i = 0; i < resolvedCheck.metricNames.size(); i++) {
+			try {
+				checkResults.addAll(check.check(resolvedCheck.metricNames.get(i), MetricValues.of(resolvedCheck.metrics.get(i))));
+			} catch (RuntimeException e) {
+				logger.warn(e.getMessage(), e);
 			}
 		}
 		try {
@@ -98,10 +89,6 @@ public class ThresholdMonitoringReporter extends ScheduledMetrics2Reporter {
 		}
 	}
 
-	private Map<String, Number> asMap(Metric metric) {
-		return JsonUtils.getMapper().convertValue(metric, Map.class);
-	}
-
 	private void addIncident(Check check, List<CheckResult> results) {
 		Incident incident = getAndPersistIncident(check, results);
 		if (incident != null) {
@@ -160,6 +147,92 @@ public class ThresholdMonitoringReporter extends ScheduledMetrics2Reporter {
 		return true;
 	}
 
+	/**
+	 * The active checks of this application and the metrics which match their targets
+	 */
+	private class ResolvedChecks {
+		private final Map<String, Check> checks;
+		private final Map<?, ?>[] metricMaps;
+		private final List<ResolvedCheck> resolvedChecks = new ArrayList<ResolvedCheck>();
+
+		private ResolvedChecks(Map<String, Check> checks, Map<?, ?>... metricMaps) {
+			this.checks = checks;
+			this.metricMaps = metricMaps;
+			final Map<String, List<Map.Entry<MetricName, Metric>>> metricsGroupedByName = groupByName(metricMaps);
+			for (Check check : checks.values()) {
+				if (measurementSession.getApplicationName().equals(check.getApplication()) && check.isActive()) {
+					resolvedChecks.add(new ResolvedCheck(check, metricsGroupedByName.get(check.getTarget().getName())));
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private Map<String, List<Map.Entry<MetricName, Metric>>> groupByName(Map<?, ?>[] metricMaps) {
+			final Map<String, List<Map.Entry<MetricName, Metric>>> metricsGroupedByName = new HashMap<String, List<Map.Entry<MetricName, Metric>>>();
+			for (Map<?, ?> metrics : metricMaps) {
+				for (Map.Entry<MetricName, Metric> entry : ((Map<MetricName, Metric>) metrics).entrySet()) {
+					List<Map.Entry<MetricName, Metric>> metricsForName = metricsGroupedByName.get(entry.getKey().getName());
+					if (metricsForName == null) {
+						metricsForName = new ArrayList<Map.Entry<MetricName, Metric>>();
+						metricsGroupedByName.put(entry.getKey().getName(), metricsForName);
+					}
+					metricsForName.add(entry);
+				}
+			}
+			return metricsGroupedByName;
+		}
+
+		private boolean isUpToDate(Map<String, Check> checks, Map<?, ?>... metricMaps) {
+			if (checks != this.checks) {
+				return false;
+			}
+			for (int i = 0; i < metricMaps.length; i++) {
+				if (metricMaps[i] != this.metricMaps[i]) {
+					return false;
+				}
+			}
+			for (ResolvedCheck resolvedCheck : resolvedChecks) {
+				if (!resolvedCheck.isUpToDate()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private List<ResolvedCheck> getChecks() {
+			return resolvedChecks;
+		}
+	}
+
+	private static class ResolvedCheck {
+		private final Check check;
+		private final MetricName target;
+		private final boolean active;
+		private final List<MetricName> metricNames = new ArrayList<MetricName>();
+		private final List<Metric> metrics = new ArrayList<Metric>();
+
+		private ResolvedCheck(Check check, List<Map.Entry<MetricName, Metric>> metricsOfName) {
+			this.check = check;
+			this.target = check.getTarget();
+			this.active = check.isActive();
+			if (metricsOfName != null) {
+				for (Map.Entry<MetricName, Metric> entry : metricsOfName) {
+					if (entry.getKey().matches(target)) {
+						metricNames.add(entry.getKey());
+						metrics.add(entry.getValue());
+					}
+				}
+			}
+		}
+
+		/**
+		 * Checks whether the check has been modified since the targets have been resolved
+		 */
+		private boolean isUpToDate() {
+			return check.getTarget() == target && check.isActive() == active;
+		}
+	}
+
 	public static class ThresholdMonitoringReporterBuilder extends ScheduledMetrics2Reporter.Builder<ThresholdMonitoringReporter, ThresholdMonitoringReporterBuilder> {
 		private AlertSender alertSender;
 		private IncidentRepository incidentRepository;
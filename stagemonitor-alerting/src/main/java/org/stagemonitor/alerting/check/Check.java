@@ -10,8 +10,6 @@ import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.UUID;
 
 import static com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility.ANY;
@@ -27,6 +25,8 @@ import static com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility.NONE;
 @JsonAutoDetect(fieldVisibility = ANY, getterVisibility = NONE, setterVisibility = NONE)
 public class Check {
 
+	private static final CheckResult.Status[] SEVERITIES = CheckResult.Status.values();
+
 	private String id = UUID.randomUUID().toString();
 	private String name;
 	private MetricName target;
@@ -47,9 +47,24 @@ public class Check {
 	 * @return a list of check results (results with OK statuses are omitted)
 	 */
 	public List<CheckResult> check(MetricName actualTarget, Map<String, Number> currentValuesByMetric) {
-		SortedMap<CheckResult.Status, List<Threshold>> sortedThresholds = new TreeMap<CheckResult.Status, List<Threshold>>(thresholds);
-		for (Map.Entry<CheckResult.Status, List<Threshold>> entry : sortedThresholds.entrySet()) {
-			List<CheckResult> results = checkThresholds(entry.getValue(), entry.getKey(), actualTarget, currentValuesByMetric);
+		return check(actualTarget, MetricValues.of(currentValuesByMetric));
+	}
+
+	/**
+	 * Performs threshold checks for the whole check group
+	 *
+	 * @param actualTarget  the actual target that matched the {@link #target} pattern
+	 * @param currentValues the values of the target
+	 * @return a list of check results (results with OK statuses are omitted)
+	 */
+	public List<CheckResult> check(MetricName actualTarget, MetricValues currentValues) {
+		// the most severe thresholds are checked first
+		for (CheckResult.Status severity : SEVERITIES) {
+			final List<Threshold> thresholdsOfSeverity = thresholds.get(severity);
+			if (thresholdsOfSeverity == null) {
+				continue;
+			}
+			List<CheckResult> results = checkThresholds(thresholdsOfSeverity, severity, actualTarget, currentValues);
 			if (!results.isEmpty()) {
 				return results;
 			}
@@ -58,15 +73,18 @@ public class Check {
 	}
 
 	private List<CheckResult> checkThresholds(List<Threshold> thresholds, CheckResult.Status severity,
-											  MetricName actualTarget, Map<String, Number> currentValuesByMetric) {
-		List<CheckResult> results = new ArrayList<CheckResult>(thresholds.size());
+											  MetricName actualTarget, MetricValues currentValues) {
+		List<CheckResult> results = null;
 		for (Threshold threshold : thresholds) {
-			CheckResult result = threshold.check(severity, actualTarget, currentValuesByMetric);
+			CheckResult result = threshold.check(severity, actualTarget, currentValues);
 			if (result.getStatus() != CheckResult.Status.OK) {
+				if (results == null) {
+					results = new ArrayList<CheckResult>(thresholds.size());
+				}
 				results.add(result);
 			}
 		}
-		return results;
+		return results != null ? results : Collections.<CheckResult>emptyList();
 	}
 
 	public String getId() {
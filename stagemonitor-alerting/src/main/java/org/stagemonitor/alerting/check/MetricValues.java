@@ -0,0 +1,153 @@
+package org.stagemonitor.alerting.check;
+
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides the values of a metric which can be checked by a {@link Threshold}
+ */
+public abstract class MetricValues {
+
+	private static final double DURATION_FACTOR = 1.0 / TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * Returns the value of the provided type
+	 *
+	 * @param valueType the type of the value
+	 * @return the value
+	 * @throws IllegalArgumentException if the metric does not have a value of the provided type
+	 */
+	public abstract double getValue(MetricValueType valueType);
+
+	/**
+	 * Reads the values directly from a metric.
+	 * <p>
+	 * The values are the same as the ones of the JSON representation of the metric: rates are per second and durations
+	 * are in milliseconds.
+	 *
+	 * @param metric the metric
+	 * @return the values of the metric
+	 */
+	public static MetricValues of(Metric metric) {
+		return new MetricBackedValues(metric);
+	}
+
+	/**
+	 * @param valuesByName the values by {@link MetricValueType#getName()}
+	 * @return the values of the map
+	 */
+	public static MetricValues of(final Map<String, ? extends Number> valuesByName) {
+		return new MetricValues() {
+			@Override
+			public double getValue(MetricValueType valueType) {
+				final Number value = valuesByName.get(valueType.getName());
+				if (value == null) {
+					throw new IllegalArgumentException("There is no value of type " + valueType.getName());
+				}
+				return value.doubleValue();
+			}
+		};
+	}
+
+	private static class MetricBackedValues extends MetricValues {
+		private final Metric metric;
+		private Snapshot snapshot;
+
+		private MetricBackedValues(Metric metric) {
+			this.metric = metric;
+		}
+
+		@Override
+		public double getValue(MetricValueType valueType) {
+			switch (valueType) {
+				case VALUE:
+					if (metric instanceof Gauge) {
+						return getGaugeValue((Gauge) metric);
+					}
+					break;
+				case COUNT:
+					if (metric instanceof Counting) {
+						return ((Counting) metric).getCount();
+					}
+					break;
+				case MEAN_RATE:
+				case M1_RATE:
+				case M5_RATE:
+				case M15_RATE:
+					if (metric instanceof Metered) {
+						return getRate((Metered) metric, valueType);
+					}
+					break;
+				default:
+					if (metric instanceof Sampling) {
+						final double value = getSnapshotValue(getSnapshot(), valueType);
+						return metric instanceof Timer ? value * DURATION_FACTOR : value;
+					}
+			}
+			throw new IllegalArgumentException("A " + metric.getClass().getSimpleName() + " does not have a value of type " +
+					valueType.getName());
+		}
+
+		private static double getGaugeValue(Gauge gauge) {
+			final Object value = gauge.getValue();
+			if (!(value instanceof Number)) {
+				throw new IllegalArgumentException("The value of the gauge is not a number: " + value);
+			}
+			return ((Number) value).doubleValue();
+		}
+
+		private static double getRate(Metered metered, MetricValueType valueType) {
+			switch (valueType) {
+				case M1_RATE:
+					return metered.getOneMinuteRate();
+				case M5_RATE:
+					return metered.getFiveMinuteRate();
+				case M15_RATE:
+					return metered.getFifteenMinuteRate();
+				default:
+					return metered.getMeanRate();
+			}
+		}
+
+		private Snapshot getSnapshot() {
+			if (snapshot == null) {
+				// all thresholds of a check see the same snapshot
+				snapshot = ((Sampling) metric).getSnapshot();
+			}
+			return snapshot;
+		}
+
+		private static double getSnapshotValue(Snapshot snapshot, MetricValueType valueType) {
+			switch (valueType) {
+				case MEAN:
+					return snapshot.getMean();
+				case MIN:
+					return snapshot.getMin();
+				case MAX:
+					return snapshot.getMax();
+				case STDDEV:
+					return snapshot.getStdDev();
+				case P50:
+					return snapshot.getMedian();
+				case P75:
+					return snapshot.get75thPercentile();
+				case P95:
+					return snapshot.get95thPercentile();
+				case P98:
+					return snapshot.get98thPercentile();
+				case P99:
+					return snapshot.get99thPercentile();
+				default:
+					return snapshot.get999thPercentile();
+			}
+		}
+	}
+}
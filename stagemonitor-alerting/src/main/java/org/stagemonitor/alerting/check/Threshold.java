@@ -58,7 +58,11 @@ public class Threshold {
 	}
 
 	public CheckResult check(CheckResult.Status severity, MetricName target, Map<String, Number> currentValuesByMetric) {
-		double actualValue = currentValuesByMetric.get(valueType.getName()).doubleValue();
+		return check(severity, target, MetricValues.of(currentValuesByMetric));
+	}
+
+	public CheckResult check(CheckResult.Status severity, MetricName target, MetricValues currentValues) {
+		double actualValue = currentValues.getValue(valueType);
 		if (isExceeded(actualValue)) {
 			return new CheckResult(getCheckExpressionAsString(target) + " is false", actualValue, severity);
 		}
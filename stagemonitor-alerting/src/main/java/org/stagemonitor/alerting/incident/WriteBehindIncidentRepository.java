@@ -0,0 +1,437 @@
+package org.stagemonitor.alerting.incident;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.alerting.check.CheckResult;
+import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
+import org.stagemonitor.core.util.ExecutorUtils;
+import org.stagemonitor.core.util.HttpClient;
+import org.stagemonitor.core.util.JsonUtils;
+import org.stagemonitor.core.util.http.HttpRequest;
+import org.stagemonitor.core.util.http.HttpRequestBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An {@link IncidentRepository} which keeps the incidents in a local map and writes them to Elasticsearch in the
+ * background.
+ * <p>
+ * The local map is authoritative, so reading and saving an incident never waits for Elasticsearch. An incident is
+ * only written if its status or its failing check results have changed. A new current value or a higher number of
+ * consecutive failures alone does not cause a write. All changes since the last flush are sent as one
+ * <code>_bulk</code> request with external versioning.
+ * <p>
+ * The version of the incident is incremented locally on every update, even if the incident is not written. That's
+ * why the documents are written with the version which follows the last version that has been written to or loaded
+ * from Elasticsearch, instead of the local version. If another server has written a newer version of an incident in
+ * the meantime, the write fails with a version conflict. The incident is then reloaded from Elasticsearch the next
+ * time it is requested, so that the check results of the other servers are taken into account.
+ * <p>
+ * To also see the incidents which have been created, updated or deleted by other servers, the local map is refreshed
+ * from Elasticsearch every {@link #REFRESH_INTERVAL_MS} ms. Incidents with pending local changes are not refreshed.
+ */
+public class WriteBehindIncidentRepository implements IncidentRepository {
+
+	private static final Logger logger = LoggerFactory.getLogger(WriteBehindIncidentRepository.class);
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final long FLUSH_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+	static final long REFRESH_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+	private final ConcurrentMap<String, Incident> incidentsByCheckId = new ConcurrentHashMap<String, Incident>();
+	/**
+	 * The state (see {@link #getState(Incident)}) of the incidents which are stored or about to be stored in
+	 * Elasticsearch
+	 */
+	private final ConcurrentMap<String, String> writtenStatesByCheckId = new ConcurrentHashMap<String, String>();
+	/**
+	 * The versions of the incidents which have been written to or loaded from Elasticsearch
+	 */
+	private final ConcurrentMap<String, Integer> writtenVersionsByCheckId = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentMap<String, PendingWrite> pendingWritesByCheckId = new ConcurrentHashMap<String, PendingWrite>();
+	private final Set<String> staleCheckIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final ScheduledExecutorService executor;
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled.set(false);
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				logger.warn("Error while writing incidents to Elasticsearch", e);
+			}
+		}
+	};
+	private final Runnable refreshTask = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				refresh();
+			} catch (RuntimeException e) {
+				logger.warn("Error while loading incidents from Elasticsearch", e);
+			}
+		}
+	};
+	private ElasticsearchClient elasticsearchClient;
+	private ElasticsearchIncidentRepository elasticsearchIncidentRepository;
+	private volatile boolean loaded = false;
+
+	public WriteBehindIncidentRepository(ElasticsearchClient elasticsearchClient) {
+		this.elasticsearchClient = elasticsearchClient;
+		this.elasticsearchIncidentRepository = new ElasticsearchIncidentRepository(elasticsearchClient);
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ExecutorUtils.NamedThreadFactory("stagemonitor-incident-writer"));
+		executor.scheduleWithFixedDelay(refreshTask, REFRESH_INTERVAL_MS, REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public Collection<Incident> getAllIncidents() {
+		loadIncidents();
+		return incidentsByCheckId.values();
+	}
+
+	@Override
+	public Incident getIncidentByCheckId(String checkId) {
+		loadIncidents();
+		if (staleCheckIds.remove(checkId)) {
+			reloadIncident(checkId);
+		}
+		return incidentsByCheckId.get(checkId);
+	}
+
+	@Override
+	public boolean deleteIncident(Incident incident) {
+		loadIncidents();
+		if (!incidentsByCheckId.remove(incident.getCheckId(), incident.getIncidentWithPreviousVersion())) {
+			return false;
+		}
+		if (writtenStatesByCheckId.remove(incident.getCheckId()) != null) {
+			addPendingWrite(new PendingWrite(incident.getCheckId(), null));
+		}
+		return true;
+	}
+
+	@Override
+	public boolean createIncident(Incident incident) {
+		if (incident.getVersion() != 1) {
+			throw new IllegalArgumentException("Tried to create an incident with version not equal to 1: " + incident.getVersion());
+		}
+		loadIncidents();
+		if (incidentsByCheckId.putIfAbsent(incident.getCheckId(), incident) != null) {
+			return false;
+		}
+		writeIfChanged(incident);
+		return true;
+	}
+
+	@Override
+	public boolean updateIncident(Incident incident) {
+		loadIncidents();
+		if (!incidentsByCheckId.replace(incident.getCheckId(), incident.getIncidentWithPreviousVersion(), incident)) {
+			return false;
+		}
+		writeIfChanged(incident);
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		incidentsByCheckId.clear();
+		writtenStatesByCheckId.clear();
+		writtenVersionsByCheckId.clear();
+		pendingWritesByCheckId.clear();
+		staleCheckIds.clear();
+		elasticsearchIncidentRepository.clear();
+	}
+
+	/**
+	 * Sends all pending changes to Elasticsearch
+	 */
+	public synchronized void flush() {
+		if (pendingWritesByCheckId.isEmpty()) {
+			return;
+		}
+		if (!elasticsearchClient.isElasticsearchAvailable()) {
+			scheduleFlush();
+			return;
+		}
+		final List<PendingWrite> writes = new ArrayList<PendingWrite>(pendingWritesByCheckId.values());
+		final int[] versions = new int[writes.size()];
+		for (int i = 0; i < writes.size(); i++) {
+			final PendingWrite write = writes.get(i);
+			pendingWritesByCheckId.remove(write.checkId, write);
+			final Integer writtenVersion = writtenVersionsByCheckId.get(write.checkId);
+			versions[i] = writtenVersion != null ? writtenVersion + 1 : 1;
+		}
+		final JsonNode response = elasticsearchClient.getHttpClient().send(HttpRequestBuilder.<JsonNode>forUrl(elasticsearchClient.getElasticsearchUrl() + "/_bulk")
+				.method("POST")
+				.addHeaders(ElasticsearchClient.CONTENT_TYPE_NDJSON)
+				.outputStreamHandler(new BulkOutputStreamHandler(writes, versions))
+				.successHandler(new HttpClient.ResponseHandler<JsonNode>() {
+					@Override
+					public JsonNode handleResponse(HttpRequest<?> httpRequest, InputStream is, Integer statusCode, IOException e) throws IOException {
+						return JsonUtils.getMapper().readTree(is);
+					}
+				}).errorHandler(new HttpClient.ResponseHandler<JsonNode>() {
+					@Override
+					public JsonNode handleResponse(HttpRequest<?> httpRequest, InputStream is, Integer statusCode, IOException e) throws IOException {
+						// don't log exception as it might contain basic auth credentials (see #362)
+						logger.warn("Error while writing incidents to Elasticsearch. Status {}", statusCode);
+						return null;
+					}
+				})
+				.build());
+		if (response == null || response.get("items") == null) {
+			retry(writes);
+		} else {
+			handleBulkResponse(writes, versions, response.get("items"));
+		}
+	}
+
+	private void handleBulkResponse(List<PendingWrite> writes, int[] versions, JsonNode items) {
+		final Iterator<JsonNode> itemIterator = items.iterator();
+		for (int i = 0; i < writes.size(); i++) {
+			final PendingWrite write = writes.get(i);
+			final JsonNode action = itemIterator.next().elements().next();
+			final int status = action.get("status").asInt();
+			if (status < 300) {
+				if (write.isDelete()) {
+					writtenVersionsByCheckId.remove(write.checkId);
+				} else {
+					writtenVersionsByCheckId.put(write.checkId, versions[i]);
+				}
+			} else if (status == 409) {
+				logger.debug("Incident for check {} has been updated by another server. Reloading it.", write.checkId);
+				writtenStatesByCheckId.remove(write.checkId);
+				writtenVersionsByCheckId.remove(write.checkId);
+				staleCheckIds.add(write.checkId);
+			} else if (status == 429 || status >= 500) {
+				retry(Collections.singletonList(write));
+			} else if (status >= 300 && !(write.isDelete() && status == 404)) {
+				logger.warn("Error while writing incident for check {} to Elasticsearch: {}", write.checkId, action.get("error"));
+			}
+		}
+	}
+
+	private void retry(List<PendingWrite> writes) {
+		for (PendingWrite write : writes) {
+			// a newer change supersedes the failed one
+			pendingWritesByCheckId.putIfAbsent(write.checkId, write);
+		}
+		scheduleFlush();
+	}
+
+	/**
+	 * Writes all pending changes and stops the background writer
+	 */
+	public void close() {
+		executor.shutdown();
+		flush();
+	}
+
+	private void loadIncidents() {
+		if (!loaded) {
+			synchronized (this) {
+				if (!loaded && elasticsearchClient.isElasticsearchAvailable()) {
+					for (Incident incident : elasticsearchIncidentRepository.getAllIncidents()) {
+						if (incidentsByCheckId.putIfAbsent(incident.getCheckId(), incident) == null) {
+							writtenStatesByCheckId.put(incident.getCheckId(), getState(incident));
+							writtenVersionsByCheckId.put(incident.getCheckId(), incident.getVersion());
+						}
+					}
+					loaded = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Updates the local map with the incidents which have been created, updated or deleted in Elasticsearch by other
+	 * servers
+	 */
+	synchronized void refresh() {
+		if (!loaded) {
+			loadIncidents();
+			return;
+		}
+		if (!elasticsearchClient.isElasticsearchAvailable()) {
+			return;
+		}
+		final Map<String, Incident> storedIncidents = new HashMap<String, Incident>();
+		for (Incident incident : elasticsearchIncidentRepository.getAllIncidents()) {
+			storedIncidents.put(incident.getCheckId(), incident);
+		}
+		for (Incident storedIncident : storedIncidents.values()) {
+			refreshIncident(storedIncident.getCheckId(), storedIncident);
+		}
+		for (String checkId : writtenVersionsByCheckId.keySet()) {
+			// only incidents which have been written or loaded before can have been deleted by another server
+			if (!storedIncidents.containsKey(checkId)) {
+				// the search might not yet contain recently written incidents, in contrast to a get by id
+				refreshIncident(checkId, elasticsearchIncidentRepository.getIncidentByCheckId(checkId));
+			}
+		}
+	}
+
+	/**
+	 * Replaces the local incident with the stored one, if it has been changed by another server
+	 *
+	 * @param storedIncident the incident stored in Elasticsearch or <code>null</code>, if it has been deleted
+	 */
+	private void refreshIncident(String checkId, Incident storedIncident) {
+		if (pendingWritesByCheckId.containsKey(checkId)) {
+			return;
+		}
+		if (storedIncident == null) {
+			incidentsByCheckId.remove(checkId);
+			writtenStatesByCheckId.remove(checkId);
+			writtenVersionsByCheckId.remove(checkId);
+			return;
+		}
+		final Integer writtenVersion = writtenVersionsByCheckId.get(checkId);
+		if (writtenVersion != null && storedIncident.getVersion() <= writtenVersion) {
+			return;
+		}
+		final Incident localIncident = incidentsByCheckId.get(checkId);
+		final boolean replaced = localIncident == null
+				? incidentsByCheckId.putIfAbsent(checkId, storedIncident) == null
+				: incidentsByCheckId.replace(checkId, localIncident, storedIncident);
+		if (replaced) {
+			writtenStatesByCheckId.put(checkId, getState(storedIncident));
+			writtenVersionsByCheckId.put(checkId, storedIncident.getVersion());
+		}
+	}
+
+	private void reloadIncident(String checkId) {
+		try {
+			final Incident incident = elasticsearchIncidentRepository.getIncidentByCheckId(checkId);
+			if (incident != null) {
+				incidentsByCheckId.put(checkId, incident);
+				writtenStatesByCheckId.put(checkId, getState(incident));
+				writtenVersionsByCheckId.put(checkId, incident.getVersion());
+			} else {
+				incidentsByCheckId.remove(checkId);
+				writtenStatesByCheckId.remove(checkId);
+				writtenVersionsByCheckId.remove(checkId);
+			}
+		} catch (RuntimeException e) {
+			staleCheckIds.add(checkId);
+			logger.warn("Could not reload incident for check " + checkId, e);
+		}
+	}
+
+	private void writeIfChanged(Incident incident) {
+		final String state = getState(incident);
+		if (!state.equals(writtenStatesByCheckId.put(incident.getCheckId(), state))) {
+			addPendingWrite(new PendingWrite(incident.getCheckId(), JsonUtils.getMapper().<ObjectNode>valueToTree(incident)));
+		}
+	}
+
+	private void addPendingWrite(PendingWrite write) {
+		pendingWritesByCheckId.put(write.checkId, write);
+		scheduleFlush();
+	}
+
+	private void scheduleFlush() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			try {
+				executor.schedule(flushTask, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				flushScheduled.set(false);
+				logger.debug("Not scheduling write of incidents because the writer is closed");
+			}
+		}
+	}
+
+	/**
+	 * The part of an incident which, if it changes, causes the incident to be written to Elasticsearch
+	 */
+	private static String getState(Incident incident) {
+		final Map<String, CheckResults> resultsBySession = new TreeMap<String, CheckResults>();
+		for (CheckResults checkResults : incident.getCheckResults()) {
+			resultsBySession.put(checkResults.getMeasurementSession().getId(), checkResults);
+		}
+		final StringBuilder sb = new StringBuilder()
+				.append(incident.getOldStatus()).append("->").append(incident.getNewStatus());
+		for (Map.Entry<String, CheckResults> entry : resultsBySession.entrySet()) {
+			sb.append('\n').append(entry.getKey()).append(':').append(entry.getValue().getStatus());
+			for (CheckResult result : entry.getValue().getResults()) {
+				sb.append('\n').append(result.getStatus()).append(' ').append(result.getFailingExpression());
+			}
+		}
+		return sb.toString();
+	}
+
+	void setElasticsearchClient(ElasticsearchClient elasticsearchClient) {
+		this.elasticsearchClient = elasticsearchClient;
+		this.elasticsearchIncidentRepository.setElasticsearchClient(elasticsearchClient);
+	}
+
+	private static class PendingWrite {
+		private final String checkId;
+		/**
+		 * The JSON of the incident or <code>null</code> if the incident has been deleted
+		 */
+		private final ObjectNode source;
+
+		private PendingWrite(String checkId, ObjectNode source) {
+			this.checkId = checkId;
+			this.source = source;
+		}
+
+		private boolean isDelete() {
+			return source == null;
+		}
+	}
+
+	private static class BulkOutputStreamHandler implements HttpClient.OutputStreamHandler {
+		private final List<PendingWrite> writes;
+		private final int[] versions;
+
+		private BulkOutputStreamHandler(List<PendingWrite> writes, int[] versions) {
+			this.writes = writes;
+			this.versions = versions;
+		}
+
+		@Override
+		public void withHttpURLConnection(OutputStream os) throws IOException {
+			final StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < writes.size(); i++) {
+				final PendingWrite write = writes.get(i);
+				sb.append("{\"").append(write.isDelete() ? "delete" : "index").append("\":{")
+						.append("\"_index\":\"stagemonitor\",\"_type\":\"incidents\",")
+						.append("\"_id\":").append(JsonUtils.toJson(write.checkId)).append(',')
+						.append("\"version\":").append(versions[i]).append(",\"version_type\":\"external\"}}\n");
+				if (!write.isDelete()) {
+					// the version of the document is the one in Elasticsearch, not the local one
+					final ObjectNode source = write.source.deepCopy();
+					source.put("version", versions[i]);
+					sb.append(source.toString()).append('\n');
+				}
+			}
+			os.write(sb.toString().getBytes(UTF_8));
+			os.close();
+		}
+	}
+}
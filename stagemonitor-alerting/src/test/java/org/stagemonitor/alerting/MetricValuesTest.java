@@ -0,0 +1,57 @@
+package org.stagemonitor.alerting;
+
+import com.codahale.metrics.Metric;
+
+import org.junit.Test;
+import org.stagemonitor.alerting.check.MetricValueType;
+import org.stagemonitor.alerting.check.MetricValues;
+import org.stagemonitor.core.util.JsonUtils;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.counter;
+import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.gauge;
+import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.histogram;
+import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.meter;
+import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.snapshot;
+import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.timer;
+
+public class MetricValuesTest {
+
+	@Test
+	public void testValuesAreEqualToJsonRepresentation() throws Exception {
+		assertValuesEqualToJson(gauge(3.5));
+		assertValuesEqualToJson(counter(42));
+		assertValuesEqualToJson(meter(10));
+		assertValuesEqualToJson(histogram(5, snapshot(400, 200, 100, 500, 600, 700, 800, 900, 1000, 1100)));
+		assertValuesEqualToJson(timer(5, 2, 3, 4, 5, snapshot(4e6, 2_000_000, 1000, 5e5, 6e6, 7e6, 8e6, 9e6, 1e7, 1.1e7)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testValueTypeOfOtherMetric() throws Exception {
+		MetricValues.of(counter(1)).getValue(MetricValueType.P99);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNonNumericGauge() throws Exception {
+		MetricValues.of(gauge(true)).getValue(MetricValueType.VALUE);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void assertValuesEqualToJson(Metric metric) {
+		final Map<String, Object> json = JsonUtils.getMapper().convertValue(metric, Map.class);
+		final MetricValues metricValues = MetricValues.of(metric);
+		int comparedValues = 0;
+		for (MetricValueType valueType : MetricValueType.values()) {
+			if (json.get(valueType.getName()) instanceof Number) {
+				assertEquals(metric.getClass() + " " + valueType, ((Number) json.get(valueType.getName())).doubleValue(),
+						metricValues.getValue(valueType), 0.000001);
+				comparedValues++;
+			}
+		}
+		if (comparedValues == 0) {
+			throw new AssertionError("No values of " + metric.getClass() + " have been compared");
+		}
+	}
+}
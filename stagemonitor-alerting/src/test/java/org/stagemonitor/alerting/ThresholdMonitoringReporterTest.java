@@ -213,6 +213,43 @@ public class ThresholdMonitoringReporterTest {
 		assertEquals(3, storedIncident.getVersion());
 	}
 
+	@Test
+	public void testResolveTargetsWhenMetricsOrChecksChange() throws Exception {
+		final Metric2Registry registry = new Metric2Registry();
+		registry.timer(name("test_timer").tag("signature", "timer1").build()).update(7, TimeUnit.MILLISECONDS);
+		Check check = createCheckCheckingMean(1, 6);
+		when(alertingPlugin.getChecks()).thenReturn(Collections.singletonMap(check.getId(), check));
+
+		checkMetrics(registry);
+		assertEquals(1, getCheckResultsOfIncident(check).size());
+
+		registry.timer(name("test_timer").tag("signature", "timer2").build()).update(8, TimeUnit.MILLISECONDS);
+		checkMetrics(registry);
+		assertEquals(2, getCheckResultsOfIncident(check).size());
+
+		check.setTarget(name("test_timer").tag("signature", "timer2").build());
+		checkMetrics(registry);
+		assertEquals(1, getCheckResultsOfIncident(check).size());
+
+		Check otherCheck = createCheckCheckingMean(1, 6);
+		otherCheck.setTarget(name("test_timer").tag("signature", "timer1").build());
+		final Map<String, Check> checks = new HashMap<>();
+		checks.put(check.getId(), check);
+		checks.put(otherCheck.getId(), otherCheck);
+		when(alertingPlugin.getChecks()).thenReturn(checks);
+		checkMetrics(registry);
+		assertEquals(1, getCheckResultsOfIncident(otherCheck).size());
+	}
+
+	private void checkMetrics(Metric2Registry registry) {
+		thresholdMonitoringReporter.reportMetrics(registry.getGauges(), registry.getCounters(), registry.getHistograms(),
+				registry.getMeters(), registry.getTimers());
+	}
+
+	private List<CheckResult> getCheckResultsOfIncident(Check check) {
+		return incidentRepository.getIncidentByCheckId(check.getId()).getCheckResults().iterator().next().getResults();
+	}
+
 	public static Check createCheckCheckingMean(int alertAfterXFailures, long meanMs) {
 		Check check = new Check();
 		check.setName("Test Timer");
@@ -28,6 +28,9 @@ public class IncidentRepositoryTest<T extends IncidentRepository> extends Abstra
 			final ElasticsearchIncidentRepository elasticsearchIncidentRepository = (ElasticsearchIncidentRepository) incidentRepository;
 			elasticsearchIncidentRepository.setElasticsearchClient(elasticsearchClient);
 		}
+		if (incidentRepository instanceof WriteBehindIncidentRepository) {
+			((WriteBehindIncidentRepository) incidentRepository).setElasticsearchClient(elasticsearchClient);
+		}
 	}
 
 	@Before
@@ -39,7 +42,8 @@ public class IncidentRepositoryTest<T extends IncidentRepository> extends Abstra
 	public static Iterable<Object[]> data() {
 		return Arrays.asList(new Object[][]{
 				{new ElasticsearchIncidentRepository(elasticsearchClient), ElasticsearchIncidentRepository.class},
-				{new ConcurrentMapIncidentRepository(), ConcurrentMapIncidentRepository.class}
+				{new ConcurrentMapIncidentRepository(), ConcurrentMapIncidentRepository.class},
+				{new WriteBehindIncidentRepository(elasticsearchClient), WriteBehindIncidentRepository.class}
 		});
 	}
 
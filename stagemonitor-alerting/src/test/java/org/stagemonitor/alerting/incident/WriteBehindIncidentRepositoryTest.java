@@ -0,0 +1,216 @@
+package org.stagemonitor.alerting.incident;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.stagemonitor.AbstractElasticsearchTest;
+import org.stagemonitor.alerting.ThresholdMonitoringReporterTest;
+import org.stagemonitor.alerting.check.CheckResult;
+import org.stagemonitor.core.MeasurementSession;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WriteBehindIncidentRepositoryTest extends AbstractElasticsearchTest {
+
+	private static final MeasurementSession MEASUREMENT_SESSION = new MeasurementSession("testApp", "testHost", "testInstance");
+
+	private WriteBehindIncidentRepository writeBehindIncidentRepository;
+	private ElasticsearchIncidentRepository elasticsearchIncidentRepository;
+
+	@Before
+	public void setUp() throws Exception {
+		writeBehindIncidentRepository = new WriteBehindIncidentRepository(elasticsearchClient);
+		elasticsearchIncidentRepository = new ElasticsearchIncidentRepository(elasticsearchClient);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		writeBehindIncidentRepository.close();
+	}
+
+	@Test
+	public void testWritesIncidentsInBackground() throws Exception {
+		final Incident incident1 = createIncident("check 1", CheckResult.Status.ERROR);
+		final Incident incident2 = createIncident("check 2", CheckResult.Status.WARN);
+		assertThat(writeBehindIncidentRepository.createIncident(incident1)).isTrue();
+		assertThat(writeBehindIncidentRepository.createIncident(incident2)).isTrue();
+		assertThat(writeBehindIncidentRepository.getIncidentByCheckId("check 1")).isSameAs(incident1);
+
+		writeBehindIncidentRepository.flush();
+		refresh();
+
+		assertThat(elasticsearchIncidentRepository.getIncidentByCheckId("check 1")).isEqualTo(incident1);
+		assertThat(elasticsearchIncidentRepository.getIncidentByCheckId("check 2")).isEqualTo(incident2);
+	}
+
+	@Test
+	public void testOnlyWritesIncidentsWhenStatusOrResultsChange() throws Exception {
+		Incident incident = createIncident("check", CheckResult.Status.ERROR);
+		writeBehindIncidentRepository.createIncident(incident);
+		incident = updateIncident(incident, CheckResult.Status.ERROR);
+		writeBehindIncidentRepository.flush();
+
+		// same status and results, only the number of consecutive failures increases
+		incident = updateIncident(incident, CheckResult.Status.ERROR);
+		incident = updateIncident(incident, CheckResult.Status.ERROR);
+		writeBehindIncidentRepository.flush();
+		refresh();
+		assertThat(elasticsearchIncidentRepository.getIncidentByCheckId("check").getVersion()).isEqualTo(1);
+		assertThat(writeBehindIncidentRepository.getIncidentByCheckId("check").getVersion()).isEqualTo(4);
+
+		incident = updateIncident(incident, CheckResult.Status.CRITICAL);
+		writeBehindIncidentRepository.flush();
+		refresh();
+		final Incident writtenIncident = elasticsearchIncidentRepository.getIncidentByCheckId("check");
+		assertThat(writtenIncident.getVersion()).isEqualTo(2);
+		assertThat(writtenIncident.getNewStatus()).isEqualTo(CheckResult.Status.CRITICAL);
+	}
+
+	@Test
+	public void testDoesNotOverwriteIncidentsOfOtherServers() throws Exception {
+		final WriteBehindIncidentRepository otherServer = new WriteBehindIncidentRepository(elasticsearchClient);
+		try {
+			Incident incident = createIncident("check", CheckResult.Status.ERROR);
+			writeBehindIncidentRepository.createIncident(incident);
+			writeBehindIncidentRepository.flush();
+			refresh();
+
+			// only the first update changes the state, the local version increases nonetheless
+			incident = updateIncident(incident, CheckResult.Status.ERROR);
+			incident = updateIncident(incident, CheckResult.Status.ERROR);
+			incident = updateIncident(incident, CheckResult.Status.ERROR);
+			writeBehindIncidentRepository.flush();
+			refresh();
+			assertThat(elasticsearchIncidentRepository.getIncidentByCheckId("check").getVersion()).isEqualTo(2);
+
+			final Incident incidentOfOtherServer = new Incident(otherServer.getIncidentByCheckId("check"),
+					new MeasurementSession("testApp", "otherHost", "testInstance"), results(CheckResult.Status.WARN));
+			assertThat(otherServer.updateIncident(incidentOfOtherServer)).isTrue();
+			otherServer.flush();
+			refresh();
+			assertThat(elasticsearchIncidentRepository.getIncidentByCheckId("check").getVersion()).isEqualTo(3);
+
+			// this write conflicts with the one of the other server instead of replacing it
+			updateIncident(incident, CheckResult.Status.CRITICAL);
+			writeBehindIncidentRepository.flush();
+			refresh();
+
+			final Incident reloadedIncident = writeBehindIncidentRepository.getIncidentByCheckId("check");
+			assertThat(reloadedIncident.getVersion()).isEqualTo(3);
+			assertThat(reloadedIncident.getCheckResults()).hasSize(2);
+			assertThat(elasticsearchIncidentRepository.getIncidentByCheckId("check")).isEqualTo(reloadedIncident);
+		} finally {
+			otherServer.close();
+		}
+	}
+
+	@Test
+	public void testDeleteIncident() throws Exception {
+		final Incident incident = createIncident("check", CheckResult.Status.ERROR);
+		writeBehindIncidentRepository.createIncident(incident);
+		writeBehindIncidentRepository.flush();
+		refresh();
+		assertThat(elasticsearchIncidentRepository.getIncidentByCheckId("check")).isNotNull();
+
+		final Incident resolvedIncident = new Incident(incident, MEASUREMENT_SESSION, results(CheckResult.Status.OK));
+		assertThat(writeBehindIncidentRepository.deleteIncident(resolvedIncident)).isTrue();
+		assertThat(writeBehindIncidentRepository.getIncidentByCheckId("check")).isNull();
+		writeBehindIncidentRepository.flush();
+		refresh();
+
+		assertThat(elasticsearchIncidentRepository.getIncidentByCheckId("check")).isNull();
+	}
+
+	@Test
+	public void testReloadIncidentAfterVersionConflict() throws Exception {
+		final Incident incident = createIncident("check", CheckResult.Status.ERROR);
+		writeBehindIncidentRepository.createIncident(incident);
+		writeBehindIncidentRepository.flush();
+
+		// another server updates the incident
+		final Incident incidentOfOtherServer = createIncident("check", CheckResult.Status.WARN);
+		incidentOfOtherServer.setVersion(5);
+		assertThat(elasticsearchIncidentRepository.updateIncident(incidentOfOtherServer)).isTrue();
+
+		updateIncident(incident, CheckResult.Status.CRITICAL);
+		writeBehindIncidentRepository.flush();
+
+		assertThat(writeBehindIncidentRepository.getIncidentByCheckId("check")).isEqualTo(incidentOfOtherServer);
+	}
+
+	@Test
+	public void testLoadIncidentsFromElasticsearch() throws Exception {
+		final Incident incident = createIncident("check", CheckResult.Status.ERROR);
+		elasticsearchIncidentRepository.createIncident(incident);
+		refresh();
+
+		assertThat(writeBehindIncidentRepository.getAllIncidents()).containsExactly(incident);
+		assertThat(writeBehindIncidentRepository.getIncidentByCheckId("check")).isEqualTo(incident);
+	}
+
+	@Test
+	public void testRefreshIncidentsOfOtherServers() throws Exception {
+		final Incident incident = createIncident("check 1", CheckResult.Status.ERROR);
+		writeBehindIncidentRepository.createIncident(incident);
+		writeBehindIncidentRepository.flush();
+		refresh();
+		assertThat(writeBehindIncidentRepository.getAllIncidents()).containsExactly(incident);
+
+		// another server creates an incident and resolves the local one
+		final Incident incidentOfOtherServer = createIncident("check 2", CheckResult.Status.WARN);
+		elasticsearchIncidentRepository.createIncident(incidentOfOtherServer);
+		elasticsearchIncidentRepository.deleteIncident(new Incident(incident, MEASUREMENT_SESSION, results(CheckResult.Status.OK)));
+		refresh();
+		writeBehindIncidentRepository.refresh();
+
+		assertThat(writeBehindIncidentRepository.getAllIncidents()).containsExactly(incidentOfOtherServer);
+		assertThat(writeBehindIncidentRepository.getIncidentByCheckId("check 1")).isNull();
+
+		// another server updates the incident
+		final Incident updatedIncident = new Incident(incidentOfOtherServer, MEASUREMENT_SESSION, results(CheckResult.Status.CRITICAL));
+		assertThat(elasticsearchIncidentRepository.updateIncident(updatedIncident)).isTrue();
+		refresh();
+		writeBehindIncidentRepository.refresh();
+
+		assertThat(writeBehindIncidentRepository.getIncidentByCheckId("check 2")).isEqualTo(updatedIncident);
+		assertThat(writeBehindIncidentRepository.getIncidentByCheckId("check 2").getNewStatus()).isEqualTo(CheckResult.Status.CRITICAL);
+	}
+
+	@Test
+	public void testRefreshKeepsLocalChanges() throws Exception {
+		final Incident incident = createIncident("check", CheckResult.Status.ERROR);
+		writeBehindIncidentRepository.createIncident(incident);
+		writeBehindIncidentRepository.flush();
+		// the incident is not yet searchable
+		writeBehindIncidentRepository.refresh();
+		assertThat(writeBehindIncidentRepository.getIncidentByCheckId("check")).isSameAs(incident);
+
+		refresh();
+		final Incident updatedIncident = updateIncident(incident, CheckResult.Status.CRITICAL);
+		writeBehindIncidentRepository.refresh();
+		assertThat(writeBehindIncidentRepository.getIncidentByCheckId("check")).isSameAs(updatedIncident);
+	}
+
+	private Incident updateIncident(Incident previousIncident, CheckResult.Status status) {
+		final Incident incident = new Incident(previousIncident, MEASUREMENT_SESSION, results(status));
+		assertThat(writeBehindIncidentRepository.updateIncident(incident)).isTrue();
+		return incident;
+	}
+
+	private static Incident createIncident(String checkId, CheckResult.Status status) {
+		final Incident incident = new Incident(ThresholdMonitoringReporterTest.createCheckCheckingMean(1, 5), MEASUREMENT_SESSION,
+				results(status));
+		incident.setCheckId(checkId);
+		return incident;
+	}
+
+	private static List<CheckResult> results(CheckResult.Status status) {
+		if (status == CheckResult.Status.OK) {
+			return Arrays.asList();
+		}
+		return Arrays.asList(new CheckResult("test", 10, status));
+	}
+}
@@ -12,7 +12,7 @@ import org.stagemonitor.core.util.HttpClient;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Collections;
+import java.lang.management.ManagementFactory;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -28,6 +28,12 @@ public class ElasticsearchReporterBenchmark {
 	private static final TimeUnit DURATION_UNIT = TimeUnit.MICROSECONDS;
 	private static final byte[] bulkActionBytes = new byte[] {};
 
+	/**
+	 * The number of metrics of each type
+	 */
+	@Param({"100", "10000"})
+	private int metricsPerType;
+
 	private ElasticsearchReporter elasticsearchReporter;
 	private ByteArrayOutputStream out;
 	private CorePlugin corePlugin;
@@ -44,20 +50,25 @@ public class ElasticsearchReporterBenchmark {
 	@Setup(Level.Iteration)
 	public void init() throws IOException {
 		registry = new Metric2Registry();
-		for (int g = 0; g < 100; g++) {
+		for (int i = 0; i < metricsPerType; i++) {
 			Gauge<Long> gauge = new Gauge<Long>() {
 				public Long getValue() {
 					return System.currentTimeMillis();
 				}
 			};
-			registry.register(name("test_gauge_" + g).build(), gauge);
-			counter = registry.counter(name("test_counter").build());
+			registry.register(name("test_gauge").tag("index", Integer.toString(i)).build(), gauge);
+			registry.counter(name("test_counter").tag("index", Integer.toString(i)).build()).inc(i);
+			registry.histogram(name("test_histogram").tag("index", Integer.toString(i)).build()).update(i);
+			registry.meter(name("test_meter").tag("index", Integer.toString(i)).build()).mark(i);
+			registry.timer(name("response_time").tag("request_name", "Request " + i).tag("layer", "All").build())
+					.update(i, TimeUnit.MILLISECONDS);
 		}
+		counter = registry.counter(name("test_counter").build());
 		gauges = registry.getGauges();
-		counters = metricNameMap(Counter.class);
-		histograms = metricNameMap(Histogram.class);
-		meters = metricNameMap(Meter.class);
-		timers = metricNameMap(Timer.class);
+		counters = registry.getCounters();
+		histograms = registry.getHistograms();
+		meters = registry.getMeters();
+		timers = registry.getTimers();
 
 		timestamp = System.currentTimeMillis();
 		out = new ByteArrayOutputStream();
@@ -76,13 +87,46 @@ public class ElasticsearchReporterBenchmark {
 
 	}
 
-	private static <T> Map<MetricName, T> metricNameMap(Class<T> clazz) {
-		return Collections.emptyMap();
-	}
-
 	@Benchmark
-	public void reportMetrics(Blackhole bh) throws IOException {
+	public void reportMetrics(Blackhole bh, AllocatedBytes allocatedBytes) throws IOException {
 		counter.inc();
+		out.reset();
+		final long allocatedBefore = AllocatedBytes.getAllocatedBytes();
 		elasticsearchReporter.reportMetrics(gauges, counters, histograms, meters, timers, out, bulkActionBytes, timestamp);
+		allocatedBytes.onReport(AllocatedBytes.getAllocatedBytes() - allocatedBefore);
+		bh.consume(out.size());
+	}
+
+	/**
+	 * Tracks the bytes which are allocated by the reporting thread per report, excluding the growth of the output
+	 * buffer
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class AllocatedBytes {
+		private static final com.sun.management.ThreadMXBean threadMXBean =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+		private long allocatedBytes;
+		private long reports;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			allocatedBytes = 0;
+			reports = 0;
+		}
+
+		void onReport(long bytes) {
+			allocatedBytes += bytes;
+			reports++;
+		}
+
+		public long allocatedBytesPerReport() {
+			return reports == 0 ? 0 : allocatedBytes / reports;
+		}
+
+		static long getAllocatedBytes() {
+			return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
 	}
 }
@@ -8,13 +8,26 @@ import org.openjdk.jmh.infra.Blackhole;
 import org.stagemonitor.core.metrics.metrics2.MetricName;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
+/**
+ * Run with <code>-prof gc</code> to see the allocation rate. Looking up a cached {@link MetricName} with a
+ * {@link MetricName.MetricNameTemplate} should not allocate.
+ */
 @State(value = Scope.Benchmark)
 public class MetricNameBenchmark {
 
+	private static final String[] VALUES = new String[100];
+	static {
+		for (int i = 0; i < VALUES.length; i++) {
+			VALUES[i] = Integer.toString(i);
+		}
+	}
+
 	private static final MetricName METRIC_NAME = name("response_time")
 			.operationName("Process Find Form")
 			.tag("layer", "All")
@@ -25,8 +38,11 @@ public class MetricNameBenchmark {
 			.templateFor("operation_name");
 	private static final MetricName.MetricNameTemplate externalRequestTemplate = name("external_request_response_time")
 			.templateFor("type", "signature", "method");
+	private static final MetricName.MetricNameTemplate throughputTemplate = name("request_throughput")
+			.templateFor("operation_name", "http_code");
 
 	private List<MetricName> names = new ArrayList<>();
+	private Map<MetricName, Object> metrics = new HashMap<>();
 
 	int i = 0;
 
@@ -545,19 +561,22 @@ public class MetricNameBenchmark {
 				.tag("layer", "All")
 				.build());
 		names.add(METRIC_NAME);
+		for (MetricName name : names) {
+			metrics.put(name, name);
+		}
 	}
 
 	@Benchmark
 	public MetricName buildMetricTemplateSingleValue() {
 		i++;
-		return timerMetricNameTemplate.build(Integer.toString(i % 100));
+		return timerMetricNameTemplate.build(VALUES[i % 100]);
 	}
 
 	@Benchmark
 	public MetricName buildMetricNameSingleValue() {
 		i++;
 		return name("response_time")
-				.operationName(Integer.toString(i % 100))
+				.operationName(VALUES[i % 100])
 				.layer("All")
 				.build();
 	}
@@ -565,14 +584,20 @@ public class MetricNameBenchmark {
 	@Benchmark
 	public MetricName buildMetricTemplateMultipleValues() {
 		i++;
-		final String s = Integer.toString(i % 100);
+		final String s = VALUES[i % 100];
 		return externalRequestTemplate.build(s, s, s);
 	}
 
+	@Benchmark
+	public MetricName buildMetricTemplateTwoValues() {
+		i++;
+		return throughputTemplate.build(VALUES[i % 100], "200");
+	}
+
 	@Benchmark
 	public MetricName buildMetricNameMultipleValues() {
 		i++;
-		final String s = Integer.toString(i % 100);
+		final String s = VALUES[i % 100];
 		return name("external_request_response_time").type(s).tag("signature", s).tag("method", s).build();
 	}
 
@@ -583,4 +608,25 @@ public class MetricNameBenchmark {
 		}
 	}
 
+	@Benchmark
+	public void lookupMetricName(Blackhole bh) {
+		for (MetricName name : names) {
+			bh.consume(metrics.get(name));
+		}
+	}
+
+	@Benchmark
+	public void toGraphiteName(Blackhole bh) {
+		for (MetricName name : names) {
+			bh.consume(name.toGraphiteName());
+		}
+	}
+
+	@Benchmark
+	public void toInfluxDbLineProtocolString(Blackhole bh) {
+		for (MetricName name : names) {
+			bh.consume(name.toInfluxDbLineProtocolString());
+		}
+	}
+
 }
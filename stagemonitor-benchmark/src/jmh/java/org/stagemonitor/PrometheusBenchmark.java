@@ -0,0 +1,82 @@
+package org.stagemonitor;
+
+import com.codahale.metrics.Gauge;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.prometheus.PrometheusTextWriter;
+import org.stagemonitor.core.metrics.prometheus.StagemonitorPrometheusCollector;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+/**
+ * Compares the latency and the allocations of a Prometheus scrape via {@link StagemonitorPrometheusCollector} and
+ * {@link TextFormat#write004} with the {@link PrometheusTextWriter}.
+ * <p>
+ * The allocated bytes per scrape are reported as the secondary result <code>allocatedBytesPerReport</code>.
+ */
+@State(value = Scope.Benchmark)
+public class PrometheusBenchmark {
+
+	/**
+	 * The number of metrics of each type
+	 */
+	@Param({"100", "10000"})
+	private int metricsPerType;
+
+	private CollectorRegistry collectorRegistry;
+	private PrometheusTextWriter prometheusTextWriter;
+	private CharArrayWriter out;
+
+	@Setup(Level.Iteration)
+	public void init() {
+		final Metric2Registry registry = new Metric2Registry();
+		for (int i = 0; i < metricsPerType; i++) {
+			Gauge<Long> gauge = new Gauge<Long>() {
+				public Long getValue() {
+					return System.currentTimeMillis();
+				}
+			};
+			registry.register(name("test_gauge").tag("index", Integer.toString(i)).build(), gauge);
+			registry.counter(name("test_counter").tag("index", Integer.toString(i)).build()).inc(i);
+			registry.histogram(name("test_histogram").tag("index", Integer.toString(i)).build()).update(i);
+			registry.meter(name("test_meter").tag("index", Integer.toString(i)).build()).mark(i);
+			registry.timer(name("response_time").tag("request_name", "Request " + i).tag("layer", "All").build())
+					.update(i, TimeUnit.MILLISECONDS);
+		}
+		collectorRegistry = new CollectorRegistry();
+		new StagemonitorPrometheusCollector(registry).register(collectorRegistry);
+		prometheusTextWriter = new PrometheusTextWriter(registry);
+		out = new CharArrayWriter();
+	}
+
+	@Benchmark
+	public int collectorAndTextFormat(ElasticsearchReporterBenchmark.AllocatedBytes allocatedBytes) throws IOException {
+		out.reset();
+		final long allocatedBefore = ElasticsearchReporterBenchmark.AllocatedBytes.getAllocatedBytes();
+		TextFormat.write004(out, collectorRegistry.metricFamilySamples());
+		allocatedBytes.onReport(ElasticsearchReporterBenchmark.AllocatedBytes.getAllocatedBytes() - allocatedBefore);
+		return out.size();
+	}
+
+	@Benchmark
+	public int prometheusTextWriter(ElasticsearchReporterBenchmark.AllocatedBytes allocatedBytes) throws IOException {
+		out.reset();
+		final long allocatedBefore = ElasticsearchReporterBenchmark.AllocatedBytes.getAllocatedBytes();
+		prometheusTextWriter.write(out);
+		allocatedBytes.onReport(ElasticsearchReporterBenchmark.AllocatedBytes.getAllocatedBytes() - allocatedBefore);
+		return out.size();
+	}
+}
@@ -0,0 +1,106 @@
+package org.stagemonitor.benchmark.sampling;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.stagemonitor.tracing.sampling.RateLimitingPreExecutionInterceptor;
+import org.stagemonitor.tracing.utils.RateLimiter;
+
+/**
+ * Compares the lock-free {@link RateLimiter} with the previous, synchronized implementation under contention.
+ * <p>
+ * With a rate of 1,000 spans per minute, most calls are rejected, just like under load in production.
+ */
+@State(value = Scope.Benchmark)
+public class RateLimiterBenchmark {
+
+	@Param({"lockFree", "synchronized"})
+	private String implementation;
+
+	private CreditChecker creditChecker;
+
+	@Setup
+	public void init() {
+		if ("synchronized".equals(implementation)) {
+			final SynchronizedRateLimiter rateLimiter = new SynchronizedRateLimiter(1000d / 60, 1000d / 60);
+			creditChecker = new CreditChecker() {
+				@Override
+				public boolean checkCredit() {
+					return rateLimiter.checkCredit(1.0);
+				}
+			};
+		} else {
+			final RateLimiter rateLimiter = RateLimitingPreExecutionInterceptor.getRateLimiter(1000);
+			creditChecker = new CreditChecker() {
+				@Override
+				public boolean checkCredit() {
+					return rateLimiter.checkCredit(1.0);
+				}
+			};
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean checkCredit1Thread() {
+		return creditChecker.checkCredit();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean checkCredit4Threads() {
+		return creditChecker.checkCredit();
+	}
+
+	@Benchmark
+	@Threads(16)
+	public boolean checkCredit16Threads() {
+		return creditChecker.checkCredit();
+	}
+
+	@Benchmark
+	@Threads(64)
+	public boolean checkCredit64Threads() {
+		return creditChecker.checkCredit();
+	}
+
+	private interface CreditChecker {
+		boolean checkCredit();
+	}
+
+	/**
+	 * The implementation of {@link RateLimiter} before it has been made lock-free
+	 * <p>
+	 * Copyright (c) 2016, Uber Technologies, Inc (MIT License)
+	 */
+	private static class SynchronizedRateLimiter {
+		private final double creditsPerNanosecond;
+		private double balance;
+		private double maxBalance;
+		private long lastTick;
+
+		SynchronizedRateLimiter(double creditsPerSecond, double maxBalance) {
+			this.balance = maxBalance;
+			this.maxBalance = maxBalance;
+			this.creditsPerNanosecond = creditsPerSecond / 1.0e9;
+		}
+
+		synchronized boolean checkCredit(double itemCost) {
+			long currentTime = System.nanoTime();
+			double elapsedTime = currentTime - lastTick;
+			lastTick = currentTime;
+			balance += elapsedTime * creditsPerNanosecond;
+			if (balance > maxBalance) {
+				balance = maxBalance;
+			}
+			if (balance >= itemCost) {
+				balance -= itemCost;
+				return true;
+			}
+			return false;
+		}
+	}
+}
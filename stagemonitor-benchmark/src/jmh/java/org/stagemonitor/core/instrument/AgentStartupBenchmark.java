@@ -0,0 +1,227 @@
+package org.stagemonitor.core.instrument;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.modifier.Visibility;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.implementation.FixedValue;
+import net.bytebuddy.pool.TypePool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.stagemonitor.core.Stagemonitor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Simulates the startup of an application with a large number of classes and measures how long the agent takes to
+ * decide which transformers apply to them.
+ * <p>
+ * The synthetic classes are generated once and packaged into a jar. Like the agent does when a class is loaded, each
+ * class is described via a {@link TypePool} from its class file and matched against all active
+ * {@link StagemonitorByteBuddyTransformer}s. The type pool is created per invocation so that every invocation
+ * resolves the class hierarchies from scratch, as on a fresh start.
+ * <ul>
+ *     <li><code>separate</code>: the matcher of each transformer is evaluated on its own, like when each transformer
+ *     was registered as a separate transformation</li>
+ *     <li><code>merged</code>: all transformers are matched via a single {@link MergedTransformation}</li>
+ *     <li><code>cached</code>: like <code>merged</code>, but the type matches are read from a populated
+ *     {@link InstrumentationDecisionCache}, like on a restart with an unchanged jar</li>
+ * </ul>
+ * Most of the synthetic classes are outside of the monitored project ({@value #INCLUDED_PACKAGE}), just like most
+ * classes of a real application belong to libraries. A part of them extend other synthetic classes and implement
+ * interfaces so that the type matchers have to inspect the super types.
+ */
+@State(value = Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {
+		"-Dstagemonitor.instrument.debug=false",
+		"-Dstagemonitor.instrument.include=" + AgentStartupBenchmark.INCLUDED_PACKAGE
+})
+public class AgentStartupBenchmark {
+
+	static final String INCLUDED_PACKAGE = "com.example.app";
+	private static final String LIBRARY_PACKAGE = "com.example.lib";
+
+	@Param({"10000"})
+	private int classes;
+
+	@Param({"separate", "merged", "cached"})
+	private String matching;
+
+	private final Map<String, byte[]> classFiles = new LinkedHashMap<>();
+	private File tempDir;
+	private ProtectionDomain protectionDomain;
+	private List<AgentBuilder.RawMatcher> separateMatchers;
+	private MergedTransformation mergedTransformation;
+
+	@Setup
+	public void init() throws Exception {
+		generateClasses();
+		tempDir = File.createTempFile("agent-startup-benchmark", "");
+		tempDir.delete();
+		tempDir.mkdirs();
+		protectionDomain = new ProtectionDomain(new CodeSource(writeJar(new File(tempDir, "app.jar")).toURI().toURL(), (Certificate[]) null), null);
+
+		final List<StagemonitorByteBuddyTransformer> transformers = getTransformers();
+		separateMatchers = new ArrayList<>();
+		for (StagemonitorByteBuddyTransformer transformer : transformers) {
+			separateMatchers.add(transformer.getMatcher());
+		}
+		if ("cached".equals(matching)) {
+			final File cacheFile = new File(tempDir, "decisions.txt");
+			final InstrumentationDecisionCache decisionCache = InstrumentationDecisionCache.load(cacheFile, "benchmark");
+			// the first start populates the cache
+			matchMerged(new MergedTransformation(transformers, decisionCache));
+			decisionCache.save();
+			mergedTransformation = new MergedTransformation(transformers, InstrumentationDecisionCache.load(cacheFile, "benchmark"));
+		} else {
+			mergedTransformation = new MergedTransformation(transformers);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (File file : tempDir.listFiles()) {
+			file.delete();
+		}
+		tempDir.delete();
+	}
+
+	@Benchmark
+	public int matchClasses() {
+		if ("separate".equals(matching)) {
+			return matchSeparate();
+		} else {
+			return matchMerged(mergedTransformation);
+		}
+	}
+
+	private int matchSeparate() {
+		final TypePool typePool = createTypePool();
+		final ClassLoader classLoader = getClass().getClassLoader();
+		int matches = 0;
+		for (String className : classFiles.keySet()) {
+			final TypeDescription typeDescription = typePool.describe(className).resolve();
+			boolean matched = false;
+			for (AgentBuilder.RawMatcher matcher : separateMatchers) {
+				matched |= matcher.matches(typeDescription, classLoader, null, null, protectionDomain);
+			}
+			if (matched) {
+				matches++;
+			}
+		}
+		return matches;
+	}
+
+	private int matchMerged(MergedTransformation mergedTransformation) {
+		final TypePool typePool = createTypePool();
+		final ClassLoader classLoader = getClass().getClassLoader();
+		int matches = 0;
+		for (String className : classFiles.keySet()) {
+			if (mergedTransformation.matches(typePool.describe(className).resolve(), classLoader, null, null, protectionDomain)) {
+				matches++;
+			}
+		}
+		return matches;
+	}
+
+	private TypePool createTypePool() {
+		return new TypePool.Default(new TypePool.CacheProvider.Simple(),
+				new ClassFileLocator.Compound(new ClassFileLocator.Simple(classFiles), ClassFileLocator.ForClassLoader.ofSystemLoader()),
+				TypePool.Default.ReaderMode.FAST);
+	}
+
+	private void generateClasses() {
+		final TypePool typePool = createTypePool();
+		final List<String> classNames = new ArrayList<>();
+		for (int i = 0; i < classes; i++) {
+			final String packageName = i % 5 == 0 ? INCLUDED_PACKAGE : LIBRARY_PACKAGE;
+			final String className = packageName + ".pkg" + (i % 50) + ".Synthetic" + i;
+			DynamicType.Builder<?> builder;
+			if (i % 2 == 1 && i % 100 >= 10) {
+				// results in class hierarchies with a depth of up to 5 synthetic classes
+				builder = new ByteBuddy().subclass(typePool.describe(classNames.get(i - 10)).resolve());
+			} else {
+				builder = new ByteBuddy().subclass(Object.class);
+			}
+			if (i % 3 == 0) {
+				builder = builder.implement(Runnable.class);
+			}
+			if (i % 7 == 0) {
+				builder = builder.implement(Callable.class, Serializable.class);
+			}
+			final byte[] bytes = builder.name(className)
+					.defineMethod("getValue", String.class, Visibility.PUBLIC)
+					.intercept(FixedValue.value(className))
+					.make()
+					.getBytes();
+			classNames.add(className);
+			classFiles.put(className, bytes);
+		}
+	}
+
+	private File writeJar(File jar) throws IOException {
+		final JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		try {
+			for (Map.Entry<String, byte[]> classFile : classFiles.entrySet()) {
+				out.putNextEntry(new JarEntry(classFile.getKey().replace('.', '/') + ".class"));
+				out.write(classFile.getValue());
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+		return jar;
+	}
+
+	private static List<StagemonitorByteBuddyTransformer> getTransformers() {
+		final List<StagemonitorByteBuddyTransformer> transformers = new ArrayList<>();
+		for (StagemonitorByteBuddyTransformer transformer : ServiceLoader.load(StagemonitorByteBuddyTransformer.class, Stagemonitor.class.getClassLoader())) {
+			// the dispatcher which prevents duplicate transformations is only available when the agent is attached
+			if (transformer.isActive() && !transformer.isPreventDuplicateTransformation()) {
+				transformers.add(transformer);
+			}
+		}
+		Collections.sort(transformers, new Comparator<StagemonitorByteBuddyTransformer>() {
+			@Override
+			public int compare(StagemonitorByteBuddyTransformer o1, StagemonitorByteBuddyTransformer o2) {
+				return o1.getOrder() > o2.getOrder() ? 1 : -1;
+			}
+		});
+		return transformers;
+	}
+
+}
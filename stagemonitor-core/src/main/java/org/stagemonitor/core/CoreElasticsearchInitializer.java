@@ -6,6 +6,7 @@ import org.stagemonitor.core.elasticsearch.AbstractElasticsearchInitializer;
 import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
 import org.stagemonitor.core.metrics.metrics2.ElasticsearchReporter;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.util.HttpClient;
 import org.stagemonitor.util.IOUtils;
 
 import java.io.IOException;
@@ -34,7 +35,7 @@ public class CoreElasticsearchInitializer extends AbstractElasticsearchInitializ
 		elasticsearchClient.scheduleIndexManagement(ElasticsearchReporter.STAGEMONITOR_METRICS_INDEX_PREFIX,
 				corePlugin.getMoveToColdNodesAfterDays(), corePlugin.getDeleteElasticsearchMetricsAfterDays());
 
-		reportToElasticsearch(corePlugin.getMetricRegistry(), corePlugin.getElasticsearchReportingInterval(), corePlugin.getMeasurementSession());
+		reportToElasticsearch(corePlugin.getMetricRegistry(), corePlugin.getElasticsearchReportingInterval(), corePlugin.getMeasurementSession(), elasticsearchClient.getHttpClient());
 	}
 
 	private void createKibana5IndexAndMappings(ElasticsearchClient elasticsearchClient) {
@@ -73,13 +74,16 @@ public class CoreElasticsearchInitializer extends AbstractElasticsearchInitializ
 	}
 
 	private void reportToElasticsearch(Metric2Registry metricRegistry, int reportingInterval,
-									   final MeasurementSession measurementSession) {
+									   final MeasurementSession measurementSession, HttpClient httpClient) {
 		if (corePlugin.isReportToElasticsearch()) {
 			logger.info("Sending metrics to Elasticsearch ({}) every {}s", corePlugin.getElasticsearchUrlsWithoutAuthenticationInformation(), reportingInterval);
 		}
 		if (corePlugin.isReportToElasticsearch() || corePlugin.isOnlyLogElasticsearchMetricReports()) {
 			final ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(metricRegistry, corePlugin)
+					.httpClient(httpClient)
 					.globalTags(measurementSession.asMap())
+					.reportOnlyChangedMetrics(corePlugin.getFullReportInterval())
+					.mergeableHistograms(corePlugin.isMergeableHistograms())
 					.build();
 
 			reporter.start(reportingInterval, TimeUnit.SECONDS);
@@ -13,6 +13,7 @@ import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 import org.stagemonitor.configuration.converter.SetValueConverter;
 import org.stagemonitor.core.elasticsearch.ElasticsearchAvailabilityObserver;
+import org.stagemonitor.core.elasticsearch.SpillLog;
 import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
 import org.stagemonitor.core.elasticsearch.IndexSelector;
 import org.stagemonitor.core.grafana.GrafanaClient;
@@ -21,15 +22,19 @@ import org.stagemonitor.core.metrics.MetricsWithCountFilter;
 import org.stagemonitor.core.metrics.SortedTableLogReporter;
 import org.stagemonitor.core.metrics.metrics2.AndMetric2Filter;
 import org.stagemonitor.core.metrics.metrics2.ElasticsearchReporter;
+import org.stagemonitor.core.metrics.metrics2.IdleMetricsRemover;
 import org.stagemonitor.core.metrics.metrics2.InfluxDbReporter;
 import org.stagemonitor.core.metrics.metrics2.Metric2Filter;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 import org.stagemonitor.core.metrics.metrics2.MetricName;
 import org.stagemonitor.core.metrics.metrics2.MetricNameValueConverter;
+import org.stagemonitor.core.metrics.metrics2.ReservoirType;
 import org.stagemonitor.core.util.HttpClient;
+import org.stagemonitor.core.util.http.HttpURLConnectionTransport;
 import org.stagemonitor.util.StringUtils;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -46,6 +51,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.codahale.metrics.MetricRegistry.name;
+import static org.stagemonitor.core.util.Assert.checkArgument;
 import static org.stagemonitor.core.util.GraphiteSanitizer.sanitizeGraphiteMetricSegment;
 
 /**
@@ -57,6 +63,7 @@ public class CorePlugin extends StagemonitorPlugin {
 	public static final String POOLS_QUEUE_CAPACITY_LIMIT_KEY = "stagemonitor.threadPools.queueCapacityLimit";
 	private static final String ELASTICSEARCH = "elasticsearch";
 	private static final String METRICS_STORE = "metrics-store";
+	private static final int SPILL_LOG_SEGMENT_SIZE = 4 * 1024 * 1024;
 
 	private static final Logger logger = LoggerFactory.getLogger(CorePlugin.class);
 
@@ -338,6 +345,17 @@ public class CorePlugin extends StagemonitorPlugin {
 			.description("Attaches the agent via the Attach API at runtime and retransforms all currently loaded classes.")
 			.configurationCategory(CORE_PLUGIN_NAME)
 			.buildWithDefault(true);
+	private final ConfigurationOption<Boolean> retransformInBackground = ConfigurationOption.booleanOption()
+			.key("stagemonitor.instrument.runtimeAttach.retransformInBackground")
+			.dynamic(false)
+			.label("Retransform loaded classes in background")
+			.description("When attaching the agent at runtime, only register the instrumentation for new classes " +
+					"synchronously and retransform the classes which are already loaded in batches on a low priority " +
+					"background thread. This speeds up the startup of the application, but classes which are already " +
+					"loaded are instrumented with a delay. The progress is reported by the health check " +
+					"'Agent retransformation' and the metric 'agent_retransformation_classes'.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.buildWithDefault(false);
 	private final ConfigurationOption<Collection<String>> exportClassesWithName = ConfigurationOption.stringsOption()
 			.key("stagemonitor.instrument.exportGeneratedClassesWithName")
 			.dynamic(false)
@@ -357,11 +375,24 @@ public class CorePlugin extends StagemonitorPlugin {
 			.buildWithDefault(false);
 	private final ConfigurationOption<Collection<String>> excludedInstrumenters = ConfigurationOption.stringsOption()
 			.key("stagemonitor.instrument.excludedInstrumenter")
-			.dynamic(false)
+			.dynamic(true)
 			.label("Excluded Instrumenters")
-			.description("A list of the simple class names of StagemonitorByteBuddyTransformers that should not be applied")
+			.description("A list of the simple class names of StagemonitorByteBuddyTransformers that should not be applied. " +
+					"When this option is changed at runtime, the classes which are affected by the instrumenters which " +
+					"have been excluded or included are retransformed.")
 			.configurationCategory(CORE_PLUGIN_NAME)
 			.buildWithDefault(Collections.<String>emptySet());
+	private final ConfigurationOption<String> instrumentationDecisionCacheFile = ConfigurationOption.stringOption()
+			.key("stagemonitor.instrument.decisionCache.file")
+			.dynamic(false)
+			.label("Instrumentation decision cache file")
+			.description("The path to a file where stagemonitor stores which classes have been matched by which " +
+					"instrumenters. On the next start, the classes of unchanged jars are not matched again, which " +
+					"speeds up the attachment of the agent. The cache is invalidated when the version of stagemonitor, " +
+					"the instrumenters or the configuration change. The file is written on shutdown. " +
+					"If not set, no cache is used.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.buildWithDefault("");
 	private final ConfigurationOption<String> grafanaUrl = ConfigurationOption.stringOption()
 			.key("stagemonitor.grafana.url")
 			.dynamic(true)
@@ -444,11 +475,165 @@ public class CorePlugin extends StagemonitorPlugin {
 					"https://github.com/stagemonitor/stagemonitor-elasticsearch-init.")
 			.configurationCategory(CORE_PLUGIN_NAME)
 			.buildWithDefault(true);
+	private final ConfigurationOption<ReservoirType> reservoirType = ConfigurationOption.enumOption(ReservoirType.class)
+			.key("stagemonitor.metrics.reservoir")
+			.dynamic(false)
+			.label("Histogram reservoir")
+			.description("The reservoir which backs histograms and timers like response_time. " +
+					"EXPONENTIALLY_DECAYING represents roughly the last five minutes, but takes a lock on every update. " +
+					"HDR_HISTOGRAM is lock-free and represents the values of the last interval with a precision of " +
+					"two significant digits. The interval is the shortest interval of the active reporters " +
+					"(Elasticsearch, InfluxDB, Graphite and console) or 60 seconds, if none of them is active. " +
+					"When using HDR_HISTOGRAM, response time metrics are always tracked in the request thread.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("metrics", "advanced")
+			.buildWithDefault(ReservoirType.EXPONENTIALLY_DECAYING);
+	private final ConfigurationOption<Integer> maxSeries = ConfigurationOption.integerOption()
+			.key("stagemonitor.metrics.maxSeries")
+			.dynamic(false)
+			.label("Maximum number of metrics")
+			.description("Limits the total number of metrics. When the limit is reached, new timers, meters, counters " +
+					"and histograms are folded into an overflow metric whose tag values are all 'other'. " +
+					"The number of rejected updates is tracked by the metric metrics_cardinality_rejected. " +
+					"Set to 0 to disable the limit, which is the default.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("metrics", "advanced")
+			.buildWithDefault(0);
+	private final ConfigurationOption<Integer> maxSeriesPerName = ConfigurationOption.integerOption()
+			.key("stagemonitor.metrics.maxSeriesPerName")
+			.dynamic(false)
+			.label("Maximum number of metrics per name")
+			.description("Limits the number of metrics with the same name but different tags, for example the " +
+					"number of response_time timers with distinct operation names. " +
+					"This protects against naming strategies which create a metric per URL or ID. " +
+					"When the limit is reached, new metrics of that name are folded into an overflow metric whose " +
+					"tag values are all 'other'. Set to 0 to disable the limit, which is the default.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("metrics", "advanced")
+			.buildWithDefault(0);
+	private final ConfigurationOption<Integer> idleMetricsTimeToLiveMinutes = ConfigurationOption.integerOption()
+			.key("stagemonitor.metrics.idleTimeToLiveMinutes")
+			.dynamic(false)
+			.label("Remove idle metrics after (minutes)")
+			.description("Removes timers, meters, counters and histograms which have not been updated for the given " +
+					"number of minutes, for example the response_time timer of an operation which has not been " +
+					"called anymore. This reduces the number of reported metrics and the heap usage of long-running " +
+					"applications. If the metric is updated again, it is re-created. " +
+					"Metrics which are registered explicitly, like gauges, are never removed. " +
+					"Set to 0 to never remove idle metrics.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("metrics", "advanced")
+			.buildWithDefault(0);
+	private final ConfigurationOption<Boolean> mergeableHistograms = ConfigurationOption.booleanOption()
+			.key("stagemonitor.reporting.mergeableHistograms")
+			.dynamic(false)
+			.label("Report mergeable histograms")
+			.description("If set to true, the Elasticsearch and InfluxDB reporters additionally report the compressed " +
+					"HdrHistogram of each histogram and timer in the field 'hdr' (base64). " +
+					"In contrast to the percentiles, these histograms can be merged to compute percentiles across " +
+					"all instances of an application, for example with " +
+					"org.stagemonitor.core.metrics.metrics2.HdrHistogramReservoir#merge. " +
+					"The dashboards don't read the field, so only enable it if you consume the histograms yourself. " +
+					"Only has an effect if stagemonitor.metrics.reservoir is set to HDR_HISTOGRAM.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("metrics", "advanced")
+			.buildWithDefault(false);
+	private final ConfigurationOption<Integer> fullReportInterval = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.fullReportInterval")
+			.dynamic(false)
+			.label("Full report interval")
+			.description("When set to a value greater than 1, the Elasticsearch and InfluxDB reporters only report " +
+					"counters, histograms, meters and timers which have been updated since the last report. " +
+					"Every n-th report includes all metrics. " +
+					"For example, a value of 10 together with a reporting interval of 60 seconds means that idle " +
+					"metrics are reported every 10 minutes. " +
+					"This reduces the amount of metrics documents significantly if most timers are idle, " +
+					"but graphs may show gaps for idle metrics.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("advanced")
+			.buildWithDefault(1);
+	private final ConfigurationOption<Integer> httpConnectTimeoutMs = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.http.connectTimeoutMs")
+			.dynamic(false)
+			.label("HTTP connect timeout (ms)")
+			.description("The timeout for establishing a connection to Elasticsearch, InfluxDB or Grafana.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("advanced")
+			.buildWithDefault(HttpURLConnectionTransport.DEFAULT_CONNECT_TIMEOUT_MS);
+	private final ConfigurationOption<Integer> httpReadTimeoutMs = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.http.readTimeoutMs")
+			.dynamic(false)
+			.label("HTTP read timeout (ms)")
+			.description("The timeout for reading the response of Elasticsearch, InfluxDB or Grafana.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("advanced")
+			.buildWithDefault(HttpURLConnectionTransport.DEFAULT_READ_TIMEOUT_MS);
+	private final ConfigurationOption<Boolean> httpGzipRequests = ConfigurationOption.booleanOption()
+			.key("stagemonitor.reporting.http.gzip")
+			.dynamic(false)
+			.label("Compress HTTP requests")
+			.description("If set to true, the bodies of the bulk requests which report metrics and spans to Elasticsearch " +
+					"and InfluxDB are compressed with gzip. " +
+					"This drastically reduces the network traffic caused by reporting metrics and spans " +
+					"at the expense of some CPU time. " +
+					"Make sure the server accepts requests with 'Content-Encoding: gzip'. " +
+					"For Elasticsearch, http.compression has to be enabled.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("advanced")
+			.buildWithDefault(false);
+	private final ConfigurationOption<Integer> httpMaxConnections = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.http.maxConnections")
+			.dynamic(false)
+			.label("Max HTTP connections")
+			.description("The maximum number of concurrent connections per HTTP client. " +
+					"Connections are kept alive and reused as long as this value does not exceed the system property " +
+					"http.maxConnections (defaults to 5).")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("advanced")
+			.buildWithDefault(HttpURLConnectionTransport.DEFAULT_MAX_CONNECTIONS);
+	private final ConfigurationOption<String> spillLogDirectory = ConfigurationOption.stringOption()
+			.key("stagemonitor.reporting.elasticsearch.spillLog.directory")
+			.dynamic(false)
+			.label("Spill log directory")
+			.description("When set, metrics and spans which can't be sent to Elasticsearch because it is unavailable or " +
+					"overloaded are written to a memory-mapped log in this directory. " +
+					"When Elasticsearch is available again, the log is replayed.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags(ELASTICSEARCH, "advanced")
+			.buildWithDefault("");
+	private final ConfigurationOption<Integer> spillLogMaxSizeMb = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.elasticsearch.spillLog.maxSizeMb")
+			.dynamic(false)
+			.label("Spill log max size (MB)")
+			.description("The maximum size of the spill log on disk. " +
+					"When the spill log is full, the oldest entries are discarded. " +
+					"The log is made up of segments of " + SPILL_LOG_SEGMENT_SIZE / (1024 * 1024) + " MB, which is also the minimum size.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags(ELASTICSEARCH, "advanced")
+			.addValidator(new ConfigurationOption.Validator<Integer>() {
+				@Override
+				public void assertValid(Integer maxSizeMb) {
+					checkArgument(maxSizeMb * 1024L * 1024 >= SPILL_LOG_SEGMENT_SIZE,
+							"spill log max size should be at least %s MB: was %s", SPILL_LOG_SEGMENT_SIZE / (1024 * 1024), maxSizeMb);
+				}
+			})
+			.buildWithDefault(64);
+	private final ConfigurationOption<Integer> spillLogReplayRequestsPerSecond = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.elasticsearch.spillLog.replayRequestsPerSecond")
+			.dynamic(true)
+			.label("Spill log replay rate")
+			.description("The maximum number of bulk requests per second which are sent to Elasticsearch when the spill " +
+					"log is replayed. This prevents overloading Elasticsearch right after it is available again.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags(ELASTICSEARCH, "advanced")
+			.buildWithDefault(2);
 
 	private List<Closeable> reporters = new CopyOnWriteArrayList<Closeable>();
 
 	private ElasticsearchClient elasticsearchClient;
 	private GrafanaClient grafanaClient;
+	private SpillLog spillLog;
+	private boolean spillLogInitialized;
 	private IndexSelector indexSelector = new IndexSelector(new Clock.UserTimeClock());
 	private Metric2Registry metricRegistry;
 	private AtomicInteger accessesToElasticsearchUrl = new AtomicInteger();
@@ -464,6 +649,17 @@ public class CorePlugin extends StagemonitorPlugin {
 	@Override
 	public void initializePlugin(InitArguments initArguments) {
 		this.metricRegistry = initArguments.getMetricRegistry();
+		metricRegistry.setReservoirFactory(getReservoirType()
+				.getReservoirFactory(TimeUnit.SECONDS.toMillis(getHistogramInterval())));
+		if (getMaxSeries() > 0 || getMaxSeriesPerName() > 0) {
+			metricRegistry.setCardinalityLimit(getMaxSeries(), getMaxSeriesPerName());
+		}
+		if (getIdleMetricsTimeToLiveMinutes() > 0) {
+			final IdleMetricsRemover idleMetricsRemover = new IdleMetricsRemover(metricRegistry,
+					getIdleMetricsTimeToLiveMinutes(), TimeUnit.MINUTES);
+			idleMetricsRemover.start(1, TimeUnit.MINUTES);
+			closeOnShutdown(idleMetricsRemover);
+		}
 		this.healthCheckRegistry = initArguments.getHealthCheckRegistry();
 		final Integer reloadInterval = getReloadConfigurationInterval();
 		if (reloadInterval > 0) {
@@ -535,7 +731,10 @@ public class CorePlugin extends StagemonitorPlugin {
 		if (getInfluxDbUrl() != null && reportingInterval > 0) {
 			logger.info("Sending metrics to InfluxDB ({}) every {}s", getInfluxDbUrl(), reportingInterval);
 			final InfluxDbReporter reporter = InfluxDbReporter.forRegistry(metricRegistry, this)
+					.httpClient(createHttpClient())
 					.globalTags(measurementSession.asMap())
+					.reportOnlyChangedMetrics(getFullReportInterval())
+					.mergeableHistograms(isMergeableHistograms())
 					.build();
 
 			reporter.start(reportingInterval, TimeUnit.SECONDS);
@@ -598,7 +797,7 @@ public class CorePlugin extends StagemonitorPlugin {
 
 	public ElasticsearchClient getElasticsearchClient() {
 		if (elasticsearchClient == null) {
-			elasticsearchClient = new ElasticsearchClient(this, new HttpClient(), elasticsearchAvailabilityCheckPeriodSec.getValue(), initElasticsearchAvailabilityObservers(Stagemonitor.getConfiguration()));
+			elasticsearchClient = new ElasticsearchClient(this, createHttpClient(), elasticsearchAvailabilityCheckPeriodSec.getValue(), initElasticsearchAvailabilityObservers(Stagemonitor.getConfiguration()));
 		}
 		return elasticsearchClient;
 	}
@@ -622,6 +821,62 @@ public class CorePlugin extends StagemonitorPlugin {
 		return elasticsearchAvailabilityObservers;
 	}
 
+	/**
+	 * Creates a {@link HttpClient} which honors the stagemonitor.reporting.http.* options
+	 *
+	 * @return a new {@link HttpClient}
+	 */
+	public HttpClient createHttpClient() {
+		return new HttpClient(new HttpURLConnectionTransport(httpConnectTimeoutMs.getValue(), httpReadTimeoutMs.getValue(),
+				httpGzipRequests.getValue(), httpMaxConnections.getValue()));
+	}
+
+	/**
+	 * @return the {@link SpillLog} or <code>null</code>, if no spill log directory is configured
+	 */
+	public synchronized SpillLog getSpillLog() {
+		if (!spillLogInitialized) {
+			spillLogInitialized = true;
+			if (StringUtils.isNotEmpty(spillLogDirectory.getValue())) {
+				try {
+					spillLog = new SpillLog(new File(spillLogDirectory.getValue()), SPILL_LOG_SEGMENT_SIZE,
+							(int) (spillLogMaxSizeMb.getValue() * 1024L * 1024 / SPILL_LOG_SEGMENT_SIZE));
+				} catch (IOException e) {
+					logger.warn("Could not create spill log: {}", e.getMessage(), e);
+				}
+			}
+		}
+		return spillLog;
+	}
+
+	public int getSpillLogReplayRequestsPerSecond() {
+		return spillLogReplayRequestsPerSecond.getValue();
+	}
+
+	public ReservoirType getReservoirType() {
+		return reservoirType.getValue();
+	}
+
+	public int getMaxSeries() {
+		return maxSeries.getValue();
+	}
+
+	public int getMaxSeriesPerName() {
+		return maxSeriesPerName.getValue();
+	}
+
+	public int getIdleMetricsTimeToLiveMinutes() {
+		return idleMetricsTimeToLiveMinutes.getValue();
+	}
+
+	public boolean isMergeableHistograms() {
+		return mergeableHistograms.getValue();
+	}
+
+	public int getFullReportInterval() {
+		return fullReportInterval.getValue();
+	}
+
 	public GrafanaClient getGrafanaClient() {
 		if (grafanaClient == null) {
 			grafanaClient = new GrafanaClient(this, new HttpClient());
@@ -781,10 +1036,22 @@ public class CorePlugin extends StagemonitorPlugin {
 		return attachAgentAtRuntime.getValue();
 	}
 
+	public boolean isRetransformInBackground() {
+		return retransformInBackground.getValue();
+	}
+
 	public Collection<String> getExcludedInstrumenters() {
 		return excludedInstrumenters.getValue();
 	}
 
+	public ConfigurationOption<Collection<String>> getExcludedInstrumentersOption() {
+		return excludedInstrumenters;
+	}
+
+	public String getInstrumentationDecisionCacheFile() {
+		return instrumentationDecisionCacheFile.getValue();
+	}
+
 	public URL getInfluxDbUrl() {
 		return influxDbUrl.getValue();
 	}
@@ -821,6 +1088,32 @@ public class CorePlugin extends StagemonitorPlugin {
 		return reportingIntervalElasticsearch.getValue();
 	}
 
+	/**
+	 * Returns the interval of {@link ReservoirType#HDR_HISTOGRAM} reservoirs, which is the shortest reporting interval
+	 * of all active periodic reporters, so that each report sees the values of a full interval.
+	 * <p>
+	 * Readers which are not periodic, like the Prometheus endpoint or the percentile thresholds of the call tree
+	 * sampling, see the values of the last interval.
+	 *
+	 * @return the interval in seconds
+	 */
+	public int getHistogramInterval() {
+		int interval = Integer.MAX_VALUE;
+		if (isReportToElasticsearch()) {
+			interval = Math.min(interval, getElasticsearchReportingInterval());
+		}
+		if (getInfluxDbUrl() != null && reportingIntervalInfluxDb.getValue() > 0) {
+			interval = Math.min(interval, reportingIntervalInfluxDb.getValue());
+		}
+		if (isReportToGraphite() && getGraphiteReportingInterval() > 0) {
+			interval = Math.min(interval, getGraphiteReportingInterval());
+		}
+		if (getConsoleReportingInterval() > 0) {
+			interval = (int) Math.min(interval, getConsoleReportingInterval());
+		}
+		return interval == Integer.MAX_VALUE ? 60 : interval;
+	}
+
 	public Integer getMoveToColdNodesAfterDays() {
 		return moveToColdNodesAfterDays.getValue();
 	}
@@ -297,7 +297,7 @@ public class ElasticsearchClient {
 
 	private void sendBulk(HttpClient.OutputStreamHandler outputStreamHandler, boolean logBulkErrors) {
 		final HttpClient.ResponseHandler<Void> responseHandler = logBulkErrors ? BulkErrorReportingResponseHandler.INSTANCE : NoopResponseHandler.<Void>getInstance();
-		httpClient.send("POST", corePlugin.getElasticsearchUrl() + BULK, CONTENT_TYPE_NDJSON, outputStreamHandler, responseHandler);
+		httpClient.sendBulk(corePlugin.getElasticsearchUrl() + BULK, CONTENT_TYPE_NDJSON, outputStreamHandler, responseHandler);
 	}
 
 	public void deleteIndices(String indexPattern) {
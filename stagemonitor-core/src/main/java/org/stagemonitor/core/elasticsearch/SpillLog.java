@@ -0,0 +1,441 @@
+package org.stagemonitor.core.elasticsearch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * An append-only log of bulk request bodies which could not be sent to Elasticsearch, because it was not available or
+ * overloaded.
+ * <p>
+ * The log consists of memory-mapped segment files of a fixed size. Every segment starts with a header which contains
+ * the read and the write offset so that the log survives restarts. When the maximum number of segments is reached, the
+ * oldest segment is deleted.
+ * <p>
+ * The entries are replayed by the {@link SpillLogReplayer} when Elasticsearch is available again.
+ * <p>
+ * This class is thread safe.
+ */
+public class SpillLog {
+
+	private static final Logger logger = LoggerFactory.getLogger(SpillLog.class);
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String FILE_PREFIX = "spill-";
+	private static final String FILE_SUFFIX = ".log";
+	private static final int READ_OFFSET_POSITION = 0;
+	private static final int WRITE_OFFSET_POSITION = 4;
+	private static final int HEADER_SIZE = 8;
+	/**
+	 * The length of the entry and the length of the path
+	 */
+	private static final int ENTRY_HEADER_SIZE = 8;
+
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	/**
+	 * Ordered from the oldest to the newest segment
+	 */
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private long nextSequence;
+	private long evictedSegments;
+
+	/**
+	 * Opens the spill log and all existing segments in the directory
+	 *
+	 * @param directory   the directory of the segment files
+	 * @param segmentSize the size of a segment file in bytes
+	 * @param maxSegments the max number of segment files
+	 */
+	public SpillLog(File directory, int segmentSize, int maxSegments) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = Math.max(1, maxSegments);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create spill directory " + directory);
+		}
+		openExistingSegments();
+	}
+
+	private void openExistingSegments() throws IOException {
+		final File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+			}
+		});
+		if (files == null) {
+			return;
+		}
+		// the sequence is zero padded which makes the lexicographical order the chronological order
+		Arrays.sort(files);
+		for (File file : files) {
+			final Segment segment = Segment.open(file, segmentSize);
+			if (segment == null) {
+				logger.warn("Deleting corrupt spill log segment {}", file);
+				delete(file);
+			} else {
+				segments.add(segment);
+				nextSequence = getSequence(file) + 1;
+			}
+		}
+		while (segments.size() > maxSegments) {
+			evictOldestSegment();
+		}
+	}
+
+	/**
+	 * Appends a bulk request body to the log
+	 *
+	 * @param path    the path of the bulk request, relative to the Elasticsearch url
+	 * @param payload the bulk request body
+	 * @return <code>false</code>, if the entry is too large to fit into a segment or if it could not be written
+	 */
+	public synchronized boolean append(String path, byte[] payload) {
+		return append(path.getBytes(UTF_8), payload, 0, payload.length);
+	}
+
+	/**
+	 * Appends a bulk request body which may be larger than a segment. The body is split into multiple entries at
+	 * document boundaries.
+	 * <p>
+	 * The body must only contain <code>index</code> or <code>create</code> actions, where each document consists of
+	 * an action line and a source line.
+	 *
+	 * @param path     the path of the bulk request, relative to the Elasticsearch url
+	 * @param bulkBody the bulk request body
+	 * @return the number of documents which could not be written, because they are larger than a segment or because
+	 * of an {@link IOException}
+	 */
+	public synchronized int appendDocuments(String path, byte[] bulkBody) {
+		final byte[] pathBytes = path.getBytes(UTF_8);
+		final int maxPayloadBytes = segmentSize - HEADER_SIZE - ENTRY_HEADER_SIZE - pathBytes.length;
+		int droppedDocuments = 0;
+		int chunkStart = 0;
+		int chunkEnd = 0;
+		int chunkDocuments = 0;
+		int lines = 0;
+		for (int i = 0; i < bulkBody.length; i++) {
+			if (bulkBody[i] != '\n' || ++lines % 2 != 0) {
+				continue;
+			}
+			final int documentEnd = i + 1;
+			if (documentEnd - chunkStart > maxPayloadBytes) {
+				if (chunkDocuments > 0 && !append(pathBytes, bulkBody, chunkStart, chunkEnd - chunkStart)) {
+					droppedDocuments += chunkDocuments;
+				}
+				chunkStart = chunkEnd;
+				chunkDocuments = 0;
+				if (documentEnd - chunkStart > maxPayloadBytes) {
+					droppedDocuments++;
+					chunkStart = documentEnd;
+					chunkEnd = documentEnd;
+					continue;
+				}
+			}
+			chunkEnd = documentEnd;
+			chunkDocuments++;
+		}
+		if (chunkDocuments > 0 && !append(pathBytes, bulkBody, chunkStart, chunkEnd - chunkStart)) {
+			droppedDocuments += chunkDocuments;
+		}
+		return droppedDocuments;
+	}
+
+	private boolean append(byte[] path, byte[] payload, int offset, int length) {
+		final int entrySize = ENTRY_HEADER_SIZE + path.length + length;
+		if (HEADER_SIZE + entrySize > segmentSize) {
+			return false;
+		}
+		try {
+			Segment tail = segments.peekLast();
+			if (tail == null || tail.remaining() < entrySize) {
+				tail = newSegment();
+			}
+			tail.append(path, payload, offset, length);
+			return true;
+		} catch (IOException e) {
+			logger.warn("Could not append to spill log: {}", e.getMessage(), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the oldest entry without removing it. Call {@link #remove(Entry)} after the entry has been replayed.
+	 * <p>
+	 * If the oldest entry is corrupt, the rest of its segment is discarded.
+	 *
+	 * @return the oldest entry or <code>null</code> if the log is empty
+	 */
+	public synchronized Entry peek() {
+		while (true) {
+			Segment head = segments.peekFirst();
+			while (head != null && !head.hasUnreadEntries()) {
+				if (head == segments.peekLast()) {
+					// keep the tail segment as there is still space left to append entries
+					return null;
+				}
+				segments.removeFirst();
+				delete(head.file);
+				head = segments.peekFirst();
+			}
+			if (head == null) {
+				return null;
+			}
+			final Entry entry = head.read(head.getReadOffset());
+			if (entry != null) {
+				return entry;
+			}
+			logger.warn("Discarding the rest of the corrupt spill log segment {}", head.file);
+			head.setReadOffset(head.getWriteOffset());
+		}
+	}
+
+	/**
+	 * Returns the oldest entries which have the same path without removing them, so that they can be replayed with a
+	 * single bulk request. Call {@link #remove(Entry)} for each entry after they have been replayed.
+	 *
+	 * @param maxPayloadBytes the maximum combined size of the payloads. The oldest entry is always returned, even if
+	 *                        it exceeds this size.
+	 * @return the oldest entries or an empty list if the log is empty
+	 */
+	public synchronized List<Entry> peek(int maxPayloadBytes) {
+		final List<Entry> entries = new ArrayList<Entry>();
+		final Entry first = peek();
+		if (first == null) {
+			return entries;
+		}
+		entries.add(first);
+		int payloadBytes = first.payload.length;
+		int offset = first.offset + first.size;
+		for (Segment segment : segments.subList(segments.indexOf(first.segment), segments.size())) {
+			if (segment != first.segment) {
+				offset = segment.getReadOffset();
+			}
+			while (offset < segment.getWriteOffset()) {
+				final Entry entry = segment.read(offset);
+				// corrupt entries are discarded by peek() when they become the oldest entry
+				if (entry == null || !entry.path.equals(first.path) || payloadBytes + entry.payload.length > maxPayloadBytes) {
+					return entries;
+				}
+				entries.add(entry);
+				payloadBytes += entry.payload.length;
+				offset += entry.size;
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Removes the entry which has been returned by {@link #peek()}
+	 */
+	public synchronized void remove(Entry entry) {
+		// the segment might have been evicted in the meantime
+		if (segments.contains(entry.segment) && entry.segment.getReadOffset() == entry.offset) {
+			entry.segment.setReadOffset(entry.offset + entry.size);
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		for (Segment segment : segments) {
+			if (segment.hasUnreadEntries()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of bytes which have not been replayed yet
+	 */
+	public synchronized long getUnreadBytes() {
+		long unreadBytes = 0;
+		for (Segment segment : segments) {
+			unreadBytes += segment.getWriteOffset() - segment.getReadOffset();
+		}
+		return unreadBytes;
+	}
+
+	/**
+	 * @return the number of segments which have been deleted before they have been replayed completely
+	 */
+	public synchronized long getEvictedSegments() {
+		return evictedSegments;
+	}
+
+	private Segment newSegment() throws IOException {
+		while (segments.size() >= maxSegments) {
+			evictOldestSegment();
+		}
+		final File file = new File(directory, String.format("%s%019d%s", FILE_PREFIX, nextSequence++, FILE_SUFFIX));
+		final Segment segment = Segment.create(file, segmentSize);
+		segments.add(segment);
+		return segment;
+	}
+
+	private void evictOldestSegment() {
+		final Segment oldest = segments.removeFirst();
+		if (oldest.hasUnreadEntries()) {
+			evictedSegments++;
+			logger.warn("The spill log exceeds its maximum size. Discarding the oldest segment {}", oldest.file);
+		}
+		delete(oldest.file);
+	}
+
+	private static void delete(File file) {
+		if (!file.delete()) {
+			logger.warn("Could not delete spill log segment {}", file);
+		}
+	}
+
+	private static long getSequence(File file) {
+		final String name = file.getName();
+		try {
+			return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	public static class Entry {
+		private final Segment segment;
+		private final int offset;
+		private final int size;
+		private final String path;
+		private final byte[] payload;
+
+		private Entry(Segment segment, int offset, int size, String path, byte[] payload) {
+			this.segment = segment;
+			this.offset = offset;
+			this.size = size;
+			this.path = path;
+			this.payload = payload;
+		}
+
+		/**
+		 * @return the path of the bulk request, relative to the Elasticsearch url
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return the bulk request body
+		 */
+		public byte[] getPayload() {
+			return payload;
+		}
+	}
+
+	private static class Segment {
+		private final File file;
+		private final MappedByteBuffer buffer;
+
+		private Segment(File file, MappedByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+
+		static Segment create(File file, int segmentSize) throws IOException {
+			final Segment segment = new Segment(file, map(file, segmentSize));
+			segment.setReadOffset(HEADER_SIZE);
+			segment.setWriteOffset(HEADER_SIZE);
+			return segment;
+		}
+
+		/**
+		 * @return the segment or <code>null</code>, if the segment is corrupt
+		 */
+		static Segment open(File file, int segmentSize) throws IOException {
+			if (file.length() != segmentSize) {
+				return null;
+			}
+			final Segment segment = new Segment(file, map(file, segmentSize));
+			final int readOffset = segment.getReadOffset();
+			final int writeOffset = segment.getWriteOffset();
+			if (readOffset < HEADER_SIZE || writeOffset < readOffset || writeOffset > segmentSize) {
+				return null;
+			}
+			return segment;
+		}
+
+		private static MappedByteBuffer map(File file, int segmentSize) throws IOException {
+			final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				randomAccessFile.setLength(segmentSize);
+				// the mapping stays valid after the channel is closed
+				return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			} finally {
+				randomAccessFile.close();
+			}
+		}
+
+		int remaining() {
+			return buffer.capacity() - getWriteOffset();
+		}
+
+		boolean hasUnreadEntries() {
+			return getReadOffset() < getWriteOffset();
+		}
+
+		void append(byte[] path, byte[] payload, int payloadOffset, int payloadLength) {
+			final int offset = getWriteOffset();
+			buffer.position(offset);
+			buffer.putInt(ENTRY_HEADER_SIZE + path.length + payloadLength);
+			buffer.putInt(path.length);
+			buffer.put(path);
+			buffer.put(payload, payloadOffset, payloadLength);
+			// the write offset is updated last so that a partially written entry is never read
+			setWriteOffset(buffer.position());
+		}
+
+		/**
+		 * @return the entry or <code>null</code>, if the entry is corrupt
+		 */
+		Entry read(int offset) {
+			final int writeOffset = getWriteOffset();
+			if (offset < HEADER_SIZE || writeOffset - offset < ENTRY_HEADER_SIZE) {
+				return null;
+			}
+			buffer.position(offset);
+			final int size = buffer.getInt();
+			final int pathLength = buffer.getInt();
+			if (size < ENTRY_HEADER_SIZE || size > writeOffset - offset
+					|| pathLength < 0 || pathLength > size - ENTRY_HEADER_SIZE) {
+				return null;
+			}
+			final byte[] path = new byte[pathLength];
+			buffer.get(path);
+			final byte[] payload = new byte[size - ENTRY_HEADER_SIZE - path.length];
+			buffer.get(payload);
+			return new Entry(this, offset, size, new String(path, UTF_8), payload);
+		}
+
+		int getReadOffset() {
+			return buffer.getInt(READ_OFFSET_POSITION);
+		}
+
+		void setReadOffset(int readOffset) {
+			buffer.putInt(READ_OFFSET_POSITION, readOffset);
+		}
+
+		int getWriteOffset() {
+			return buffer.getInt(WRITE_OFFSET_POSITION);
+		}
+
+		void setWriteOffset(int writeOffset) {
+			buffer.putInt(WRITE_OFFSET_POSITION, writeOffset);
+		}
+	}
+}
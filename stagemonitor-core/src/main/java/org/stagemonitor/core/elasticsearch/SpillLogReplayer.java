@@ -0,0 +1,143 @@
+package org.stagemonitor.core.elasticsearch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.core.CorePlugin;
+import org.stagemonitor.core.util.ExecutorUtils;
+import org.stagemonitor.core.util.HttpClient;
+import org.stagemonitor.core.util.http.StatusCodeResponseHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.stagemonitor.core.elasticsearch.ElasticsearchClient.CONTENT_TYPE_NDJSON;
+
+/**
+ * Replays the bulk requests of the {@link SpillLog} while Elasticsearch is available.
+ * <p>
+ * The replay is started whenever the availability check finds Elasticsearch to be healthy and the spill log is not
+ * empty. Consecutive entries for the same path are combined into one bulk request of up to
+ * {@value #MAX_REQUEST_PAYLOAD_BYTES} bytes. The replay is rate limited so that Elasticsearch is not overwhelmed right
+ * after it has been restarted. If a request fails because Elasticsearch is overloaded, the replay backs off and tries
+ * again. It stops when the log is empty or when Elasticsearch becomes unavailable again.
+ */
+public class SpillLogReplayer implements ElasticsearchAvailabilityObserver {
+
+	private static final Logger logger = LoggerFactory.getLogger(SpillLogReplayer.class);
+	private static final long MAX_WAIT_FOR_AVAILABILITY_MS = TimeUnit.MINUTES.toMillis(1);
+	private static final long MAX_BACKOFF_MS = TimeUnit.SECONDS.toMillis(30);
+	static final int MAX_REQUEST_PAYLOAD_BYTES = 5 * 1024 * 1024;
+
+	private final AtomicBoolean replaying = new AtomicBoolean(false);
+	private CorePlugin corePlugin;
+
+	@Override
+	public void init(ConfigurationRegistry configurationRegistry) {
+		this.corePlugin = configurationRegistry.getConfig(CorePlugin.class);
+	}
+
+	/**
+	 * Called after each successful availability check, so that entries which have been spilled while Elasticsearch
+	 * was available (for example because it rejected bulk requests) are replayed as well
+	 */
+	@Override
+	public void onElasticsearchAvailable(final ElasticsearchClient elasticsearchClient) {
+		final SpillLog spillLog = corePlugin.getSpillLog();
+		if (spillLog == null || spillLog.isEmpty() || !replaying.compareAndSet(false, true)) {
+			return;
+		}
+		// replaying asynchronously as Elasticsearch is only marked as available after all observers have been executed
+		new ExecutorUtils.NamedThreadFactory("elasticsearch-spill-log-replayer").newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					replay(elasticsearchClient, spillLog, corePlugin.getSpillLogReplayRequestsPerSecond());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					replaying.set(false);
+				}
+			}
+		}).start();
+	}
+
+	/**
+	 * Replays the entries of the spill log until it is empty or Elasticsearch is not available anymore
+	 *
+	 * @return the number of replayed entries
+	 */
+	int replay(ElasticsearchClient elasticsearchClient, SpillLog spillLog, int requestsPerSecond) throws InterruptedException {
+		if (!awaitAvailability(elasticsearchClient)) {
+			return 0;
+		}
+		logger.info("Replaying {} bytes of bulk requests which could not be sent to Elasticsearch", spillLog.getUnreadBytes());
+		final long pauseMs = TimeUnit.SECONDS.toMillis(1) / Math.max(1, requestsPerSecond);
+		long backoffMs = pauseMs;
+		int replayed = 0;
+		for (List<SpillLog.Entry> entries = spillLog.peek(MAX_REQUEST_PAYLOAD_BYTES); !entries.isEmpty(); entries = spillLog.peek(MAX_REQUEST_PAYLOAD_BYTES)) {
+			if (!elasticsearchClient.isElasticsearchAvailable()) {
+				logger.info("Stopped replaying the spill log as Elasticsearch is not available");
+				return replayed;
+			}
+			final Integer statusCode = elasticsearchClient.getHttpClient().sendBulk(
+					corePlugin.getElasticsearchUrl() + entries.get(0).getPath(), CONTENT_TYPE_NDJSON,
+					new PayloadOutputStreamHandler(entries), StatusCodeResponseHandler.WITH_ERROR_LOGGING);
+			if (statusCode == null || statusCode == -1 || statusCode == 429 || statusCode >= 500) {
+				backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+				logger.warn("Replaying the spill log failed with status {}, retrying in {} ms", statusCode, backoffMs);
+				Thread.sleep(backoffMs);
+				continue;
+			}
+			if (statusCode >= 300) {
+				// sending the same request again would fail again
+				logger.warn("Discarding {} entries of the spill log as the bulk request failed with status {}", entries.size(), statusCode);
+			} else {
+				replayed += entries.size();
+			}
+			for (SpillLog.Entry entry : entries) {
+				spillLog.remove(entry);
+			}
+			backoffMs = pauseMs;
+			Thread.sleep(pauseMs);
+		}
+		return replayed;
+	}
+
+	private boolean awaitAvailability(ElasticsearchClient elasticsearchClient) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + MAX_WAIT_FOR_AVAILABILITY_MS;
+		while (!elasticsearchClient.isElasticsearchAvailable()) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(100);
+		}
+		return true;
+	}
+
+	@Override
+	public int getPriority() {
+		// replay after the indices and mappings have been created
+		return Integer.MIN_VALUE;
+	}
+
+	private static class PayloadOutputStreamHandler implements HttpClient.OutputStreamHandler {
+		private final List<SpillLog.Entry> entries;
+
+		private PayloadOutputStreamHandler(List<SpillLog.Entry> entries) {
+			this.entries = entries;
+		}
+
+		@Override
+		public void withHttpURLConnection(OutputStream os) throws IOException {
+			// the payloads are complete bulk request bodies which end with a new line so they can just be concatenated
+			for (SpillLog.Entry entry : entries) {
+				os.write(entry.getPayload());
+			}
+			os.close();
+		}
+	}
+}
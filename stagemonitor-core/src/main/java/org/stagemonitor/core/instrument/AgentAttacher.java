@@ -18,6 +18,7 @@ import org.stagemonitor.core.metrics.health.ImmediateResult;
 import org.stagemonitor.core.util.ClassUtils;
 import org.stagemonitor.core.util.VersionUtils;
 import org.stagemonitor.util.IOUtils;
+import org.stagemonitor.util.StringUtils;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -62,6 +63,9 @@ public class AgentAttacher {
 	private static boolean runtimeAttached = false;
 	private static Set<String> hashCodesOfClassLoadersToIgnore = Collections.emptySet();
 	private static Instrumentation instrumentation;
+	private static InstrumentationDecisionCache decisionCache;
+	private static BackgroundRetransformation backgroundRetransformation;
+	private static ExcludedInstrumentersChangeListener excludedInstrumentersChangeListener;
 
 	private AgentAttacher() {
 	}
@@ -82,7 +86,10 @@ public class AgentAttacher {
 		final AutoEvictingCachingBinaryLocator binaryLocator = new AutoEvictingCachingBinaryLocator();
 		if (assertNoDifferentStagemonitorVersionIsDeployedOnSameJvm() && initInstrumentation()) {
 			final long start = System.currentTimeMillis();
-			classFileTransformers.add(initByteBuddyClassFileTransformer(binaryLocator));
+			final ClassFileTransformer classFileTransformer = initByteBuddyClassFileTransformer(binaryLocator);
+			if (classFileTransformer != null) {
+				classFileTransformers.add(classFileTransformer);
+			}
 			if (corePlugin.isDebugInstrumentation()) {
 				logger.info("Attached agents in {} ms", System.currentTimeMillis() - start);
 			}
@@ -90,12 +97,21 @@ public class AgentAttacher {
 		}
 		return new Runnable() {
 			public void run() {
+				if (backgroundRetransformation != null) {
+					backgroundRetransformation.cancel();
+				}
+				if (excludedInstrumentersChangeListener != null) {
+					corePlugin.getExcludedInstrumentersOption().removeChangeListener(excludedInstrumentersChangeListener);
+				}
 				for (ClassFileTransformer classFileTransformer : classFileTransformers) {
 					instrumentation.removeTransformer(classFileTransformer);
 				}
 				// This ClassLoader is shutting down so don't try to retransform classes of it in the future
 				hashCodesOfClassLoadersToIgnore.add(ClassUtils.getIdentityString(AgentAttacher.class.getClassLoader()));
 				binaryLocator.close();
+				if (decisionCache != null) {
+					decisionCache.save();
+				}
 			}
 		};
 	}
@@ -209,15 +225,24 @@ public class AgentAttacher {
 	}
 
 	private static ClassFileTransformer initByteBuddyClassFileTransformer(AutoEvictingCachingBinaryLocator binaryLocator) {
-		AgentBuilder agentBuilder = createAgentBuilder(binaryLocator);
-		for (StagemonitorByteBuddyTransformer transformer : getStagemonitorByteBuddyTransformers()) {
-			agentBuilder = agentBuilder
-					.type(transformer.getMatcher())
-					.transform(transformer.getTransformer());
+		final List<StagemonitorByteBuddyTransformer> transformers = getStagemonitorByteBuddyTransformers();
+		decisionCache = loadDecisionCache(transformers);
+		final MergedTransformation mergedTransformation = new MergedTransformation(transformers, decisionCache);
+		mergedTransformation.setDisabledTransformers(corePlugin.getExcludedInstrumenters());
+		excludedInstrumentersChangeListener = new ExcludedInstrumentersChangeListener(mergedTransformation, instrumentation);
+		corePlugin.getExcludedInstrumentersOption().addChangeListener(excludedInstrumentersChangeListener);
+		if (corePlugin.isRetransformInBackground()) {
+			backgroundRetransformation = new BackgroundRetransformation(healthCheckRegistry, Stagemonitor.getMetric2Registry());
 		}
+		final AgentBuilder agentBuilder = createAgentBuilder(binaryLocator)
+				.type(mergedTransformation)
+				.transform(mergedTransformation);
 
 		final long start = System.currentTimeMillis();
 		try {
+			if (backgroundRetransformation != null) {
+				return backgroundRetransformation.installOn(agentBuilder, instrumentation);
+			}
 			return agentBuilder.installOn(instrumentation);
 		} finally {
 			if (corePlugin.isDebugInstrumentation()) {
@@ -226,12 +251,27 @@ public class AgentAttacher {
 		}
 	}
 
+	private static InstrumentationDecisionCache loadDecisionCache(List<StagemonitorByteBuddyTransformer> transformers) {
+		final String decisionCacheFile = corePlugin.getInstrumentationDecisionCacheFile();
+		if (StringUtils.isEmpty(decisionCacheFile)) {
+			return null;
+		}
+		final String fingerprint = InstrumentationDecisionCache.getFingerprint(corePlugin.getVersion(), transformers,
+				Stagemonitor.getConfiguration());
+		final InstrumentationDecisionCache cache = InstrumentationDecisionCache.load(new File(decisionCacheFile), fingerprint);
+		if (corePlugin.isDebugInstrumentation()) {
+			logger.info("Loaded {} cached instrumentation decisions from {}", cache.size(), decisionCacheFile);
+		}
+		return cache;
+	}
+
 	private static AgentBuilder createAgentBuilder(AutoEvictingCachingBinaryLocator binaryLocator) {
 		final ByteBuddy byteBuddy = new ByteBuddy()
 				.with(TypeValidation.of(corePlugin.isDebugInstrumentation()))
 				.with(MethodGraph.Compiler.ForDeclaredMethods.INSTANCE);
-		return new AgentBuilder.Default(byteBuddy)
-				.with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+		final AgentBuilder.RedefinitionListenable.WithoutBatchStrategy agentBuilder = new AgentBuilder.Default(byteBuddy)
+				.with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION);
+		return (backgroundRetransformation != null ? backgroundRetransformation.configure(agentBuilder) : agentBuilder)
 				.with(getListener())
 				.with(binaryLocator)
 				.ignore(any(), timed("classloader", "reflection", isReflectionClassLoader()))
@@ -263,14 +303,16 @@ public class AgentAttacher {
 		return new AgentBuilder.Listener.Compound(listeners);
 	}
 
-	private static Iterable<StagemonitorByteBuddyTransformer> getStagemonitorByteBuddyTransformers() {
+	private static List<StagemonitorByteBuddyTransformer> getStagemonitorByteBuddyTransformers() {
 		List<StagemonitorByteBuddyTransformer> transformers = new ArrayList<StagemonitorByteBuddyTransformer>();
 		for (StagemonitorByteBuddyTransformer transformer : ServiceLoader.load(StagemonitorByteBuddyTransformer.class, Stagemonitor.class.getClassLoader())) {
 			try {
-				if (transformer.isActive() && !isExcluded(transformer)) {
+				if (transformer.isActive()) {
+					// excluded transformers are registered as well so that they can be included at runtime
 					transformers.add(transformer);
 					if (corePlugin.isDebugInstrumentation()) {
-						logger.info("Registering {}", transformer.getClass().getSimpleName());
+						logger.info("Registering {}{}", transformer.getClass().getSimpleName(),
+								isExcluded(transformer) ? " (excluded)" : "");
 					}
 				} else if (corePlugin.isDebugInstrumentation()) {
 					logger.info("Excluding {}", transformer.getClass().getSimpleName());
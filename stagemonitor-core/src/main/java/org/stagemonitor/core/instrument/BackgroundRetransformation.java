@@ -0,0 +1,239 @@
+package org.stagemonitor.core.instrument;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.health.HealthCheck;
+import com.codahale.metrics.health.HealthCheckRegistry;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+/**
+ * Retransforms the classes which have already been loaded when the agent is attached on a low priority background
+ * thread, so that the startup of the application does not have to wait for it.
+ * <p>
+ * {@link #installOn(AgentBuilder, Instrumentation)} returns as soon as the {@link ClassFileTransformer} is registered
+ * so that classes which are loaded from then on are transformed right away. The already loaded classes are matched
+ * and retransformed in batches afterwards. The progress is reported via metrics and the health check
+ * {@value #HEALTH_CHECK_NAME}.
+ */
+class BackgroundRetransformation {
+
+	static final String HEALTH_CHECK_NAME = "Agent retransformation";
+	static final int BATCH_SIZE = 100;
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+	private static final Logger logger = LoggerFactory.getLogger(BackgroundRetransformation.class);
+
+	private final CountDownLatch transformerRegistered = new CountDownLatch(1);
+	private final AtomicInteger totalClasses = new AtomicInteger();
+	private final AtomicInteger processedClasses = new AtomicInteger();
+	private final AtomicInteger failedClasses = new AtomicInteger();
+	private volatile ResettableClassFileTransformer classFileTransformer;
+	private volatile List<Class<?>> currentBatch;
+	private volatile boolean cancelled = false;
+	private volatile boolean completed = false;
+	private volatile Throwable error;
+	private volatile long durationMs;
+	private Thread thread;
+
+	BackgroundRetransformation(HealthCheckRegistry healthCheckRegistry, Metric2Registry metricRegistry) {
+		healthCheckRegistry.register(HEALTH_CHECK_NAME, new RetransformationHealthCheck());
+		registerGauge(metricRegistry, "total", totalClasses);
+		registerGauge(metricRegistry, "processed", processedClasses);
+		registerGauge(metricRegistry, "failed", failedClasses);
+	}
+
+	private static void registerGauge(Metric2Registry metricRegistry, String state, final AtomicInteger value) {
+		metricRegistry.registerNewMetrics(name("agent_retransformation_classes").tag("state", state).build(), new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return value.get();
+			}
+		});
+	}
+
+	/**
+	 * Configures the batches, the discovery of the loaded classes and the progress listener
+	 *
+	 * @param agentBuilder an agent builder which uses {@link AgentBuilder.RedefinitionStrategy#RETRANSFORMATION}
+	 * @return the configured agent builder
+	 */
+	AgentBuilder configure(AgentBuilder.RedefinitionListenable.WithoutBatchStrategy agentBuilder) {
+		return agentBuilder
+				.with(new CancellableBatchAllocator(AgentBuilder.RedefinitionStrategy.BatchAllocator.ForFixedSize.ofSize(BATCH_SIZE)))
+				.with(new RegistrationSignallingDiscoveryStrategy(AgentBuilder.RedefinitionStrategy.DiscoveryStrategy.SinglePass.INSTANCE))
+				.with(new ProgressListener())
+				.with(new TransformerCapturingInstallationListener());
+	}
+
+	/**
+	 * Installs the agent on a background thread and waits until the {@link ClassFileTransformer} is registered.
+	 *
+	 * @param agentBuilder an agent builder which has been configured via {@link #configure}
+	 * @return the registered {@link ClassFileTransformer} or <code>null</code>, if the installation failed
+	 */
+	synchronized ClassFileTransformer installOn(final AgentBuilder agentBuilder, final Instrumentation instrumentation) {
+		final long start = System.currentTimeMillis();
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					agentBuilder.installOn(instrumentation);
+				} catch (Throwable t) {
+					error = t;
+					logger.warn("Failed to retransform the loaded classes", t);
+				} finally {
+					durationMs = System.currentTimeMillis() - start;
+					completed = true;
+					transformerRegistered.countDown();
+				}
+			}
+		}, "stagemonitor-retransformation");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+		try {
+			transformerRegistered.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return classFileTransformer;
+	}
+
+	/**
+	 * Stops the retransformation after the current batch and waits for it to finish
+	 */
+	synchronized void cancel() {
+		cancelled = true;
+		if (thread != null) {
+			try {
+				thread.join(TimeUnit.SECONDS.toMillis(SHUTDOWN_TIMEOUT_SECONDS));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	boolean isCompleted() {
+		return completed;
+	}
+
+	private class RegistrationSignallingDiscoveryStrategy implements AgentBuilder.RedefinitionStrategy.DiscoveryStrategy {
+		private final AgentBuilder.RedefinitionStrategy.DiscoveryStrategy delegate;
+
+		private RegistrationSignallingDiscoveryStrategy(AgentBuilder.RedefinitionStrategy.DiscoveryStrategy delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public Iterable<Iterable<Class<?>>> resolve(Instrumentation instrumentation) {
+			// the class file transformer is registered before the loaded classes are discovered
+			transformerRegistered.countDown();
+			return delegate.resolve(instrumentation);
+		}
+	}
+
+	class CancellableBatchAllocator implements AgentBuilder.RedefinitionStrategy.BatchAllocator {
+		private final AgentBuilder.RedefinitionStrategy.BatchAllocator delegate;
+
+		CancellableBatchAllocator(AgentBuilder.RedefinitionStrategy.BatchAllocator delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public Iterable<? extends List<Class<?>>> batch(final List<Class<?>> types) {
+			final Iterable<? extends List<Class<?>>> batches = delegate.batch(types);
+			return new Iterable<List<Class<?>>>() {
+				@Override
+				public Iterator<List<Class<?>>> iterator() {
+					final Iterator<? extends List<Class<?>>> iterator = batches.iterator();
+					return new Iterator<List<Class<?>>>() {
+						@Override
+						public boolean hasNext() {
+							return !cancelled && iterator.hasNext();
+						}
+
+						@Override
+						public List<Class<?>> next() {
+							return iterator.next();
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+			};
+		}
+	}
+
+	class ProgressListener implements AgentBuilder.RedefinitionStrategy.Listener {
+		@Override
+		public void onBatch(int index, List<Class<?>> batch, List<Class<?>> types) {
+			onBatchCompleted();
+			totalClasses.set(types.size());
+			currentBatch = batch;
+		}
+
+		@Override
+		public Iterable<? extends List<Class<?>>> onError(int index, List<Class<?>> batch, Throwable throwable, List<Class<?>> types) {
+			failedClasses.addAndGet(batch.size());
+			logger.warn("Failed to retransform {} classes", batch.size(), throwable);
+			return Collections.emptyList();
+		}
+
+		@Override
+		public void onComplete(int amount, List<Class<?>> types, Map<List<Class<?>>, Throwable> failures) {
+			onBatchCompleted();
+			logger.info("Retransformed {} of {} loaded classes in the background", processedClasses.get() - failedClasses.get(), types.size());
+		}
+
+		private void onBatchCompleted() {
+			final List<Class<?>> previousBatch = currentBatch;
+			if (previousBatch != null) {
+				processedClasses.addAndGet(previousBatch.size());
+				currentBatch = null;
+			}
+		}
+	}
+
+	private class TransformerCapturingInstallationListener extends AgentBuilder.InstallationListener.Adapter {
+		@Override
+		public void onBeforeInstall(Instrumentation instrumentation, ResettableClassFileTransformer classFileTransformer) {
+			BackgroundRetransformation.this.classFileTransformer = classFileTransformer;
+		}
+	}
+
+	private class RetransformationHealthCheck extends HealthCheck {
+		@Override
+		protected Result check() throws Exception {
+			if (error != null) {
+				return Result.unhealthy(error);
+			}
+			if (failedClasses.get() > 0) {
+				return Result.unhealthy("Failed to retransform %d of %d loaded classes", failedClasses.get(), totalClasses.get());
+			}
+			if (completed) {
+				return Result.healthy("Retransformed %d loaded classes in %d ms", processedClasses.get(), durationMs);
+			}
+			return Result.healthy("Retransforming loaded classes in the background: %d of %d done", processedClasses.get(), totalClasses.get());
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package org.stagemonitor.core.instrument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * The include and exclude rules of {@link StagemonitorClassNameMatcher}, compiled into automatons so that the
+ * decision for a class name takes one pass over the name, regardless of the number of rules.
+ * <ul>
+ * <li>The included and excluded packages form a prefix trie. Every node of the trie holds the precomputed verdict for
+ * class names whose longest matching prefix ends at that node.</li>
+ * <li>The <code>excludeContaining</code> strings form an Aho-Corasick automaton.</li>
+ * </ul>
+ * The result is the same as the one of evaluating the rules one after another: a class is excluded if it contains one
+ * of the <code>excludeContaining</code> strings. Otherwise, it is included if it starts with an include and if there is
+ * no exclude which is more specific than the first matching include.
+ */
+class ClassNameRules {
+
+	private static final int NO_NODE = 0;
+	private static final int NO_INCLUDE = Integer.MAX_VALUE;
+
+	private final int[] asciiSymbols = new int[128];
+	private final Map<Character, Integer> nonAsciiSymbols = new HashMap<Character, Integer>();
+	private int alphabetSize;
+
+	/**
+	 * The transitions of the prefix trie. {@link #NO_NODE} means that no prefix continues with the symbol.
+	 */
+	private final int[][] prefixTrie;
+	private final boolean[] verdicts;
+
+	/**
+	 * The complete transition function of the Aho-Corasick automaton.
+	 */
+	private final int[][] containsAutomaton;
+	private final boolean[] containsMatches;
+
+	ClassNameRules(Collection<String> includes, Collection<String> excludes, Collection<String> excludeContaining) {
+		Arrays.fill(asciiSymbols, -1);
+		addToAlphabet(includes);
+		addToAlphabet(excludes);
+		addToAlphabet(excludeContaining);
+
+		final List<int[]> prefixNodes = new ArrayList<int[]>();
+		prefixNodes.add(new int[alphabetSize]);
+		final Map<Integer, Integer> includeIndexByNode = new HashMap<Integer, Integer>();
+		int includeIndex = 0;
+		for (String include : includes) {
+			final int node = addToTrie(prefixNodes, include);
+			if (!includeIndexByNode.containsKey(node)) {
+				includeIndexByNode.put(node, includeIndex);
+			}
+			includeIndex++;
+		}
+		final Map<Integer, Boolean> excludeNodes = new HashMap<Integer, Boolean>();
+		for (String exclude : excludes) {
+			excludeNodes.put(addToTrie(prefixNodes, exclude), Boolean.TRUE);
+		}
+		prefixTrie = prefixNodes.toArray(new int[prefixNodes.size()][]);
+		verdicts = new boolean[prefixTrie.length];
+		computeVerdicts(0, 0, NO_INCLUDE, -1, -1, includeIndexByNode, excludeNodes);
+
+		final List<int[]> containsNodes = new ArrayList<int[]>();
+		containsNodes.add(new int[alphabetSize]);
+		final Map<Integer, Boolean> matchingNodes = new HashMap<Integer, Boolean>();
+		for (String contained : excludeContaining) {
+			matchingNodes.put(addToTrie(containsNodes, contained), Boolean.TRUE);
+		}
+		containsAutomaton = containsNodes.toArray(new int[containsNodes.size()][]);
+		containsMatches = new boolean[containsAutomaton.length];
+		for (Integer matchingNode : matchingNodes.keySet()) {
+			containsMatches[matchingNode] = true;
+		}
+		computeFailureTransitions();
+	}
+
+	/**
+	 * @param className the name of the class, for example <code>java.lang.String</code>
+	 * @return <code>true</code>, if the class should be instrumented, <code>false</code> otherwise
+	 */
+	boolean isIncluded(String className) {
+		return isIncludedByPrefix(className) && !containsExclude(className);
+	}
+
+	private boolean isIncludedByPrefix(String className) {
+		int node = 0;
+		for (int i = 0; i < className.length(); i++) {
+			final int symbol = getSymbol(className.charAt(i));
+			if (symbol < 0 || prefixTrie[node][symbol] == NO_NODE) {
+				break;
+			}
+			node = prefixTrie[node][symbol];
+		}
+		return verdicts[node];
+	}
+
+	private boolean containsExclude(String className) {
+		int state = 0;
+		if (containsMatches[state]) {
+			return true;
+		}
+		for (int i = 0; i < className.length(); i++) {
+			final int symbol = getSymbol(className.charAt(i));
+			state = symbol < 0 ? 0 : containsAutomaton[state][symbol];
+			if (containsMatches[state]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int getSymbol(char c) {
+		if (c < asciiSymbols.length) {
+			return asciiSymbols[c];
+		}
+		if (nonAsciiSymbols.isEmpty()) {
+			return -1;
+		}
+		final Integer symbol = nonAsciiSymbols.get(c);
+		return symbol != null ? symbol : -1;
+	}
+
+	private void addToAlphabet(Collection<String> strings) {
+		for (String s : strings) {
+			for (int i = 0; i < s.length(); i++) {
+				final char c = s.charAt(i);
+				if (getSymbol(c) < 0) {
+					if (c < asciiSymbols.length) {
+						asciiSymbols[c] = alphabetSize++;
+					} else {
+						nonAsciiSymbols.put(c, alphabetSize++);
+					}
+				}
+			}
+		}
+	}
+
+	private int addToTrie(List<int[]> nodes, String s) {
+		int node = 0;
+		for (int i = 0; i < s.length(); i++) {
+			final int symbol = getSymbol(s.charAt(i));
+			if (nodes.get(node)[symbol] == NO_NODE) {
+				nodes.add(new int[alphabetSize]);
+				nodes.get(node)[symbol] = nodes.size() - 1;
+			}
+			node = nodes.get(node)[symbol];
+		}
+		return node;
+	}
+
+	/**
+	 * Computes the verdict of each node from the rules on the path from the root to the node. The first configured
+	 * include on the path wins and excludes count when they are longer than that include.
+	 */
+	private void computeVerdicts(int node, int depth, int includeIndex, int includeDepth, int excludeDepth,
+								 Map<Integer, Integer> includeIndexByNode, Map<Integer, Boolean> excludeNodes) {
+		final Integer nodeIncludeIndex = includeIndexByNode.get(node);
+		if (nodeIncludeIndex != null && nodeIncludeIndex < includeIndex) {
+			includeIndex = nodeIncludeIndex;
+			includeDepth = depth;
+		}
+		if (excludeNodes.containsKey(node)) {
+			excludeDepth = depth;
+		}
+		verdicts[node] = includeIndex != NO_INCLUDE && excludeDepth <= includeDepth;
+		for (int child : prefixTrie[node]) {
+			if (child != NO_NODE) {
+				computeVerdicts(child, depth + 1, includeIndex, includeDepth, excludeDepth, includeIndexByNode, excludeNodes);
+			}
+		}
+	}
+
+	/**
+	 * Turns the trie of the <code>excludeContaining</code> strings into a complete transition function by following
+	 * the failure links (breadth first).
+	 */
+	private void computeFailureTransitions() {
+		final int[] failure = new int[containsAutomaton.length];
+		final Queue<Integer> queue = new LinkedList<Integer>();
+		for (int symbol = 0; symbol < alphabetSize; symbol++) {
+			final int child = containsAutomaton[0][symbol];
+			if (child != NO_NODE) {
+				failure[child] = 0;
+				queue.add(child);
+			}
+		}
+		while (!queue.isEmpty()) {
+			final int node = queue.remove();
+			containsMatches[node] |= containsMatches[failure[node]];
+			for (int symbol = 0; symbol < alphabetSize; symbol++) {
+				final int child = containsAutomaton[node][symbol];
+				if (child != NO_NODE) {
+					failure[child] = containsAutomaton[failure[node]][symbol];
+					queue.add(child);
+				} else {
+					containsAutomaton[node][symbol] = containsAutomaton[failure[node]][symbol];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package org.stagemonitor.core.instrument;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.configuration.ConfigurationOption;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Enables and disables {@link StagemonitorByteBuddyTransformer}s when <code>stagemonitor.instrument.excludedInstrumenter</code>
+ * changes and retransforms the affected classes so that the advices of disabled transformers are removed and the
+ * ones of enabled transformers are added.
+ */
+class ExcludedInstrumentersChangeListener implements ConfigurationOption.ChangeListener<Collection<String>> {
+
+	private static final Logger logger = LoggerFactory.getLogger(ExcludedInstrumentersChangeListener.class);
+	private static final int BATCH_SIZE = 100;
+
+	private final MergedTransformation mergedTransformation;
+	private final Instrumentation instrumentation;
+
+	ExcludedInstrumentersChangeListener(MergedTransformation mergedTransformation, Instrumentation instrumentation) {
+		this.mergedTransformation = mergedTransformation;
+		this.instrumentation = instrumentation;
+	}
+
+	@Override
+	public synchronized void onChange(ConfigurationOption<?> configurationOption, Collection<String> oldValue, Collection<String> newValue) {
+		final Collection<String> excludedInstrumenters = newValue != null ? newValue : Collections.<String>emptySet();
+		final BitSet changedTransformers = mergedTransformation.setDisabledTransformers(excludedInstrumenters);
+		if (changedTransformers.isEmpty()) {
+			return;
+		}
+		final long start = System.currentTimeMillis();
+		final List<String> enabled = new ArrayList<String>();
+		final List<String> disabled = new ArrayList<String>();
+		for (int i = changedTransformers.nextSetBit(0); i >= 0; i = changedTransformers.nextSetBit(i + 1)) {
+			final String transformerName = mergedTransformation.getTransformerName(i);
+			if (excludedInstrumenters.contains(transformerName)) {
+				disabled.add(transformerName);
+			} else {
+				enabled.add(transformerName);
+			}
+		}
+		final List<Class<?>> affectedClasses = mergedTransformation.getLoadedClassesMatchedBy(changedTransformers, instrumentation);
+		int failed = 0;
+		for (int from = 0; from < affectedClasses.size(); from += BATCH_SIZE) {
+			final List<Class<?>> batch = affectedClasses.subList(from, Math.min(from + BATCH_SIZE, affectedClasses.size()));
+			try {
+				instrumentation.retransformClasses(batch.toArray(new Class<?>[batch.size()]));
+			} catch (Throwable t) {
+				failed += batch.size();
+				logger.warn("Failed to retransform {}", batch, t);
+			}
+		}
+		logger.info("Enabled instrumenters {}, disabled instrumenters {}: retransformed {} of {} affected classes in {} ms",
+				enabled, disabled, affectedClasses.size() - failed, affectedClasses.size(), System.currentTimeMillis() - start);
+	}
+}
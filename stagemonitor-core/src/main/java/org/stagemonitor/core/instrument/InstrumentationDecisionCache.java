@@ -0,0 +1,244 @@
+package org.stagemonitor.core.instrument;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.configuration.ConfigurationOption;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.util.IOUtils;
+import org.stagemonitor.util.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers across restarts which {@link StagemonitorByteBuddyTransformer}s matched a type.
+ * <p>
+ * Evaluating the type matchers is the expensive part of the matching process, as matchers like
+ * {@link net.bytebuddy.matcher.ElementMatchers#isSubTypeOf(Class)} have to resolve the type hierarchy via the
+ * {@link net.bytebuddy.pool.TypePool}. This cache stores the result of the type matchers of each transformer, keyed by
+ * the checksum of the jar which contains the class and the class name. When a class of an unchanged jar is loaded
+ * after a restart, only the cheap, runtime dependent matchers (like the class loader matchers) are evaluated.
+ * <p>
+ * The whole cache is invalidated if the fingerprint changes, which consists of the stagemonitor version, the active
+ * transformers and the values of all non-dynamic configuration options. Classes which are not loaded from a jar file
+ * are not cached.
+ * <p>
+ * Note that a cached decision does not account for changes of super types which reside in another jar.
+ */
+class InstrumentationDecisionCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(InstrumentationDecisionCache.class);
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String HEADER = "# stagemonitor instrumentation decision cache";
+	private static final String NOT_CACHEABLE = "";
+
+	private final File file;
+	private final String fingerprint;
+	private final ConcurrentMap<String, BitSet> typeMatchesByKey = new ConcurrentHashMap<String, BitSet>();
+	private final ConcurrentMap<String, String> checksumsByLocation = new ConcurrentHashMap<String, String>();
+	private final Set<String> usedChecksums = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private volatile boolean changed = false;
+
+	InstrumentationDecisionCache(File file, String fingerprint) {
+		this.file = file;
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * Creates a cache which is backed by the provided file and loads the decisions of the last run, if the file exists
+	 * and if it has been written with the same fingerprint.
+	 */
+	static InstrumentationDecisionCache load(File file, String fingerprint) {
+		final InstrumentationDecisionCache cache = new InstrumentationDecisionCache(file, fingerprint);
+		if (file.isFile()) {
+			try {
+				cache.read();
+			} catch (Exception e) {
+				logger.warn("Could not read the instrumentation decision cache {}", file, e);
+				cache.typeMatchesByKey.clear();
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * @param version      the stagemonitor version
+	 * @param transformers the active transformers
+	 * @param configuration the configuration
+	 * @return a hash of everything which influences the result of the type matchers
+	 */
+	static String getFingerprint(String version, List<StagemonitorByteBuddyTransformer> transformers, ConfigurationRegistry configuration) {
+		final StringBuilder sb = new StringBuilder().append(version);
+		for (StagemonitorByteBuddyTransformer transformer : transformers) {
+			sb.append('\n').append(transformer.getClass().getName());
+		}
+		final Map<String, ConfigurationOption<?>> sortedOptions = new TreeMap<String, ConfigurationOption<?>>(configuration.getConfigurationOptionsByKey());
+		for (ConfigurationOption<?> option : sortedOptions.values()) {
+			if (!option.isDynamic()) {
+				sb.append('\n').append(option.getKey()).append('=').append(option.getValueAsString());
+			}
+		}
+		return StringUtils.sha1Hash(sb.toString());
+	}
+
+	/**
+	 * @return the key of the type in the cache or <code>null</code>, if the type can't be cached because it has not
+	 * been loaded from a jar file
+	 */
+	String getKey(String className, ProtectionDomain protectionDomain) {
+		final String checksum = getChecksum(protectionDomain);
+		if (NOT_CACHEABLE.equals(checksum)) {
+			return null;
+		}
+		usedChecksums.add(checksum);
+		return checksum + '\t' + className;
+	}
+
+	/**
+	 * @return the indices of the transformers whose type matcher matched the type or <code>null</code>, if the
+	 * decision is unknown
+	 */
+	BitSet getTypeMatches(String key) {
+		return typeMatchesByKey.get(key);
+	}
+
+	void putTypeMatches(String key, BitSet typeMatches) {
+		final BitSet previous = typeMatchesByKey.put(key, typeMatches);
+		if (!typeMatches.equals(previous)) {
+			changed = true;
+		}
+	}
+
+	int size() {
+		return typeMatchesByKey.size();
+	}
+
+	private String getChecksum(ProtectionDomain protectionDomain) {
+		final CodeSource codeSource = protectionDomain != null ? protectionDomain.getCodeSource() : null;
+		final URL location = codeSource != null ? codeSource.getLocation() : null;
+		if (location == null || !"file".equals(location.getProtocol()) || !location.getPath().endsWith(".jar")) {
+			return NOT_CACHEABLE;
+		}
+		final String locationString = location.toString();
+		String checksum = checksumsByLocation.get(locationString);
+		if (checksum == null) {
+			checksum = computeChecksum(location);
+			checksumsByLocation.put(locationString, checksum);
+		}
+		return checksum;
+	}
+
+	private static String computeChecksum(URL location) {
+		InputStream input = null;
+		try {
+			final File jar = new File(location.toURI());
+			input = new FileInputStream(jar);
+			final CRC32 crc32 = new CRC32();
+			final byte[] buffer = new byte[64 * 1024];
+			for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+				crc32.update(buffer, 0, read);
+			}
+			return Long.toHexString(crc32.getValue()) + '-' + Long.toHexString(jar.length());
+		} catch (Exception e) {
+			logger.debug("Could not compute the checksum of {}", location, e);
+			return NOT_CACHEABLE;
+		} finally {
+			IOUtils.closeQuietly(input);
+		}
+	}
+
+	private void read() throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+		try {
+			if (!HEADER.equals(reader.readLine()) || !fingerprint.equals(reader.readLine())) {
+				logger.info("Ignoring the instrumentation decision cache {} as the version, the instrumenters or the " +
+						"configuration have changed", file);
+				return;
+			}
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				final int classNameEnd = line.lastIndexOf('\t');
+				final BitSet typeMatches = new BitSet();
+				for (String index : StringUtils.split(line.substring(classNameEnd + 1), ',')) {
+					if (!index.isEmpty()) {
+						typeMatches.set(Integer.parseInt(index));
+					}
+				}
+				typeMatchesByKey.put(line.substring(0, classNameEnd), typeMatches);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Writes the cache to the file, if new decisions have been made since it was loaded.
+	 * <p>
+	 * Only the decisions for jars which have been used by this JVM are kept so that the entries of outdated jars don't
+	 * pile up.
+	 */
+	void save() {
+		if (!changed) {
+			return;
+		}
+		final File tempFile = new File(file.getPath() + ".tmp");
+		try {
+			final File directory = file.getAbsoluteFile().getParentFile();
+			if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Could not create directory " + directory);
+			}
+			final Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), UTF_8);
+			try {
+				writer.write(HEADER + '\n' + fingerprint + '\n');
+				for (Map.Entry<String, BitSet> entry : typeMatchesByKey.entrySet()) {
+					final String key = entry.getKey();
+					if (usedChecksums.contains(key.substring(0, key.indexOf('\t')))) {
+						writer.write(key);
+						writer.write('\t');
+						writer.write(toString(entry.getValue()));
+						writer.write('\n');
+					}
+				}
+			} finally {
+				writer.close();
+			}
+			if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+				throw new IOException("Could not rename " + tempFile + " to " + file);
+			}
+			changed = false;
+		} catch (IOException e) {
+			logger.warn("Could not write the instrumentation decision cache {}", file, e);
+			tempFile.delete();
+		}
+	}
+
+	private static String toString(BitSet bitSet) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1)) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(i);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,255 @@
+package org.stagemonitor.core.instrument;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.utility.JavaModule;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Matches a type against all {@link StagemonitorByteBuddyTransformer}s in one pass and applies the transformers which
+ * match.
+ * <p>
+ * When each transformer is registered as a separate transformation of the {@link AgentBuilder}, every transformer
+ * evaluates the predicates all transformers share. This class evaluates them once per type and only dispatches to the
+ * transformers which can apply:
+ * <ul>
+ *     <li>Whether the type is a core java class. Transformers which don't transform core java classes are not
+ *     consulted for <code>java.*</code> types at all.</li>
+ *     <li>Whether the type is inside the monitored project according to the include and exclude rules (see
+ *     {@link StagemonitorClassNameMatcher#isInsideMonitoredProject()}). As the rules are part of the type matchers
+ *     of the individual transformers, the verdict is shared via {@link SharedTypeVerdict}.</li>
+ *     <li>Whether the class loader is an application class loader, for all transformers which don't override
+ *     {@link StagemonitorByteBuddyTransformer#getClassLoaderMatcher()}. It is only evaluated if the type matcher of
+ *     such a transformer matched.</li>
+ * </ul>
+ * <p>
+ * The transformers are applied in the order of the list, just as if they had been registered one after another.
+ * <p>
+ * If an {@link InstrumentationDecisionCache} is provided, the results of the type matchers are taken from the cache
+ * if possible and new results are added to it.
+ * <p>
+ * Transformers can be disabled and enabled at runtime via {@link #setDisabledTransformers(Collection)}. Disabled
+ * transformers don't match any type. After calling this method, the classes returned by
+ * {@link #getLoadedClassesMatchedBy(BitSet, Instrumentation)} have to be retransformed to add or remove the advices.
+ */
+class MergedTransformation implements AgentBuilder.RawMatcher, AgentBuilder.Transformer {
+
+	private static final Logger logger = LoggerFactory.getLogger(MergedTransformation.class);
+
+	private final StagemonitorByteBuddyTransformer[] transformers;
+	private final ElementMatcher<TypeDescription>[] typeMatchers;
+	private final AgentBuilder.RawMatcher[] runtimeMatchers;
+	/**
+	 * Whether the class loader verdict of {@link StagemonitorByteBuddyTransformer#isApplicationClassLoader(ClassLoader)}
+	 * applies to the transformer, instead of a class loader matcher which is part of its runtime matcher
+	 */
+	private final boolean[] sharesApplicationClassLoaderMatcher;
+	private final AgentBuilder.Transformer[] byteBuddyTransformers;
+	private final int[] allTransformers;
+	private final int[] coreJavaClassTransformers;
+	/**
+	 * The transformers which matched the type of the last {@link #matches} call of the current thread. Byte Buddy
+	 * calls {@link #transform} right after a type matched and does not transform other types on the same thread in
+	 * between, as it guards against circular transformations.
+	 */
+	private final ThreadLocal<BitSet> matchingTransformers = new ThreadLocal<BitSet>();
+	private final InstrumentationDecisionCache decisionCache;
+	private volatile BitSet disabledTransformers = new BitSet();
+
+	MergedTransformation(List<StagemonitorByteBuddyTransformer> transformers) {
+		this(transformers, null);
+	}
+
+	/**
+	 * @param transformers  the transformers
+	 * @param decisionCache the cache for the results of the type matchers, or <code>null</code> if no cache should be
+	 *                      used
+	 */
+	@SuppressWarnings("unchecked")
+	MergedTransformation(List<StagemonitorByteBuddyTransformer> transformers, InstrumentationDecisionCache decisionCache) {
+		this.decisionCache = decisionCache;
+		this.transformers = transformers.toArray(new StagemonitorByteBuddyTransformer[transformers.size()]);
+		typeMatchers = new ElementMatcher[this.transformers.length];
+		runtimeMatchers = new AgentBuilder.RawMatcher[this.transformers.length];
+		sharesApplicationClassLoaderMatcher = new boolean[this.transformers.length];
+		byteBuddyTransformers = new AgentBuilder.Transformer[this.transformers.length];
+		allTransformers = new int[this.transformers.length];
+		final List<Integer> coreJavaClassTransformerList = new ArrayList<Integer>();
+		for (int i = 0; i < this.transformers.length; i++) {
+			typeMatchers[i] = this.transformers[i].createTypeMatcher();
+			sharesApplicationClassLoaderMatcher[i] = this.transformers[i].usesApplicationClassLoaderMatcher();
+			runtimeMatchers[i] = this.transformers[i].createRuntimeMatcher(!sharesApplicationClassLoaderMatcher[i]);
+			byteBuddyTransformers[i] = this.transformers[i].getTransformer();
+			allTransformers[i] = i;
+			if (this.transformers[i].transformsCoreJavaClasses()) {
+				coreJavaClassTransformerList.add(i);
+			}
+		}
+		coreJavaClassTransformers = new int[coreJavaClassTransformerList.size()];
+		for (int i = 0; i < coreJavaClassTransformers.length; i++) {
+			coreJavaClassTransformers[i] = coreJavaClassTransformerList.get(i);
+		}
+	}
+
+	@Override
+	public boolean matches(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module, Class<?> classBeingRedefined, ProtectionDomain protectionDomain) {
+		final boolean coreJavaClass = StagemonitorByteBuddyTransformer.isCoreJavaClass(typeDescription, classLoader);
+		if (coreJavaClass && StagemonitorByteBuddyTransformer.DEBUG_INSTRUMENTATION) {
+			for (StagemonitorByteBuddyTransformer transformer : transformers) {
+				if (!transformer.transformsCoreJavaClasses()) {
+					transformer.onIgnored(typeDescription, classLoader);
+				}
+			}
+		}
+		final int[] candidates = coreJavaClass ? coreJavaClassTransformers : allTransformers;
+		final BitSet disabledTransformers = this.disabledTransformers;
+		final String cacheKey = decisionCache != null ? decisionCache.getKey(typeDescription.getName(), protectionDomain) : null;
+		BitSet typeMatches = cacheKey != null ? decisionCache.getTypeMatches(cacheKey) : null;
+		if (typeMatches == null) {
+			typeMatches = matchTypes(typeDescription, candidates, cacheKey != null ? null : disabledTransformers);
+			if (cacheKey != null) {
+				decisionCache.putTypeMatches(cacheKey, typeMatches);
+			}
+		}
+		BitSet matches = null;
+		Boolean applicationClassLoader = null;
+		for (int i : candidates) {
+			if (disabledTransformers.get(i)) {
+				continue;
+			}
+			if (typeMatches.get(i) && sharesApplicationClassLoaderMatcher[i] && applicationClassLoader == null) {
+				applicationClassLoader = StagemonitorByteBuddyTransformer.isApplicationClassLoader(classLoader);
+			}
+			if (typeMatches.get(i)
+					&& (!sharesApplicationClassLoaderMatcher[i] || applicationClassLoader)
+					&& runtimeMatchers[i].matches(typeDescription, classLoader, module, classBeingRedefined, protectionDomain)) {
+				if (matches == null) {
+					matches = new BitSet(transformers.length);
+				}
+				matches.set(i);
+			} else {
+				transformers[i].onIgnored(typeDescription, classLoader);
+			}
+		}
+		if (matches == null) {
+			matchingTransformers.remove();
+			return false;
+		}
+		matchingTransformers.set(matches);
+		return true;
+	}
+
+	/**
+	 * Evaluates the type matchers of the candidates
+	 *
+	 * @param skippedTransformers the transformers whose type matchers don't have to be evaluated or <code>null</code>,
+	 *                            if the matchers of all candidates have to be evaluated
+	 */
+	private BitSet matchTypes(TypeDescription typeDescription, int[] candidates, BitSet skippedTransformers) {
+		final BitSet typeMatches = new BitSet(transformers.length);
+		SharedTypeVerdict.beginMatching(typeDescription);
+		try {
+			for (int i : candidates) {
+				if ((skippedTransformers == null || !skippedTransformers.get(i)) && typeMatchers[i].matches(typeDescription)) {
+					typeMatches.set(i);
+				}
+			}
+		} finally {
+			SharedTypeVerdict.endMatching();
+		}
+		return typeMatches;
+	}
+
+	@Override
+	public DynamicType.Builder<?> transform(DynamicType.Builder<?> builder, TypeDescription typeDescription, ClassLoader classLoader, JavaModule module) {
+		final BitSet matches = matchingTransformers.get();
+		matchingTransformers.remove();
+		if (matches == null) {
+			return builder;
+		}
+		for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+			builder = byteBuddyTransformers[i].transform(builder, typeDescription, classLoader, module);
+		}
+		return builder;
+	}
+
+	/**
+	 * Disables the transformers with the provided simple class names and enables all others
+	 *
+	 * @param simpleClassNames the simple class names of the transformers to disable
+	 * @return the transformers which have been enabled or disabled by this call
+	 */
+	synchronized BitSet setDisabledTransformers(Collection<String> simpleClassNames) {
+		final BitSet newDisabledTransformers = new BitSet(transformers.length);
+		for (int i = 0; i < transformers.length; i++) {
+			if (simpleClassNames.contains(transformers[i].getClass().getSimpleName())) {
+				newDisabledTransformers.set(i);
+			}
+		}
+		final BitSet changedTransformers = (BitSet) newDisabledTransformers.clone();
+		changedTransformers.xor(disabledTransformers);
+		disabledTransformers = newDisabledTransformers;
+		return changedTransformers;
+	}
+
+	/**
+	 * Returns the loaded classes which match the type matcher of at least one of the provided transformers.
+	 * <p>
+	 * The runtime matchers are not evaluated, as they don't necessarily match classes which already have been
+	 * transformed.
+	 *
+	 * @param transformerIndices the transformers
+	 * @param instrumentation    the instrumentation
+	 * @return the classes which have to be retransformed when enabling or disabling the transformers
+	 */
+	List<Class<?>> getLoadedClassesMatchedBy(BitSet transformerIndices, Instrumentation instrumentation) {
+		final List<Class<?>> matchedClasses = new ArrayList<Class<?>>();
+		if (transformerIndices.isEmpty()) {
+			return matchedClasses;
+		}
+		for (Class<?> loadedClass : instrumentation.getAllLoadedClasses()) {
+			if (!instrumentation.isModifiableClass(loadedClass)) {
+				continue;
+			}
+			try {
+				final TypeDescription typeDescription = TypeDescription.ForLoadedType.of(loadedClass);
+				final boolean coreJavaClass = StagemonitorByteBuddyTransformer.isCoreJavaClass(typeDescription, loadedClass.getClassLoader());
+				if (matchesAnyType(typeDescription, coreJavaClass, transformerIndices)) {
+					matchedClasses.add(loadedClass);
+				}
+			} catch (Throwable t) {
+				logger.debug("Could not match {}", loadedClass, t);
+			}
+		}
+		return matchedClasses;
+	}
+
+	private boolean matchesAnyType(TypeDescription typeDescription, boolean coreJavaClass, BitSet transformerIndices) {
+		SharedTypeVerdict.beginMatching(typeDescription);
+		try {
+			for (int i = transformerIndices.nextSetBit(0); i >= 0; i = transformerIndices.nextSetBit(i + 1)) {
+				if ((!coreJavaClass || transformers[i].transformsCoreJavaClasses()) && typeMatchers[i].matches(typeDescription)) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			SharedTypeVerdict.endMatching();
+		}
+	}
+
+	String getTransformerName(int index) {
+		return transformers[index].getClass().getSimpleName();
+	}
+}
@@ -0,0 +1,60 @@
+package org.stagemonitor.core.instrument;
+
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * An {@link ElementMatcher} for a predicate which is part of the type matchers of many
+ * {@link StagemonitorByteBuddyTransformer}s, like {@link StagemonitorClassNameMatcher#isInsideMonitoredProject()}.
+ * <p>
+ * While {@link MergedTransformation} matches a type against all transformers, the predicate is evaluated only once for
+ * that type and the verdict is shared by all transformers (see {@link #beginMatching(TypeDescription)}). For other
+ * types, like the super types a type matcher inspects, the predicate is evaluated on every call.
+ */
+class SharedTypeVerdict extends ElementMatcher.Junction.AbstractBase<TypeDescription> {
+
+	private static final ThreadLocal<Scope> currentScope = new ThreadLocal<Scope>();
+
+	private final ElementMatcher<? super TypeDescription> delegate;
+
+	SharedTypeVerdict(ElementMatcher<? super TypeDescription> delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Shares the verdicts for the provided type on the current thread until {@link #endMatching()} is called
+	 */
+	static void beginMatching(TypeDescription typeDescription) {
+		currentScope.set(new Scope(typeDescription));
+	}
+
+	static void endMatching() {
+		currentScope.remove();
+	}
+
+	@Override
+	public boolean matches(TypeDescription target) {
+		final Scope scope = currentScope.get();
+		if (scope == null || scope.typeDescription != target) {
+			return delegate.matches(target);
+		}
+		Boolean verdict = scope.verdicts.get(this);
+		if (verdict == null) {
+			verdict = delegate.matches(target);
+			scope.verdicts.put(this, verdict);
+		}
+		return verdict;
+	}
+
+	private static class Scope {
+		private final TypeDescription typeDescription;
+		private final Map<SharedTypeVerdict, Boolean> verdicts = new IdentityHashMap<SharedTypeVerdict, Boolean>(4);
+
+		private Scope(TypeDescription typeDescription) {
+			this.typeDescription = typeDescription;
+		}
+	}
+}
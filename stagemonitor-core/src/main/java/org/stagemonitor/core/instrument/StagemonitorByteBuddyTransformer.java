@@ -50,16 +50,42 @@ public abstract class StagemonitorByteBuddyTransformer implements StagemonitorSP
 
 	private static final ElementMatcher.Junction<ClassLoader> applicationClassLoaderMatcher = cached(new ApplicationClassLoaderMatcher());
 
+	private static final ElementMatcher<ClassLoader> timedApplicationClassLoaderMatcher = timed("classloader", "application", applicationClassLoaderMatcher);
+
+	private static final ElementMatcher.Junction<TypeDescription> coreJavaTypes = nameStartsWith("java")
+			.or(nameStartsWith("com.sun."))
+			.or(nameStartsWith("sun."))
+			.or(nameStartsWith("jdk."));
+
 	protected final String transformerName = getClass().getSimpleName();
 
 	public final AgentBuilder.RawMatcher getMatcher() {
+		final AgentBuilder.RawMatcher matcher = createMatcher();
+		return new AgentBuilder.RawMatcher() {
+			@Override
+			public boolean matches(TypeDescription typeDescription, ClassLoader classLoader, JavaModule javaModule, Class<?> classBeingRedefined, ProtectionDomain protectionDomain) {
+				if (!transformsCoreJavaClasses() && isCoreJavaClass(typeDescription, classLoader)) {
+					onIgnored(typeDescription, classLoader);
+					return false;
+				}
+				return matcher.matches(typeDescription, classLoader, javaModule, classBeingRedefined, protectionDomain);
+			}
+		};
+	}
+
+	/**
+	 * Creates the matcher of this transformer without the filter for core java classes (see
+	 * {@link #isCoreJavaClass(TypeDescription, ClassLoader)}). The element matchers are created only once, not for
+	 * each type.
+	 */
+	AgentBuilder.RawMatcher createMatcher() {
+		final ElementMatcher<TypeDescription> typeMatcher = createTypeMatcher();
+		final AgentBuilder.RawMatcher runtimeMatcher = createRuntimeMatcher();
 		return new AgentBuilder.RawMatcher() {
 			@Override
 			public boolean matches(TypeDescription typeDescription, ClassLoader classLoader, JavaModule javaModule, Class<?> classBeingRedefined, ProtectionDomain protectionDomain) {
-				final boolean matches = filterCoreJavaClasses(classLoader, typeDescription) &&
-						timed("type", transformerName, getTypeMatcher()).matches(typeDescription) &&
-						getRawMatcher().matches(typeDescription, classLoader, javaModule, classBeingRedefined, protectionDomain) &&
-						timed("classloader", "application", getClassLoaderMatcher()).matches(classLoader);
+				final boolean matches = typeMatcher.matches(typeDescription) &&
+						runtimeMatcher.matches(typeDescription, classLoader, javaModule, classBeingRedefined, protectionDomain);
 				if (!matches) {
 					onIgnored(typeDescription, classLoader);
 				}
@@ -68,16 +94,58 @@ public abstract class StagemonitorByteBuddyTransformer implements StagemonitorSP
 		};
 	}
 
-	private boolean filterCoreJavaClasses(ClassLoader classLoader, TypeDescription typeDescription) {
-		if (transformsCoreJavaClasses()) {
-			return true;
-		} else {
-			final boolean isCoreJavaClass = isBootstrapClassLoader().matches(classLoader) || nameStartsWith("java")
-					.or(nameStartsWith("com.sun."))
-					.or(nameStartsWith("sun."))
-					.or(nameStartsWith("jdk.")).matches(typeDescription);
-			return !isCoreJavaClass;
+	/**
+	 * Creates the part of the matcher which only depends on the type itself and can therefore be cached across
+	 * restarts (see {@link InstrumentationDecisionCache}).
+	 */
+	ElementMatcher<TypeDescription> createTypeMatcher() {
+		return timed("type", transformerName, getTypeMatcher());
+	}
+
+	/**
+	 * Creates the part of the matcher which depends on the runtime, like the class loader of the type.
+	 */
+	AgentBuilder.RawMatcher createRuntimeMatcher() {
+		return createRuntimeMatcher(true);
+	}
+
+	/**
+	 * @param includeClassLoaderMatcher <code>false</code>, if the class loader matcher is evaluated separately (see
+	 *                                  {@link #usesApplicationClassLoaderMatcher()})
+	 */
+	AgentBuilder.RawMatcher createRuntimeMatcher(boolean includeClassLoaderMatcher) {
+		final AgentBuilder.RawMatcher rawMatcher = getRawMatcher();
+		if (!includeClassLoaderMatcher) {
+			return rawMatcher;
 		}
+		final ElementMatcher<ClassLoader> classLoaderMatcher = timed("classloader", "application", getClassLoaderMatcher());
+		return new AgentBuilder.RawMatcher() {
+			@Override
+			public boolean matches(TypeDescription typeDescription, ClassLoader classLoader, JavaModule javaModule, Class<?> classBeingRedefined, ProtectionDomain protectionDomain) {
+				return rawMatcher.matches(typeDescription, classLoader, javaModule, classBeingRedefined, protectionDomain) &&
+						classLoaderMatcher.matches(classLoader);
+			}
+		};
+	}
+
+	/**
+	 * @return <code>true</code>, if {@link #getClassLoaderMatcher()} has not been overridden so that the verdict of
+	 * {@link #isApplicationClassLoader(ClassLoader)} can be shared with other transformers
+	 */
+	boolean usesApplicationClassLoaderMatcher() {
+		return getClassLoaderMatcher() == applicationClassLoaderMatcher;
+	}
+
+	static boolean isApplicationClassLoader(ClassLoader classLoader) {
+		return timedApplicationClassLoaderMatcher.matches(classLoader);
+	}
+
+	/**
+	 * Core java classes are only transformed by transformers which return <code>true</code> for
+	 * {@link #transformsCoreJavaClasses()}
+	 */
+	static boolean isCoreJavaClass(TypeDescription typeDescription, ClassLoader classLoader) {
+		return isBootstrapClassLoader().matches(classLoader) || coreJavaTypes.matches(typeDescription);
 	}
 
 	/**
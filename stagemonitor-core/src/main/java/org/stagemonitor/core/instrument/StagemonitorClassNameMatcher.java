@@ -13,6 +13,7 @@ import java.util.Collection;
 
 import static net.bytebuddy.matcher.ElementMatchers.isSubTypeOf;
 import static net.bytebuddy.matcher.ElementMatchers.not;
+import static org.stagemonitor.core.instrument.TimedElementMatcherDecorator.timed;
 
 /**
  * An {@link ElementMatcher} with the following logic:
@@ -21,21 +22,26 @@ import static net.bytebuddy.matcher.ElementMatchers.not;
  * <li>Include all types <code>stagemonitor.instrument.include</code></li>
  * <li>If there are no more specific excludes in <code>stagemonitor.instrument.exclude</code></li>
  * </ul>
+ * The rules are compiled into a {@link ClassNameRules} instance so that matching a class name does not depend on the
+ * number of configured packages.
  */
 public class StagemonitorClassNameMatcher extends ElementMatcher.Junction.AbstractBase<TypeDescription> {
 
 	private static final Logger logger = LoggerFactory.getLogger(StagemonitorClassNameMatcher.class);
 
-	private static Collection<String> includes;
-
-	private static Collection<String> excludes;
-
-	private static Collection<String> excludeContaining;
+	private static ClassNameRules rules;
 
 	public static final StagemonitorClassNameMatcher INSTANCE = new StagemonitorClassNameMatcher();
 
+	/**
+	 * Most transformers include this matcher, so it is evaluated only once per type (see {@link SharedTypeVerdict})
+	 */
+	private static final ElementMatcher.Junction<TypeDescription> insideMonitoredProject = new SharedTypeVerdict(
+			new ElementMatcher.Junction.Conjunction<TypeDescription>(timed("type", "class-name-rules", INSTANCE),
+					not(isSubTypeOf(StagemonitorByteBuddyTransformer.class))));
+
 	public static ElementMatcher.Junction<TypeDescription> isInsideMonitoredProject() {
-		return INSTANCE.and(not(isSubTypeOf(StagemonitorByteBuddyTransformer.class)));
+		return insideMonitoredProject;
 	}
 
 	private StagemonitorClassNameMatcher() {
@@ -48,18 +54,15 @@ public class StagemonitorClassNameMatcher extends ElementMatcher.Junction.Abstra
 	private static void initIncludesAndExcludes() {
 		CorePlugin corePlugin = Stagemonitor.getPlugin(CorePlugin.class);
 
-		excludeContaining = new ArrayList<String>(corePlugin.getExcludeContaining().size());
-		excludeContaining.addAll(corePlugin.getExcludeContaining());
-
-		excludes = new ArrayList<String>(corePlugin.getExcludePackages().size());
+		Collection<String> excludes = new ArrayList<String>(corePlugin.getExcludePackages().size() + 1);
 		excludes.add("org.stagemonitor");
 		excludes.addAll(corePlugin.getExcludePackages());
 
-		includes = new ArrayList<String>(corePlugin.getIncludePackages().size());
-		includes.addAll(corePlugin.getIncludePackages());
+		Collection<String> includes = corePlugin.getIncludePackages();
 		if (includes.isEmpty()) {
 			logger.warn("No includes for instrumentation configured. Please set the stagemonitor.instrument.include property.");
 		}
+		rules = new ClassNameRules(includes, excludes, corePlugin.getExcludeContaining());
 	}
 
 	/**
@@ -76,27 +79,7 @@ public class StagemonitorClassNameMatcher extends ElementMatcher.Junction.Abstra
 	 * @return <code>true</code>, if the class should be instrumented, <code>false</code> otherwise
 	 */
 	public static boolean isIncluded(String className) {
-		for (String exclude : excludeContaining) {
-			if (className.contains(exclude)) {
-				return false;
-			}
-		}
-
-		for (String include : includes) {
-			if (className.startsWith(include)) {
-				return !hasMoreSpecificExclude(className, include);
-			}
-		}
-		return false;
-	}
-
-	private static boolean hasMoreSpecificExclude(String className, String include) {
-		for (String exclude : excludes) {
-			if (exclude.length() > include.length() && exclude.startsWith(include) && className.startsWith(exclude)) {
-				return true;
-			}
-		}
-		return false;
+		return rules.isIncluded(className);
 	}
 
 	@Override
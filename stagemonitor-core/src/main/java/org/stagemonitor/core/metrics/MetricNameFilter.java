@@ -4,10 +4,11 @@ import java.util.Arrays;
 import java.util.Collection;
 
 import com.codahale.metrics.Metric;
+import org.stagemonitor.core.metrics.metrics2.CacheableMetric2Filter;
 import org.stagemonitor.core.metrics.metrics2.Metric2Filter;
 import org.stagemonitor.core.metrics.metrics2.MetricName;
 
-public class MetricNameFilter implements Metric2Filter {
+public class MetricNameFilter implements CacheableMetric2Filter {
 	
 	/**
 	 * A {@link Metric2Filter} that excludes any results
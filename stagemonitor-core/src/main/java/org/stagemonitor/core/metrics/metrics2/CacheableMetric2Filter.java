@@ -0,0 +1,10 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+/**
+ * A {@link Metric2Filter} whose result only depends on the {@link MetricName} and the identity of the metric, but not
+ * on the current value of the metric.
+ * <p>
+ * The {@link Metric2Registry} caches the metrics which match such a filter until a metric is registered or removed.
+ */
+public interface CacheableMetric2Filter extends Metric2Filter {
+}
@@ -0,0 +1,185 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+/**
+ * Limits the number of series (distinct {@link MetricName}s) which are created via {@link Metric2Registry#timer},
+ * {@link Metric2Registry#meter}, {@link Metric2Registry#counter} and {@link Metric2Registry#histogram}.
+ * <p>
+ * A naming strategy which includes for example IDs in the operation name would otherwise create a new timer for each
+ * request which blows up the heap and the time it takes to report the metrics.
+ * <p>
+ * When a metric name already has {@link #maxSeriesPerName} series or the registry already contains
+ * {@link #maxSeries} metrics, new series of that name are folded into an overflow bucket which has the same tag keys
+ * but the tag value {@value #OTHER} for all tags. Metrics which are registered explicitly via
+ * {@link Metric2Registry#register(MetricName, com.codahale.metrics.Metric)} are counted, but never rejected.
+ * <p>
+ * The limiter publishes the number of series as <code>metrics_cardinality_series</code> and the number of rejected
+ * updates per metric name as <code>metrics_cardinality_rejected</code>. When a metric name exceeds a limit for the first
+ * time, the metric names with the most series are logged (see {@link #getHeavyHitters()}).
+ */
+public class CardinalityLimiter {
+
+	public static final String OTHER = "other";
+
+	private static final Logger logger = LoggerFactory.getLogger(CardinalityLimiter.class);
+	private static final int TOP_K = 10;
+	private static final MetricName.MetricNameTemplate rejectedTemplate = name("metrics_cardinality_rejected")
+			.templateFor("metric_name");
+
+	private final Metric2Registry registry;
+	private final int maxSeries;
+	private final int maxSeriesPerName;
+	private final ConcurrentMap<String, SeriesCount> seriesCountByName = new ConcurrentHashMap<String, SeriesCount>();
+	/**
+	 * Counts the rejections of new metric names which have been rejected because of {@link #maxSeries}
+	 */
+	private final SeriesCount unknownNames = new SeriesCount(OTHER);
+
+	/**
+	 * @param registry         the registry whose metrics should be limited
+	 * @param maxSeries        the maximum number of metrics in the registry or a value <= 0 for no limit
+	 * @param maxSeriesPerName the maximum number of series per metric name or a value <= 0 for no limit
+	 */
+	CardinalityLimiter(Metric2Registry registry, int maxSeries, int maxSeriesPerName) {
+		this.registry = registry;
+		this.maxSeries = maxSeries > 0 ? maxSeries : Integer.MAX_VALUE;
+		this.maxSeriesPerName = maxSeriesPerName > 0 ? maxSeriesPerName : Integer.MAX_VALUE;
+		for (MetricName metricName : registry.getMetrics().keySet()) {
+			onRegister(metricName);
+		}
+	}
+
+	void registerMetrics() {
+		registry.registerNewMetrics(name("metrics_cardinality_series").build(), new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return registry.getMetrics().size();
+			}
+		});
+	}
+
+	void onRegister(MetricName metricName) {
+		getSeriesCount(metricName.getName()).series.incrementAndGet();
+	}
+
+	void onRemove(MetricName metricName) {
+		final SeriesCount seriesCount = seriesCountByName.get(metricName.getName());
+		if (seriesCount != null) {
+			seriesCount.series.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the name of the overflow bucket, if adding a new series with the provided name would exceed a limit.
+	 *
+	 * @param metricName the name of the new series
+	 * @return <code>null</code>, if the series can be created, the name of the overflow bucket, if a limit is exceeded
+	 * or <code>metricName</code> itself, if the limit is exceeded and there is no overflow bucket for the name
+	 */
+	MetricName getOverflowName(MetricName metricName) {
+		final SeriesCount seriesCount = seriesCountByName.get(metricName.getName());
+		final int seriesOfName = seriesCount != null ? seriesCount.series.get() : 0;
+		final boolean limitPerNameExceeded = seriesOfName >= maxSeriesPerName;
+		if (!limitPerNameExceeded && registry.getMetrics().size() < maxSeries) {
+			return null;
+		}
+		if (seriesOfName == 0 || metricName.getTagKeys().isEmpty()) {
+			onRejected(unknownNames, metricName, limitPerNameExceeded);
+			return metricName;
+		}
+		onRejected(seriesCount, metricName, limitPerNameExceeded);
+		return seriesCount.getOverflowName(metricName);
+	}
+
+	private void onRejected(SeriesCount seriesCount, MetricName metricName, boolean limitPerNameExceeded) {
+		Counter rejected = seriesCount.rejected;
+		if (rejected == null) {
+			final MetricName rejectedMetricName = rejectedTemplate.build(seriesCount.name);
+			registry.registerNewMetrics(rejectedMetricName, new Counter());
+			rejected = (Counter) registry.getMetrics().get(rejectedMetricName);
+			if (rejected == null) {
+				// removed concurrently
+				return;
+			}
+			seriesCount.rejected = rejected;
+			logger.warn("The metric {} exceeds the limit of {}. New series are tracked as '{}'. " +
+					"Metric names with the most series: {}", metricName,
+					limitPerNameExceeded ? maxSeriesPerName + " series per metric name" : maxSeries + " series in total",
+					OTHER, getHeavyHitters());
+		}
+		rejected.inc();
+	}
+
+	private SeriesCount getSeriesCount(String name) {
+		SeriesCount seriesCount = seriesCountByName.get(name);
+		if (seriesCount == null) {
+			seriesCount = new SeriesCount(name);
+			final SeriesCount previous = seriesCountByName.putIfAbsent(name, seriesCount);
+			if (previous != null) {
+				seriesCount = previous;
+			}
+		}
+		return seriesCount;
+	}
+
+	/**
+	 * Returns the metric names with the most series
+	 *
+	 * @return the top {@value #TOP_K} metric names and their number of series, in descending order
+	 */
+	public Map<String, Integer> getHeavyHitters() {
+		final List<Map.Entry<String, Integer>> seriesCounts = new ArrayList<Map.Entry<String, Integer>>(seriesCountByName.size());
+		for (SeriesCount seriesCount : seriesCountByName.values()) {
+			seriesCounts.add(new AbstractMap.SimpleImmutableEntry<String, Integer>(seriesCount.name, seriesCount.series.get()));
+		}
+		Collections.sort(seriesCounts, new Comparator<Map.Entry<String, Integer>>() {
+			@Override
+			public int compare(Map.Entry<String, Integer> o1, Map.Entry<String, Integer> o2) {
+				return o2.getValue().compareTo(o1.getValue());
+			}
+		});
+		final Map<String, Integer> heavyHitters = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, Integer> seriesCount : seriesCounts.subList(0, Math.min(TOP_K, seriesCounts.size()))) {
+			heavyHitters.put(seriesCount.getKey(), seriesCount.getValue());
+		}
+		return heavyHitters;
+	}
+
+	private static class SeriesCount {
+		private final String name;
+		private final AtomicInteger series = new AtomicInteger();
+		private volatile Counter rejected;
+		private volatile MetricName overflowName;
+
+		private SeriesCount(String name) {
+			this.name = name;
+		}
+
+		private MetricName getOverflowName(MetricName metricName) {
+			MetricName overflowName = this.overflowName;
+			if (overflowName == null || !overflowName.hasSameTagKeys(metricName)) {
+				overflowName = metricName.withTagValues(OTHER);
+				this.overflowName = overflowName;
+			}
+			return overflowName;
+		}
+	}
+}
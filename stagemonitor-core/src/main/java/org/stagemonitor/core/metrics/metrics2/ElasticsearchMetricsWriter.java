@@ -0,0 +1,320 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes metrics as documents of an Elasticsearch bulk request.
+ * <p>
+ * The JSON of a {@link MetricName} including the global tags is encoded only once and then cached. On each report,
+ * only the timestamp and the values of the metrics have to be serialized. The documents are written into a reusable
+ * buffer which is flushed to the output stream in chunks.
+ * <p>
+ * This class is thread safe.
+ */
+class ElasticsearchMetricsWriter {
+
+	private static final int FLUSH_THRESHOLD = 8192;
+	private static final byte[] DOCUMENT_START = ascii("{\"@timestamp\":");
+	private static final byte[] DOCUMENT_END = ascii("}\n");
+	private static final byte[] VALUE = field("value");
+	private static final byte[] VALUE_BOOLEAN = field("value_boolean");
+	private static final byte[] VALUE_STRING = field("value_string");
+	private static final byte[] COUNT = field("count");
+	private static final byte[] M1_RATE = field("m1_rate");
+	private static final byte[] M5_RATE = field("m5_rate");
+	private static final byte[] M15_RATE = field("m15_rate");
+	private static final byte[] MEAN_RATE = field("mean_rate");
+	private static final byte[] MIN = field("min");
+	private static final byte[] MAX = field("max");
+	private static final byte[] MEAN = field("mean");
+	private static final byte[] P50 = field("p50");
+	private static final byte[] STD = field("std");
+	private static final byte[] P25 = field("p25");
+	private static final byte[] P75 = field("p75");
+	private static final byte[] P95 = field("p95");
+	private static final byte[] P98 = field("p98");
+	private static final byte[] P99 = field("p99");
+	private static final byte[] P999 = field("p999");
+	private static final byte[] HDR = field("hdr");
+
+	private final double rateFactor;
+	private final double durationFactor;
+	private final byte[] encodedGlobalTags;
+	private final boolean mergeableHistograms;
+	private final Metric2Registry registry;
+	private final ConcurrentMap<MetricName, byte[]> encodedNames = new ConcurrentHashMap<MetricName, byte[]>();
+	private final Buffer buffer = new Buffer(FLUSH_THRESHOLD * 2);
+	private final StringBuilder numberBuilder = new StringBuilder(32);
+
+	ElasticsearchMetricsWriter(Metric2Registry registry, TimeUnit rateUnit, TimeUnit durationUnit,
+							   Map<String, String> globalTags, boolean mergeableHistograms) {
+		this.registry = registry;
+		this.mergeableHistograms = mergeableHistograms;
+		this.rateFactor = rateUnit.toSeconds(1);
+		this.durationFactor = 1.0 / durationUnit.toNanos(1);
+		final Buffer globalTagsBuffer = new Buffer(64);
+		writeTags(globalTagsBuffer, globalTags);
+		this.encodedGlobalTags = globalTagsBuffer.toByteArray();
+	}
+
+	synchronized void write(OutputStream os, byte[] bulkActionBytes, long timestamp,
+							Map<MetricName, Gauge> gauges, Map<MetricName, Counter> counters,
+							Map<MetricName, Histogram> histograms, Map<MetricName, Meter> meters,
+							Map<MetricName, Timer> timers) throws IOException {
+		try {
+			for (Map.Entry<MetricName, Gauge> entry : gauges.entrySet()) {
+				startDocument(bulkActionBytes, timestamp, entry.getKey());
+				writeGauge(entry.getValue());
+				endDocument(os);
+			}
+			for (Map.Entry<MetricName, Counter> entry : counters.entrySet()) {
+				startDocument(bulkActionBytes, timestamp, entry.getKey());
+				writeLong(COUNT, entry.getValue().getCount());
+				endDocument(os);
+			}
+			for (Map.Entry<MetricName, Histogram> entry : histograms.entrySet()) {
+				startDocument(bulkActionBytes, timestamp, entry.getKey());
+				writeLong(COUNT, entry.getValue().getCount());
+				writeSnapshot(entry.getValue().getSnapshot(), 1);
+				endDocument(os);
+			}
+			for (Map.Entry<MetricName, Meter> entry : meters.entrySet()) {
+				startDocument(bulkActionBytes, timestamp, entry.getKey());
+				writeMetered(entry.getValue());
+				endDocument(os);
+			}
+			for (Map.Entry<MetricName, Timer> entry : timers.entrySet()) {
+				startDocument(bulkActionBytes, timestamp, entry.getKey());
+				writeMetered(entry.getValue());
+				writeSnapshot(entry.getValue().getSnapshot(), durationFactor);
+				endDocument(os);
+			}
+			buffer.writeTo(os);
+		} finally {
+			buffer.reset();
+		}
+		evictRemovedMetricNames();
+	}
+
+	/**
+	 * Clears the cache if it contains considerably more names than there are metrics in the registry, because metrics
+	 * have been removed from it.
+	 * <p>
+	 * The size of the registry is used instead of the number of reported metrics, as only the changed metrics are
+	 * reported if {@link ScheduledMetrics2Reporter.Builder#reportOnlyChangedMetrics(int)} is set.
+	 */
+	private void evictRemovedMetricNames() {
+		if (encodedNames.size() > registry.getMetrics().size() * 2) {
+			encodedNames.clear();
+		}
+	}
+
+	int getCachedNamesCount() {
+		return encodedNames.size();
+	}
+
+	private void startDocument(byte[] bulkActionBytes, long timestamp, MetricName metricName) {
+		buffer.write(bulkActionBytes);
+		buffer.write(DOCUMENT_START);
+		numberBuilder.setLength(0);
+		buffer.writeAscii(numberBuilder.append(timestamp));
+		buffer.write(getEncodedName(metricName));
+	}
+
+	private void endDocument(OutputStream os) throws IOException {
+		buffer.write(DOCUMENT_END);
+		if (buffer.size() >= FLUSH_THRESHOLD) {
+			buffer.writeTo(os);
+			buffer.reset();
+		}
+	}
+
+	/**
+	 * Returns the encoded name and tags of the metric, for example <code>,"name":"cpu","core":"1","app":"foo"</code>
+	 */
+	private byte[] getEncodedName(MetricName metricName) {
+		byte[] encodedName = encodedNames.get(metricName);
+		if (encodedName == null) {
+			final Buffer nameBuffer = new Buffer(64);
+			writeString(nameBuffer, field("name"), metricName.getName());
+			writeTags(nameBuffer, metricName.getTags());
+			nameBuffer.write(encodedGlobalTags);
+			encodedName = nameBuffer.toByteArray();
+			encodedNames.put(metricName, encodedName);
+		}
+		return encodedName;
+	}
+
+	private static void writeTags(Buffer buffer, Map<String, String> tags) {
+		for (Map.Entry<String, String> tag : tags.entrySet()) {
+			writeString(buffer, encodeField(tag.getKey()), tag.getValue());
+		}
+	}
+
+	private static void writeString(Buffer buffer, byte[] field, String value) {
+		buffer.write(field);
+		if (value == null) {
+			buffer.write(ascii("null"));
+		} else {
+			buffer.write('"');
+			buffer.write(JsonStringEncoder.getInstance().quoteAsUTF8(value));
+			buffer.write('"');
+		}
+	}
+
+	private void writeGauge(Gauge gauge) {
+		final Object value = gauge.getValue();
+		if (value == null) {
+			return;
+		}
+		if (value instanceof Number) {
+			writeDouble(VALUE, ((Number) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			buffer.write(VALUE_BOOLEAN);
+			buffer.write(ascii(value.toString()));
+		} else {
+			writeString(buffer, VALUE_STRING, value.toString());
+		}
+	}
+
+	private void writeMetered(Metered metered) {
+		writeLong(COUNT, metered.getCount());
+		writeDouble(M1_RATE, metered.getOneMinuteRate() * rateFactor);
+		writeDouble(M5_RATE, metered.getFiveMinuteRate() * rateFactor);
+		writeDouble(M15_RATE, metered.getFifteenMinuteRate() * rateFactor);
+		writeDouble(MEAN_RATE, metered.getMeanRate() * rateFactor);
+	}
+
+	private void writeSnapshot(Snapshot snapshot, double factor) {
+		writeDouble(MIN, snapshot.getMin() * factor);
+		writeDouble(MAX, snapshot.getMax() * factor);
+		writeDouble(MEAN, snapshot.getMean() * factor);
+		writeDouble(P50, snapshot.getMedian() * factor);
+		writeDouble(STD, snapshot.getStdDev() * factor);
+		writeDouble(P25, snapshot.getValue(0.25) * factor);
+		writeDouble(P75, snapshot.get75thPercentile() * factor);
+		writeDouble(P95, snapshot.get95thPercentile() * factor);
+		writeDouble(P98, snapshot.get98thPercentile() * factor);
+		writeDouble(P99, snapshot.get99thPercentile() * factor);
+		writeDouble(P999, snapshot.get999thPercentile() * factor);
+		if (mergeableHistograms && snapshot instanceof HdrHistogramReservoir.HdrSnapshot) {
+			// base64 does not need to be escaped
+			buffer.write(HDR);
+			buffer.write('"');
+			buffer.writeAscii(((HdrHistogramReservoir.HdrSnapshot) snapshot).encodeCompressed());
+			buffer.write('"');
+		}
+	}
+
+	private void writeLong(byte[] field, long value) {
+		buffer.write(field);
+		numberBuilder.setLength(0);
+		buffer.writeAscii(numberBuilder.append(value));
+	}
+
+	private void writeDouble(byte[] field, double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		buffer.write(field);
+		numberBuilder.setLength(0);
+		// appending a double to a StringBuilder does not allocate a String
+		numberBuilder.append(value);
+		if (Double.isInfinite(value)) {
+			// like Jackson, quote non-numeric numbers
+			buffer.write('"');
+			buffer.writeAscii(numberBuilder);
+			buffer.write('"');
+		} else {
+			buffer.writeAscii(numberBuilder);
+		}
+	}
+
+	private static byte[] field(String name) {
+		return ascii(",\"" + name + "\":");
+	}
+
+	private static byte[] encodeField(String name) {
+		final Buffer buffer = new Buffer(name.length() + 4);
+		buffer.write(',');
+		buffer.write('"');
+		buffer.write(JsonStringEncoder.getInstance().quoteAsUTF8(name));
+		buffer.write('"');
+		buffer.write(':');
+		return buffer.toByteArray();
+	}
+
+	private static byte[] ascii(String s) {
+		final Buffer buffer = new Buffer(s.length());
+		buffer.writeAscii(s);
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * An unsynchronized, growable byte buffer
+	 */
+	private static class Buffer {
+		private byte[] bytes;
+		private int size;
+
+		private Buffer(int initialCapacity) {
+			bytes = new byte[initialCapacity];
+		}
+
+		void write(int b) {
+			ensureCapacity(size + 1);
+			bytes[size++] = (byte) b;
+		}
+
+		void write(byte[] b) {
+			ensureCapacity(size + b.length);
+			System.arraycopy(b, 0, bytes, size, b.length);
+			size += b.length;
+		}
+
+		void writeAscii(CharSequence chars) {
+			final int length = chars.length();
+			ensureCapacity(size + length);
+			for (int i = 0; i < length; i++) {
+				bytes[size++] = (byte) chars.charAt(i);
+			}
+		}
+
+		void writeTo(OutputStream os) throws IOException {
+			os.write(bytes, 0, size);
+		}
+
+		int size() {
+			return size;
+		}
+
+		void reset() {
+			size = 0;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(bytes, size);
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+			}
+		}
+	}
+}
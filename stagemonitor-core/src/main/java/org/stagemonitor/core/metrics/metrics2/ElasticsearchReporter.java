@@ -4,18 +4,15 @@ import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
-import com.codahale.metrics.Metric;
 import com.codahale.metrics.Timer;
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonGenerator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.stagemonitor.core.CorePlugin;
 import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
+import org.stagemonitor.core.elasticsearch.SpillLog;
 import org.stagemonitor.core.util.HttpClient;
-import org.stagemonitor.core.util.JsonUtils;
-import org.stagemonitor.core.util.http.NoopResponseHandler;
+import org.stagemonitor.core.util.http.StatusCodeResponseHandler;
 import org.stagemonitor.util.StringUtils;
 
 import java.io.ByteArrayOutputStream;
@@ -32,16 +29,17 @@ public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 	public static final String ES_METRICS_LOGGER = "ElasticsearchMetrics";
 	private static final String METRICS_TYPE = "metrics";
 	private static final MetricName reportingTimeMetricName = name("reporting_time").tag("reporter", "elasticsearch").build();
+	static final MetricName metricsDroppedMetricName = name("elasticsearch_metrics_dropped").build();
+	private static final StatusCodeResponseHandler statusCodeResponseHandler = new StatusCodeResponseHandler();
 
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 	private final Logger elasticsearchMetricsLogger;
 
-	private final Map<String, String> globalTags;
 	private final CorePlugin corePlugin;
 	private final HttpClient httpClient;
-	private final JsonFactory jfactory = new JsonFactory();
-	private final Metric2RegistryModule metric2RegistryModule;
+	private final ElasticsearchMetricsWriter metricsWriter;
 	private final ElasticsearchClient elasticsearchClient;
+	private volatile BulkAction bulkAction;
 
 	public static ElasticsearchReporter.Builder forRegistry(Metric2Registry registry, CorePlugin corePlugin) {
 		return new Builder(registry, corePlugin);
@@ -50,10 +48,9 @@ public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 	private ElasticsearchReporter(Builder builder) {
 		super(builder);
 		this.elasticsearchMetricsLogger = builder.getElasticsearchMetricsLogger();
-		this.globalTags = builder.getGlobalTags();
 		this.httpClient = builder.getHttpClient();
-		this.jfactory.setCodec(JsonUtils.getMapper());
-		this.metric2RegistryModule = new Metric2RegistryModule(builder.getRateUnit(), builder.getDurationUnit());
+		this.metricsWriter = new ElasticsearchMetricsWriter(builder.getRegistry(), builder.getRateUnit(),
+				builder.getDurationUnit(), builder.getGlobalTags(), builder.isMergeableHistograms());
 		this.corePlugin = builder.getCorePlugin();
 		this.elasticsearchClient = corePlugin.getElasticsearchClient();
 	}
@@ -74,12 +71,17 @@ public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 		final Timer.Context time = registry.timer(reportingTimeMetricName).time();
 		final MetricsOutputStreamHandler metricsOutputStreamHandler = new MetricsOutputStreamHandler(gauges, counters, histograms, meters, timers, timestamp);
 		if (!corePlugin.isOnlyLogElasticsearchMetricReports()) {
+			final String path = "/" + getTodaysIndexName() + "/" + METRICS_TYPE + "/_bulk";
 			if (!elasticsearchClient.isElasticsearchAvailable()) {
+				spill(path, metricsOutputStreamHandler);
 				return;
 			}
-			final String url = corePlugin.getElasticsearchUrl() + "/" + getTodaysIndexName() + "/" + METRICS_TYPE + "/_bulk";
-			httpClient.send("POST", url, CONTENT_TYPE_JSON,
-					metricsOutputStreamHandler, NoopResponseHandler.INSTANCE);
+			final String url = corePlugin.getElasticsearchUrl() + path;
+			final Integer statusCode = httpClient.sendBulk(url, CONTENT_TYPE_JSON, metricsOutputStreamHandler, statusCodeResponseHandler);
+			if (statusCode == null || statusCode == -1 || statusCode == 429 || statusCode >= 500) {
+				// Elasticsearch could not be reached or is overloaded, so it makes sense to send the metrics again later
+				spill(path, metricsOutputStreamHandler);
+			}
 		} else {
 			try {
 				final ByteArrayOutputStream os = new ByteArrayOutputStream();
@@ -92,46 +94,57 @@ public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 		time.stop();
 	}
 
+	/**
+	 * Writes the metrics to the {@link SpillLog} so that they can be sent when Elasticsearch is available again.
+	 * <p>
+	 * A report of a large registry may not fit into a single segment of the spill log, which is why it is split into
+	 * multiple entries.
+	 */
+	private void spill(String path, MetricsOutputStreamHandler metricsOutputStreamHandler) {
+		final SpillLog spillLog = corePlugin.getSpillLog();
+		if (spillLog == null) {
+			return;
+		}
+		try {
+			final ByteArrayOutputStream os = new ByteArrayOutputStream();
+			metricsOutputStreamHandler.withHttpURLConnection(os);
+			final int droppedMetrics = spillLog.appendDocuments(path, os.toByteArray());
+			if (droppedMetrics > 0) {
+				registry.counter(metricsDroppedMetricName).inc(droppedMetrics);
+				logger.warn("Could not write {} metrics to the spill log", droppedMetrics);
+			}
+		} catch (IOException e) {
+			logger.warn(e.getMessage(), e);
+		}
+	}
+
 	public void reportMetrics(Map<MetricName, Gauge> gauges, Map<MetricName, Counter> counters,
 							  Map<MetricName, Histogram> histograms, final Map<MetricName, Meter> meters,
 							  Map<MetricName, Timer> timers, OutputStream os, byte[] bulkActionBytes, long timestamp) throws IOException {
 
-		final JsonGenerator jg = jfactory.createGenerator(os);
-		try {
-			reportMetric(gauges, timestamp, metric2RegistryModule.getValueWriter(Gauge.class), jg, bulkActionBytes);
-			reportMetric(counters, timestamp, metric2RegistryModule.getValueWriter(Counter.class), jg, bulkActionBytes);
-			reportMetric(histograms, timestamp, metric2RegistryModule.getValueWriter(Histogram.class), jg, bulkActionBytes);
-			reportMetric(meters, timestamp, metric2RegistryModule.getValueWriter(Meter.class), jg, bulkActionBytes);
-			reportMetric(timers, timestamp, metric2RegistryModule.getValueWriter(Timer.class), jg, bulkActionBytes);
-		} finally {
-			jg.close(); // release reusable jackson write buffers
-		}
+		metricsWriter.write(os, bulkActionBytes, timestamp, gauges, counters, histograms, meters, timers);
 	}
 
-	private <T extends Metric> void reportMetric(Map<MetricName, T> metrics, long timestamp, Metric2RegistryModule.ValueWriter<T> valueWriter,
-												 JsonGenerator jg, byte[] bulkActionBytes) throws IOException {
-
-		//Workaround, unable to write unquoted raw UTF-8 string to JsonGenerator
-		OutputStream os = (OutputStream) jg.getOutputTarget();
-
-		for (Map.Entry<MetricName, T> entry : metrics.entrySet()) {
-			os.write(bulkActionBytes);
-			jg.writeStartObject();
-			MetricName metricName = entry.getKey();
-			jg.writeNumberField("@timestamp", timestamp);
-			jg.writeStringField("name", metricName.getName());
-			writeMap(jg, metricName.getTags());
-			writeMap(jg, globalTags);
-			valueWriter.writeValues(entry.getValue(), jg);
-			jg.writeEndObject();
-			jg.writeRaw('\n');
-			jg.flush();
+	/**
+	 * Returns the encoded bulk action which is only re-created when the index changes
+	 */
+	private byte[] getBulkActionBytes() throws IOException {
+		final String indexName = getTodaysIndexName();
+		BulkAction bulkAction = this.bulkAction;
+		if (bulkAction == null || !bulkAction.indexName.equals(indexName)) {
+			bulkAction = new BulkAction(indexName);
+			this.bulkAction = bulkAction;
 		}
+		return bulkAction.bytes;
 	}
 
-	private void writeMap(JsonGenerator jg, Map<String, String> map) throws IOException {
-		for (Map.Entry<String, String> entry : map.entrySet()) {
-			jg.writeObjectField(entry.getKey(), entry.getValue());
+	private static class BulkAction {
+		private final String indexName;
+		private final byte[] bytes;
+
+		private BulkAction(String indexName) throws IOException {
+			this.indexName = indexName;
+			this.bytes = ElasticsearchClient.getBulkHeader("index", indexName, METRICS_TYPE).getBytes("UTF-8");
 		}
 	}
 
@@ -154,9 +167,7 @@ public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 
 		@Override
 		public void withHttpURLConnection(OutputStream os) throws IOException {
-			String bulkAction = ElasticsearchClient.getBulkHeader("index", getTodaysIndexName(), METRICS_TYPE);
-			byte[] bulkActionBytes = bulkAction.getBytes("UTF-8");
-			reportMetrics(gauges, counters, histograms, meters, timers, os, bulkActionBytes, timestamp);
+			reportMetrics(gauges, counters, histograms, meters, timers, os, getBulkActionBytes(), timestamp);
 			os.close();
 		}
 	}
@@ -0,0 +1,223 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+import org.HdrHistogram.Recorder;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * A {@link Reservoir} which is backed by a HdrHistogram {@link Recorder}.
+ * <p>
+ * Recording a value is wait-free, so in contrast to the {@link com.codahale.metrics.ExponentiallyDecayingReservoir},
+ * updates don't contend on a lock. The percentiles are not biased by decaying weights but have a fixed relative
+ * precision of two significant digits.
+ * <p>
+ * {@link #getSnapshot()} returns a snapshot of the values which have been recorded in the last interval. The interval
+ * is rolled over when a snapshot is requested and the current interval has ended. The intervals are aligned to the
+ * clock, so how often snapshots are requested does not influence when the intervals are rolled over. As the reporters
+ * are scheduled at the start of each interval (see
+ * {@link ScheduledMetrics2Reporter#getOffsetUntilTimestampIsDivisableByPeriod}), all reporters of an interval get the
+ * same snapshot. If the interval of a reporter is longer than the interval of the reservoir, the reporter only sees the
+ * values of the last interval.
+ * <p>
+ * Requesting a snapshot within an interval does not take a lock, so it is cheap enough to be called for every request.
+ */
+public class HdrHistogramReservoir implements Reservoir {
+
+	private static final int NUMBER_OF_SIGNIFICANT_VALUE_DIGITS = 2;
+
+	private final Recorder recorder = new Recorder(NUMBER_OF_SIGNIFICANT_VALUE_DIGITS);
+	private final long intervalMs;
+	private final Clock clock;
+	private volatile long intervalEnd;
+	private volatile Histogram intervalHistogram;
+
+	/**
+	 * @param intervalMs the length of an interval in milliseconds
+	 * @throws IllegalArgumentException if the interval is not positive
+	 */
+	public HdrHistogramReservoir(long intervalMs) {
+		this(intervalMs, Clock.defaultClock());
+	}
+
+	HdrHistogramReservoir(long intervalMs, Clock clock) {
+		if (intervalMs <= 0) {
+			throw new IllegalArgumentException("The interval must be positive but was " + intervalMs + " ms");
+		}
+		this.intervalMs = intervalMs;
+		this.clock = clock;
+		this.intervalEnd = getIntervalEnd(clock.getTime());
+		this.intervalHistogram = recorder.getIntervalHistogram();
+	}
+
+	/**
+	 * Creates a {@link ReservoirFactory} for {@link HdrHistogramReservoir}s
+	 *
+	 * @param intervalMs the length of an interval in milliseconds
+	 * @return a {@link ReservoirFactory} for {@link HdrHistogramReservoir}s
+	 */
+	public static ReservoirFactory factory(final long intervalMs) {
+		return new ReservoirFactory() {
+			@Override
+			public Reservoir newReservoir() {
+				return new HdrHistogramReservoir(intervalMs);
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		return getSnapshot().size();
+	}
+
+	@Override
+	public void update(long value) {
+		recorder.recordValue(Math.max(0, value));
+	}
+
+	@Override
+	public Snapshot getSnapshot() {
+		return new HdrSnapshot(getIntervalHistogram());
+	}
+
+	private Histogram getIntervalHistogram() {
+		if (clock.getTime() < intervalEnd) {
+			return intervalHistogram;
+		}
+		return rollInterval();
+	}
+
+	private synchronized Histogram rollInterval() {
+		final long now = clock.getTime();
+		// another thread might have rolled the interval in the meantime
+		if (now >= intervalEnd) {
+			// the histogram can't be recycled as it might still be referenced by a snapshot
+			intervalHistogram = recorder.getIntervalHistogram();
+			intervalEnd = getIntervalEnd(now);
+		}
+		return intervalHistogram;
+	}
+
+	private long getIntervalEnd(long timestamp) {
+		return timestamp - timestamp % intervalMs + intervalMs;
+	}
+
+	/**
+	 * Merges histograms which have been encoded via {@link HdrSnapshot#encodeCompressed()}, for example the
+	 * <code>hdr</code> fields of all instances of an application in a time range.
+	 * <p>
+	 * In contrast to averaging the percentiles of the instances, the percentiles of the merged snapshot are the true
+	 * percentiles of all recorded values.
+	 *
+	 * @param encodedHistograms the base64 encoded compressed histograms
+	 * @return a snapshot of the sum of the histograms
+	 * @throws IllegalArgumentException if one of the histograms can't be decoded
+	 */
+	public static HdrSnapshot merge(Iterable<String> encodedHistograms) {
+		final Histogram merged = new Histogram(NUMBER_OF_SIGNIFICANT_VALUE_DIGITS);
+		for (String encodedHistogram : encodedHistograms) {
+			try {
+				merged.add(Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(Base64.getDecoder().decode(encodedHistogram)), 0));
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Invalid encoded histogram " + encodedHistogram, e);
+			}
+		}
+		return new HdrSnapshot(merged);
+	}
+
+	/**
+	 * A {@link Snapshot} of an immutable interval {@link Histogram}
+	 */
+	public static class HdrSnapshot extends Snapshot {
+
+		private final Histogram histogram;
+
+		private HdrSnapshot(Histogram histogram) {
+			this.histogram = histogram;
+		}
+
+		/**
+		 * Encodes the histogram in the compressed HdrHistogram format.
+		 * <p>
+		 * In contrast to percentiles, the histograms of several instances and intervals can be merged via
+		 * {@link HdrHistogramReservoir#merge(Iterable)}.
+		 * The values are not converted, so the values of timers are in nanoseconds.
+		 *
+		 * @return the base64 encoded compressed histogram
+		 */
+		public String encodeCompressed() {
+			final ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+			final int length = histogram.encodeIntoCompressedByteBuffer(buffer);
+			return Base64.getEncoder().encodeToString(Arrays.copyOf(buffer.array(), length));
+		}
+
+		@Override
+		public double getValue(double quantile) {
+			return histogram.getValueAtPercentile(quantile * 100);
+		}
+
+		/**
+		 * Returns the recorded values with the precision of the histogram
+		 */
+		@Override
+		public long[] getValues() {
+			final long[] values = new long[size()];
+			int i = 0;
+			for (HistogramIterationValue value : histogram.recordedValues()) {
+				final long highestEquivalentValue = histogram.highestEquivalentValue(value.getValueIteratedTo());
+				for (long count = 0; count < value.getCountAddedInThisIterationStep() && i < values.length; count++) {
+					values[i++] = highestEquivalentValue;
+				}
+			}
+			return values;
+		}
+
+		@Override
+		public int size() {
+			return (int) Math.min(Integer.MAX_VALUE, histogram.getTotalCount());
+		}
+
+		@Override
+		public long getMax() {
+			return histogram.getMaxValue();
+		}
+
+		@Override
+		public double getMean() {
+			return histogram.getMean();
+		}
+
+		@Override
+		public long getMin() {
+			return histogram.getMinValue();
+		}
+
+		@Override
+		public double getStdDev() {
+			return histogram.getStdDeviation();
+		}
+
+		@Override
+		public void dump(OutputStream output) {
+			final PrintWriter out = new PrintWriter(new OutputStreamWriter(output, Charset.forName("UTF-8")));
+			try {
+				for (long value : getValues()) {
+					out.printf("%d%n", value);
+				}
+			} finally {
+				out.close();
+			}
+		}
+	}
+}
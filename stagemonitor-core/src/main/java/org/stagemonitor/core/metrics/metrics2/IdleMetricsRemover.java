@@ -0,0 +1,147 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Metric;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.util.ExecutorUtils;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically removes metrics from a {@link Metric2Registry} which have not been updated for a configurable time.
+ * <p>
+ * Metrics which are created for dynamic operation names or data sources would otherwise stay in the registry forever,
+ * even if they are not updated anymore. This inflates each report and the heap of long-running JVMs.
+ * <p>
+ * Only counters, histograms, meters and timers which have been created via {@link Metric2Registry#counter},
+ * {@link Metric2Registry#histogram}, {@link Metric2Registry#meter} or {@link Metric2Registry#timer} are removed.
+ * Metrics which have been registered explicitly via
+ * {@link Metric2Registry#register(MetricName, Metric)} are never removed. The count of a metric serves as its update
+ * sequence number, so a metric is considered idle if its count has not changed for the time to live. As the metrics are
+ * removed via the {@link Metric2Registry}, they are also removed from the wrapped Dropwizard
+ * {@link com.codahale.metrics.MetricRegistry}.
+ * <p>
+ * If a metric is requested from the registry after it has been removed, a new metric is created. Therefore, metrics
+ * which are created on demand should not be stored in fields.
+ */
+public class IdleMetricsRemover implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(IdleMetricsRemover.class);
+
+	private final Metric2Registry registry;
+	private final long timeToLiveMs;
+	private final Clock clock;
+	/**
+	 * Only accessed by the thread which executes {@link #removeIdleMetrics()}
+	 */
+	private final Map<MetricName, LastUpdate> lastUpdates = new HashMap<MetricName, LastUpdate>();
+	private ScheduledExecutorService executor;
+
+	/**
+	 * @param registry   the registry
+	 * @param timeToLive the time after which a metric which has not been updated is removed
+	 * @param unit       the unit of <code>timeToLive</code>
+	 */
+	public IdleMetricsRemover(Metric2Registry registry, long timeToLive, TimeUnit unit) {
+		this(registry, timeToLive, unit, Clock.defaultClock());
+	}
+
+	IdleMetricsRemover(Metric2Registry registry, long timeToLive, TimeUnit unit, Clock clock) {
+		this.registry = registry;
+		this.timeToLiveMs = unit.toMillis(timeToLive);
+		this.clock = clock;
+	}
+
+	/**
+	 * Starts to check for idle metrics in the provided interval
+	 *
+	 * @param period the interval between two checks
+	 * @param unit   the unit of <code>period</code>
+	 */
+	public synchronized void start(long period, TimeUnit unit) {
+		if (executor != null) {
+			throw new IllegalStateException("IdleMetricsRemover already started");
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new ExecutorUtils.NamedThreadFactory("stagemonitor-idle-metrics-remover"));
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					removeIdleMetrics();
+				} catch (RuntimeException e) {
+					logger.warn(e.getMessage(), e);
+				}
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Removes the metrics whose count has not changed for the time to live
+	 *
+	 * @return the number of removed metrics
+	 */
+	synchronized int removeIdleMetrics() {
+		final long now = clock.getTime();
+		final Set<MetricName> namesOfMetricsCreatedOnDemand = registry.getNamesOfMetricsCreatedOnDemand();
+		int removed = 0;
+		for (MetricName name : namesOfMetricsCreatedOnDemand) {
+			final Metric metric = registry.getMetrics().get(name);
+			if (!(metric instanceof Counting)) {
+				continue;
+			}
+			final long count = ((Counting) metric).getCount();
+			final LastUpdate lastUpdate = lastUpdates.get(name);
+			if (lastUpdate == null) {
+				lastUpdates.put(name, new LastUpdate(metric, count, now));
+			} else if (lastUpdate.metric != metric || lastUpdate.count != count) {
+				lastUpdate.update(metric, count, now);
+			} else if (now - lastUpdate.timestamp >= timeToLiveMs && registry.removeIdleMetric(name, (Counting) metric, count)) {
+				lastUpdates.remove(name);
+				removed++;
+			}
+		}
+		// forgets metrics which have been removed by other means
+		for (Iterator<MetricName> iterator = lastUpdates.keySet().iterator(); iterator.hasNext(); ) {
+			if (!namesOfMetricsCreatedOnDemand.contains(iterator.next())) {
+				iterator.remove();
+			}
+		}
+		if (removed > 0) {
+			logger.debug("Removed {} metrics which have not been updated for {} ms", removed, timeToLiveMs);
+		}
+		return removed;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	private static class LastUpdate {
+		private Metric metric;
+		private long count;
+		private long timestamp;
+
+		private LastUpdate(Metric metric, long count, long timestamp) {
+			update(metric, count, timestamp);
+		}
+
+		private void update(Metric metric, long count, long timestamp) {
+			this.metric = metric;
+			this.count = count;
+			this.timestamp = timestamp;
+		}
+	}
+}
@@ -8,27 +8,73 @@ import com.codahale.metrics.Metered;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.stagemonitor.core.CorePlugin;
+import org.stagemonitor.core.util.ExecutorUtils;
 import org.stagemonitor.core.util.HttpClient;
+import org.stagemonitor.core.util.http.HttpRequestBuilder;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
+/**
+ * Reports the metrics to InfluxDB via the line protocol.
+ * <p>
+ * The lines are encoded directly into reusable byte buffers. The encoded measurement and tags of each {@link MetricName},
+ * including the global tags, are cached between reports. A report is split into batches of at most
+ * {@value #MAX_BATCH_SIZE} lines or {@value #MAX_BATCH_BYTES} bytes. While a batch is sent, the next one is encoded and
+ * up to {@value #MAX_CONCURRENT_REQUESTS} batches are sent concurrently. A report returns after all batches have been
+ * sent. If a batch can't be sent within {@value #SEND_TIMEOUT_SECONDS} seconds, the report is aborted.
+ */
 public class InfluxDbReporter extends ScheduledMetrics2Reporter {
 
+	private static final Logger logger = LoggerFactory.getLogger(InfluxDbReporter.class);
+
 	private static final int MAX_BATCH_SIZE = 5000;
-	private static final Map<MetricName, String> metricNameToInfluxDBFormatCache = new ConcurrentHashMap<MetricName, String>();
+	private static final int MAX_BATCH_BYTES = 1024 * 1024;
+	private static final int MAX_CONCURRENT_REQUESTS = 2;
+	/**
+	 * How long to wait for a batch to be sent before the report is aborted
+	 */
+	private static final long SEND_TIMEOUT_SECONDS = 60;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
 	private static final MetricName reportingTimeMetricName = name("reporting_time").tag("reporter", "influxdb").build();
 
-	private List<String> batchLines = new ArrayList<String>(MAX_BATCH_SIZE);
 	private final String globalTags;
 	private HttpClient httpClient;
 	private final CorePlugin corePlugin;
+	private final boolean mergeableHistograms;
+	/**
+	 * The batches which are currently not sent. One more batch than the number of concurrent requests, so that the next
+	 * batch can be encoded while the others are sent.
+	 */
+	private final BlockingQueue<Batch> freeBatches = new ArrayBlockingQueue<Batch>(MAX_CONCURRENT_REQUESTS + 1);
+	private final ThreadPoolExecutor sender;
+	/**
+	 * The encoded measurement, tags and global tags followed by a space, only accessed by the reporting thread
+	 */
+	private final Map<MetricName, byte[]> prefixes = new HashMap<MetricName, byte[]>();
+	private final StringBuilder numberBuffer = new StringBuilder(32);
+	private Batch batch;
+	private String writeUrl;
+	private byte[] timestampSuffix;
 
 	public static Builder forRegistry(Metric2Registry registry, CorePlugin corePlugin) {
 		return new Builder(registry, corePlugin);
@@ -39,166 +85,281 @@ public class InfluxDbReporter extends ScheduledMetrics2Reporter {
 		this.globalTags = getInfluxDbTags(builder.getGlobalTags());
 		this.httpClient = builder.getHttpClient();
 		this.corePlugin = builder.getCorePlugin();
+		this.mergeableHistograms = builder.isMergeableHistograms();
+		for (int i = 0; i < MAX_CONCURRENT_REQUESTS + 1; i++) {
+			freeBatches.add(new Batch());
+		}
+		this.sender = new ThreadPoolExecutor(MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ExecutorUtils.NamedThreadFactory("stagemonitor-influxdb-sender"));
+		this.sender.allowCoreThreadTimeOut(true);
 	}
 
 	@Override
-	public void reportMetrics(Map<MetricName, Gauge> gauges,
-							  Map<MetricName, Counter> counters,
-							  Map<MetricName, Histogram> histograms,
-							  Map<MetricName, Meter> meters,
-							  Map<MetricName, Timer> timers) {
+	public synchronized void reportMetrics(Map<MetricName, Gauge> gauges,
+										   Map<MetricName, Counter> counters,
+										   Map<MetricName, Histogram> histograms,
+										   Map<MetricName, Meter> meters,
+										   Map<MetricName, Timer> timers) {
 
 		final Timer.Context time = registry.timer(reportingTimeMetricName).time();
-		long timestamp = clock.getTime();
-		reportGauges(gauges, timestamp);
-		reportCounter(counters, timestamp);
-		reportHistograms(histograms, timestamp);
-		reportMeters(meters, timestamp);
-		reportTimers(timers, timestamp);
-		flush();
-		time.stop();
+		writeUrl = corePlugin.getInfluxDbUrl() + "/write?precision=ms&db=" + corePlugin.getInfluxDbDb();
+		timestampSuffix = (" " + clock.getTime() + "\n").getBytes(UTF_8);
+		try {
+			batch = takeFreeBatch();
+			reportGauges(gauges);
+			reportCounter(counters);
+			reportHistograms(histograms);
+			reportMeters(meters);
+			reportTimers(timers);
+			send();
+			awaitSentBatches();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (TimeoutException e) {
+			logger.warn(e.getMessage());
+		} finally {
+			if (batch != null) {
+				// the report has been aborted
+				release(batch);
+				batch = null;
+			}
+			if (prefixes.size() > 2 * registry.getMetrics().size()) {
+				// forgets the prefixes of removed metrics
+				prefixes.clear();
+			}
+			time.stop();
+		}
 	}
 
-	private void reportGauges(Map<MetricName, Gauge> gauges, long timestamp) {
+	private void reportGauges(Map<MetricName, Gauge> gauges) throws InterruptedException, TimeoutException {
 		for (Map.Entry<MetricName, Gauge> entry : gauges.entrySet()) {
-			final String value = getGaugeValueForInfluxDb(entry.getValue().getValue());
-			if (value != null) {
-				reportLine(getInfluxDbLineProtocolString(entry.getKey()), value, timestamp);
+			final Object value = entry.getValue().getValue();
+			if (value == null) {
+				continue;
 			}
+			startLine(entry.getKey());
+			if (value instanceof Number) {
+				writeNumberField("value", (Number) value);
+			} else if (value instanceof Boolean) {
+				startField("value_boolean").writeAscii(value.toString());
+			} else {
+				startField("value_string").writeQuoted(String.valueOf(value));
+			}
+			endLine();
 		}
 	}
 
-	private void reportCounter(Map<MetricName, Counter> counters, long timestamp) {
+	private void reportCounter(Map<MetricName, Counter> counters) throws InterruptedException, TimeoutException {
 		for (Map.Entry<MetricName, Counter> entry : counters.entrySet()) {
-			final Counter counter = entry.getValue();
-			reportLine(getInfluxDbLineProtocolString(entry.getKey()),
-					"count=" + getIntegerValue(counter.getCount()), timestamp);
+			startLine(entry.getKey());
+			writeIntegerField("count", entry.getValue().getCount());
+			endLine();
 		}
 	}
 
-	private void reportHistograms(Map<MetricName, Histogram> histograms, long timestamp) {
+	private void reportHistograms(Map<MetricName, Histogram> histograms) throws InterruptedException, TimeoutException {
 		for (Map.Entry<MetricName, Histogram> entry : histograms.entrySet()) {
 			final Histogram hist = entry.getValue();
 			final Snapshot snapshot = hist.getSnapshot();
-			reportLine(getInfluxDbLineProtocolString(entry.getKey()),
-					"count=" + getIntegerValue(hist.getCount()) + ","
-							+ reportHistogramSnapshot(snapshot), timestamp);
+			startLine(entry.getKey());
+			writeIntegerField("count", hist.getCount());
+			reportHistogramSnapshot(snapshot);
+			reportEncodedHistogram(snapshot);
+			endLine();
 		}
 	}
 
-	private void reportMeters(Map<MetricName, Meter> meters, long timestamp) {
+	private void reportMeters(Map<MetricName, Meter> meters) throws InterruptedException, TimeoutException {
 		for (Map.Entry<MetricName, Meter> entry : meters.entrySet()) {
-			final Meter meter = entry.getValue();
-			reportLine(getInfluxDbLineProtocolString(entry.getKey()), reportMetered(meter), timestamp);
+			startLine(entry.getKey());
+			reportMetered(entry.getValue());
+			endLine();
 		}
 	}
 
-	private void reportTimers(Map<MetricName, Timer> timers, long timestamp) {
+	private void reportTimers(Map<MetricName, Timer> timers) throws InterruptedException, TimeoutException {
 		for (Map.Entry<MetricName, Timer> entry : timers.entrySet()) {
 			final Timer timer = entry.getValue();
 			final Snapshot snapshot = timer.getSnapshot();
-			reportLine(getInfluxDbLineProtocolString(entry.getKey()),
-					reportMetered(timer) + ","
-							+ reportTimerSnapshot(snapshot), timestamp);
+			startLine(entry.getKey());
+			reportMetered(timer);
+			reportTimerSnapshot(snapshot);
+			reportEncodedHistogram(snapshot);
+			endLine();
 		}
 	}
 
-	private String reportTimerSnapshot(Snapshot snapshot) {
-		return "min=" + getDuration(snapshot.getMin()) + ","
-				+ "max=" + getDuration(snapshot.getMax()) + ","
-				+ "mean=" + getDuration(snapshot.getMean()) + ","
-				+ "p50=" + getDuration(snapshot.getMedian()) + ","
-				+ "std=" + getDuration(snapshot.getStdDev()) + ","
-				+ "p25=" + getDuration(snapshot.getValue(0.25)) + ","
-				+ "p75=" + getDuration(snapshot.get75thPercentile()) + ","
-				+ "p95=" + getDuration(snapshot.get95thPercentile()) + ","
-				+ "p98=" + getDuration(snapshot.get98thPercentile()) + ","
-				+ "p99=" + getDuration(snapshot.get99thPercentile()) + ","
-				+ "p999=" + getDuration(snapshot.get999thPercentile());
+	private void reportEncodedHistogram(Snapshot snapshot) {
+		if (mergeableHistograms && snapshot instanceof HdrHistogramReservoir.HdrSnapshot) {
+			startField("hdr").writeQuoted(((HdrHistogramReservoir.HdrSnapshot) snapshot).encodeCompressed());
+		}
 	}
-	
-	private String reportHistogramSnapshot(Snapshot snapshot) {
-		return "min=" + snapshot.getMin() + ","
-				+ "max=" + snapshot.getMax() + ","
-				+ "mean=" + snapshot.getMean() + ","
-				+ "p50=" + snapshot.getMedian() + ","
-				+ "std=" + snapshot.getStdDev() + ","
-				+ "p25=" + snapshot.getValue(0.25) + ","
-				+ "p75=" + snapshot.get75thPercentile() + ","
-				+ "p95=" + snapshot.get95thPercentile() + ","
-				+ "p98=" + snapshot.get98thPercentile() + ","
-				+ "p99=" + snapshot.get99thPercentile() + ","
-				+ "p999=" + snapshot.get999thPercentile();
+
+	private void reportTimerSnapshot(Snapshot snapshot) {
+		writeFloatField("min", convertDuration(snapshot.getMin()));
+		writeFloatField("max", convertDuration(snapshot.getMax()));
+		writeFloatField("mean", convertDuration(snapshot.getMean()));
+		writeFloatField("p50", convertDuration(snapshot.getMedian()));
+		writeFloatField("std", convertDuration(snapshot.getStdDev()));
+		writeFloatField("p25", convertDuration(snapshot.getValue(0.25)));
+		writeFloatField("p75", convertDuration(snapshot.get75thPercentile()));
+		writeFloatField("p95", convertDuration(snapshot.get95thPercentile()));
+		writeFloatField("p98", convertDuration(snapshot.get98thPercentile()));
+		writeFloatField("p99", convertDuration(snapshot.get99thPercentile()));
+		writeFloatField("p999", convertDuration(snapshot.get999thPercentile()));
+	}
+
+	private void reportHistogramSnapshot(Snapshot snapshot) {
+		startField("min").writeLong(snapshot.getMin());
+		startField("max").writeLong(snapshot.getMax());
+		writeFloatField("mean", snapshot.getMean());
+		writeFloatField("p50", snapshot.getMedian());
+		writeFloatField("std", snapshot.getStdDev());
+		writeFloatField("p25", snapshot.getValue(0.25));
+		writeFloatField("p75", snapshot.get75thPercentile());
+		writeFloatField("p95", snapshot.get95thPercentile());
+		writeFloatField("p98", snapshot.get98thPercentile());
+		writeFloatField("p99", snapshot.get99thPercentile());
+		writeFloatField("p999", snapshot.get999thPercentile());
 	}
 
-	private String reportMetered(Metered metered) {
-		return "count=" + getIntegerValue(metered.getCount()) + ","
-				+ "m1_rate=" + getRate(metered.getOneMinuteRate()) + ","
-				+ "m5_rate=" + getRate(metered.getFiveMinuteRate()) + ","
-				+ "m15_rate=" + getRate(metered.getFifteenMinuteRate()) + ","
-				+ "mean_rate=" + getRate(metered.getMeanRate());
+	private void reportMetered(Metered metered) {
+		writeIntegerField("count", metered.getCount());
+		writeFloatField("m1_rate", convertRate(metered.getOneMinuteRate()));
+		writeFloatField("m5_rate", convertRate(metered.getFiveMinuteRate()));
+		writeFloatField("m15_rate", convertRate(metered.getFifteenMinuteRate()));
+		writeFloatField("mean_rate", convertRate(metered.getMeanRate()));
 	}
 
-	private void reportLine(String nameAndTags, String fields, long timestamp) {
-		if (batchLines.size() >= MAX_BATCH_SIZE) {
-			flush();
+	private void startLine(MetricName metricName) throws InterruptedException, TimeoutException {
+		if (batch.lines >= MAX_BATCH_SIZE || batch.size >= MAX_BATCH_BYTES) {
+			send();
+			batch = takeFreeBatch();
 		}
-		batchLines.add(nameAndTags + globalTags + ' ' + fields + ' ' + timestamp);
+		byte[] prefix = prefixes.get(metricName);
+		if (prefix == null) {
+			prefix = (getInfluxDbLineProtocolString(metricName) + globalTags + ' ').getBytes(UTF_8);
+			prefixes.put(metricName, prefix);
+		}
+		batch.startLine(prefix);
 	}
 
-	private void flush() {
-		httpClient.send("POST", corePlugin.getInfluxDbUrl() + "/write?precision=ms&db=" + corePlugin.getInfluxDbDb(), batchLines);
-		batchLines = new ArrayList<String>(MAX_BATCH_SIZE);
+	private void endLine() {
+		batch.endLine(timestampSuffix);
 	}
 
-	private String getGaugeValueForInfluxDb(Object value) {
-		if (value == null) {
-			return null;
+	private Batch startField(String key) {
+		if (batch.fieldsInLine++ > 0) {
+			batch.write((byte) ',');
 		}
-		if (value instanceof Number) {
-			final String floatValue = getFloatValue(value);
-			if (floatValue == null) {
-				return null;
-			}
-			return "value=" + floatValue;
-		} else if (value instanceof Boolean) {
-			return "value_boolean=" + value.toString();
+		return batch.writeAscii(key).write((byte) '=');
+	}
+
+	private void writeIntegerField(String key, long value) {
+		startField(key).writeLong(value).write((byte) 'i');
+	}
+
+	/**
+	 * InfluxDB does not support NaN and infinity, so the field is omitted in that case
+	 */
+	private void writeFloatField(String key, double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return;
+		}
+		if (!startField(key).tryWriteDecimal(value)) {
+			numberBuffer.setLength(0);
+			writeFloat(numberBuffer.append(value));
+		}
+	}
+
+	private void writeNumberField(String key, Number value) {
+		if (value instanceof Double) {
+			writeFloatField(key, value.doubleValue());
+		} else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			startField(key).writeLong(value.longValue());
 		} else {
-			return "value_string=" + getStringValue(String.valueOf(value));
+			final String number = value.toString();
+			if (!number.equals("NaN") && !number.contains("Infinity")) {
+				startField(key);
+				writeFloat(number);
+			}
 		}
 	}
 
-	private String getIntegerValue(Object integer) {
-		return integer.toString() + "i";
+	private void writeFloat(CharSequence number) {
+		for (int i = 0; i < number.length(); i++) {
+			final char c = number.charAt(i);
+			// InfluxDB wants the exponent to be in lower case
+			batch.write((byte) (c == 'E' ? 'e' : c));
+		}
 	}
 
-	private String getDuration(double duration) {
-		return getFloatValue(convertDuration(duration));
+	/**
+	 * Hands the current batch over to the sender threads
+	 */
+	private void send() {
+		final Batch batchToSend = batch;
+		batch = null;
+		if (batchToSend.lines == 0) {
+			release(batchToSend);
+			return;
+		}
+		final String url = writeUrl;
+		try {
+			sender.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						httpClient.send(HttpRequestBuilder.<Integer>forUrl(url)
+								.method("POST")
+								.outputStreamHandler(batchToSend)
+								.bulkUpload()
+								.build());
+					} catch (RuntimeException e) {
+						logger.warn(e.getMessage(), e);
+					} finally {
+						release(batchToSend);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.warn("Not sending metrics to InfluxDB as the reporter has been stopped");
+			release(batchToSend);
+		}
 	}
 
-	private String getRate(double rate) {
-		return getFloatValue(convertRate(rate));
+	private void release(Batch batch) {
+		batch.reset();
+		freeBatches.add(batch);
 	}
 
-	private String getFloatValue(Object number) {
-		String result = number.toString();
-		if (result.equals("NaN") || result.contains("Infinity")) {
-			return null;
-		} else {
-			// InfluxDB wants the exponent to be in lower case
-			return result.replace('E', 'e');
+	private Batch takeFreeBatch() throws InterruptedException, TimeoutException {
+		final Batch freeBatch = freeBatches.poll(SEND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		if (freeBatch == null) {
+			throw new TimeoutException("Aborting the report to InfluxDB as sending the metrics takes more than " +
+					SEND_TIMEOUT_SECONDS + " seconds");
 		}
+		return freeBatch;
 	}
 
-	private String getStringValue(String value) {
-		final String s = value;
-		if (s.indexOf('"') == -1) {
-			return new StringBuilder(s.length() + 2).append('"').append(s).append('"').toString();
-		} else {
-			return new StringBuilder(s.length() + 6).append('"').append(s.replace("\"", "\\\"")).append('"').toString();
+	private void awaitSentBatches() throws InterruptedException, TimeoutException {
+		final List<Batch> batches = new ArrayList<Batch>(MAX_CONCURRENT_REQUESTS + 1);
+		try {
+			for (int i = 0; i < MAX_CONCURRENT_REQUESTS + 1; i++) {
+				batches.add(takeFreeBatch());
+			}
+		} finally {
+			// also when interrupted, as the following reports would wait forever for the batches otherwise
+			freeBatches.addAll(batches);
 		}
 	}
 
+	@Override
+	public void stop() {
+		super.stop();
+		sender.shutdown();
+	}
+
 	public static class Builder extends ScheduledMetrics2Reporter.Builder<InfluxDbReporter, Builder> {
 		private HttpClient httpClient = new HttpClient();
 		private final CorePlugin corePlugin;
@@ -228,15 +389,150 @@ public class InfluxDbReporter extends ScheduledMetrics2Reporter {
 	}
 
 	public static String getInfluxDbLineProtocolString(MetricName metricName) {
-		String influxDbString = metricNameToInfluxDBFormatCache.get(metricName);
-		if (influxDbString == null) {
-			final StringBuilder sb = new StringBuilder(metricName.getName().length() + metricName.getTagKeys().size() * 16 + metricName.getTagKeys().size());
-			sb.append(escapeForInfluxDB(metricName.getName()));
-			appendTags(sb, metricName.getTags());
-			influxDbString = sb.toString();
-			metricNameToInfluxDBFormatCache.put(metricName, influxDbString);
-		}
-		return influxDbString;
+		return metricName.toInfluxDbLineProtocolString();
+	}
+
+	/**
+	 * A reusable buffer for the encoded lines of a batch
+	 */
+	private static class Batch implements HttpClient.OutputStreamHandler {
+		private static final int MAX_FRACTION_DIGITS = 6;
+		private static final double[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000};
+
+		private byte[] bytes = new byte[64 * 1024];
+		private int size;
+		private int lines;
+		private int lineStart;
+		private int fieldsInLine;
+
+		private void startLine(byte[] prefix) {
+			lineStart = size;
+			fieldsInLine = 0;
+			write(prefix);
+		}
+
+		private void endLine(byte[] timestampSuffix) {
+			if (fieldsInLine == 0) {
+				// a line without fields is invalid
+				size = lineStart;
+			} else {
+				write(timestampSuffix);
+				lines++;
+			}
+		}
+
+		private Batch write(byte b) {
+			ensureCapacity(1);
+			bytes[size++] = b;
+			return this;
+		}
+
+		private Batch write(byte[] b) {
+			ensureCapacity(b.length);
+			System.arraycopy(b, 0, bytes, size, b.length);
+			size += b.length;
+			return this;
+		}
+
+		private Batch writeAscii(String s) {
+			ensureCapacity(s.length());
+			for (int i = 0; i < s.length(); i++) {
+				bytes[size++] = (byte) s.charAt(i);
+			}
+			return this;
+		}
+
+		private Batch writeQuoted(String s) {
+			write((byte) '"');
+			write((s.indexOf('"') == -1 ? s : s.replace("\"", "\\\"")).getBytes(UTF_8));
+			return write((byte) '"');
+		}
+
+		private Batch writeLong(long value) {
+			if (value == Long.MIN_VALUE) {
+				return writeAscii(Long.toString(value));
+			}
+			if (value < 0) {
+				write((byte) '-');
+				value = -value;
+			}
+			ensureCapacity(19);
+			final int start = size;
+			do {
+				bytes[size++] = (byte) ('0' + value % 10);
+				value /= 10;
+			} while (value != 0);
+			// the digits have been written in reverse order
+			for (int i = start, j = size - 1; i < j; i++, j--) {
+				final byte tmp = bytes[i];
+				bytes[i] = bytes[j];
+				bytes[j] = tmp;
+			}
+			return this;
+		}
+
+		/**
+		 * Writes values which have at most {@value #MAX_FRACTION_DIGITS} fraction digits, like durations which have
+		 * been converted from nanoseconds, without the costly {@link Double#toString(double)}.
+		 * The output is the same as the one of {@link Double#toString(double)}.
+		 *
+		 * @return <code>false</code>, if the value could not be written
+		 */
+		private boolean tryWriteDecimal(double value) {
+			final double abs = Math.abs(value);
+			if (abs < 1e-3 || abs >= 1e7) {
+				// Double.toString uses the scientific notation
+				return abs == 0 && writeLongAsDecimal(0, 0);
+			}
+			for (int fractionDigits = 0; fractionDigits <= MAX_FRACTION_DIGITS; fractionDigits++) {
+				final double scaled = Math.rint(value * POWERS_OF_TEN[fractionDigits]);
+				if (scaled / POWERS_OF_TEN[fractionDigits] == value) {
+					return writeLongAsDecimal((long) scaled, fractionDigits);
+				}
+			}
+			return false;
+		}
+
+		private boolean writeLongAsDecimal(long unscaled, int fractionDigits) {
+			if (fractionDigits == 0) {
+				writeLong(unscaled).write((byte) '.').write((byte) '0');
+				return true;
+			}
+			if (unscaled < 0) {
+				write((byte) '-');
+				unscaled = -unscaled;
+			}
+			final long integerPart = unscaled / (long) POWERS_OF_TEN[fractionDigits];
+			long fraction = unscaled % (long) POWERS_OF_TEN[fractionDigits];
+			writeLong(integerPart).write((byte) '.');
+			for (int i = fractionDigits - 1; i >= 0; i--) {
+				final long power = (long) POWERS_OF_TEN[i];
+				write((byte) ('0' + fraction / power));
+				fraction %= power;
+			}
+			return true;
+		}
+
+		private void ensureCapacity(int additionalBytes) {
+			if (size + additionalBytes > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + additionalBytes));
+			}
+		}
+
+		private void reset() {
+			size = 0;
+			lines = 0;
+			if (bytes.length > MAX_BATCH_BYTES * 2) {
+				// don't keep a buffer which has been inflated by huge lines
+				bytes = new byte[MAX_BATCH_BYTES];
+			}
+		}
+
+		@Override
+		public void withHttpURLConnection(OutputStream os) throws IOException {
+			os.write(bytes, 0, size);
+			os.flush();
+		}
 	}
 
 	private static String getInfluxDbTags(Map<String, String> tags) {
@@ -251,7 +547,7 @@ public class InfluxDbReporter extends ScheduledMetrics2Reporter {
 		}
 	}
 
-	private static String escapeForInfluxDB(String s) {
+	static String escapeForInfluxDB(String s) {
 		if (s.indexOf(',') != -1 || s.indexOf(' ') != -1) {
 			return s.replace(" ", "\\ ").replace(",", "\\,");
 		}
@@ -9,7 +9,7 @@ public interface Metric2Filter {
 	/**
 	 * Matches all metrics, regardless of type or name.
 	 */
-	Metric2Filter ALL = new Metric2Filter() {
+	Metric2Filter ALL = new CacheableMetric2Filter() {
 		@Override
 		public boolean matches(MetricName name, Metric metric) {
 			return true;
@@ -7,9 +7,10 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.codahale.metrics.Counter;
-import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Counting;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
@@ -24,7 +25,24 @@ import com.codahale.metrics.Timer;
  */
 public class Metric2Registry implements Metric2Set {
 
+	private static final int MAX_CACHED_VIEWS = 64;
+	private static final Class<?>[] METRIC_TYPES = {Gauge.class, Counter.class, Histogram.class, Meter.class, Timer.class};
+
 	private final ConcurrentMap<MetricName, Metric> metrics = new ConcurrentHashMap<MetricName, Metric>();
+	/**
+	 * Secondary indexes of the {@link #metrics} by {@link #METRIC_TYPES}
+	 */
+	private final Map<Class<?>, ConcurrentMap<MetricName, Metric>> metricsByType = new HashMap<Class<?>, ConcurrentMap<MetricName, Metric>>();
+	/**
+	 * Incremented whenever a metric is registered or removed. Used to invalidate the {@link #cachedViews}.
+	 */
+	private final AtomicLong modificationCount = new AtomicLong();
+	private final ConcurrentMap<ViewKey, CachedView> cachedViews = new ConcurrentHashMap<ViewKey, CachedView>();
+	/**
+	 * The names of the metrics which have not been registered explicitly but have been created on demand via
+	 * {@link #getOrAdd}. Only these metrics may be removed by the {@link IdleMetricsRemover}.
+	 */
+	private final Set<MetricName> createdOnDemand = Collections.newSetFromMap(new ConcurrentHashMap<MetricName, Boolean>());
 	
 	// An internal reference to a legacy Dropwizard Metric Registry
 	// that we echo registration/removal of Metrics to so that it
@@ -32,12 +50,23 @@ public class Metric2Registry implements Metric2Set {
 	// Metrics listener and reporting patterns.
 	private final MetricRegistry metricRegistry;
 
+	private volatile ReservoirFactory reservoirFactory = ReservoirFactory.EXPONENTIALLY_DECAYING;
+	private volatile CardinalityLimiter cardinalityLimiter;
+	/**
+	 * Metrics which are not registered and are returned if a series is rejected by the {@link #cardinalityLimiter}
+	 * and there is no overflow bucket for it
+	 */
+	private final ConcurrentMap<MetricBuilder<?>, Metric> detachedMetrics = new ConcurrentHashMap<MetricBuilder<?>, Metric>();
+
 	public Metric2Registry() {
 		this(new MetricRegistry());
 	}
 
 	public Metric2Registry(MetricRegistry metricRegistry) {
 		this.metricRegistry = metricRegistry;
+		for (Class<?> metricType : METRIC_TYPES) {
+			metricsByType.put(metricType, new ConcurrentHashMap<MetricName, Metric>());
+		}
 	}
 
 	/**
@@ -59,6 +88,11 @@ public class Metric2Registry implements Metric2Set {
 				throw new IllegalArgumentException("A metric named " + name + " already exists");
 			}
 			else {
+				addToTypeIndexes(name, metric);
+				final CardinalityLimiter cardinalityLimiter = this.cardinalityLimiter;
+				if (cardinalityLimiter != null) {
+					cardinalityLimiter.onRegister(name);
+				}
 				// This is a new metric - we have to register the Metric with
 				// the legacy Dropwizard Metric registry as
 				// well to support existing reports and listeners
@@ -97,8 +131,7 @@ public class Metric2Registry implements Metric2Set {
 	 * @param metric the metric
 	 */
 	public void registerNewMetrics(MetricName name, Metric metric) {
-		final Set<MetricName> registeredNames = getNames();
-		if (!registeredNames.contains(name)) {
+		if (!metrics.containsKey(name)) {
 			try {
 				register(name, metric);
 			} catch (IllegalArgumentException e){/* exception due to race condition*/}
@@ -158,14 +191,59 @@ public class Metric2Registry implements Metric2Set {
 	public boolean remove(MetricName name) {
 		final Metric metric = metrics.remove(name);
 		if (metric != null) {
-			// We have to unregister the Metric with the legacy Dropwizard Metric registry as
-			// well to support existing reports and listeners
-			metricRegistry.remove(name.toGraphiteName());
+			onRemoved(name, metric);
 			return true;
 		}
 		return false;
 	}
 
+	/**
+	 * Removes a metric which has been created on demand, if it has not been updated since its count has been
+	 * determined.
+	 *
+	 * @param name   the name of the metric
+	 * @param metric the metric
+	 * @param count  the count of the metric when it has been considered idle
+	 * @return whether or not the metric was removed
+	 */
+	boolean removeIdleMetric(MetricName name, Counting metric, long count) {
+		if (!metrics.remove(name, metric)) {
+			return false;
+		}
+		onRemoved(name, (Metric) metric);
+		if (metric.getCount() != count) {
+			// the metric has been updated concurrently, maybe by a thread which has obtained it before it was removed
+			try {
+				register(name, (Metric) metric);
+				createdOnDemand.add(name);
+			} catch (IllegalArgumentException e) {
+				// the metric has already been re-created
+			}
+			return false;
+		}
+		return true;
+	}
+
+	private void onRemoved(MetricName name, Metric metric) {
+		removeFromTypeIndexes(name, metric);
+		createdOnDemand.remove(name);
+		final CardinalityLimiter cardinalityLimiter = this.cardinalityLimiter;
+		if (cardinalityLimiter != null) {
+			cardinalityLimiter.onRemove(name);
+		}
+		// We have to unregister the Metric with the legacy Dropwizard Metric registry as
+		// well to support existing reports and listeners
+		metricRegistry.remove(name.toGraphiteName());
+	}
+
+	/**
+	 * Returns the names of the metrics which have been created via {@link #counter(MetricName)},
+	 * {@link #histogram(MetricName)}, {@link #meter(MetricName)} or {@link #timer(MetricName)}
+	 */
+	Set<MetricName> getNamesOfMetricsCreatedOnDemand() {
+		return Collections.unmodifiableSet(createdOnDemand);
+	}
+
 	/**
 	 * Returns a set of the names of all the metrics in the registry.
 	 *
@@ -278,8 +356,13 @@ public class Metric2Registry implements Metric2Set {
 		if (builder.isInstance(metric)) {
 			return (T) metric;
 		} else if (metric == null) {
+			final CardinalityLimiter cardinalityLimiter = this.cardinalityLimiter;
+			final MetricName overflowName = cardinalityLimiter != null ? cardinalityLimiter.getOverflowName(name) : null;
+			if (overflowName != null) {
+				return getOrAddOverflowMetric(name, overflowName, builder);
+			}
 			try {
-				return register(name, builder.newMetric());
+				return registerOnDemand(name, builder);
 			} catch (IllegalArgumentException e) {
 				final Metric added = metrics.get(name);
 				if (builder.isInstance(added)) {
@@ -290,11 +373,67 @@ public class Metric2Registry implements Metric2Set {
 		throw new IllegalArgumentException(name + " is already used for a different type of metric");
 	}
 
+	private <T extends Metric> T registerOnDemand(MetricName name, MetricBuilder<T> builder) {
+		final T metric = register(name, builder.newMetric(reservoirFactory));
+		createdOnDemand.add(name);
+		if (metrics.get(name) != metric) {
+			// the metric has been removed concurrently
+			createdOnDemand.remove(name);
+		}
+		return metric;
+	}
+
 	@SuppressWarnings("unchecked")
+	private <T extends Metric> T getOrAddOverflowMetric(MetricName name, MetricName overflowName, MetricBuilder<T> builder) {
+		if (overflowName != name) {
+			final Metric overflowMetric = metrics.get(overflowName);
+			if (builder.isInstance(overflowMetric)) {
+				return (T) overflowMetric;
+			} else if (overflowMetric == null) {
+				try {
+					return registerOnDemand(overflowName, builder);
+				} catch (IllegalArgumentException e) {
+					final Metric added = metrics.get(overflowName);
+					if (builder.isInstance(added)) {
+						return (T) added;
+					}
+				}
+			}
+		}
+		// there is no overflow bucket for the metric so it is not reported at all
+		Metric detachedMetric = detachedMetrics.get(builder);
+		if (detachedMetric == null) {
+			detachedMetrics.putIfAbsent(builder, builder.newMetric(reservoirFactory));
+			detachedMetric = detachedMetrics.get(builder);
+		}
+		return (T) detachedMetric;
+	}
+
 	private <T extends Metric> Map<MetricName, T> getMetrics(Class<T> klass, Metric2Filter filter) {
+		if (!(filter instanceof CacheableMetric2Filter)) {
+			return filterMetrics(klass, filter);
+		}
+		final ViewKey viewKey = new ViewKey(klass, filter);
+		final long currentModificationCount = modificationCount.get();
+		final CachedView cachedView = cachedViews.get(viewKey);
+		if (cachedView != null && cachedView.modificationCount == currentModificationCount) {
+			return cachedView.getMetrics();
+		}
+		final Map<MetricName, T> metrics = filterMetrics(klass, filter);
+		if (cachedViews.size() >= MAX_CACHED_VIEWS) {
+			// prevents a memory leak if filters are created on the fly
+			cachedViews.clear();
+		}
+		// if the registry has been modified concurrently, the view will be re-computed next time
+		cachedViews.put(viewKey, new CachedView(currentModificationCount, metrics));
+		return metrics;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Metric> Map<MetricName, T> filterMetrics(Class<T> klass, Metric2Filter filter) {
 		final Map<MetricName, T> metrics = new HashMap<MetricName, T>();
-		for (Map.Entry<MetricName, Metric> entry : this.metrics.entrySet()) {
-			if (klass.isInstance(entry.getValue()) && filter.matches(entry.getKey(), entry.getValue())) {
+		for (Map.Entry<MetricName, Metric> entry : getMetricsOfType(klass).entrySet()) {
+			if (filter.matches(entry.getKey(), entry.getValue())) {
 				metrics.put(entry.getKey(), (T) entry.getValue());
 			}
 		}
@@ -304,7 +443,7 @@ public class Metric2Registry implements Metric2Set {
 	@SuppressWarnings("unchecked")
 	protected <T extends Metric> Map<MetricName, T> getMetrics(Class<T> klass, MetricFilter filter) {
 		final Map<MetricName, T> metrics = new HashMap<MetricName, T>();
-		for (Map.Entry<MetricName, Metric> entry : this.metrics.entrySet()) {
+		for (Map.Entry<MetricName, Metric> entry : getMetricsOfType(klass).entrySet()) {
 			if (klass.isInstance(entry.getValue()) && filter.matches(entry.getKey().toGraphiteName(), entry.getValue())) {
 				metrics.put(entry.getKey(), (T) entry.getValue());
 			}
@@ -312,6 +451,34 @@ public class Metric2Registry implements Metric2Set {
 		return Collections.unmodifiableMap(metrics);
 	}
 
+	/**
+	 * Returns the type index of the metric type or all metrics, if there is no index for the type
+	 */
+	private Map<MetricName, Metric> getMetricsOfType(Class<?> klass) {
+		final ConcurrentMap<MetricName, Metric> metricsOfType = metricsByType.get(klass);
+		return metricsOfType != null ? metricsOfType : metrics;
+	}
+
+	private void addToTypeIndexes(MetricName name, Metric metric) {
+		for (Map.Entry<Class<?>, ConcurrentMap<MetricName, Metric>> entry : metricsByType.entrySet()) {
+			if (entry.getKey().isInstance(metric)) {
+				entry.getValue().put(name, metric);
+				if (metrics.get(name) != metric) {
+					// the metric has been removed concurrently
+					entry.getValue().remove(name, metric);
+				}
+			}
+		}
+		modificationCount.incrementAndGet();
+	}
+
+	private void removeFromTypeIndexes(MetricName name, Metric metric) {
+		for (ConcurrentMap<MetricName, Metric> metricsOfType : metricsByType.values()) {
+			metricsOfType.remove(name, metric);
+		}
+		modificationCount.incrementAndGet();
+	}
+
 	@Override
 	public Map<MetricName, Metric> getMetrics() {
 		return Collections.unmodifiableMap(metrics);
@@ -343,13 +510,52 @@ public class Metric2Registry implements Metric2Set {
 		}
 	}
 
+	private static class ViewKey {
+		private final Class<?> metricType;
+		private final Metric2Filter filter;
+
+		private ViewKey(Class<?> metricType, Metric2Filter filter) {
+			this.metricType = metricType;
+			this.filter = filter;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			final ViewKey viewKey = (ViewKey) o;
+			// filters are compared by identity as they usually don't implement equals
+			return metricType == viewKey.metricType && filter == viewKey.filter;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * metricType.hashCode() + System.identityHashCode(filter);
+		}
+	}
+
+	private static class CachedView {
+		private final long modificationCount;
+		private final Map<MetricName, ? extends Metric> metrics;
+
+		private CachedView(long modificationCount, Map<MetricName, ? extends Metric> metrics) {
+			this.modificationCount = modificationCount;
+			this.metrics = metrics;
+		}
+
+		@SuppressWarnings("unchecked")
+		<T extends Metric> Map<MetricName, T> getMetrics() {
+			return (Map<MetricName, T>) metrics;
+		}
+	}
+
 	/**
 	 * A quick and easy way of capturing the notion of default metrics.
 	 */
 	private interface MetricBuilder<T extends Metric> {
 		MetricBuilder<Counter> COUNTERS = new MetricBuilder<Counter>() {
 			@Override
-			public Counter newMetric() {
+			public Counter newMetric(ReservoirFactory reservoirFactory) {
 				return new Counter();
 			}
 
@@ -361,8 +567,8 @@ public class Metric2Registry implements Metric2Set {
 
 		MetricBuilder<Histogram> HISTOGRAMS = new MetricBuilder<Histogram>() {
 			@Override
-			public Histogram newMetric() {
-				return new Histogram(new ExponentiallyDecayingReservoir());
+			public Histogram newMetric(ReservoirFactory reservoirFactory) {
+				return new Histogram(reservoirFactory.newReservoir());
 			}
 
 			@Override
@@ -373,7 +579,7 @@ public class Metric2Registry implements Metric2Set {
 
 		MetricBuilder<Meter> METERS = new MetricBuilder<Meter>() {
 			@Override
-			public Meter newMetric() {
+			public Meter newMetric(ReservoirFactory reservoirFactory) {
 				return new Meter();
 			}
 
@@ -385,8 +591,8 @@ public class Metric2Registry implements Metric2Set {
 
 		MetricBuilder<Timer> TIMERS = new MetricBuilder<Timer>() {
 			@Override
-			public Timer newMetric() {
-				return new Timer();
+			public Timer newMetric(ReservoirFactory reservoirFactory) {
+				return new Timer(reservoirFactory.newReservoir());
 			}
 
 			@Override
@@ -395,11 +601,46 @@ public class Metric2Registry implements Metric2Set {
 			}
 		};
 
-		T newMetric();
+		T newMetric(ReservoirFactory reservoirFactory);
 
 		boolean isInstance(Metric metric);
 	}
 
+	/**
+	 * Sets the {@link ReservoirFactory} for histograms and timers which are created via {@link #histogram(MetricName)}
+	 * and {@link #timer(MetricName)}. Existing histograms and timers are not affected.
+	 *
+	 * @param reservoirFactory the {@link ReservoirFactory}
+	 */
+	public void setReservoirFactory(ReservoirFactory reservoirFactory) {
+		this.reservoirFactory = reservoirFactory;
+	}
+
+	/**
+	 * Limits the number of series which are created via {@link #counter(MetricName)}, {@link #histogram(MetricName)},
+	 * {@link #meter(MetricName)} and {@link #timer(MetricName)}. See {@link CardinalityLimiter} for details.
+	 * <p>
+	 * This method should be called before metrics are added concurrently.
+	 *
+	 * @param maxSeries        the maximum number of metrics in this registry or a value <= 0 for no limit
+	 * @param maxSeriesPerName the maximum number of series per metric name or a value <= 0 for no limit
+	 */
+	public void setCardinalityLimit(int maxSeries, int maxSeriesPerName) {
+		final CardinalityLimiter cardinalityLimiter = new CardinalityLimiter(this, maxSeries, maxSeriesPerName);
+		this.cardinalityLimiter = cardinalityLimiter;
+		cardinalityLimiter.registerMetrics();
+	}
+
+	/**
+	 * Returns the {@link CardinalityLimiter} or <code>null</code>, if {@link #setCardinalityLimit(int, int)} has not
+	 * been called
+	 *
+	 * @return the {@link CardinalityLimiter} or <code>null</code>
+	 */
+	public CardinalityLimiter getCardinalityLimiter() {
+		return cardinalityLimiter;
+	}
+
 	/**
 	 * Returns the wrapped legacy {@link MetricRegistry}
 	 *
@@ -6,12 +6,12 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 
 import org.stagemonitor.core.util.GraphiteSanitizer;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -28,40 +28,69 @@ import java.util.concurrent.ConcurrentMap;
  * The cool thing is that it is completely backwards compatible to graphite metric names and can also automatically
  * replace characters disallowed in graphite (see {@link #toGraphiteName()}).
  * <p>
+ * The tags are stored in two flat arrays and the hash code is computed when the name is created, as metric names are
+ * mostly used as keys of hash maps. The name and the tag keys are interned. The tag values are not interned, as they
+ * can have a high cardinality. The Graphite, InfluxDB and Prometheus representations are computed lazily and then
+ * cached.
+ * <p>
  * This class is immutable
  */
 public class MetricName {
 
+	private static final String[] EMPTY = new String[0];
+	private static final int MAX_INTERNED_STRINGS = 10000;
+	private static final ConcurrentMap<String, String> internedStrings = new ConcurrentHashMap<String, String>();
+
 	@JsonIgnore
-	private int hashCode;
+	private final int hashCode;
 
 	private final String name;
 
 	// The insertion order is important for the correctness of #toGraphiteName
-	private final LinkedHashMap<String, String> tags;
+	// The keys array may be shared among the names created by a MetricNameTemplate and must never be modified
+	private final String[] tagKeys;
+	private final String[] tagValues;
 
-	private MetricName(String name, LinkedHashMap<String, String> tags) {
+	private String graphiteName;
+	private String influxDbLineProtocolString;
+	private String prometheusLabels;
+
+	private MetricName(String name, String[] tagKeys, String[] tagValues) {
 		this.name = name;
-		this.tags = tags;
+		this.tagKeys = tagKeys;
+		this.tagValues = tagValues;
+		this.hashCode = computeHashCode();
 	}
 
 	@JsonCreator
 	private MetricName(@JsonProperty("name") String name, @JsonProperty("tags") Map<String, String> tags) {
-		this.name = name;
-		this.tags = new LinkedHashMap<String, String>(tags);
+		this(intern(name), internAll(tags.keySet().toArray(new String[tags.size()])), tags.values().toArray(new String[tags.size()]));
 	}
 
 	/**
 	 * Returns a copy of this name and appends a single tag
 	 * <p>
-	 * Note that this method does not override existing tags
+	 * If this name already contains a tag with the same key, the value of the tag is replaced
 	 *
 	 * @param key   the key of the tag
 	 * @param value the value of the tag
 	 * @return a copy of this name including the provided tag
 	 */
 	public MetricName withTag(String key, String value) {
-		return name(name).tags(tags).tag(key, value).build();
+		return name(name).tags(tagKeys, tagValues, tagKeys.length).tag(key, value).build();
+	}
+
+	/**
+	 * Returns a copy of this name where all tag values are replaced by the provided value
+	 */
+	MetricName withTagValues(String value) {
+		final String[] newTagValues = new String[tagValues.length];
+		Arrays.fill(newTagValues, value);
+		return new MetricName(name, tagKeys, newTagValues);
+	}
+
+	boolean hasSameTagKeys(MetricName other) {
+		return tagKeys == other.tagKeys || Arrays.equals(tagKeys, other.tagKeys);
 	}
 
 	/**
@@ -85,18 +114,29 @@ public class MetricName {
 		return name;
 	}
 
+	/**
+	 * Returns the tags in insertion order.
+	 * <p>
+	 * Note that a new map is created on each invocation.
+	 *
+	 * @return the tags
+	 */
 	public Map<String, String> getTags() {
+		final Map<String, String> tags = new LinkedHashMap<String, String>(tagKeys.length * 2);
+		for (int i = 0; i < tagKeys.length; i++) {
+			tags.put(tagKeys[i], tagValues[i]);
+		}
 		return Collections.unmodifiableMap(tags);
 	}
 
 	@JsonIgnore
 	public List<String> getTagKeys() {
-		return new ArrayList<String>(tags.keySet());
+		return Collections.unmodifiableList(Arrays.asList(tagKeys));
 	}
 
 	@JsonIgnore
 	public List<String> getTagValues() {
-		return new ArrayList<String>(tags.values());
+		return Collections.unmodifiableList(Arrays.asList(tagValues));
 	}
 
 	/**
@@ -105,15 +145,92 @@ public class MetricName {
 	 * @return A graphite compliant name
 	 */
 	public String toGraphiteName() {
-		StringBuilder sb = new StringBuilder(GraphiteSanitizer.sanitizeGraphiteMetricSegment(name));
-		for (String value : tags.values()) {
-			sb.append('.').append(GraphiteSanitizer.sanitizeGraphiteMetricSegment(value));
+		String graphiteName = this.graphiteName;
+		if (graphiteName == null) {
+			StringBuilder sb = new StringBuilder(GraphiteSanitizer.sanitizeGraphiteMetricSegment(name));
+			for (String value : tagValues) {
+				sb.append('.').append(GraphiteSanitizer.sanitizeGraphiteMetricSegment(value));
+			}
+			graphiteName = sb.toString();
+			this.graphiteName = graphiteName;
+		}
+		return graphiteName;
+	}
+
+	/**
+	 * Converts this name into the measurement and tag set of the InfluxDB line protocol. The tags are sorted by their
+	 * key, as recommended by InfluxDB.
+	 * <p>
+	 * Example: <code>response_time,layer=All,operation_name=Search\ Products</code>
+	 *
+	 * @return the measurement and the tags in the InfluxDB line protocol
+	 */
+	public String toInfluxDbLineProtocolString() {
+		String influxDbLineProtocolString = this.influxDbLineProtocolString;
+		if (influxDbLineProtocolString == null) {
+			final StringBuilder sb = new StringBuilder(name.length() + tagKeys.length * 16);
+			sb.append(InfluxDbReporter.escapeForInfluxDB(name));
+			for (Map.Entry<String, String> tag : new TreeMap<String, String>(getTags()).entrySet()) {
+				sb.append(',').append(InfluxDbReporter.escapeForInfluxDB(tag.getKey()))
+						.append('=').append(InfluxDbReporter.escapeForInfluxDB(tag.getValue()));
+			}
+			influxDbLineProtocolString = sb.toString();
+			this.influxDbLineProtocolString = influxDbLineProtocolString;
 		}
-		return sb.toString();
+		return influxDbLineProtocolString;
 	}
 
 	/**
-	 * A {@link MetricName} is only considered equal to another {@link MetricName} if the tags are in the same order.
+	 * Converts the tags into the labels of the Prometheus text exposition format, without the enclosing curly braces
+	 * so that further labels like <code>quantile</code> can be appended.
+	 * <p>
+	 * Example: <code>operation_name="Search Products",layer="All"</code>
+	 *
+	 * @return the labels or an empty string, if this name has no tags
+	 */
+	public String toPrometheusLabels() {
+		String prometheusLabels = this.prometheusLabels;
+		if (prometheusLabels == null) {
+			final StringBuilder sb = new StringBuilder(tagKeys.length * 24);
+			for (int i = 0; i < tagKeys.length; i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append(tagKeys[i]).append("=\"");
+				appendEscapedPrometheusLabelValue(sb, tagValues[i]);
+				sb.append('"');
+			}
+			prometheusLabels = sb.toString();
+			this.prometheusLabels = prometheusLabels;
+		}
+		return prometheusLabels;
+	}
+
+	private static void appendEscapedPrometheusLabelValue(StringBuilder sb, String value) {
+		if (value == null) {
+			return;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			switch (c) {
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				default:
+					sb.append(c);
+			}
+		}
+	}
+
+	/**
+	 * A {@link MetricName} is considered equal to another {@link MetricName} if the names and the tags are equal,
+	 * regardless of the order of the tags.
 	 */
 	@Override
 	public boolean equals(Object o) {
@@ -122,39 +239,105 @@ public class MetricName {
 
 		MetricName that = (MetricName) o;
 
-		return name.equals(that.name) && tags.equals(that.tags);
+		if (hashCode != that.hashCode || tagKeys.length != that.tagKeys.length || !name.equals(that.name)) {
+			return false;
+		}
+		for (int i = 0; i < tagKeys.length; i++) {
+			if (!equal(tagKeys[i], that.tagKeys[i])) {
+				// the tags are not in the same order
+				return containsAllTags(that);
+			}
+			if (!equal(tagValues[i], that.tagValues[i])) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	@Override
 	public int hashCode() {
-		int result = hashCode;
-		if (result == 0) {
-			result = name.hashCode();
-			result = 31 * result + tags.hashCode();
-			hashCode = result;
+		return hashCode;
+	}
+
+	/**
+	 * Computes the hash code like a {@link Map} so that it does not depend on the order of the tags
+	 */
+	private int computeHashCode() {
+		int tagsHashCode = 0;
+		for (int i = 0; i < tagKeys.length; i++) {
+			tagsHashCode += hashCode(tagKeys[i]) ^ hashCode(tagValues[i]);
 		}
-		return result;
+		return 31 * name.hashCode() + tagsHashCode;
 	}
 
 	public boolean matches(MetricName other) {
-		return name.equals(other.name) && containsAllTags(other.tags);
+		return other.tagKeys.length <= tagKeys.length && name.equals(other.name) && containsAllTags(other);
 	}
 
-	private boolean containsAllTags(Map<String, String> tags) {
-		for (Map.Entry<String, String> entry : tags.entrySet()) {
-			if (!entry.getValue().equals(this.tags.get(entry.getKey()))) {
+	private boolean containsAllTags(MetricName other) {
+		for (int i = 0; i < other.tagKeys.length; i++) {
+			final String key = other.tagKeys[i];
+			// the keys are interned and mostly in the same order
+			final int index = i < tagKeys.length && tagKeys[i] == key ? i : indexOf(tagKeys, tagKeys.length, key);
+			if (index == -1 || !equal(tagValues[index], other.tagValues[i])) {
 				return false;
 			}
 		}
 		return true;
 	}
 
+	private static int indexOf(String[] keys, int size, String key) {
+		for (int i = 0; i < size; i++) {
+			if (equal(keys[i], key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean equal(String s1, String s2) {
+		return s1 == s2 || s1 != null && s1.equals(s2);
+	}
+
+	private static int hashCode(String s) {
+		return s == null ? 0 : s.hashCode();
+	}
+
+	/**
+	 * Interns names and tag keys with a map, as {@link String#intern()} is comparatively slow. When there are
+	 * suspiciously many distinct strings, new strings are not interned anymore.
+	 */
+	private static String intern(String s) {
+		if (s == null) {
+			return null;
+		}
+		final String interned = internedStrings.get(s);
+		if (interned != null) {
+			return interned;
+		}
+		if (internedStrings.size() >= MAX_INTERNED_STRINGS) {
+			return s;
+		}
+		final String previous = internedStrings.putIfAbsent(s, s);
+		return previous != null ? previous : s;
+	}
+
+	private static String[] internAll(String[] strings) {
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = intern(strings[i]);
+		}
+		return strings;
+	}
+
 	/**
 	 * A {@link MetricNameTemplate} lets you efficiently create similar {@link MetricName}s so that if a {@link
 	 * MetricName} has already been {@link #build(String)} for the same value(s), the previous instance is reused.
 	 * <p>
 	 * In other words, this is a cache for {@link MetricName}s
 	 * <p>
+	 * Looking up a cached {@link MetricName} with up to three values does not allocate, as there is a nested cache
+	 * level for each value. All {@link MetricName}s created by a template share the same tag keys.
+	 * <p>
 	 * Example:
 	 * <pre>
 	 *     MetricName.MetricNameTemplate timerMetricNameTemplate = name("response_time")
@@ -165,77 +348,154 @@ public class MetricName {
 	 * </pre>
 	 */
 	public static class MetricNameTemplate {
-		private final ConcurrentMap<Object, MetricName> metricNameCache = new ConcurrentHashMap<Object, MetricName>();
-		private final MetricName template;
-		private final String key;
-		private final List<String> keys;
+		private static final Object NULL_VALUE = new Object();
 
-		private MetricNameTemplate(MetricName template, String key) {
-			this.template = template;
-			this.key = key;
-			this.keys = null;
-		}
-
-		private MetricNameTemplate(MetricName template, String... keys) {
-			this.template = template;
-			this.key = null;
-			this.keys = Arrays.asList(keys);
+		private final ConcurrentMap<Object, Object> metricNameCache = new ConcurrentHashMap<Object, Object>();
+		private final String name;
+		private final String[] tagKeys;
+		private final String[] tagValues;
+		private final int[] valueIndices;
+		private final boolean singleValue;
+
+		private MetricNameTemplate(MetricName template, boolean singleValue, String... keys) {
+			this.name = template.name;
+			this.singleValue = singleValue;
+			final Builder builder = name(template.name).tags(template.tagKeys, template.tagValues, template.tagKeys.length);
+			for (String key : keys) {
+				if (indexOf(builder.tagKeys, builder.size, key) == -1) {
+					builder.tag(key, null);
+				}
+			}
+			this.tagKeys = internAll(Arrays.copyOf(builder.tagKeys, builder.size));
+			this.tagValues = Arrays.copyOf(builder.tagValues, builder.size);
+			this.valueIndices = new int[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				valueIndices[i] = indexOf(tagKeys, tagKeys.length, keys[i]);
+			}
 		}
 
 		/**
-		 * Creates a new or reused {@link MetricName} according to the {@link #template} with the given {@link #key}
-		 * and the provided value
+		 * Creates a new or reused {@link MetricName} according to the template with the given key and the provided
+		 * value
 		 *
 		 * @param value The tag value
-		 * @return A {@link MetricName} according to the {@link #template}
+		 * @return A {@link MetricName} according to the template
 		 * @throws IllegalArgumentException When this template is intended for multiple values i.e. was initialized via
-		 *                                  {@link MetricNameTemplate#MetricNameTemplate(MetricName, String...)}
+		 *                                  {@link Builder#templateFor(String...)}
+		 * @throws NullPointerException     When the value is <code>null</code>
 		 */
 		public MetricName build(String value) {
-			if (key == null) {
+			if (!singleValue) {
 				throw new IllegalArgumentException("Size of key does not match size of values");
 			}
-			MetricName metricName = metricNameCache.get(value);
+			final MetricName metricName = (MetricName) metricNameCache.get(value);
+			if (metricName == null) {
+				return cache(metricNameCache, value, newMetricName(value));
+			}
+			return metricName;
+		}
+
+		/**
+		 * Creates a new or reused {@link MetricName} according to the template with the given keys and the provided
+		 * values
+		 *
+		 * @see #build(String...)
+		 */
+		public MetricName build(String value1, String value2) {
+			assertNumberOfValues(2);
+			final ConcurrentMap<Object, Object> cache = getNestedCache(metricNameCache, value1);
+			final MetricName metricName = (MetricName) cache.get(cacheKey(value2));
+			if (metricName == null) {
+				return cache(cache, value2, newMetricName(value1, value2));
+			}
+			return metricName;
+		}
+
+		/**
+		 * Creates a new or reused {@link MetricName} according to the template with the given keys and the provided
+		 * values
+		 *
+		 * @see #build(String...)
+		 */
+		public MetricName build(String value1, String value2, String value3) {
+			assertNumberOfValues(3);
+			final ConcurrentMap<Object, Object> cache = getNestedCache(getNestedCache(metricNameCache, value1), value2);
+			final MetricName metricName = (MetricName) cache.get(cacheKey(value3));
 			if (metricName == null) {
-				metricName = template.withTag(key, value);
-				metricNameCache.put(value, metricName);
+				return cache(cache, value3, newMetricName(value1, value2, value3));
 			}
 			return metricName;
 		}
 
 		/**
-		 * Creates a new or reused {@link MetricName} according to the {@link #template} with the given {@link #keys}
-		 * and the provided values
+		 * Creates a new or reused {@link MetricName} according to the template with the given keys and the provided
+		 * values
 		 *
-		 * @param values The tag values (must match the size of {@link #keys}
-		 * @return A {@link MetricName} according to the {@link #template}
-		 * @throws IllegalArgumentException When number of {@link #keys} does not match the number of provided values or
+		 * @param values The tag values (must match the size of the keys)
+		 * @return A {@link MetricName} according to the template
+		 * @throws IllegalArgumentException When number of keys does not match the number of provided values or
 		 *                                  this template is intended for a single value i.e. was initialized via {@link
-		 *                                  MetricNameTemplate#MetricNameTemplate(MetricName, String)}
+		 *                                  Builder#templateFor(String)}
 		 */
 		public MetricName build(String... values) {
-			if (keys == null || keys.size() != values.length) {
-				throw new IllegalArgumentException("Size of key does not match size of values");
+			assertNumberOfValues(values.length);
+			ConcurrentMap<Object, Object> cache = metricNameCache;
+			for (int i = 0; i < values.length - 1; i++) {
+				cache = getNestedCache(cache, values[i]);
 			}
-			List<String> valuesList = Arrays.asList(values);
-			MetricName metricName = metricNameCache.get(valuesList);
+			final String lastValue = values[values.length - 1];
+			final MetricName metricName = (MetricName) cache.get(cacheKey(lastValue));
 			if (metricName == null) {
-				Builder builder = name(template.name).tags(template.tags);
-				for (int i = 0; i < keys.size(); i++) {
-					builder.tag(keys.get(i), valuesList.get(i));
-				}
-				metricName = builder.build();
-				metricNameCache.put(valuesList, metricName);
+				return cache(cache, lastValue, newMetricName(values));
 			}
 			return metricName;
 		}
+
+		private void assertNumberOfValues(int numberOfValues) {
+			if (singleValue || numberOfValues == 0 || valueIndices.length != numberOfValues) {
+				throw new IllegalArgumentException("Size of key does not match size of values");
+			}
+		}
+
+		private MetricName newMetricName(String... values) {
+			final String[] newTagValues = Arrays.copyOf(tagValues, tagValues.length);
+			for (int i = 0; i < values.length; i++) {
+				newTagValues[valueIndices[i]] = values[i];
+			}
+			return new MetricName(name, tagKeys, newTagValues);
+		}
+
+		@SuppressWarnings("unchecked")
+		private static ConcurrentMap<Object, Object> getNestedCache(ConcurrentMap<Object, Object> cache, String value) {
+			final Object key = cacheKey(value);
+			ConcurrentMap<Object, Object> nestedCache = (ConcurrentMap<Object, Object>) cache.get(key);
+			if (nestedCache == null) {
+				nestedCache = new ConcurrentHashMap<Object, Object>();
+				final Object previous = cache.putIfAbsent(key, nestedCache);
+				if (previous != null) {
+					nestedCache = (ConcurrentMap<Object, Object>) previous;
+				}
+			}
+			return nestedCache;
+		}
+
+		private static MetricName cache(ConcurrentMap<Object, Object> cache, String value, MetricName metricName) {
+			final Object previous = cache.putIfAbsent(cacheKey(value), metricName);
+			return previous != null ? (MetricName) previous : metricName;
+		}
+
+		private static Object cacheKey(String value) {
+			return value != null ? value : NULL_VALUE;
+		}
 	}
 
 	public static class Builder {
 
 		private final String name;
 
-		private final LinkedHashMap<String, String> tags = new LinkedHashMap<String, String>(8);
+		private String[] tagKeys = EMPTY;
+		private String[] tagValues = EMPTY;
+		private int size;
 
 		public Builder(String name) {
 			this.name = name;
@@ -249,7 +509,19 @@ public class MetricName {
 		 * @return <code>this</code> for chaining
 		 */
 		public Builder tag(String key, String value) {
-			this.tags.put(key, value);
+			final int index = indexOf(tagKeys, size, key);
+			if (index != -1) {
+				tagValues[index] = value;
+			} else {
+				if (size == tagKeys.length) {
+					final int newLength = Math.max(4, size * 2);
+					tagKeys = Arrays.copyOf(tagKeys, newLength);
+					tagValues = Arrays.copyOf(tagValues, newLength);
+				}
+				tagKeys[size] = key;
+				tagValues[size] = value;
+				size++;
+			}
 			return this;
 		}
 
@@ -278,12 +550,21 @@ public class MetricName {
 		}
 
 		public Builder tags(Map<String, String> tags) {
-			this.tags.putAll(tags);
+			for (Map.Entry<String, String> tag : tags.entrySet()) {
+				tag(tag.getKey(), tag.getValue());
+			}
+			return this;
+		}
+
+		private Builder tags(String[] keys, String[] values, int length) {
+			for (int i = 0; i < length; i++) {
+				tag(keys[i], values[i]);
+			}
 			return this;
 		}
 
 		public MetricName build() {
-			return new MetricName(name, tags);
+			return new MetricName(intern(name), internAll(Arrays.copyOf(tagKeys, size)), Arrays.copyOf(tagValues, size));
 		}
 
 		/**
@@ -293,7 +574,7 @@ public class MetricName {
 		 * @return The {@link MetricNameTemplate}
 		 */
 		public MetricNameTemplate templateFor(String key) {
-			return new MetricNameTemplate(build(), key);
+			return new MetricNameTemplate(build(), true, key);
 		}
 
 		/**
@@ -303,7 +584,7 @@ public class MetricName {
 		 * @return The {@link MetricNameTemplate}
 		 */
 		public MetricNameTemplate templateFor(String... keys) {
-			return new MetricNameTemplate(build(), keys);
+			return new MetricNameTemplate(build(), false, keys);
 		}
 
 	}
@@ -0,0 +1,19 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Reservoir;
+
+/**
+ * Creates the {@link Reservoir}s of the histograms and timers of a {@link Metric2Registry}
+ */
+public interface ReservoirFactory {
+
+	ReservoirFactory EXPONENTIALLY_DECAYING = new ReservoirFactory() {
+		@Override
+		public Reservoir newReservoir() {
+			return new ExponentiallyDecayingReservoir();
+		}
+	};
+
+	Reservoir newReservoir();
+}
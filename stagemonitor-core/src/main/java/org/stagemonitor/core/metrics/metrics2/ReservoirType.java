@@ -0,0 +1,33 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+/**
+ * The type of the {@link com.codahale.metrics.Reservoir}s of histograms and timers
+ */
+public enum ReservoirType {
+
+	/**
+	 * A {@link com.codahale.metrics.ExponentiallyDecayingReservoir} which represents roughly the last five minutes
+	 */
+	EXPONENTIALLY_DECAYING {
+		@Override
+		public ReservoirFactory getReservoirFactory(long intervalMs) {
+			return ReservoirFactory.EXPONENTIALLY_DECAYING;
+		}
+	},
+
+	/**
+	 * A lock-free {@link HdrHistogramReservoir} which represents the last reporting interval
+	 */
+	HDR_HISTOGRAM {
+		@Override
+		public ReservoirFactory getReservoirFactory(long intervalMs) {
+			return HdrHistogramReservoir.factory(intervalMs);
+		}
+	};
+
+	/**
+	 * @param intervalMs the reporting interval in milliseconds
+	 * @return the {@link ReservoirFactory} for this type
+	 */
+	public abstract ReservoirFactory getReservoirFactory(long intervalMs);
+}
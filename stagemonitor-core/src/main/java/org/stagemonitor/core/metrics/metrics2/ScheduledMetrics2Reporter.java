@@ -4,15 +4,19 @@ import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import com.codahale.metrics.Clock;
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Timer;
 import org.slf4j.Logger;
@@ -21,6 +25,11 @@ import org.stagemonitor.core.util.ExecutorUtils;
 
 /**
  * A {@link ScheduledReporter} that works with a {@link Metric2Registry}
+ * <p>
+ * If a full report interval greater than one is set via {@link Builder#reportOnlyChangedMetrics(int)}, only the
+ * counters, histograms, meters and timers which have been updated since the last report are reported. The count of
+ * a metric serves as its update sequence number. Every n-th report is a full report which includes all metrics. Gauges
+ * are always reported, as there is no way to tell whether their value has changed without computing it.
  */
 public abstract class ScheduledMetrics2Reporter extends ScheduledReporter {
 
@@ -29,6 +38,12 @@ public abstract class ScheduledMetrics2Reporter extends ScheduledReporter {
 	protected final Metric2Registry registry;
 	private final Metric2Filter filter;
 	private final ScheduledExecutorService executor;
+	private final int fullReportInterval;
+	/**
+	 * The counts of the counting metrics at the time they have been reported the last time
+	 */
+	private final ConcurrentMap<MetricName, Long> reportedCounts = new ConcurrentHashMap<MetricName, Long>();
+	private long reports;
 	protected Clock clock;
 	private boolean started;
 
@@ -38,19 +53,51 @@ public abstract class ScheduledMetrics2Reporter extends ScheduledReporter {
 		this.filter = builder.getFilter();
 		this.executor = builder.getExecutor();
 		this.clock = builder.getClock();
+		this.fullReportInterval = builder.getFullReportInterval();
 	}
 
 	@Override
 	public void report() {
+		if (fullReportInterval <= 1) {
+			reportMetrics(
+					registry.getGauges(filter),
+					registry.getCounters(filter),
+					registry.getHistograms(filter),
+					registry.getMeters(filter),
+					registry.getTimers(filter)
+			);
+		} else {
+			reportChangedMetrics();
+		}
+	}
+
+	private synchronized void reportChangedMetrics() {
+		final boolean fullReport = reports++ % fullReportInterval == 0;
+		if (fullReport) {
+			// forgets the counts of removed metrics
+			reportedCounts.clear();
+		}
 		reportMetrics(
 				registry.getGauges(filter),
-				registry.getCounters(filter),
-				registry.getHistograms(filter),
-				registry.getMeters(filter),
-				registry.getTimers(filter)
+				getChangedMetrics(registry.getCounters(filter), fullReport),
+				getChangedMetrics(registry.getHistograms(filter), fullReport),
+				getChangedMetrics(registry.getMeters(filter), fullReport),
+				getChangedMetrics(registry.getTimers(filter), fullReport)
 		);
 	}
 
+	private <T extends Metric & Counting> Map<MetricName, T> getChangedMetrics(Map<MetricName, T> metrics, boolean fullReport) {
+		final Map<MetricName, T> changedMetrics = fullReport ? metrics : new LinkedHashMap<MetricName, T>();
+		for (Map.Entry<MetricName, T> entry : metrics.entrySet()) {
+			final long count = entry.getValue().getCount();
+			final Long reportedCount = reportedCounts.put(entry.getKey(), count);
+			if (!fullReport && (reportedCount == null || reportedCount != count)) {
+				changedMetrics.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return changedMetrics;
+	}
+
 	/**
 	 * Called periodically by the polling thread. Subclasses should report all the given metrics.
 	 *
@@ -127,6 +174,8 @@ public abstract class ScheduledMetrics2Reporter extends ScheduledReporter {
 		private TimeUnit durationUnit = TimeUnit.MILLISECONDS;
 		private Clock clock = Clock.defaultClock();
 		private Map<String, String> globalTags = Collections.emptyMap();
+		private int fullReportInterval = 1;
+		private boolean mergeableHistograms;
 
 		protected Builder(Metric2Registry registry, String reporterName) {
 			this.executor = Executors.newSingleThreadScheduledExecutor(new ExecutorUtils.NamedThreadFactory(reporterName));
@@ -210,6 +259,42 @@ public abstract class ScheduledMetrics2Reporter extends ScheduledReporter {
 			return (B) this;
 		}
 
+		public int getFullReportInterval() {
+			return fullReportInterval;
+		}
+
+		/**
+		 * Only reports the counters, histograms, meters and timers whose count has changed since the last report,
+		 * except for every n-th report which includes all metrics.
+		 *
+		 * @param fullReportInterval the number of reports between two full reports. A value of one or less means that
+		 *                           all metrics are reported every time.
+		 * @return {@code this}
+		 */
+		public B reportOnlyChangedMetrics(int fullReportInterval) {
+			this.fullReportInterval = fullReportInterval;
+			return (B) this;
+		}
+
+		public boolean isMergeableHistograms() {
+			return mergeableHistograms;
+		}
+
+		/**
+		 * Additionally reports the compressed encoding of histograms and timers which are backed by a
+		 * {@link HdrHistogramReservoir} (see {@link HdrHistogramReservoir.HdrSnapshot#encodeCompressed()}).
+		 * <p>
+		 * In contrast to the percentiles, these histograms can be merged in order to compute percentiles across
+		 * instances.
+		 *
+		 * @param mergeableHistograms whether to report the encoded histograms
+		 * @return {@code this}
+		 */
+		public B mergeableHistograms(boolean mergeableHistograms) {
+			this.mergeableHistograms = mergeableHistograms;
+			return (B) this;
+		}
+
 		/**
 		 * Builds a reporter with the given properties.
 		 *
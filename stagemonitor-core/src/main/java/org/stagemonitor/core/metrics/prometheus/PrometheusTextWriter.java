@@ -0,0 +1,305 @@
+package org.stagemonitor.core.metrics.prometheus;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.metrics2.MetricName;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the metrics of a {@link Metric2Registry} in the Prometheus text exposition format (version 0.0.4), which is
+ * also accepted by OpenMetrics-capable scrapers.
+ * <p>
+ * The output is equivalent to {@link StagemonitorPrometheusCollector} in combination with
+ * <code>io.prometheus.client.exporter.common.TextFormat#write004</code>, but the metrics are written directly to a
+ * reusable buffer instead of creating intermediate metric families and samples on each scrape. The metric families,
+ * including their <code># HELP</code> and <code># TYPE</code> lines, are only re-computed if metrics have been added to
+ * or removed from the registry and the labels are written via the cached {@link MetricName#toPrometheusLabels()}.
+ * <p>
+ * This also means that you don't need a dependency to the Prometheus client to expose the metrics:
+ * <pre>
+ *     response.setContentType(PrometheusTextWriter.CONTENT_TYPE_004);
+ *     prometheusTextWriter.write(response.getWriter());
+ * </pre>
+ */
+public class PrometheusTextWriter {
+
+	public static final String CONTENT_TYPE_004 = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final double SECONDS_IN_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final int FLUSH_THRESHOLD = 8192;
+	private static final String[] QUANTILE_LABELS = {
+			"quantile=\"0.5\"", "quantile=\"0.75\"", "quantile=\"0.95\"",
+			"quantile=\"0.98\"", "quantile=\"0.99\"", "quantile=\"0.999\""
+	};
+
+	private final Metric2Registry registry;
+	private final StringBuilder buffer = new StringBuilder(FLUSH_THRESHOLD * 2);
+	private char[] chunk = new char[FLUSH_THRESHOLD * 2];
+
+	private final FamilyCache<Gauge> gauges = new FamilyCache<Gauge>("", "gauge");
+	private final FamilyCache<Counter> counters = new FamilyCache<Counter>("", "counter");
+	private final FamilyCache<Histogram> histograms = new FamilyCache<Histogram>("", "summary");
+	private final FamilyCache<Timer> timers = new FamilyCache<Timer>("_seconds", "summary");
+	private final FamilyCache<Timer> timerMeters = new FamilyCache<Timer>("_meter", "untyped");
+	private final FamilyCache<Meter> meters = new FamilyCache<Meter>("", "untyped");
+
+	/**
+	 * @param registry the metric registry to export
+	 */
+	public PrometheusTextWriter(Metric2Registry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Writes all metrics of the registry to the provided writer
+	 *
+	 * @param writer the writer, for example the writer of a servlet response
+	 * @throws IOException if the writer throws an exception
+	 */
+	public synchronized void write(Writer writer) throws IOException {
+		buffer.setLength(0);
+		try {
+			for (Family<Gauge> family : gauges.getFamilies(registry.getGauges())) {
+				writeGauges(writer, family);
+			}
+			for (Family<Counter> family : counters.getFamilies(registry.getCounters())) {
+				writeCounters(writer, family);
+			}
+			for (Family<Histogram> family : histograms.getFamilies(registry.getHistograms())) {
+				writeSummaries(writer, family, 1.0D);
+			}
+			final Map<MetricName, Timer> timerMap = registry.getTimers();
+			final List<Family<Timer>> timerMeterFamilies = timerMeters.getFamilies(timerMap);
+			final List<Family<Timer>> timerFamilies = timers.getFamilies(timerMap);
+			for (int i = 0; i < timerFamilies.size(); i++) {
+				writeSummaries(writer, timerFamilies.get(i), SECONDS_IN_NANOS);
+				writeMeters(writer, timerMeterFamilies.get(i));
+			}
+			for (Family<Meter> family : meters.getFamilies(registry.getMeters())) {
+				writeMeters(writer, family);
+			}
+			flush(writer);
+		} finally {
+			if (buffer.capacity() > FLUSH_THRESHOLD * 4) {
+				// don't keep a buffer which has been inflated by a huge label set
+				buffer.setLength(0);
+				buffer.trimToSize();
+			}
+		}
+	}
+
+	private void writeGauges(Writer writer, Family<Gauge> family) throws IOException {
+		buffer.append(family.header);
+		for (int i = 0; i < family.size(); i++) {
+			writeSample(family.name, "", family.metricNames[i], null, getDoubleFromGauge(family.getMetric(i)));
+			flushIfNecessary(writer);
+		}
+	}
+
+	private static double getDoubleFromGauge(Gauge gauge) {
+		final Object value = gauge.getValue();
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		} else if (value instanceof Boolean) {
+			return ((Boolean) value) ? 1.0 : 0;
+		} else {
+			return -1d;
+		}
+	}
+
+	private void writeCounters(Writer writer, Family<Counter> family) throws IOException {
+		buffer.append(family.header);
+		for (int i = 0; i < family.size(); i++) {
+			writeSample(family.name, "", family.metricNames[i], null, family.getMetric(i).getCount());
+			flushIfNecessary(writer);
+		}
+	}
+
+	private <T extends Metric & Sampling & Counting> void writeSummaries(Writer writer, Family<T> family, double conversionFactor)
+			throws IOException {
+		buffer.append(family.header);
+		for (int i = 0; i < family.size(); i++) {
+			final MetricName metricName = family.metricNames[i];
+			final T metric = family.getMetric(i);
+			final Snapshot snapshot = metric.getSnapshot();
+			writeSample(family.name, "", metricName, QUANTILE_LABELS[0], snapshot.getMedian() / conversionFactor);
+			writeSample(family.name, "", metricName, QUANTILE_LABELS[1], snapshot.get75thPercentile() / conversionFactor);
+			writeSample(family.name, "", metricName, QUANTILE_LABELS[2], snapshot.get95thPercentile() / conversionFactor);
+			writeSample(family.name, "", metricName, QUANTILE_LABELS[3], snapshot.get98thPercentile() / conversionFactor);
+			writeSample(family.name, "", metricName, QUANTILE_LABELS[4], snapshot.get99thPercentile() / conversionFactor);
+			writeSample(family.name, "", metricName, QUANTILE_LABELS[5], snapshot.get999thPercentile() / conversionFactor);
+			writeSample(family.name, "_count", metricName, null, metric.getCount());
+			writeSample(family.name, "_sum", metricName, null, -1);
+			flushIfNecessary(writer);
+		}
+	}
+
+	private <T extends Metered> void writeMeters(Writer writer, Family<T> family) throws IOException {
+		buffer.append(family.header);
+		for (int i = 0; i < family.size(); i++) {
+			final MetricName metricName = family.metricNames[i];
+			final T metered = family.getMetric(i);
+			writeSample(family.name, "_total", metricName, null, metered.getCount());
+			writeSample(family.name, "_m1", metricName, null, metered.getOneMinuteRate());
+			writeSample(family.name, "_m5", metricName, null, metered.getFiveMinuteRate());
+			writeSample(family.name, "_m15", metricName, null, metered.getFifteenMinuteRate());
+			flushIfNecessary(writer);
+		}
+	}
+
+	private void writeSample(String name, String suffix, MetricName metricName, String additionalLabel, double value) {
+		buffer.append(name).append(suffix);
+		final String labels = metricName.toPrometheusLabels();
+		if (!labels.isEmpty() || additionalLabel != null) {
+			buffer.append('{').append(labels);
+			if (additionalLabel != null) {
+				if (!labels.isEmpty()) {
+					buffer.append(',');
+				}
+				buffer.append(additionalLabel);
+			}
+			buffer.append('}');
+		}
+		buffer.append(' ');
+		appendDouble(value);
+		buffer.append('\n');
+	}
+
+	/**
+	 * Appends the value like Go's <code>strconv.FormatFloat</code> for the special values and like
+	 * {@link Double#toString(double)} otherwise (without creating a String)
+	 */
+	private void appendDouble(double value) {
+		if (value == Double.POSITIVE_INFINITY) {
+			buffer.append("+Inf");
+		} else if (value == Double.NEGATIVE_INFINITY) {
+			buffer.append("-Inf");
+		} else if (Double.isNaN(value)) {
+			buffer.append("NaN");
+		} else {
+			buffer.append(value);
+		}
+	}
+
+	private void flushIfNecessary(Writer writer) throws IOException {
+		if (buffer.length() >= FLUSH_THRESHOLD) {
+			flush(writer);
+		}
+	}
+
+	private void flush(Writer writer) throws IOException {
+		final int length = buffer.length();
+		if (length > chunk.length) {
+			chunk = new char[length];
+		}
+		buffer.getChars(0, length, chunk, 0);
+		writer.write(chunk, 0, length);
+		buffer.setLength(0);
+	}
+
+	private static String getHelpMessage(String name, Metric metric) {
+		return "Generated from stagemonitor metric import (metric=" + name + ", type=" + metric.getClass().getName() + ")";
+	}
+
+	private static void appendEscapedHelp(StringBuilder sb, String help) {
+		for (int i = 0; i < help.length(); i++) {
+			final char c = help.charAt(i);
+			if (c == '\\') {
+				sb.append("\\\\");
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else {
+				sb.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Groups the metrics of a type by their name. The families are cached as long as the registry returns the same view
+	 * of the metrics, which is the case until a metric is added or removed.
+	 */
+	private static class FamilyCache<T extends Metric> {
+		private final String nameSuffix;
+		private final String type;
+		private Map<MetricName, T> cachedMetrics;
+		private List<Family<T>> families;
+
+		private FamilyCache(String nameSuffix, String type) {
+			this.nameSuffix = nameSuffix;
+			this.type = type;
+		}
+
+		private List<Family<T>> getFamilies(Map<MetricName, T> metrics) {
+			if (metrics != cachedMetrics) {
+				families = groupByName(metrics);
+				cachedMetrics = metrics;
+			}
+			return families;
+		}
+
+		private List<Family<T>> groupByName(Map<MetricName, T> metrics) {
+			final Map<String, List<Map.Entry<MetricName, T>>> metricsByName = new LinkedHashMap<String, List<Map.Entry<MetricName, T>>>();
+			for (Map.Entry<MetricName, T> entry : metrics.entrySet()) {
+				List<Map.Entry<MetricName, T>> metricsWithSameName = metricsByName.get(entry.getKey().getName());
+				if (metricsWithSameName == null) {
+					metricsWithSameName = new ArrayList<Map.Entry<MetricName, T>>();
+					metricsByName.put(entry.getKey().getName(), metricsWithSameName);
+				}
+				metricsWithSameName.add(entry);
+			}
+			final List<Family<T>> families = new ArrayList<Family<T>>(metricsByName.size());
+			for (Map.Entry<String, List<Map.Entry<MetricName, T>>> entry : metricsByName.entrySet()) {
+				families.add(new Family<T>(entry.getKey() + nameSuffix, type, entry.getValue()));
+			}
+			return families;
+		}
+	}
+
+	private static class Family<T extends Metric> {
+		private final String name;
+		private final String header;
+		private final MetricName[] metricNames;
+		private final Metric[] metrics;
+
+		private Family(String name, String type, List<Map.Entry<MetricName, T>> metricsWithSameName) {
+			this.name = name;
+			metricNames = new MetricName[metricsWithSameName.size()];
+			metrics = new Metric[metricsWithSameName.size()];
+			for (int i = 0; i < metricsWithSameName.size(); i++) {
+				metricNames[i] = metricsWithSameName.get(i).getKey();
+				metrics[i] = metricsWithSameName.get(i).getValue();
+			}
+			final StringBuilder sb = new StringBuilder();
+			sb.append("# HELP ").append(name).append(' ');
+			appendEscapedHelp(sb, getHelpMessage(metricNames[0].getName(), metrics[0]));
+			sb.append("\n# TYPE ").append(name).append(' ').append(type).append('\n');
+			header = sb.toString();
+		}
+
+		private int size() {
+			return metrics.length;
+		}
+
+		@SuppressWarnings("unchecked")
+		private T getMetric(int i) {
+			return (T) metrics[i];
+		}
+	}
+}
@@ -11,4 +11,10 @@ public interface HttpRequest<T> {
 	HttpClient.OutputStreamHandler getOutputStreamHandler();
 	HttpClient.ResponseHandler<T> getResponseHandler();
 	String getSafeUrl();
+
+	/**
+	 * @return whether the body of the request is a bulk upload, which is streamed and optionally compressed (see
+	 * {@link HttpRequestBuilder#bulkUpload()})
+	 */
+	boolean isBulkUpload();
 }
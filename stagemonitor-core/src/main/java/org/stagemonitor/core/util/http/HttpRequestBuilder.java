@@ -22,6 +22,7 @@ public class HttpRequestBuilder<T> {
 	private HttpClient.ResponseHandler<T> successHandler;
 	private HttpClient.ResponseHandler<T> errorHandler;
 	private Map<Integer, HttpClient.ResponseHandler<T>> statusHandlers;
+	private boolean bulkUpload;
 
 	private HttpRequestBuilder(String url) {
 		this.url = url;
@@ -96,6 +97,18 @@ public class HttpRequestBuilder<T> {
 		return handlerForStatus(status, NoopResponseHandler.<T>getInstance());
 	}
 
+	/**
+	 * Marks the request as a bulk upload, like a <code>_bulk</code> request to Elasticsearch.
+	 * <p>
+	 * The body of a bulk upload is streamed in chunks instead of being buffered in memory and is compressed, if the
+	 * {@link HttpTransport} is configured to do so. As a streamed request can't be repeated, redirects and
+	 * authentication challenges are not followed.
+	 */
+	public HttpRequestBuilder<T> bulkUpload() {
+		this.bulkUpload = true;
+		return this;
+	}
+
 	public HttpRequestBuilder<T> bodyJson(final Object requestBody) {
 		this.addHeaders(CONTENT_TYPE_JSON);
 		this.outputStreamHandler = new HttpClient.OutputStreamHandler() {
@@ -161,6 +174,6 @@ public class HttpRequestBuilder<T> {
 					return successHandler.handleResponse(httpRequest, is, statusCode, e);
 				}
 			}
-		});
+		}, bulkUpload);
 	}
 }
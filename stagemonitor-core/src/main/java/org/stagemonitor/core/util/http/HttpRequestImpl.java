@@ -11,14 +11,17 @@ class HttpRequestImpl<T> implements HttpRequest<T> {
 	private final Map<String, String> headers;
 	private final HttpClient.OutputStreamHandler outputStreamHandler;
 	private final HttpClient.ResponseHandler<T> responseHandler;
+	private final boolean bulkUpload;
 
 	HttpRequestImpl(String url, String method, Map<String, String> headers,
-					HttpClient.OutputStreamHandler outputStreamHandler, HttpClient.ResponseHandler<T> responseHandler) {
+					HttpClient.OutputStreamHandler outputStreamHandler, HttpClient.ResponseHandler<T> responseHandler,
+					boolean bulkUpload) {
 		this.url = url;
 		this.method = method;
 		this.headers = headers;
 		this.outputStreamHandler = outputStreamHandler;
 		this.responseHandler = responseHandler;
+		this.bulkUpload = bulkUpload;
 	}
 
 	@Override
@@ -49,4 +52,9 @@ class HttpRequestImpl<T> implements HttpRequest<T> {
 	public String getSafeUrl() {
 		return HttpClient.removeUserInfo(url);
 	}
+
+	@Override
+	public boolean isBulkUpload() {
+		return bulkUpload;
+	}
 }
@@ -0,0 +1,21 @@
+package org.stagemonitor.core.util.http;
+
+import org.stagemonitor.core.util.HttpClient;
+
+/**
+ * The transport is responsible for actually executing the {@link HttpRequest}s of a {@link HttpClient}.
+ * <p>
+ * Implementations have to be thread safe.
+ */
+public interface HttpTransport {
+
+	/**
+	 * Executes the request and invokes the {@link HttpRequest#getResponseHandler()}
+	 *
+	 * @param request the request to send
+	 * @param <T>     the type of the result of the response handler
+	 * @return the result of the response handler or <code>null</code> if the request could not be sent
+	 */
+	<T> T send(HttpRequest<T> request);
+
+}
@@ -0,0 +1,173 @@
+package org.stagemonitor.core.util.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.util.HttpClient;
+import org.stagemonitor.util.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A {@link HttpTransport} based on {@link HttpURLConnection}.
+ * <p>
+ * The connections are kept alive and reused by the keep-alive cache of the JDK. That only works if the response
+ * stream is fully consumed, which is why the response is drained after the response handler has been invoked.
+ * The number of concurrent connections is bounded by <code>maxConnections</code>. As long as this number does not
+ * exceed the system property <code>http.maxConnections</code> (defaults to 5), all connections can be reused.
+ * <p>
+ * The bodies of bulk uploads (see {@link HttpRequestBuilder#bulkUpload()}) are streamed in chunks instead of being
+ * buffered in memory first and can optionally be compressed with gzip. Other request bodies are sent as is, so that
+ * {@link HttpURLConnection} can still follow redirects and answer authentication challenges.
+ */
+public class HttpURLConnectionTransport implements HttpTransport {
+
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(5);
+	public static final int DEFAULT_READ_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(15);
+	public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	private final int connectTimeoutMs;
+	private final int readTimeoutMs;
+	private final boolean gzipRequests;
+	private final Semaphore connections;
+
+	public HttpURLConnectionTransport() {
+		this(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS, false, DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * @param connectTimeoutMs the timeout for establishing a connection in milliseconds
+	 * @param readTimeoutMs    the timeout for reading the response in milliseconds
+	 * @param gzipRequests     whether the bodies of bulk uploads should be compressed with gzip
+	 * @param maxConnections   the maximum number of concurrent connections
+	 */
+	public HttpURLConnectionTransport(int connectTimeoutMs, int readTimeoutMs, boolean gzipRequests, int maxConnections) {
+		this.connectTimeoutMs = connectTimeoutMs;
+		this.readTimeoutMs = readTimeoutMs;
+		this.gzipRequests = gzipRequests;
+		this.connections = new Semaphore(Math.max(1, maxConnections));
+	}
+
+	@Override
+	public <T> T send(HttpRequest<T> request) {
+		connections.acquireUninterruptibly();
+		try {
+			return doSend(request);
+		} finally {
+			connections.release();
+		}
+	}
+
+	private <T> T doSend(HttpRequest<T> request) {
+		HttpURLConnection connection = null;
+		InputStream inputStream = null;
+		try {
+			URL url = new URL(request.getUrl());
+			final String basicAuth;
+			if (url.getUserInfo() != null) {
+				basicAuth = HttpClient.getBasicAuthFromUserInfo(url);
+				// remove username:password from url so it does not appear in exception messages
+				url = new URL(url.getProtocol(), url.getHost(), url.getPort(), url.getFile());
+			} else {
+				basicAuth = null;
+			}
+			connection = (HttpURLConnection) url.openConnection();
+			if (basicAuth != null) {
+				connection.setRequestProperty("Authorization", basicAuth);
+			}
+			connection.setDoOutput(true);
+			connection.setRequestMethod(request.getMethod());
+			connection.setConnectTimeout(connectTimeoutMs);
+			connection.setReadTimeout(readTimeoutMs);
+			if (request.getHeaders() != null) {
+				for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+					connection.setRequestProperty(header.getKey(), header.getValue());
+				}
+			}
+
+			if (request.getOutputStreamHandler() != null) {
+				if (request.isBulkUpload()) {
+					writeBulkUpload(request.getOutputStreamHandler(), connection);
+				} else {
+					request.getOutputStreamHandler().withHttpURLConnection(connection.getOutputStream());
+				}
+			}
+
+			inputStream = connection.getInputStream();
+
+			return request.getResponseHandler().handleResponse(request, inputStream, connection.getResponseCode(), null);
+		} catch (IOException e) {
+			if (connection != null) {
+				inputStream = connection.getErrorStream();
+				try {
+					return request.getResponseHandler().handleResponse(request, inputStream, getResponseCodeIfPossible(connection), e);
+				} catch (IOException e1) {
+					logger.warn("Error sending {} request to url {}: {}", request.getMethod(), request.getSafeUrl(), e.getMessage(), e);
+					logger.warn("Error handling error response for {} request to url {}: {}", request.getMethod(), request.getSafeUrl(), e1.getMessage(), e1);
+					try {
+						logger.trace(new String(IOUtils.readToBytes(inputStream), "UTF-8"));
+					} catch (IOException e2) {
+						logger.trace("Could not read error stream: {}", e2.getMessage(), e2);
+					}
+				}
+			} else {
+				logger.warn("Error sending {} request to url {}: {}", request.getMethod(), request.getSafeUrl(), e.getMessage(), e);
+			}
+
+			return null;
+		} finally {
+			// the connection can only be reused if the response has been read completely
+			drainAndClose(inputStream);
+		}
+	}
+
+	private void writeBulkUpload(HttpClient.OutputStreamHandler outputStreamHandler, HttpURLConnection connection) throws IOException {
+		// streams the body instead of buffering it completely before sending it
+		connection.setChunkedStreamingMode(0);
+		if (gzipRequests) {
+			connection.setRequestProperty("Content-Encoding", "gzip");
+			final OutputStream os = new GZIPOutputStream(connection.getOutputStream());
+			try {
+				outputStreamHandler.withHttpURLConnection(os);
+			} finally {
+				// writes the gzip trailer, closing twice is a noop
+				os.close();
+			}
+		} else {
+			outputStreamHandler.withHttpURLConnection(connection.getOutputStream());
+		}
+	}
+
+	private Integer getResponseCodeIfPossible(HttpURLConnection connection) {
+		try {
+			return connection.getResponseCode();
+		} catch (IOException e) {
+			// don't handle exception twice
+			return null;
+		}
+	}
+
+	private static void drainAndClose(InputStream inputStream) {
+		if (inputStream == null) {
+			return;
+		}
+		try {
+			final byte[] buffer = new byte[512];
+			while (inputStream.read(buffer) != -1) {
+				// discard
+			}
+		} catch (IOException e) {
+			// the connection won't be reused
+		} finally {
+			IOUtils.closeQuietly(inputStream);
+		}
+	}
+}
@@ -121,4 +121,33 @@ public class CorePluginTest {
 		assertNull(corePlugin.getElasticsearchUrl());
 	}
 
+	@Test
+	public void testHistogramIntervalWithoutReporters() throws Exception {
+		CorePlugin corePlugin = ConfigurationRegistry.builder()
+				.addOptionProvider(new CorePlugin())
+				.addConfigSource(new SimpleSource("test")
+						.add("stagemonitor.reporting.interval.elasticsearch", "0"))
+				.build()
+				.getConfig(CorePlugin.class);
+
+		assertThat(corePlugin.getHistogramInterval()).isEqualTo(60);
+	}
+
+	@Test
+	public void testHistogramIntervalIsShortestReportingInterval() throws Exception {
+		CorePlugin corePlugin = ConfigurationRegistry.builder()
+				.addOptionProvider(new CorePlugin())
+				.addConfigSource(new SimpleSource("test")
+						.add("stagemonitor.reporting.elasticsearch.url", "http://bla:1")
+						.add("stagemonitor.reporting.interval.elasticsearch", "30")
+						.add("stagemonitor.reporting.influxdb.url", "http://bla:2")
+						.add("stagemonitor.reporting.interval.influxdb", "10")
+						// graphite is not active without a host name
+						.add("stagemonitor.reporting.interval.graphite", "5"))
+				.build()
+				.getConfig(CorePlugin.class);
+
+		assertThat(corePlugin.getHistogramInterval()).isEqualTo(10);
+	}
+
 }
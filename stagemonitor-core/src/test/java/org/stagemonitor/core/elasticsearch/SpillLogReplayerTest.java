@@ -0,0 +1,110 @@
+package org.stagemonitor.core.elasticsearch;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.core.CorePlugin;
+import org.stagemonitor.core.util.HttpClient;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SpillLogReplayerTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private final SpillLogReplayer replayer = new SpillLogReplayer();
+	private final ElasticsearchClient elasticsearchClient = mock(ElasticsearchClient.class);
+	private final HttpClient httpClient = mock(HttpClient.class);
+	private SpillLog spillLog;
+
+	@Before
+	public void setUp() throws Exception {
+		final CorePlugin corePlugin = mock(CorePlugin.class);
+		when(corePlugin.getElasticsearchUrl()).thenReturn(new URL("http://localhost:9200"));
+		final ConfigurationRegistry configuration = mock(ConfigurationRegistry.class);
+		when(configuration.getConfig(CorePlugin.class)).thenReturn(corePlugin);
+		replayer.init(configuration);
+		when(elasticsearchClient.getHttpClient()).thenReturn(httpClient);
+		when(elasticsearchClient.isElasticsearchAvailable()).thenReturn(true);
+		spillLog = new SpillLog(temporaryFolder.newFolder(), 1024, 2);
+		spillLog.append("/a/_bulk", "foo".getBytes());
+		spillLog.append("/b/_bulk", "bar".getBytes());
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		when(httpClient.sendBulk(any(), any(), any(), any())).thenReturn(200);
+
+		assertThat(replayer.replay(elasticsearchClient, spillLog, 1000)).isEqualTo(2);
+
+		verify(httpClient).sendBulk(eq("http://localhost:9200/a/_bulk"), any(), any(), any());
+		verify(httpClient).sendBulk(eq("http://localhost:9200/b/_bulk"), any(), any(), any());
+		assertThat(spillLog.isEmpty()).isTrue();
+	}
+
+	@Test
+	public void testCombineEntriesWithTheSamePath() throws Exception {
+		spillLog.append("/b/_bulk", "baz\n".getBytes());
+		final List<String> requestBodies = new ArrayList<String>();
+		when(httpClient.sendBulk(any(), any(), any(), any())).then(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				final ByteArrayOutputStream os = new ByteArrayOutputStream();
+				invocation.<HttpClient.OutputStreamHandler>getArgument(2).withHttpURLConnection(os);
+				requestBodies.add(os.toString("UTF-8"));
+				return 200;
+			}
+		});
+
+		assertThat(replayer.replay(elasticsearchClient, spillLog, 1000)).isEqualTo(3);
+
+		assertThat(requestBodies).containsExactly("foo", "barbaz\n");
+		assertThat(spillLog.isEmpty()).isTrue();
+	}
+
+	@Test
+	public void testRetryAfterError() throws Exception {
+		when(httpClient.sendBulk(any(), any(), any(), any())).thenReturn(429, 503, -1, 200);
+
+		assertThat(replayer.replay(elasticsearchClient, spillLog, 1000)).isEqualTo(2);
+
+		verify(httpClient, times(4)).sendBulk(eq("http://localhost:9200/a/_bulk"), any(), any(), any());
+		assertThat(spillLog.isEmpty()).isTrue();
+	}
+
+	@Test
+	public void testStopReplayWhenElasticsearchIsNotAvailable() throws Exception {
+		when(elasticsearchClient.isElasticsearchAvailable()).thenReturn(true, true, false);
+		when(httpClient.sendBulk(any(), any(), any(), any())).thenReturn(429);
+
+		assertThat(replayer.replay(elasticsearchClient, spillLog, 1000)).isEqualTo(0);
+
+		verify(httpClient, times(1)).sendBulk(any(), any(), any(), any());
+		assertThat(spillLog.peek().getPath()).isEqualTo("/a/_bulk");
+	}
+
+	@Test
+	public void testDiscardRequestsWhichCanNotSucceed() throws Exception {
+		when(httpClient.sendBulk(any(), any(), any(), any())).thenReturn(400, 200);
+
+		assertThat(replayer.replay(elasticsearchClient, spillLog, 1000)).isEqualTo(1);
+
+		verify(httpClient, times(2)).sendBulk(any(), any(), any(), any());
+		assertThat(spillLog.isEmpty()).isTrue();
+	}
+}
@@ -0,0 +1,163 @@
+package org.stagemonitor.core.elasticsearch;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpillLogTest {
+
+	private static final int SEGMENT_SIZE = 64;
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private File directory;
+	private SpillLog spillLog;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = temporaryFolder.newFolder();
+		spillLog = new SpillLog(directory, SEGMENT_SIZE, 2);
+	}
+
+	@Test
+	public void testAppendPeekRemove() throws Exception {
+		assertThat(spillLog.isEmpty()).isTrue();
+		assertThat(spillLog.append("/a/_bulk", "foo".getBytes())).isTrue();
+		assertThat(spillLog.append("/b/_bulk", "bar".getBytes())).isTrue();
+		assertThat(spillLog.isEmpty()).isFalse();
+
+		final SpillLog.Entry first = spillLog.peek();
+		assertThat(first.getPath()).isEqualTo("/a/_bulk");
+		assertThat(new String(first.getPayload())).isEqualTo("foo");
+		assertThat(spillLog.peek().getPath()).isEqualTo("/a/_bulk");
+
+		spillLog.remove(first);
+		final SpillLog.Entry second = spillLog.peek();
+		assertThat(new String(second.getPayload())).isEqualTo("bar");
+		spillLog.remove(second);
+
+		assertThat(spillLog.peek()).isNull();
+		assertThat(spillLog.isEmpty()).isTrue();
+		assertThat(spillLog.getUnreadBytes()).isZero();
+	}
+
+	@Test
+	public void testPeekMultipleEntries() throws Exception {
+		spillLog = new SpillLog(directory, SEGMENT_SIZE, 3);
+		spillLog.append("/a/_bulk", "foo".getBytes());
+		spillLog.append("/a/_bulk", "bar".getBytes());
+		// spans two segments
+		spillLog.append("/a/_bulk", "baz".getBytes());
+		spillLog.append("/b/_bulk", "qux".getBytes());
+
+		assertThat(payloads(spillLog.peek(100))).containsExactly("foo", "bar", "baz");
+		assertThat(payloads(spillLog.peek(6))).containsExactly("foo", "bar");
+		assertThat(payloads(spillLog.peek(1))).containsExactly("foo");
+
+		for (SpillLog.Entry entry : spillLog.peek(100)) {
+			spillLog.remove(entry);
+		}
+		assertThat(payloads(spillLog.peek(100))).containsExactly("qux");
+		spillLog.remove(spillLog.peek());
+		assertThat(spillLog.peek(100)).isEmpty();
+	}
+
+	@Test
+	public void testReopen() throws Exception {
+		spillLog.append("/a/_bulk", "foo".getBytes());
+		spillLog.append("/b/_bulk", "bar".getBytes());
+		spillLog.remove(spillLog.peek());
+
+		final SpillLog reopened = new SpillLog(directory, SEGMENT_SIZE, 2);
+		final SpillLog.Entry entry = reopened.peek();
+		assertThat(entry.getPath()).isEqualTo("/b/_bulk");
+		assertThat(new String(entry.getPayload())).isEqualTo("bar");
+	}
+
+	@Test
+	public void testEvictOldestSegment() throws Exception {
+		// each entry fills up a segment
+		final byte[] payload = new byte[SEGMENT_SIZE - 8 - 8 - "/1".length()];
+		assertThat(spillLog.append("/1", payload)).isTrue();
+		assertThat(spillLog.append("/2", payload)).isTrue();
+		assertThat(spillLog.append("/3", payload)).isTrue();
+
+		assertThat(spillLog.getEvictedSegments()).isEqualTo(1);
+		assertThat(directory.listFiles()).hasSize(2);
+		assertThat(spillLog.peek().getPath()).isEqualTo("/2");
+	}
+
+	@Test
+	public void testRejectEntriesLargerThanSegment() throws Exception {
+		assertThat(spillLog.append("/a/_bulk", new byte[SEGMENT_SIZE])).isFalse();
+		assertThat(spillLog.isEmpty()).isTrue();
+	}
+
+	@Test
+	public void testDeleteReplayedSegments() throws Exception {
+		final byte[] payload = new byte[SEGMENT_SIZE - 8 - 8 - "/1".length()];
+		spillLog.append("/1", payload);
+		spillLog.append("/2", payload);
+		spillLog.remove(spillLog.peek());
+
+		assertThat(spillLog.peek().getPath()).isEqualTo("/2");
+		assertThat(directory.listFiles()).hasSize(1);
+	}
+
+	private static List<String> payloads(List<SpillLog.Entry> entries) {
+		final List<String> payloads = new ArrayList<String>();
+		for (SpillLog.Entry entry : entries) {
+			payloads.add(new String(entry.getPayload()));
+		}
+		return payloads;
+	}
+
+	@Test
+	public void testAppendDocumentsSplitsLargeBulks() throws Exception {
+		final SpillLog spillLog = new SpillLog(temporaryFolder.newFolder(), 64, 10);
+		// a document consists of an action and a source line, an entry can hold 46 bytes of payload with this path
+		final String document = "{\"index\":{}}\n{\"a\":1}\n";
+		final String tooLarge = "{\"index\":{}}\n{\"a\":\"" + new String(new char[40]).replace('\0', 'x') + "\"}\n";
+
+		assertThat(spillLog.appendDocuments("/b", (document + document + tooLarge + document).getBytes())).isEqualTo(1);
+
+		final List<String> payloads = new ArrayList<String>();
+		for (SpillLog.Entry entry = spillLog.peek(); entry != null; entry = spillLog.peek()) {
+			payloads.add(new String(entry.getPayload()));
+			spillLog.remove(entry);
+		}
+		assertThat(payloads).containsExactly(document + document, document);
+	}
+
+	@Test
+	public void testDiscardCorruptEntries() throws Exception {
+		spillLog.append("/a/_bulk", "foo".getBytes());
+		spillLog.append("/b/_bulk", "bar".getBytes());
+		// does not fit into the first segment anymore
+		spillLog.append("/c/_bulk", "baz".getBytes());
+		final File[] files = directory.listFiles();
+		Arrays.sort(files);
+		final RandomAccessFile firstSegment = new RandomAccessFile(files[0], "rw");
+		try {
+			// the size of the first entry
+			firstSegment.seek(8);
+			firstSegment.writeInt(Integer.MAX_VALUE);
+		} finally {
+			firstSegment.close();
+		}
+
+		final SpillLog reopenedSpillLog = new SpillLog(directory, SEGMENT_SIZE, 2);
+		final List<SpillLog.Entry> entries = reopenedSpillLog.peek(1000);
+		assertThat(entries).hasSize(1);
+		assertThat(entries.get(0).getPath()).isEqualTo("/c/_bulk");
+	}
+}
@@ -0,0 +1,132 @@
+package org.stagemonitor.core.instrument;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.health.HealthCheck;
+import com.codahale.metrics.health.HealthCheckRegistry;
+
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.utility.JavaModule;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+public class BackgroundRetransformationTest {
+
+	private HealthCheckRegistry healthCheckRegistry;
+	private Metric2Registry metricRegistry;
+	private BackgroundRetransformation backgroundRetransformation;
+
+	@Before
+	public void setUp() throws Exception {
+		healthCheckRegistry = new HealthCheckRegistry();
+		metricRegistry = new Metric2Registry();
+		backgroundRetransformation = new BackgroundRetransformation(healthCheckRegistry, metricRegistry);
+	}
+
+	@Test
+	public void testRetransformsLoadedClassesInBackground() throws Exception {
+		assertThat(new LoadedClass().getValue()).isEqualTo("original");
+		final Instrumentation instrumentation = ByteBuddyAgent.install();
+
+		final AgentBuilder agentBuilder = backgroundRetransformation.configure(new AgentBuilder.Default()
+				.disableClassFormatChanges()
+				.with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION))
+				.type(named(LoadedClass.class.getName()))
+				.transform(new AgentBuilder.Transformer() {
+					@Override
+					public DynamicType.Builder<?> transform(DynamicType.Builder<?> builder, TypeDescription typeDescription, ClassLoader classLoader, JavaModule module) {
+						return builder.visit(Advice.to(ReturnTransformedAdvice.class).on(named("getValue")));
+					}
+				});
+		final ResettableClassFileTransformer classFileTransformer = (ResettableClassFileTransformer) backgroundRetransformation.installOn(agentBuilder, instrumentation);
+		assertThat(classFileTransformer).isNotNull();
+		try {
+			final long timeout = System.currentTimeMillis() + 10000;
+			while (!backgroundRetransformation.isCompleted() && System.currentTimeMillis() < timeout) {
+				Thread.sleep(10);
+			}
+
+			assertThat(new LoadedClass().getValue()).isEqualTo("transformed");
+			assertThat(getGauge("total")).isEqualTo(1);
+			assertThat(getGauge("processed")).isEqualTo(1);
+			assertThat(getGauge("failed")).isEqualTo(0);
+			final HealthCheck.Result result = healthCheckRegistry.runHealthCheck(BackgroundRetransformation.HEALTH_CHECK_NAME);
+			assertThat(result.isHealthy()).isTrue();
+			assertThat(result.getMessage()).startsWith("Retransformed 1 loaded classes");
+		} finally {
+			classFileTransformer.reset(instrumentation, AgentBuilder.RedefinitionStrategy.RETRANSFORMATION);
+		}
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		final List<Class<?>> types = new ArrayList<Class<?>>();
+		for (int i = 0; i < BackgroundRetransformation.BATCH_SIZE * 3; i++) {
+			types.add(LoadedClass.class);
+		}
+		final Iterator<? extends List<Class<?>>> batches = backgroundRetransformation.new CancellableBatchAllocator(
+				AgentBuilder.RedefinitionStrategy.BatchAllocator.ForFixedSize.ofSize(BackgroundRetransformation.BATCH_SIZE))
+				.batch(types)
+				.iterator();
+		assertThat(batches.hasNext()).isTrue();
+		assertThat(batches.next()).hasSize(BackgroundRetransformation.BATCH_SIZE);
+
+		backgroundRetransformation.cancel();
+
+		assertThat(batches.hasNext()).isFalse();
+	}
+
+	@Test
+	public void testProgress() throws Exception {
+		final List<Class<?>> batch = new ArrayList<Class<?>>();
+		batch.add(LoadedClass.class);
+		final List<Class<?>> types = new ArrayList<Class<?>>(batch);
+		types.add(String.class);
+		final BackgroundRetransformation.ProgressListener listener = backgroundRetransformation.new ProgressListener();
+
+		listener.onBatch(0, batch, types);
+		assertThat(getGauge("total")).isEqualTo(2);
+		assertThat(getGauge("processed")).isEqualTo(0);
+		assertThat(healthCheckRegistry.runHealthCheck(BackgroundRetransformation.HEALTH_CHECK_NAME).getMessage())
+				.isEqualTo("Retransforming loaded classes in the background: 0 of 2 done");
+
+		listener.onBatch(1, batch, types);
+		listener.onError(1, batch, new RuntimeException(), types);
+		assertThat(getGauge("processed")).isEqualTo(1);
+		assertThat(getGauge("failed")).isEqualTo(1);
+		assertThat(healthCheckRegistry.runHealthCheck(BackgroundRetransformation.HEALTH_CHECK_NAME).isHealthy()).isFalse();
+	}
+
+	private Object getGauge(String state) {
+		final Gauge gauge = metricRegistry.getGauges().get(name("agent_retransformation_classes").tag("state", state).build());
+		return gauge.getValue();
+	}
+
+	public static class LoadedClass {
+		public String getValue() {
+			return "original";
+		}
+	}
+
+	public static class ReturnTransformedAdvice {
+		@Advice.OnMethodExit
+		public static void onExit(@Advice.Return(readOnly = false) String value) {
+			value = "transformed";
+		}
+	}
+}
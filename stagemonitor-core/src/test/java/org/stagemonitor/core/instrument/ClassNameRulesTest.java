@@ -0,0 +1,118 @@
+package org.stagemonitor.core.instrument;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClassNameRulesTest {
+
+	@Test
+	public void testIncludesAndExcludes() throws Exception {
+		final ClassNameRules rules = new ClassNameRules(Arrays.asList("com.foo", "org.bar"),
+				Arrays.asList("org.stagemonitor", "com.foo.generated"),
+				Arrays.asList("$$", "CGLIB"));
+
+		assertTrue(rules.isIncluded("com.foo.Service"));
+		assertTrue(rules.isIncluded("com.foo"));
+		assertTrue(rules.isIncluded("org.bar.baz.Qux"));
+		assertFalse(rules.isIncluded("com.fo"));
+		assertFalse(rules.isIncluded("com"));
+		assertFalse(rules.isIncluded("org.stagemonitor.core.CorePlugin"));
+		assertFalse(rules.isIncluded("com.foo.generated.Dto"));
+		assertFalse(rules.isIncluded("com.foo.Service$$EnhancerBySpring"));
+		assertFalse(rules.isIncluded("com.foo.ServiceByCGLIB"));
+		assertFalse(rules.isIncluded("java.lang.String"));
+		assertFalse(rules.isIncluded(""));
+	}
+
+	@Test
+	public void testFirstMatchingIncludeDeterminesMoreSpecificExcludes() throws Exception {
+		final List<String> excludes = Collections.singletonList("com.foo.b");
+		assertFalse(new ClassNameRules(Arrays.asList("com.foo", "com.foo.bar"), excludes, Collections.<String>emptyList())
+				.isIncluded("com.foo.bar.Baz"));
+		assertTrue(new ClassNameRules(Arrays.asList("com.foo.bar", "com.foo"), excludes, Collections.<String>emptyList())
+				.isIncluded("com.foo.bar.Baz"));
+	}
+
+	@Test
+	public void testNonAsciiCharacters() throws Exception {
+		final ClassNameRules rules = new ClassNameRules(Arrays.asList("com.föö"),
+				Collections.<String>emptyList(), Arrays.asList("ä"));
+		assertTrue(rules.isIncluded("com.föö.Bar"));
+		assertFalse(rules.isIncluded("com.föö.Bär"));
+		assertFalse(rules.isIncluded("com.föo.Bar"));
+	}
+
+	@Test
+	public void testEmptyRules() throws Exception {
+		assertFalse(new ClassNameRules(Collections.<String>emptyList(), Collections.<String>emptyList(),
+				Collections.<String>emptyList()).isIncluded("com.foo.Bar"));
+		assertTrue(new ClassNameRules(Collections.singletonList(""), Collections.<String>emptyList(),
+				Collections.<String>emptyList()).isIncluded("com.foo.Bar"));
+		assertFalse(new ClassNameRules(Collections.singletonList(""), Collections.<String>emptyList(),
+				Collections.singletonList("")).isIncluded("com.foo.Bar"));
+	}
+
+	@Test
+	public void testSameResultAsEvaluatingRulesOneAfterAnother() throws Exception {
+		final Random random = new Random(42);
+		for (int i = 0; i < 200; i++) {
+			final List<String> includes = randomStrings(random, 5, 6);
+			final List<String> excludes = randomStrings(random, 5, 8);
+			final List<String> excludeContaining = randomStrings(random, 3, 3);
+			final ClassNameRules rules = new ClassNameRules(includes, excludes, excludeContaining);
+			for (int j = 0; j < 200; j++) {
+				final String className = randomString(random, 12);
+				assertEquals(includes + " " + excludes + " " + excludeContaining + " " + className,
+						isIncluded(className, includes, excludes, excludeContaining), rules.isIncluded(className));
+			}
+		}
+	}
+
+	private static List<String> randomStrings(Random random, int maxCount, int maxLength) {
+		final List<String> strings = new ArrayList<String>();
+		final int count = random.nextInt(maxCount + 1);
+		for (int i = 0; i < count; i++) {
+			strings.add(randomString(random, maxLength));
+		}
+		return strings;
+	}
+
+	private static String randomString(Random random, int maxLength) {
+		final StringBuilder sb = new StringBuilder();
+		final int length = 1 + random.nextInt(maxLength);
+		for (int i = 0; i < length; i++) {
+			sb.append("ab.$".charAt(random.nextInt(4)));
+		}
+		return sb.toString();
+	}
+
+	private static boolean isIncluded(String className, Collection<String> includes, Collection<String> excludes,
+									  Collection<String> excludeContaining) {
+		for (String exclude : excludeContaining) {
+			if (className.contains(exclude)) {
+				return false;
+			}
+		}
+		for (String include : includes) {
+			if (className.startsWith(include)) {
+				for (String exclude : excludes) {
+					if (exclude.length() > include.length() && exclude.startsWith(include) && className.startsWith(exclude)) {
+						return false;
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+}
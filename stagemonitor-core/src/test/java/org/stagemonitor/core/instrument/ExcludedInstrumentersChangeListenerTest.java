@@ -0,0 +1,89 @@
+package org.stagemonitor.core.instrument;
+
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.instrument.Instrumentation;
+import java.util.Collections;
+
+import static net.bytebuddy.matcher.ElementMatchers.any;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ExcludedInstrumentersChangeListenerTest {
+
+	private Instrumentation instrumentation;
+	private ResettableClassFileTransformer classFileTransformer;
+	private ExcludedInstrumentersChangeListener changeListener;
+
+	@Before
+	public void setUp() throws Exception {
+		assertThat(new LoadedClass().getValue()).isEqualTo("original");
+		instrumentation = ByteBuddyAgent.install();
+		final MergedTransformation mergedTransformation = new MergedTransformation(
+				Collections.<StagemonitorByteBuddyTransformer>singletonList(new ReturnTransformedTransformer()));
+		classFileTransformer = new AgentBuilder.Default()
+				.disableClassFormatChanges()
+				.with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+				.type(mergedTransformation)
+				.transform(mergedTransformation)
+				.installOn(instrumentation);
+		changeListener = new ExcludedInstrumentersChangeListener(mergedTransformation, instrumentation);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		classFileTransformer.reset(instrumentation, AgentBuilder.RedefinitionStrategy.RETRANSFORMATION);
+	}
+
+	@Test
+	public void testDisableAndEnableInstrumenter() throws Exception {
+		assertThat(new LoadedClass().getValue()).isEqualTo("transformed");
+
+		changeListener.onChange(null, Collections.<String>emptySet(),
+				Collections.singleton(ReturnTransformedTransformer.class.getSimpleName()));
+		assertThat(new LoadedClass().getValue()).isEqualTo("original");
+
+		changeListener.onChange(null, Collections.singleton(ReturnTransformedTransformer.class.getSimpleName()),
+				Collections.<String>emptySet());
+		assertThat(new LoadedClass().getValue()).isEqualTo("transformed");
+	}
+
+	public static class LoadedClass {
+		public String getValue() {
+			return "original";
+		}
+	}
+
+	public static class ReturnTransformedTransformer extends StagemonitorByteBuddyTransformer {
+
+		@Override
+		protected ElementMatcher.Junction<TypeDescription> getTypeMatcher() {
+			return named(LoadedClass.class.getName());
+		}
+
+		@Override
+		protected ElementMatcher.Junction<ClassLoader> getClassLoaderMatcher() {
+			return any();
+		}
+
+		@Override
+		protected ElementMatcher.Junction<MethodDescription> getExtraMethodElementMatcher() {
+			return named("getValue");
+		}
+
+		@Advice.OnMethodExit
+		public static void onExit(@Advice.Return(readOnly = false) String value) {
+			value = "transformed";
+		}
+	}
+}
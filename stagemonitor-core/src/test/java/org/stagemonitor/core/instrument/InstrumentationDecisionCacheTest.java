@@ -0,0 +1,111 @@
+package org.stagemonitor.core.instrument;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.BitSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InstrumentationDecisionCacheTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File cacheFile;
+	private ProtectionDomain jar;
+
+	@Before
+	public void setUp() throws Exception {
+		cacheFile = new File(temporaryFolder.getRoot(), "cache/decisions.txt");
+		jar = protectionDomain(createJar("app.jar", "foo"));
+	}
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		final InstrumentationDecisionCache cache = InstrumentationDecisionCache.load(cacheFile, "fingerprint");
+		final String key = cache.getKey("com.foo.Bar", jar);
+		assertThat(cache.getTypeMatches(key)).isNull();
+		cache.putTypeMatches(key, bitSet(0, 2));
+		cache.putTypeMatches(cache.getKey("com.foo.Baz", jar), new BitSet());
+		cache.save();
+
+		final InstrumentationDecisionCache loadedCache = InstrumentationDecisionCache.load(cacheFile, "fingerprint");
+		assertThat(loadedCache.size()).isEqualTo(2);
+		assertThat(loadedCache.getTypeMatches(loadedCache.getKey("com.foo.Bar", jar))).isEqualTo(bitSet(0, 2));
+		assertThat(loadedCache.getTypeMatches(loadedCache.getKey("com.foo.Baz", jar))).isEqualTo(new BitSet());
+	}
+
+	@Test
+	public void testDifferentFingerprint() throws Exception {
+		final InstrumentationDecisionCache cache = InstrumentationDecisionCache.load(cacheFile, "fingerprint");
+		cache.putTypeMatches(cache.getKey("com.foo.Bar", jar), bitSet(0));
+		cache.save();
+
+		assertThat(InstrumentationDecisionCache.load(cacheFile, "other fingerprint").size()).isZero();
+	}
+
+	@Test
+	public void testChangedJar() throws Exception {
+		final InstrumentationDecisionCache cache = InstrumentationDecisionCache.load(cacheFile, "fingerprint");
+		cache.putTypeMatches(cache.getKey("com.foo.Bar", jar), bitSet(0));
+		cache.save();
+
+		final ProtectionDomain changedJar = protectionDomain(createJar("app.jar", "bar"));
+		final InstrumentationDecisionCache loadedCache = InstrumentationDecisionCache.load(cacheFile, "fingerprint");
+		assertThat(loadedCache.getTypeMatches(loadedCache.getKey("com.foo.Bar", changedJar))).isNull();
+	}
+
+	@Test
+	public void testOnlyKeepsDecisionsOfUsedJars() throws Exception {
+		final ProtectionDomain otherJar = protectionDomain(createJar("other.jar", "bar"));
+		final InstrumentationDecisionCache cache = InstrumentationDecisionCache.load(cacheFile, "fingerprint");
+		cache.putTypeMatches(cache.getKey("com.foo.Bar", jar), bitSet(0));
+		cache.putTypeMatches(cache.getKey("com.bar.Baz", otherJar), bitSet(0));
+		cache.save();
+
+		final InstrumentationDecisionCache loadedCache = InstrumentationDecisionCache.load(cacheFile, "fingerprint");
+		loadedCache.putTypeMatches(loadedCache.getKey("com.foo.Qux", jar), bitSet(1));
+		loadedCache.save();
+
+		assertThat(InstrumentationDecisionCache.load(cacheFile, "fingerprint").size()).isEqualTo(2);
+	}
+
+	@Test
+	public void testClassesNotLoadedFromJarsAreNotCached() throws Exception {
+		final InstrumentationDecisionCache cache = InstrumentationDecisionCache.load(cacheFile, "fingerprint");
+		assertThat(cache.getKey("com.foo.Bar", null)).isNull();
+		assertThat(cache.getKey("com.foo.Bar", protectionDomain(temporaryFolder.newFolder("classes")))).isNull();
+	}
+
+	private File createJar(String name, String content) throws IOException {
+		final File jar = new File(temporaryFolder.getRoot(), name);
+		final FileOutputStream out = new FileOutputStream(jar);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		return jar;
+	}
+
+	private static ProtectionDomain protectionDomain(File file) throws Exception {
+		return new ProtectionDomain(new CodeSource(file.toURI().toURL(), (Certificate[]) null), null);
+	}
+
+	private static BitSet bitSet(int... indices) {
+		final BitSet bitSet = new BitSet();
+		for (int index : indices) {
+			bitSet.set(index);
+		}
+		return bitSet;
+	}
+}
@@ -0,0 +1,224 @@
+package org.stagemonitor.core.instrument;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.matcher.ElementMatchers;
+import net.bytebuddy.utility.JavaModule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.nameEndsWith;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class MergedTransformationTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private final List<String> appliedTransformers = new ArrayList<String>();
+	private final List<String> ignoredBy = new ArrayList<String>();
+	private final ClassLoader classLoader = getClass().getClassLoader();
+
+	@Test
+	public void testAppliesAllMatchingTransformersInOrder() throws Exception {
+		final MergedTransformation mergedTransformation = new MergedTransformation(Arrays.<StagemonitorByteBuddyTransformer>asList(
+				new TestTransformer("first", nameEndsWith("Test"), false),
+				new TestTransformer("second", named(String.class.getName()), true),
+				new TestTransformer("third", nameEndsWith("TransformationTest"), false)));
+
+		assertThat(matches(mergedTransformation, MergedTransformationTest.class, classLoader)).isTrue();
+		transform(mergedTransformation, MergedTransformationTest.class);
+		assertThat(appliedTransformers).containsExactly("first", "third");
+		assertThat(ignoredBy).containsExactly("second");
+	}
+
+	@Test
+	public void testOnlyConsultsCoreJavaClassTransformersForCoreJavaClasses() throws Exception {
+		final MergedTransformation mergedTransformation = new MergedTransformation(Arrays.<StagemonitorByteBuddyTransformer>asList(
+				new TestTransformer("first", named(String.class.getName()), false),
+				new TestTransformer("second", named(String.class.getName()), true)));
+
+		assertThat(matches(mergedTransformation, String.class, null)).isTrue();
+		transform(mergedTransformation, String.class);
+		assertThat(appliedTransformers).containsExactly("second");
+	}
+
+	@Test
+	public void testNoMatch() throws Exception {
+		final MergedTransformation mergedTransformation = new MergedTransformation(Arrays.<StagemonitorByteBuddyTransformer>asList(
+				new TestTransformer("first", named("foo"), false)));
+
+		assertThat(matches(mergedTransformation, MergedTransformationTest.class, classLoader)).isFalse();
+		transform(mergedTransformation, MergedTransformationTest.class);
+		assertThat(appliedTransformers).isEmpty();
+		assertThat(ignoredBy).containsExactly("first");
+	}
+
+	@Test
+	public void testDisabledTransformers() throws Exception {
+		final MergedTransformation mergedTransformation = new MergedTransformation(Arrays.<StagemonitorByteBuddyTransformer>asList(
+				new TestTransformer("first", nameEndsWith("Test"), false),
+				new TestTransformer("second", nameEndsWith("Test"), false)));
+
+		final BitSet changedTransformers = mergedTransformation.setDisabledTransformers(Arrays.asList(TestTransformer.class.getSimpleName()));
+		assertThat(changedTransformers.cardinality()).isEqualTo(2);
+		assertThat(matches(mergedTransformation, MergedTransformationTest.class, classLoader)).isFalse();
+		assertThat(mergedTransformation.setDisabledTransformers(Arrays.asList(TestTransformer.class.getSimpleName())).isEmpty()).isTrue();
+
+		assertThat(mergedTransformation.setDisabledTransformers(Arrays.<String>asList()).cardinality()).isEqualTo(2);
+		assertThat(matches(mergedTransformation, MergedTransformationTest.class, classLoader)).isTrue();
+		transform(mergedTransformation, MergedTransformationTest.class);
+		assertThat(appliedTransformers).containsExactly("first", "second");
+	}
+
+	@Test
+	public void testEvaluatesSharedPredicatesOnlyOncePerType() throws Exception {
+		final AtomicInteger evaluations = new AtomicInteger();
+		final SharedTypeVerdict sharedPredicate = new SharedTypeVerdict(new ElementMatcher<TypeDescription>() {
+			@Override
+			public boolean matches(TypeDescription target) {
+				evaluations.incrementAndGet();
+				return true;
+			}
+		});
+		final MergedTransformation mergedTransformation = new MergedTransformation(Arrays.<StagemonitorByteBuddyTransformer>asList(
+				new TestTransformer("first", sharedPredicate.and(nameEndsWith("Test")), false),
+				new TestTransformer("second", sharedPredicate.and(named("foo")), false),
+				new TestTransformer("third", sharedPredicate, false)));
+
+		assertThat(matches(mergedTransformation, MergedTransformationTest.class, classLoader)).isTrue();
+		assertThat(evaluations.get()).isEqualTo(1);
+		assertThat(matches(mergedTransformation, MergedTransformation.class, classLoader)).isTrue();
+		assertThat(evaluations.get()).isEqualTo(2);
+
+		// outside of the merged stage, the predicate is evaluated on each call
+		sharedPredicate.matches(TypeDescription.ForLoadedType.of(MergedTransformation.class));
+		sharedPredicate.matches(TypeDescription.ForLoadedType.of(MergedTransformation.class));
+		assertThat(evaluations.get()).isEqualTo(4);
+	}
+
+	@Test
+	public void testSharesApplicationClassLoaderVerdict() throws Exception {
+		final MergedTransformation mergedTransformation = new MergedTransformation(Arrays.<StagemonitorByteBuddyTransformer>asList(
+				new TestTransformer("first", nameEndsWith("Test"), false, null),
+				new TestTransformer("second", nameEndsWith("Test"), false, ElementMatchers.<ClassLoader>any()),
+				new TestTransformer("third", nameEndsWith("Test"), false, null)));
+
+		assertThat(matches(mergedTransformation, MergedTransformationTest.class, classLoader)).isTrue();
+		transform(mergedTransformation, MergedTransformationTest.class);
+		assertThat(appliedTransformers).containsExactly("first", "second", "third");
+
+		appliedTransformers.clear();
+		// can't load the classes of stagemonitor and is therefore no application class loader
+		final ClassLoader otherClassLoader = new URLClassLoader(new URL[0], null);
+		assertThat(matches(mergedTransformation, MergedTransformationTest.class, otherClassLoader)).isTrue();
+		transform(mergedTransformation, MergedTransformationTest.class);
+		assertThat(appliedTransformers).containsExactly("second");
+		assertThat(ignoredBy).containsExactly("first", "third");
+	}
+
+	@Test
+	public void testDecisionCache() throws Exception {
+		final File jar = temporaryFolder.newFile("app.jar");
+		final ProtectionDomain protectionDomain = new ProtectionDomain(new CodeSource(jar.toURI().toURL(), (Certificate[]) null), null);
+		final List<StagemonitorByteBuddyTransformer> transformers = Arrays.<StagemonitorByteBuddyTransformer>asList(
+				new TestTransformer("first", nameEndsWith("Test"), false),
+				new TestTransformer("second", named("foo"), false));
+		final TypeDescription type = TypeDescription.ForLoadedType.of(MergedTransformationTest.class);
+		final InstrumentationDecisionCache decisionCache = new InstrumentationDecisionCache(temporaryFolder.newFile(), "fingerprint");
+
+		assertThat(new MergedTransformation(transformers, decisionCache).matches(type, classLoader, null, null, protectionDomain)).isTrue();
+		final String key = decisionCache.getKey(type.getName(), protectionDomain);
+		final BitSet expectedTypeMatches = new BitSet();
+		expectedTypeMatches.set(0);
+		assertThat(decisionCache.getTypeMatches(key)).isEqualTo(expectedTypeMatches);
+
+		// the cached decision is used instead of evaluating the type matchers
+		final BitSet cachedTypeMatches = new BitSet();
+		cachedTypeMatches.set(1);
+		decisionCache.putTypeMatches(key, cachedTypeMatches);
+		final MergedTransformation mergedTransformation = new MergedTransformation(transformers, decisionCache);
+		assertThat(mergedTransformation.matches(type, classLoader, null, null, protectionDomain)).isTrue();
+		transform(mergedTransformation, MergedTransformationTest.class);
+		assertThat(appliedTransformers).containsExactly("second");
+	}
+
+	private boolean matches(MergedTransformation mergedTransformation, Class<?> type, ClassLoader classLoader) {
+		return mergedTransformation.matches(TypeDescription.ForLoadedType.of(type), classLoader, JavaModule.ofType(type), null, null);
+	}
+
+	private void transform(MergedTransformation mergedTransformation, Class<?> type) {
+		mergedTransformation.transform(mock(DynamicType.Builder.class), TypeDescription.ForLoadedType.of(type), classLoader, null);
+	}
+
+	private class TestTransformer extends StagemonitorByteBuddyTransformer {
+		private final String name;
+		private final ElementMatcher.Junction<TypeDescription> typeMatcher;
+		private final boolean transformsCoreJavaClasses;
+		private final ElementMatcher.Junction<ClassLoader> classLoaderMatcher;
+
+		private TestTransformer(String name, ElementMatcher.Junction<TypeDescription> typeMatcher, boolean transformsCoreJavaClasses) {
+			this(name, typeMatcher, transformsCoreJavaClasses, ElementMatchers.<ClassLoader>any());
+		}
+
+		/**
+		 * @param classLoaderMatcher the class loader matcher or <code>null</code> to use the default one
+		 */
+		private TestTransformer(String name, ElementMatcher.Junction<TypeDescription> typeMatcher, boolean transformsCoreJavaClasses,
+								ElementMatcher.Junction<ClassLoader> classLoaderMatcher) {
+			this.name = name;
+			this.typeMatcher = typeMatcher;
+			this.transformsCoreJavaClasses = transformsCoreJavaClasses;
+			this.classLoaderMatcher = classLoaderMatcher;
+		}
+
+		@Override
+		protected ElementMatcher.Junction<TypeDescription> getTypeMatcher() {
+			return typeMatcher;
+		}
+
+		@Override
+		protected ElementMatcher.Junction<ClassLoader> getClassLoaderMatcher() {
+			return classLoaderMatcher != null ? classLoaderMatcher : super.getClassLoaderMatcher();
+		}
+
+		@Override
+		protected boolean transformsCoreJavaClasses() {
+			return transformsCoreJavaClasses;
+		}
+
+		@Override
+		public AgentBuilder.Transformer getTransformer() {
+			return new AgentBuilder.Transformer() {
+				@Override
+				public DynamicType.Builder<?> transform(DynamicType.Builder<?> builder, TypeDescription typeDescription, ClassLoader classLoader, JavaModule module) {
+					appliedTransformers.add(name);
+					return builder;
+				}
+			};
+		}
+
+		@Override
+		public void onIgnored(TypeDescription typeDescription, ClassLoader classLoader) {
+			ignoredBy.add(name);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Timer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+public class CardinalityLimiterTest {
+
+	private Metric2Registry registry;
+
+	@Before
+	public void setUp() throws Exception {
+		registry = new Metric2Registry();
+	}
+
+	@Test
+	public void testFoldIntoOverflowBucketWhenLimitPerNameIsExceeded() throws Exception {
+		registry.setCardinalityLimit(0, 2);
+		for (int i = 0; i < 5; i++) {
+			registry.timer(name("response_time").operationName("op" + i).layer("All").build()).update(1, TimeUnit.MILLISECONDS);
+		}
+
+		assertThat(registry.getTimers()).containsOnlyKeys(
+				name("response_time").operationName("op0").layer("All").build(),
+				name("response_time").operationName("op1").layer("All").build(),
+				name("response_time").operationName("other").layer("other").build());
+		assertThat(registry.getTimers().get(name("response_time").operationName("other").layer("other").build()).getCount())
+				.isEqualTo(3);
+		assertThat(registry.getCounters().get(name("metrics_cardinality_rejected").tag("metric_name", "response_time").build()).getCount())
+				.isEqualTo(3);
+		// existing series are still tracked
+		registry.timer(name("response_time").operationName("op1").layer("All").build()).update(1, TimeUnit.MILLISECONDS);
+		assertThat(registry.getTimers().get(name("response_time").operationName("op1").layer("All").build()).getCount())
+				.isEqualTo(2);
+	}
+
+	@Test
+	public void testGlobalLimit() throws Exception {
+		registry.setCardinalityLimit(3, 0);
+		registry.meter(name("rate").tag("signature", "a").build());
+		final Timer timer = registry.timer(name("timer").build());
+		// the gauge of the limiter is the third metric
+		assertThat(registry.getGauges()).containsOnlyKeys(name("metrics_cardinality_series").build());
+
+		assertThat(registry.meter(name("rate").tag("signature", "b").build()))
+				.isSameAs(registry.getMeters().get(name("rate").tag("signature", "other").build()));
+		// there is no overflow bucket for new names
+		assertThat(registry.timer(name("new_timer").tag("foo", "bar").build())).isNotSameAs(timer);
+		assertThat(registry.getTimers()).containsOnlyKeys(name("timer").build());
+		assertThat(registry.getCounters().get(name("metrics_cardinality_rejected").tag("metric_name", "other").build()).getCount())
+				.isEqualTo(1);
+	}
+
+	@Test
+	public void testExplicitlyRegisteredMetricsAreNotRejected() throws Exception {
+		registry.setCardinalityLimit(0, 1);
+		registry.counter(name("counter").tag("foo", "1").build());
+		final Counter counter = new Counter();
+		registry.register(name("counter").tag("foo", "2").build(), counter);
+
+		assertThat(registry.getCounters().get(name("counter").tag("foo", "2").build())).isSameAs(counter);
+		assertThat(registry.getCardinalityLimiter().getHeavyHitters()).containsEntry("counter", 2);
+	}
+
+	@Test
+	public void testRemovedMetricsFreeCapacity() throws Exception {
+		registry.setCardinalityLimit(0, 1);
+		registry.counter(name("counter").tag("foo", "1").build());
+		registry.remove(name("counter").tag("foo", "1").build());
+		registry.counter(name("counter").tag("foo", "2").build());
+
+		assertThat(registry.getCounters()).containsOnlyKeys(name("counter").tag("foo", "2").build());
+	}
+
+	@Test
+	public void testHeavyHitters() throws Exception {
+		registry.register(name("gauge").build(), new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return 1;
+			}
+		});
+		registry.setCardinalityLimit(0, 0);
+		for (int i = 0; i < 3; i++) {
+			registry.counter(name("counter").tag("foo", Integer.toString(i)).build());
+			registry.meter(name("meter").tag("foo", Integer.toString(i % 2)).build());
+		}
+
+		assertThat(registry.getCardinalityLimiter().getHeavyHitters().keySet())
+				.containsSubsequence("counter", "meter", "gauge");
+	}
+}
@@ -0,0 +1,58 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+public class ElasticsearchMetricsWriterTest {
+
+	private final Metric2Registry registry = new Metric2Registry();
+	private final ElasticsearchMetricsWriter writer = new ElasticsearchMetricsWriter(registry, TimeUnit.SECONDS,
+			TimeUnit.MILLISECONDS, Collections.<String, String>emptyMap(), false);
+
+	@Test
+	public void testKeepCachedNamesWhenOnlyFewMetricsAreReported() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			registry.counter(name("counter").tag("i", Integer.toString(i)).build());
+		}
+		write(registry.getCounters());
+		assertThat(writer.getCachedNamesCount()).isEqualTo(10);
+
+		// only the changed metrics are reported
+		write(Collections.singletonMap(name("counter").tag("i", "0").build(), registry.counter(name("counter").tag("i", "0").build())));
+
+		assertThat(writer.getCachedNamesCount()).isEqualTo(10);
+	}
+
+	@Test
+	public void testEvictNamesOfRemovedMetrics() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			registry.counter(name("counter").tag("i", Integer.toString(i)).build());
+		}
+		write(registry.getCounters());
+		registry.removeMatching(Metric2Filter.ALL);
+		registry.counter(name("counter").tag("i", "0").build());
+
+		write(registry.getCounters());
+
+		assertThat(writer.getCachedNamesCount()).isZero();
+	}
+
+	private void write(Map<MetricName, Counter> counters) throws Exception {
+		writer.write(new ByteArrayOutputStream(), "{\"index\":{}}\n".getBytes("UTF-8"), 0,
+				Collections.<MetricName, Gauge>emptyMap(), counters, Collections.<MetricName, Histogram>emptyMap(),
+				Collections.<MetricName, Meter>emptyMap(), Collections.<MetricName, Timer>emptyMap());
+	}
+}
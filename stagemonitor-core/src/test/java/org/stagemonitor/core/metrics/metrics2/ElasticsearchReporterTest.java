@@ -9,12 +9,15 @@ import com.codahale.metrics.Timer;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 import org.stagemonitor.core.CorePlugin;
 import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
+import org.stagemonitor.core.elasticsearch.SpillLog;
 import org.stagemonitor.core.metrics.MetricNameFilter;
 import org.stagemonitor.core.util.HttpClient;
 import org.stagemonitor.core.util.JsonUtils;
@@ -22,15 +25,19 @@ import org.stagemonitor.util.StringUtils;
 
 import java.io.ByteArrayOutputStream;
 import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 import static java.util.Collections.singleton;
 import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -46,6 +53,9 @@ import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
 public class ElasticsearchReporterTest {
 
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
 	private static final TimeUnit DURATION_UNIT = TimeUnit.MICROSECONDS;
 	private static final double DURATION_FACTOR = 1.0 / DURATION_UNIT.toNanos(1);
 	
@@ -56,17 +66,18 @@ public class ElasticsearchReporterTest {
 	private CorePlugin corePlugin;
 	private Metric2Registry registry;
 	private Clock clock;
+	private HttpClient httpClient;
 
 	@Before
 	public void setUp() throws Exception {
 		this.clock = mock(Clock.class);
 		timestamp = System.currentTimeMillis();
 		when(clock.getTime()).thenReturn(timestamp);
-		final HttpClient httpClient = mock(HttpClient.class);
-		when(httpClient.send(any(), any(), any(), any(), any())).thenAnswer(new Answer<Integer>() {
+		httpClient = mock(HttpClient.class);
+		when(httpClient.sendBulk(any(), any(), any(), any())).thenAnswer(new Answer<Integer>() {
 			@Override
 			public Integer answer(InvocationOnMock invocation) throws Throwable {
-				HttpClient.OutputStreamHandler handler = (HttpClient.OutputStreamHandler) invocation.getArguments()[3];
+				HttpClient.OutputStreamHandler handler = (HttpClient.OutputStreamHandler) invocation.getArguments()[2];
 				final HttpURLConnection connection = mock(HttpURLConnection.class);
 				when(connection.getOutputStream()).thenReturn(out);
 				handler.withHttpURLConnection(connection.getOutputStream());
@@ -164,6 +175,53 @@ public class ElasticsearchReporterTest {
 				asMap(jsons.split("\n")[1]));
 	}
 
+	@Test
+	public void testSpillWhenBulkRequestIsRejected() throws Exception {
+		final SpillLog spillLog = new SpillLog(temporaryFolder.newFolder(), 1024 * 1024, 1);
+		when(corePlugin.getSpillLog()).thenReturn(spillLog);
+		doReturn(429).when(httpClient).sendBulk(any(), any(), any(), any());
+
+		elasticsearchReporter.reportMetrics(
+				metricNameMap(name("cpu_usage").build(), gauge(3)),
+				metricNameMap(Counter.class),
+				metricNameMap(Histogram.class),
+				metricNameMap(Meter.class),
+				metricNameMap(Timer.class));
+
+		final List<SpillLog.Entry> entries = spillLog.peek(Integer.MAX_VALUE);
+		assertThat(entries).hasSize(1);
+		assertThat(entries.get(0).getPath()).endsWith("/metrics/_bulk");
+		assertThat(new String(entries.get(0).getPayload(), "UTF-8")).contains("\"name\":\"cpu_usage\"");
+	}
+
+	@Test
+	public void testSplitLargeReportsWhenSpilling() throws Exception {
+		final SpillLog spillLog = new SpillLog(temporaryFolder.newFolder(), 1024, 100);
+		when(corePlugin.getSpillLog()).thenReturn(spillLog);
+		when(corePlugin.getElasticsearchClient().isElasticsearchAvailable()).thenReturn(false);
+		final Map<MetricName, Gauge> gauges = new HashMap<>();
+		for (int i = 0; i < 100; i++) {
+			gauges.put(name("gauge").tag("i", Integer.toString(i)).build(), gauge(i));
+		}
+
+		elasticsearchReporter.reportMetrics(gauges,
+				metricNameMap(Counter.class),
+				metricNameMap(Histogram.class),
+				metricNameMap(Meter.class),
+				metricNameMap(Timer.class));
+
+		int entries = 0;
+		int lines = 0;
+		for (SpillLog.Entry entry = spillLog.peek(); entry != null; entry = spillLog.peek()) {
+			entries++;
+			lines += new String(entry.getPayload(), "UTF-8").split("\n").length;
+			spillLog.remove(entry);
+		}
+		assertThat(entries).isGreaterThan(1);
+		assertThat(lines).isEqualTo(200);
+		assertThat(registry.counter(ElasticsearchReporter.metricsDroppedMetricName).getCount()).isZero();
+	}
+
 	@Test
 	public void testReportNullGauge() throws Exception {
 		elasticsearchReporter.reportMetrics(
@@ -229,6 +287,27 @@ public class ElasticsearchReporterTest {
 				asMap(out));
 	}
 
+	@Test
+	public void testReportTwiceWithEscapedTags() throws Exception {
+		final Map<MetricName, Gauge> gauges = metricNameMap(name("gauge").tag("quote", "\"foo\"").build(), gauge(1));
+		for (int i = 0; i < 2; i++) {
+			out.reset();
+			elasticsearchReporter.reportMetrics(gauges,
+					metricNameMap(Counter.class),
+					metricNameMap(Histogram.class),
+					metricNameMap(Meter.class),
+					metricNameMap(Timer.class));
+
+			assertEquals(
+					objectMap("@timestamp", timestamp)
+							.add("name", "gauge")
+							.add("app", "test")
+							.add("quote", "\"foo\"")
+							.add("value", 1.0),
+					asMap(out));
+		}
+	}
+
 	@Test
 	public void testReportCounters() throws Exception {
 		elasticsearchReporter.reportMetrics(
@@ -323,6 +402,26 @@ public class ElasticsearchReporterTest {
 						.add("std", 500.0 * DURATION_FACTOR),
 				asMap(out));
 	}
+	@Test
+	public void testReportMergeableHistograms() throws Exception {
+		final ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(registry, corePlugin)
+				.httpClient(httpClient)
+				.mergeableHistograms(true)
+				.build();
+		final Timer timer = new Timer(new HdrHistogramReservoir(1));
+		timer.update(1, TimeUnit.MILLISECONDS);
+		Thread.sleep(2);
+
+		reporter.reportMetrics(
+				metricNameMap(Gauge.class),
+				metricNameMap(Counter.class),
+				metricNameMap(Histogram.class),
+				metricNameMap(Meter.class),
+				metricNameMap(name("response_time").build(), timer));
+
+		assertThat(asMap(out).get("hdr")).isInstanceOf(String.class);
+	}
+
 	private Map<String, Object> asMap(ByteArrayOutputStream os) throws java.io.IOException {
 		return asMap(new String(os.toByteArray()).split("\n")[1]);
 	}
@@ -0,0 +1,133 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Snapshot;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+public class HdrHistogramReservoirTest {
+
+	private Clock clock;
+	private HdrHistogramReservoir reservoir;
+
+	@Before
+	public void setUp() throws Exception {
+		clock = mock(Clock.class);
+		when(clock.getTime()).thenReturn(0L);
+		reservoir = new HdrHistogramReservoir(1000, clock);
+	}
+
+	@Test
+	public void testSnapshotContainsValuesOfLastInterval() throws Exception {
+		for (int i = 1; i <= 100; i++) {
+			reservoir.update(i);
+		}
+		// the interval has not ended yet
+		assertThat(reservoir.getSnapshot().size()).isEqualTo(0);
+
+		when(clock.getTime()).thenReturn(1000L);
+		final Snapshot snapshot = reservoir.getSnapshot();
+		assertThat(snapshot.size()).isEqualTo(100);
+		assertThat(snapshot.getMin()).isEqualTo(1);
+		assertThat(snapshot.getMax()).isEqualTo(100);
+		assertThat(snapshot.getMean()).isCloseTo(50.5, within(0.5));
+		assertThat(snapshot.getMedian()).isCloseTo(50, within(1.0));
+		assertThat(snapshot.get99thPercentile()).isCloseTo(99, within(1.0));
+		assertThat(snapshot.getValues()).hasSize(100);
+
+		// all snapshots of an interval are equal
+		reservoir.update(1000);
+		assertThat(reservoir.getSnapshot().size()).isEqualTo(100);
+
+		when(clock.getTime()).thenReturn(2500L);
+		assertThat(reservoir.getSnapshot().size()).isEqualTo(1);
+		assertThat(reservoir.getSnapshot().getMax()).isCloseTo(1000, within(10L));
+	}
+
+	@Test
+	public void testSnapshotsWithinIntervalDontRollOver() throws Exception {
+		reservoir.update(0);
+		when(clock.getTime()).thenReturn(1000L);
+		assertThat(reservoir.getSnapshot().size()).isEqualTo(1);
+		reservoir.update(1);
+		for (int i = 0; i < 100; i++) {
+			when(clock.getTime()).thenReturn(1000L + i);
+			reservoir.getSnapshot();
+		}
+		reservoir.update(2);
+
+		// the values of the interval are only visible after the interval has ended
+		assertThat(reservoir.getSnapshot().size()).isEqualTo(1);
+		when(clock.getTime()).thenReturn(2000L);
+		assertThat(reservoir.getSnapshot().size()).isEqualTo(2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIntervalMustBePositive() throws Exception {
+		new HdrHistogramReservoir(0, clock);
+	}
+
+	@Test
+	public void testMergeEncodedHistograms() throws Exception {
+		final HdrHistogramReservoir otherReservoir = new HdrHistogramReservoir(1000, clock);
+		for (int i = 1; i <= 100; i++) {
+			reservoir.update(i);
+			otherReservoir.update(i + 100);
+		}
+		when(clock.getTime()).thenReturn(1000L);
+
+		final Snapshot merged = HdrHistogramReservoir.merge(Arrays.asList(
+				((HdrHistogramReservoir.HdrSnapshot) reservoir.getSnapshot()).encodeCompressed(),
+				((HdrHistogramReservoir.HdrSnapshot) otherReservoir.getSnapshot()).encodeCompressed()));
+
+		assertThat(merged.size()).isEqualTo(200);
+		assertThat(merged.getMedian()).isCloseTo(100, within(1.0));
+		assertThat(merged.getMin()).isEqualTo(1);
+		assertThat(merged.getMax()).isCloseTo(200, within(2L));
+	}
+
+	@Test
+	public void testMergeNoHistograms() throws Exception {
+		assertThat(HdrHistogramReservoir.merge(Collections.<String>emptyList()).size()).isEqualTo(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMergeInvalidHistogram() throws Exception {
+		HdrHistogramReservoir.merge(Collections.singletonList("bm90IGEgaGlzdG9ncmFt"));
+	}
+
+	@Test
+	public void testNegativeValues() throws Exception {
+		reservoir.update(-1);
+		when(clock.getTime()).thenReturn(1000L);
+		assertThat(reservoir.getSnapshot().getMax()).isEqualTo(0);
+	}
+
+	@Test
+	public void testRegistryCreatesTimersWithReservoirFactory() throws Exception {
+		final Metric2Registry registry = new Metric2Registry();
+		final ReservoirFactory reservoirFactory = mock(ReservoirFactory.class);
+		final HdrHistogramReservoir histogramReservoir = new HdrHistogramReservoir(1000, clock);
+		when(reservoirFactory.newReservoir()).thenReturn(reservoir, histogramReservoir);
+		registry.setReservoirFactory(reservoirFactory);
+		registry.timer(name("timer").build()).update(1, TimeUnit.SECONDS);
+		registry.histogram(name("histogram").build());
+
+		when(clock.getTime()).thenReturn(1000L);
+		assertThat(reservoir.getSnapshot().getMax()).isCloseTo(TimeUnit.SECONDS.toNanos(1), within(TimeUnit.MILLISECONDS.toNanos(10)));
+		verify(reservoirFactory, times(2)).newReservoir();
+	}
+}
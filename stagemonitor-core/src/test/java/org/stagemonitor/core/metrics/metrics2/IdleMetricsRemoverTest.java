@@ -0,0 +1,84 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+public class IdleMetricsRemoverTest {
+
+	private Metric2Registry registry;
+	private Clock clock;
+	private IdleMetricsRemover idleMetricsRemover;
+
+	@Before
+	public void setUp() throws Exception {
+		registry = new Metric2Registry();
+		clock = mock(Clock.class);
+		idleMetricsRemover = new IdleMetricsRemover(registry, 10, TimeUnit.MILLISECONDS, clock);
+	}
+
+	@Test
+	public void testRemoveIdleMetrics() throws Exception {
+		final Timer idleTimer = registry.timer(name("idle").build());
+		final Timer activeTimer = registry.timer(name("active").build());
+		idleTimer.update(1, TimeUnit.MILLISECONDS);
+		activeTimer.update(1, TimeUnit.MILLISECONDS);
+
+		setTime(0);
+		assertThat(idleMetricsRemover.removeIdleMetrics()).isEqualTo(0);
+
+		setTime(9);
+		activeTimer.update(1, TimeUnit.MILLISECONDS);
+		assertThat(idleMetricsRemover.removeIdleMetrics()).isEqualTo(0);
+
+		setTime(10);
+		assertThat(idleMetricsRemover.removeIdleMetrics()).isEqualTo(1);
+		assertThat(registry.getTimers()).containsOnlyKeys(name("active").build());
+		assertThat(registry.getMetricRegistry().getTimers()).containsOnlyKeys(name("active").build().toGraphiteName());
+
+		// a removed metric is re-created on demand
+		assertThat(registry.timer(name("idle").build())).isNotSameAs(idleTimer);
+	}
+
+	@Test
+	public void testExplicitlyRegisteredMetricsAreNotRemoved() throws Exception {
+		final Counter counter = new Counter();
+		registry.register(name("registered").build(), counter);
+		registry.counter(name("registered").build());
+		registry.counter(name("created").build());
+
+		setTime(0);
+		idleMetricsRemover.removeIdleMetrics();
+		setTime(100);
+		assertThat(idleMetricsRemover.removeIdleMetrics()).isEqualTo(1);
+
+		assertThat(registry.getCounters()).containsOnlyKeys(name("registered").build());
+	}
+
+	@Test
+	public void testRecreatedMetricIsNotRemovedImmediately() throws Exception {
+		registry.counter(name("counter").build());
+		setTime(0);
+		idleMetricsRemover.removeIdleMetrics();
+
+		registry.remove(name("counter").build());
+		registry.counter(name("counter").build());
+		setTime(100);
+		assertThat(idleMetricsRemover.removeIdleMetrics()).isEqualTo(0);
+		assertThat(registry.getCounters()).containsOnlyKeys(name("counter").build());
+	}
+
+	private void setTime(long time) {
+		when(clock.getTime()).thenReturn(time);
+	}
+}
@@ -10,19 +10,29 @@ import com.codahale.metrics.Timer;
 import org.junit.Before;
 import org.junit.Test;
 import org.stagemonitor.core.CorePlugin;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.stagemonitor.core.util.HttpClient;
+import org.stagemonitor.core.util.http.HttpRequest;
 
+import java.io.ByteArrayOutputStream;
 import java.net.URL;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import static java.lang.String.format;
-import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
 import static org.junit.Assert.assertEquals;
-import static org.mockito.Matchers.eq;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.counter;
 import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.gauge;
@@ -39,10 +49,24 @@ public class InfluxDbReporterTest {
 	private InfluxDbReporter influxDbReporter;
 	private HttpClient httpClient;
 	private long timestamp;
+	private List<String> requestBodies;
 
 	@Before
 	public void setUp() throws Exception {
 		httpClient = mock(HttpClient.class);
+		requestBodies = new CopyOnWriteArrayList<String>();
+		when(httpClient.send(any(HttpRequest.class))).then(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				final HttpRequest<?> request = invocation.getArgument(0);
+				assertEquals("POST", request.getMethod());
+				assertEquals("http://localhost:8086/write?precision=ms&db=stm", request.getUrl());
+				final ByteArrayOutputStream os = new ByteArrayOutputStream();
+				request.getOutputStreamHandler().withHttpURLConnection(os);
+				requestBodies.add(os.toString("UTF-8"));
+				return null;
+			}
+		});
 		Clock clock = mock(Clock.class);
 		timestamp = System.currentTimeMillis();
 		when(clock.getTime()).thenReturn(timestamp);
@@ -67,8 +91,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("cpu_usage,core=1,type=user,app=test value=3 %d", timestamp))));
+		assertThat(requestBodies).containsExactly(format("cpu_usage,core=1,type=user,app=test value=3 %d", timestamp) + "\n");
 	}
 
 	@Test
@@ -80,8 +103,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(Collections.emptyList()));
+		assertThat(requestBodies).isEmpty();
 	}
 
 	@Test
@@ -93,8 +115,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("gauge,app=test value_boolean=true %d", timestamp))));
+		assertThat(requestBodies).containsExactly(format("gauge,app=test value_boolean=true %d", timestamp) + "\n");
 	}
 
 	@Test
@@ -106,8 +127,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("gauge,app=test value_string=\"foo\" %d", timestamp))));
+		assertThat(requestBodies).containsExactly(format("gauge,app=test value_string=\"foo\" %d", timestamp) + "\n");
 	}
 
 	@Test
@@ -119,8 +139,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("cpu_usage,core=1,type=user,app=test value=1.0e-8 %d", timestamp))));
+		assertThat(requestBodies).containsExactly(format("cpu_usage,core=1,type=user,app=test value=1.0e-8 %d", timestamp) + "\n");
 	}
 
 	@Test
@@ -132,8 +151,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("web_sessions,app=test count=123i %d", timestamp))));
+		assertThat(requestBodies).containsExactly(format("web_sessions,app=test count=123i %d", timestamp) + "\n");
 	}
 
 	@Test
@@ -145,8 +163,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("histogram,app=test count=1i,min=400,max=200,mean=400.0,p50=600.0,std=500.0,p25=0.0,p75=700.0,p95=800.0,p98=900.0,p99=1000.0,p999=1100.0 %d", timestamp))));
+		assertThat(requestBodies).containsExactly(format("histogram,app=test count=1i,min=400,max=200,mean=400.0,p50=600.0,std=500.0,p25=0.0,p75=700.0,p95=800.0,p98=900.0,p99=1000.0,p999=1100.0 %d", timestamp) + "\n");
 	}
 
 	@Test
@@ -158,8 +175,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(name("meter").build(), meter(10)),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("meter,app=test count=10i,m1_rate=3.0,m5_rate=4.0,m15_rate=5.0,mean_rate=2.0 %d", timestamp))));
+		assertThat(requestBodies).containsExactly(format("meter,app=test count=10i,m1_rate=3.0,m5_rate=4.0,m15_rate=5.0,mean_rate=2.0 %d", timestamp) + "\n");
 	}
 
 	@Test
@@ -171,8 +187,78 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(name("response_time").build(), timer(400)));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("response_time,app=test count=1i,m1_rate=3.0,m5_rate=4.0,m15_rate=5.0,mean_rate=2.0,min=0.4,max=0.2,mean=0.4,p50=0.6,std=0.5,p25=0.0,p75=0.7,p95=0.8,p98=0.9,p99=1.0,p999=1.1 %d", timestamp))));
+		assertThat(requestBodies).containsExactly(format("response_time,app=test count=1i,m1_rate=3.0,m5_rate=4.0,m15_rate=5.0,mean_rate=2.0,min=0.4,max=0.2,mean=0.4,p50=0.6,std=0.5,p25=0.0,p75=0.7,p95=0.8,p98=0.9,p99=1.0,p999=1.1 %d", timestamp) + "\n");
+	}
+
+	@Test
+	public void testSplitReportIntoBatches() throws Exception {
+		final Map<MetricName, Counter> counters = new HashMap<MetricName, Counter>();
+		for (int i = 0; i < 12000; i++) {
+			counters.put(name("counter").tag("index", Integer.toString(i)).build(), counter(i));
+		}
+		influxDbReporter.reportMetrics(
+				metricNameMap(Gauge.class),
+				counters,
+				metricNameMap(Histogram.class),
+				metricNameMap(Meter.class),
+				metricNameMap(Timer.class));
+
+		assertThat(requestBodies).hasSize(3);
+		final Set<String> lines = new HashSet<String>();
+		for (String requestBody : requestBodies) {
+			lines.addAll(Arrays.asList(requestBody.split("\n")));
+		}
+		assertThat(lines).hasSize(12000).contains(format("counter,index=11999,app=test count=11999i %d", timestamp));
+	}
+
+	@Test
+	public void testOmitNaNFields() throws Exception {
+		influxDbReporter.reportMetrics(
+				metricNameMap(name("nan").build(), gauge(Double.NaN)),
+				metricNameMap(Counter.class),
+				metricNameMap(Histogram.class),
+				metricNameMap(name("meter").build(), meter(10)),
+				metricNameMap(Timer.class));
+
+		assertThat(requestBodies).containsExactly(format("meter,app=test count=10i,m1_rate=3.0,m5_rate=4.0,m15_rate=5.0,mean_rate=2.0 %d\n", timestamp));
+	}
+
+	@Test(timeout = 10000)
+	public void testInterruptWhileAwaitingSentBatches() throws Exception {
+		final CountDownLatch sendStarted = new CountDownLatch(1);
+		final CountDownLatch sendFinished = new CountDownLatch(1);
+		when(httpClient.send(any(HttpRequest.class))).then(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				sendStarted.countDown();
+				sendFinished.await();
+				return null;
+			}
+		});
+		final Thread reportingThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				reportCpuUsage();
+			}
+		});
+		reportingThread.start();
+		sendStarted.await();
+		reportingThread.interrupt();
+		reportingThread.join();
+		sendFinished.countDown();
+
+		// would block forever if the batches taken before the interruption were lost
+		reportCpuUsage();
+		reportCpuUsage();
+	}
+
+	private void reportCpuUsage() {
+		influxDbReporter.reportMetrics(
+				metricNameMap(name("cpu_usage").build(), gauge(3)),
+				metricNameMap(Counter.class),
+				metricNameMap(Histogram.class),
+				metricNameMap(Meter.class),
+				metricNameMap(Timer.class));
 	}
 
 	@Test
@@ -1,5 +1,6 @@
 package org.stagemonitor.core.metrics.metrics2;
 
+import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Metered;
 import com.codahale.metrics.Metric;
@@ -9,6 +10,7 @@ import java.util.Map;
 import static org.junit.Assert.*;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.stagemonitor.core.metrics.MetricNameFilter;
 
 public class Metric2RegistryTest {
 	
@@ -89,7 +91,42 @@ public class Metric2RegistryTest {
 		assertEquals(1, 		 stagemonitorEntry.getValue().getValue());
 	}
 
-	
+	@Test
+	public void testCachedViewIsInvalidatedOnModification() {
+		Metric2Registry registry = new Metric2Registry();
+		final MetricNameFilter filter = MetricNameFilter.includePatterns(MetricName.name("test").build());
+		registry.counter(MetricName.name("test").tag("foo", "bar").build());
+		registry.counter(MetricName.name("other").build());
+
+		final Map<MetricName, Counter> counters = registry.getCounters(filter);
+		assertEquals(1, counters.size());
+		assertSame(counters, registry.getCounters(filter));
+		assertEquals(0, registry.getTimers(filter).size());
+
+		registry.counter(MetricName.name("test").tag("foo", "baz").build());
+		assertEquals(2, registry.getCounters(filter).size());
+
+		registry.remove(MetricName.name("test").tag("foo", "bar").build());
+		assertEquals(1, registry.getCounters(filter).size());
+		assertEquals(2, registry.getCounters().size());
+	}
+
+	@Test
+	public void testNonCacheableFilterIsEvaluatedEveryTime() {
+		Metric2Registry registry = new Metric2Registry();
+		final Counter counter = registry.counter(MetricName.name("test").build());
+		final Metric2Filter countFilter = new Metric2Filter() {
+			@Override
+			public boolean matches(MetricName name, Metric metric) {
+				return ((Counter) metric).getCount() > 0;
+			}
+		};
+
+		assertEquals(0, registry.getCounters(countFilter).size());
+		counter.inc();
+		assertEquals(1, registry.getCounters(countFilter).size());
+	}
+
 	//
 	// Helper ones
 	//
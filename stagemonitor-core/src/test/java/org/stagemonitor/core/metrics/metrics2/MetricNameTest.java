@@ -3,8 +3,10 @@ package org.stagemonitor.core.metrics.metrics2;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
 public class MetricNameTest {
@@ -91,4 +93,40 @@ public class MetricNameTest {
 		final MetricName.MetricNameTemplate metricNameTemplate = name("foo").tag("bar", "").tag("qux", "quux").templateFor("bar", "qux");
 		metricNameTemplate.build(null, null);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testTemplateThreeValues() {
+		final MetricName.MetricNameTemplate metricNameTemplate = name("foo").tag("bar", "").templateFor("bar", "qux", "quux");
+		assertEquals(name("foo").tag("bar", "a").tag("qux", "b").tag("quux", "c").build(), metricNameTemplate.build("a", "b", "c"));
+		assertSame(metricNameTemplate.build("a", "b", "c"), metricNameTemplate.build("a", "b", "c"));
+		assertSame(metricNameTemplate.build("a", null, "c"), metricNameTemplate.build("a", null, "c"));
+		assertSame(metricNameTemplate.build("a", "b", "c"), metricNameTemplate.build(new String[]{"a", "b", "c"}));
+		assertNotEquals(metricNameTemplate.build("a", "b", "c"), metricNameTemplate.build("a", "c", "b"));
+	}
+
+	@Test
+	public void testWithTagReplacesExistingTag() {
+		final MetricName metricName = name("foo").tag("bar", "baz").tag("qux", "quux").build().withTag("bar", "b");
+		assertEquals(name("foo").tag("bar", "b").tag("qux", "quux").build(), metricName);
+		assertEquals("foo.b.quux", metricName.toGraphiteName());
+	}
+
+	@Test
+	public void testMatches() {
+		final MetricName metricName = name("foo").tag("bar", "baz").tag("qux", "quux").build();
+		assertTrue(metricName.matches(name("foo").tag("qux", "quux").build()));
+		assertTrue(metricName.matches(name("foo").build()));
+		assertFalse(metricName.matches(name("foo").tag("qux", "baz").build()));
+		assertFalse(metricName.matches(name("foo").tag("quuz", "quux").build()));
+	}
+
+	@Test
+	public void testEncodings() {
+		final MetricName metricName = name("response_time").operationName("Search \"Products\", all").layer("All").build();
+		assertEquals("response_time.Search-\"Products\"_-all.All", metricName.toGraphiteName());
+		assertEquals("response_time,layer=All,operation_name=Search\\ \"Products\"\\,\\ all", metricName.toInfluxDbLineProtocolString());
+		assertEquals("operation_name=\"Search \\\"Products\\\", all\",layer=\"All\"", metricName.toPrometheusLabels());
+		assertEquals("", name("online").build().toPrometheusLabels());
+		assertSame(metricName.toGraphiteName(), metricName.toGraphiteName());
+	}
+}
@@ -0,0 +1,107 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+public class ScheduledMetrics2ReporterTest {
+
+	private Metric2Registry registry;
+
+	@Before
+	public void setUp() throws Exception {
+		registry = new Metric2Registry();
+	}
+
+	@Test
+	public void testReportAllMetricsByDefault() throws Exception {
+		final TestReporter reporter = new TestReporter.Builder(registry).build();
+		registry.counter(name("counter").build()).inc();
+
+		reporter.report();
+		reporter.report();
+
+		assertThat(reporter.reportedCounters).containsOnlyKeys(name("counter").build());
+	}
+
+	@Test
+	public void testReportOnlyChangedMetrics() throws Exception {
+		final TestReporter reporter = new TestReporter.Builder(registry).reportOnlyChangedMetrics(3).build();
+		registry.register(name("gauge").build(), new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return 1;
+			}
+		});
+		final Counter counter = registry.counter(name("counter").build());
+		final Timer timer = registry.timer(name("timer").build());
+
+		// the first report is a full report
+		reporter.report();
+		assertThat(reporter.reportedCounters).containsOnlyKeys(name("counter").build());
+		assertThat(reporter.reportedTimers).containsOnlyKeys(name("timer").build());
+
+		timer.update(1, TimeUnit.MILLISECONDS);
+		reporter.report();
+		assertThat(reporter.reportedGauges).containsOnlyKeys(name("gauge").build());
+		assertThat(reporter.reportedCounters).isEmpty();
+		assertThat(reporter.reportedTimers).containsOnlyKeys(name("timer").build());
+
+		counter.inc();
+		registry.counter(name("new_counter").build());
+		reporter.report();
+		assertThat(reporter.reportedCounters).containsOnlyKeys(name("counter").build(), name("new_counter").build());
+		assertThat(reporter.reportedTimers).isEmpty();
+
+		// full report
+		reporter.report();
+		assertThat(reporter.reportedCounters).containsOnlyKeys(name("counter").build(), name("new_counter").build());
+		assertThat(reporter.reportedTimers).containsOnlyKeys(name("timer").build());
+
+		reporter.report();
+		assertThat(reporter.reportedCounters).isEmpty();
+		assertThat(reporter.reportedTimers).isEmpty();
+	}
+
+	private static class TestReporter extends ScheduledMetrics2Reporter {
+
+		private Map<MetricName, Gauge> reportedGauges;
+		private Map<MetricName, Counter> reportedCounters;
+		private Map<MetricName, Timer> reportedTimers;
+
+		private TestReporter(Builder builder) {
+			super(builder);
+		}
+
+		@Override
+		public void reportMetrics(Map<MetricName, Gauge> gauges, Map<MetricName, Counter> counters,
+								  Map<MetricName, Histogram> histograms, Map<MetricName, Meter> meters,
+								  Map<MetricName, Timer> timers) {
+			reportedGauges = gauges;
+			reportedCounters = counters;
+			reportedTimers = timers;
+		}
+
+		private static class Builder extends ScheduledMetrics2Reporter.Builder<TestReporter, Builder> {
+			private Builder(Metric2Registry registry) {
+				super(registry, "test-reporter");
+			}
+
+			@Override
+			public TestReporter build() {
+				return new TestReporter(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package org.stagemonitor.core.metrics.prometheus;
+
+import com.codahale.metrics.Gauge;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+public class PrometheusTextWriterTest {
+
+	private Metric2Registry metricRegistry;
+	private CollectorRegistry collectorRegistry;
+	private PrometheusTextWriter prometheusTextWriter;
+
+	@Before
+	public void setUp() throws Exception {
+		metricRegistry = new Metric2Registry();
+		collectorRegistry = new CollectorRegistry();
+		new StagemonitorPrometheusCollector(metricRegistry).register(collectorRegistry);
+		prometheusTextWriter = new PrometheusTextWriter(metricRegistry);
+	}
+
+	@Test
+	public void testOutputIsEquivalentToCollector() throws Exception {
+		metricRegistry.register(name("jvm_memory_pools").tag("memory_pool", "PS-Survivor-Space").tag("type", "usage").build(),
+				(Gauge<Double>) () -> 0.6795399983723959);
+		metricRegistry.register(name("jvm_memory_pools").tag("memory_pool", "PS-Survivor-Space").tag("type", "used").build(),
+				(Gauge<Long>) () -> 2137648L);
+		metricRegistry.register(name("boolean_gauge").build(), (Gauge<Boolean>) () -> true);
+		metricRegistry.register(name("invalid_gauge").build(), (Gauge<String>) () -> "foo");
+		metricRegistry.register(name("infinite_gauge").build(), (Gauge<Double>) () -> Double.POSITIVE_INFINITY);
+		metricRegistry.counter(name("foo_bar").tag("baz", "qux \"quoted\"\nline\\").build()).inc();
+		metricRegistry.counter(name("no_tags").build()).inc(2);
+		metricRegistry.histogram(name("hist").build()).update(42);
+		metricRegistry.meter(name("meter").tag("foo", "bar").build()).mark();
+		for (int i = 0; i < 1000; i++) {
+			metricRegistry.timer(name("response_time").operationName("Request " + i).layer("All").build())
+					.update(i, TimeUnit.MILLISECONDS);
+		}
+
+		assertThat(sorted(writeWithPrometheusTextWriter())).isEqualTo(sorted(writeWithCollector()));
+	}
+
+	@Test
+	public void testFamiliesAreUpdatedWhenMetricsAreAdded() throws Exception {
+		metricRegistry.counter(name("counter").tag("foo", "bar").build()).inc();
+		assertThat(writeWithPrometheusTextWriter()).contains("counter{foo=\"bar\"} 1.0");
+
+		metricRegistry.counter(name("counter").tag("foo", "baz").build()).inc(2);
+		metricRegistry.counter(name("counter").tag("foo", "bar").build()).inc();
+		assertThat(writeWithPrometheusTextWriter())
+				.containsOnlyOnce("# TYPE counter counter")
+				.contains("counter{foo=\"bar\"} 2.0", "counter{foo=\"baz\"} 2.0");
+
+		metricRegistry.remove(name("counter").tag("foo", "bar").build());
+		assertThat(writeWithPrometheusTextWriter()).doesNotContain("counter{foo=\"bar\"} 2.0");
+	}
+
+	@Test
+	public void testEmptyRegistry() throws Exception {
+		assertThat(writeWithPrometheusTextWriter()).isEmpty();
+	}
+
+	private List<String> writeWithPrometheusTextWriter() throws IOException {
+		final StringWriter writer = new StringWriter();
+		prometheusTextWriter.write(writer);
+		return lines(writer.toString());
+	}
+
+	private List<String> writeWithCollector() throws IOException {
+		final StringWriter writer = new StringWriter();
+		TextFormat.write004(writer, collectorRegistry.metricFamilySamples());
+		// the Prometheus client writes a trailing comma after each label
+		return lines(writer.toString().replace(",}", "}"));
+	}
+
+	private static List<String> sorted(List<String> lines) {
+		final List<String> sorted = new ArrayList<String>(lines);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+	private static List<String> lines(String output) {
+		return output.isEmpty() ? Arrays.<String>asList() : Arrays.asList(output.split("\n"));
+	}
+}
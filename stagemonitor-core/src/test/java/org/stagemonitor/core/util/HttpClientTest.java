@@ -4,9 +4,14 @@ import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.junit.Test;
 import org.stagemonitor.core.util.http.HttpRequestBuilder;
+import org.stagemonitor.core.util.http.HttpURLConnectionTransport;
 import org.stagemonitor.core.util.http.StatusCodeResponseHandler;
+import org.stagemonitor.util.IOUtils;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -65,4 +70,61 @@ public class HttpClientTest extends AbstractEmbeddedServerTest {
 				})
 				.build());
 	}
+
+	@Test
+	public void testGzipRequestBody() throws Exception {
+		final String[] body = new String[1];
+		startWithHandler(new AbstractHandler() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				baseRequest.setHandled(true);
+				assertThat(request.getHeader("Content-Encoding")).isEqualTo("gzip");
+				body[0] = IOUtils.toString(new GZIPInputStream(request.getInputStream()));
+			}
+		});
+
+		final HttpClient gzipHttpClient = new HttpClient(new HttpURLConnectionTransport(1000, 1000, true, 1));
+		assertEquals(Integer.valueOf(200), gzipHttpClient.send(HttpRequestBuilder.<Integer>jsonRequest("POST", "http://localhost:" + getPort() + "/", "{\"foo\":\"bar\"}")
+				.bulkUpload()
+				.successHandler(new StatusCodeResponseHandler()).build()));
+		assertThat(body[0]).isEqualTo("{\"foo\":\"bar\"}");
+	}
+
+	@Test
+	public void testOnlyGzipBulkUploads() throws Exception {
+		final String[] body = new String[1];
+		startWithHandler(new AbstractHandler() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				baseRequest.setHandled(true);
+				assertThat(request.getHeader("Content-Encoding")).isNull();
+				assertThat(request.getHeader("Transfer-Encoding")).isNull();
+				body[0] = IOUtils.toString(request.getInputStream());
+			}
+		});
+
+		final HttpClient gzipHttpClient = new HttpClient(new HttpURLConnectionTransport(1000, 1000, true, 1));
+		assertEquals(Integer.valueOf(200), gzipHttpClient.send(HttpRequestBuilder.<Integer>jsonRequest("POST", "http://localhost:" + getPort() + "/", "{\"foo\":\"bar\"}")
+				.successHandler(new StatusCodeResponseHandler()).build()));
+		assertThat(body[0]).isEqualTo("{\"foo\":\"bar\"}");
+	}
+
+	@Test
+	public void testReuseConnection() throws Exception {
+		final Set<Integer> remotePorts = new HashSet<Integer>();
+		startWithHandler(new AbstractHandler() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				baseRequest.setHandled(true);
+				remotePorts.add(request.getRemotePort());
+				response.getWriter().write("ok");
+			}
+		});
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals(Integer.valueOf(200), httpClient.send(HttpRequestBuilder.<Integer>jsonRequest("POST", "http://localhost:" + getPort() + "/", "{}")
+					.successHandler(new StatusCodeResponseHandler()).build()));
+		}
+		assertThat(remotePorts).hasSize(1);
+	}
 }
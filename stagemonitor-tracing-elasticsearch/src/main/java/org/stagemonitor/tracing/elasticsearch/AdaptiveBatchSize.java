@@ -0,0 +1,53 @@
+package org.stagemonitor.tracing.elasticsearch;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adapts the size of the span batches to the load of Elasticsearch in an additive increase, multiplicative decrease
+ * (AIMD) manner.
+ * <p>
+ * If a bulk request took longer than the target latency or if Elasticsearch rejected some of the documents, the batch
+ * size is halved. Otherwise, it is increased by a tenth of the max batch size.
+ * <p>
+ * This class is thread safe.
+ */
+class AdaptiveBatchSize {
+
+	static final int MIN_BATCH_SIZE = 10;
+	private final long targetLatencyMs;
+	private final AtomicInteger batchSize;
+
+	AdaptiveBatchSize(int initialBatchSize, long targetLatencyMs) {
+		this.targetLatencyMs = targetLatencyMs;
+		this.batchSize = new AtomicInteger(initialBatchSize);
+	}
+
+	/**
+	 * @param maxBatchSize the upper bound of the batch size
+	 * @return the current batch size
+	 */
+	int get(int maxBatchSize) {
+		return Math.min(batchSize.get(), maxBatchSize);
+	}
+
+	/**
+	 * Adapts the batch size based on the outcome of a bulk request
+	 *
+	 * @param latencyMs    the duration of the bulk request
+	 * @param failed       whether the bulk request failed or some documents have been rejected
+	 * @param maxBatchSize the upper bound of the batch size
+	 */
+	void onBulkResponse(long latencyMs, boolean failed, int maxBatchSize) {
+		final int minBatchSize = Math.min(MIN_BATCH_SIZE, maxBatchSize);
+		int current;
+		int next;
+		do {
+			current = batchSize.get();
+			if (failed || latencyMs > targetLatencyMs) {
+				next = Math.max(minBatchSize, Math.min(current, maxBatchSize) / 2);
+			} else {
+				next = Math.min(maxBatchSize, current + Math.max(1, maxBatchSize / 10));
+			}
+		} while (!batchSize.compareAndSet(current, next));
+	}
+}
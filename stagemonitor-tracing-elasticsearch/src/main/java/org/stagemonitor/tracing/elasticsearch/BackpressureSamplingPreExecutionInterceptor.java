@@ -0,0 +1,45 @@
+package org.stagemonitor.tracing.elasticsearch;
+
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.tracing.TracingPlugin;
+import org.stagemonitor.tracing.sampling.PreExecutionInterceptorContext;
+import org.stagemonitor.tracing.sampling.PreExecutionSpanInterceptor;
+import org.stagemonitor.tracing.wrapper.SpanWrapper;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples less traces when the span queue of the {@link ElasticsearchSpanReporter} fills up, so that the sampling
+ * rate drops before spans have to be dropped.
+ */
+public class BackpressureSamplingPreExecutionInterceptor extends PreExecutionSpanInterceptor {
+
+	private TracingPlugin tracingPlugin;
+	private ElasticsearchTracingPlugin elasticsearchTracingPlugin;
+
+	@Override
+	public void init(ConfigurationRegistry configuration) {
+		tracingPlugin = configuration.getConfig(TracingPlugin.class);
+		elasticsearchTracingPlugin = configuration.getConfig(ElasticsearchTracingPlugin.class);
+	}
+
+	@Override
+	public void interceptReport(PreExecutionInterceptorContext context) {
+		if (elasticsearchTracingPlugin == null || !elasticsearchTracingPlugin.isBackpressureSampling()) {
+			return;
+		}
+		final ElasticsearchSpanReporter spanReporter = elasticsearchTracingPlugin.getSpanReporter();
+		if (spanReporter == null) {
+			return;
+		}
+		final double dropProbability = spanReporter.getSamplingBackpressure();
+		if (dropProbability > 0 && isRoot(context.getSpanContext().getSpanWrapper())
+				&& ThreadLocalRandom.current().nextDouble() < dropProbability) {
+			context.shouldNotReport(getClass());
+		}
+	}
+
+	protected boolean isRoot(SpanWrapper span) {
+		return tracingPlugin.isRoot(span);
+	}
+}
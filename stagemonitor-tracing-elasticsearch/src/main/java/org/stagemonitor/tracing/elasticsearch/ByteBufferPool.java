@@ -0,0 +1,75 @@
+package org.stagemonitor.tracing.elasticsearch;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of fixed size, direct {@link ByteBuffer} segments.
+ * <p>
+ * The segments are allocated lazily until {@link #maxSegments} is reached. After that, {@link #acquire()} falls back
+ * to heap buffers which are not pooled, so that a burst of spans is not dropped just because the pool is exhausted.
+ * The heap is still protected by the bounded span queue.
+ * <p>
+ * This class is thread safe.
+ */
+final class ByteBufferPool {
+
+	private final ConcurrentLinkedQueue<ByteBuffer> freeSegments = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger allocatedSegments = new AtomicInteger();
+	private final AtomicInteger segmentsInUse = new AtomicInteger();
+	private final int segmentSize;
+	private final int maxSegments;
+
+	ByteBufferPool(int segmentSize, int maxSegments) {
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+	}
+
+	/**
+	 * Returns a cleared segment which has to be given back via {@link #release(ByteBuffer)}
+	 *
+	 * @return a pooled direct segment or a unpooled heap buffer if the pool is exhausted
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer segment = freeSegments.poll();
+		if (segment == null) {
+			segment = allocate();
+		}
+		if (segment.isDirect()) {
+			segmentsInUse.incrementAndGet();
+		}
+		return segment;
+	}
+
+	private ByteBuffer allocate() {
+		int allocated;
+		do {
+			allocated = allocatedSegments.get();
+			if (allocated >= maxSegments) {
+				return ByteBuffer.allocate(segmentSize);
+			}
+		} while (!allocatedSegments.compareAndSet(allocated, allocated + 1));
+		return ByteBuffer.allocateDirect(segmentSize);
+	}
+
+	void release(ByteBuffer segment) {
+		if (segment.isDirect()) {
+			segment.clear();
+			segmentsInUse.decrementAndGet();
+			freeSegments.offer(segment);
+		}
+	}
+
+	int getSegmentSize() {
+		return segmentSize;
+	}
+
+	int getSegmentsInUse() {
+		return segmentsInUse.get();
+	}
+
+	int getMaxSegments() {
+		return maxSegments;
+	}
+}
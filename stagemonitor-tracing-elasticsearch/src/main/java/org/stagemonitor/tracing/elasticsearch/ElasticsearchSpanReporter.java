@@ -1,16 +1,21 @@
 package org.stagemonitor.tracing.elasticsearch;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.RatioGauge;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 import org.stagemonitor.core.CorePlugin;
 import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
+import org.stagemonitor.core.elasticsearch.SpillLog;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 import org.stagemonitor.core.metrics.metrics2.MetricName;
 import org.stagemonitor.core.util.ExecutorUtils;
 import org.stagemonitor.core.util.HttpClient;
 import org.stagemonitor.core.util.HttpClient.OutputStreamHandler;
 import org.stagemonitor.core.util.JsonUtils;
+import org.stagemonitor.core.util.http.HttpRequest;
 import org.stagemonitor.tracing.B3HeaderFormat;
 import org.stagemonitor.tracing.SpanContextInformation;
 import org.stagemonitor.tracing.TracingPlugin;
@@ -18,8 +23,12 @@ import org.stagemonitor.tracing.reporter.SpanReporter;
 import org.stagemonitor.tracing.wrapper.SpanWrapper;
 import org.stagemonitor.util.StringUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -30,6 +39,8 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.stagemonitor.core.elasticsearch.ElasticsearchClient.CONTENT_TYPE_NDJSON;
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
@@ -44,12 +55,32 @@ import static org.stagemonitor.tracing.B3IdentifierTagger.TRACE_ID;
  *     <li>When the span queue exceeds the max batch size and there is currently no flush scheduled, a immediate async flush is scheduled</li>
  *     <li>If the span queue size is still higher than the max batch size after a flush, spans are flushed again</li>
  * </ul>
- * If the queue is full, spans are dropped to prevent excessive heap usage and {@link OutOfMemoryError}s
+ * If the queue is full, spans are dropped to prevent excessive heap usage and {@link OutOfMemoryError}s.
+ * To prevent that, the {@link BackpressureSamplingPreExecutionInterceptor} can sample less traces when the queue fills up
+ * (see <code>stagemonitor.tracing.elasticsearch.reporter.backpressureSampling</code>).
+ * <p>
+ * Optionally, multiple threads can send batches concurrently and the batch size can adapt to the latency of
+ * Elasticsearch (see {@link AdaptiveBatchSize}).
+ * <p>
+ * The spans are serialized when they are reported into segments of a {@link ByteBufferPool} so that the queue does not
+ * hold on to the spans and their tags. The segments are reused once the bulk request has been sent.
+ * <p>
+ * If a {@link SpillLog} is configured, spans are written to it instead of being dropped when Elasticsearch is not
+ * available, when the queue is full or when a bulk request fails with a status code which indicates that Elasticsearch
+ * is overloaded (429 or 5xx).
  */
 public class ElasticsearchSpanReporter extends SpanReporter {
 
 	static final MetricName spansDroppedMetricName = name("elasticsearch_spans_dropped").build();
 	static final MetricName bulkSizeMetricName = name("elasticsearch_spans_bulk_size").build();
+	static final MetricName queuedBytesMetricName = name("elasticsearch_spans_queued_bytes").build();
+	static final MetricName bufferPoolUsageMetricName = name("elasticsearch_spans_buffer_pool_usage").build();
+	static final MetricName serializationTimeMetricName = name("elasticsearch_spans_serialization_time").build();
+	static final int SEGMENT_SIZE = 2048;
+	/**
+	 * The utilisation of the span queue after which less traces are sampled
+	 */
+	private static final double BACKPRESSURE_THRESHOLD = 0.5;
 	static final String ES_SPAN_LOGGER = "ElasticsearchSpanReporter";
 	static final Charset UTF_8 = Charset.forName("UTF-8");
 	private static final byte[] indexHeader = "{\"index\":{}}\n".getBytes(UTF_8);
@@ -57,15 +88,20 @@ public class ElasticsearchSpanReporter extends SpanReporter {
 	private static final Logger logger = LoggerFactory.getLogger(ElasticsearchSpanReporter.class);
 
 	private final Logger spanLogger;
-	private SpanFlushingRunnable spanFlushingRunnable;
+	private SpanFlushingRunnable[] spanFlushingRunnables;
+	private final AtomicInteger nextSpanFlushingRunnable = new AtomicInteger();
+	private AdaptiveBatchSize adaptiveBatchSize;
 
 	private ElasticsearchTracingPlugin elasticsearchTracingPlugin;
+	private CorePlugin corePlugin;
 	private ElasticsearchClient elasticsearchClient;
 	private BlockingQueue<OutputStreamHandler> bulkQueue;
 	private TracingPlugin tracingPlugin;
 	private Metric2Registry metricRegistry;
 	private ScheduledThreadPoolExecutor scheduler;
 	private ElasticsearchUpdateSpanReporter updateReporter;
+	private ByteBufferPool bufferPool;
+	private final AtomicLong queuedBytes = new AtomicLong();
 
 	public ElasticsearchSpanReporter() {
 		this(LoggerFactory.getLogger(ES_SPAN_LOGGER));
@@ -77,71 +113,148 @@ public class ElasticsearchSpanReporter extends SpanReporter {
 
 	@Override
 	public void init(ConfigurationRegistry configuration) {
-		final CorePlugin corePlugin = configuration.getConfig(CorePlugin.class);
+		corePlugin = configuration.getConfig(CorePlugin.class);
 		tracingPlugin = configuration.getConfig(TracingPlugin.class);
 		elasticsearchTracingPlugin = configuration.getConfig(ElasticsearchTracingPlugin.class);
 		elasticsearchClient = corePlugin.getElasticsearchClient();
 		metricRegistry = corePlugin.getMetricRegistry();
-		scheduler = ExecutorUtils.createSingleThreadSchedulingDeamonPool("elasticsearch-reporter", 10, corePlugin);
-		spanFlushingRunnable = new SpanFlushingRunnable(new FlushCallable());
-		scheduler.scheduleWithFixedDelay(spanFlushingRunnable, elasticsearchTracingPlugin.getFlushDelayMs(),
-				elasticsearchTracingPlugin.getFlushDelayMs(), TimeUnit.MILLISECONDS);
 		bulkQueue = new ArrayBlockingQueue<OutputStreamHandler>(elasticsearchTracingPlugin.getMaxQueueSize());
+		if (elasticsearchTracingPlugin.getAdaptiveBatchSizeTargetLatencyMs() > 0) {
+			adaptiveBatchSize = new AdaptiveBatchSize(elasticsearchTracingPlugin.getMaxBatchSize(),
+					elasticsearchTracingPlugin.getAdaptiveBatchSizeTargetLatencyMs());
+		}
+		final int bulkSenders = Math.max(1, elasticsearchTracingPlugin.getConcurrentBulkSenders());
+		scheduler = ExecutorUtils.createSingleThreadSchedulingDeamonPool("elasticsearch-reporter", Math.max(10, bulkSenders), corePlugin);
+		spanFlushingRunnables = new SpanFlushingRunnable[bulkSenders];
+		for (int i = 0; i < bulkSenders; i++) {
+			spanFlushingRunnables[i] = new SpanFlushingRunnable(new FlushCallable());
+			scheduler.scheduleWithFixedDelay(spanFlushingRunnables[i], elasticsearchTracingPlugin.getFlushDelayMs(),
+					elasticsearchTracingPlugin.getFlushDelayMs(), TimeUnit.MILLISECONDS);
+		}
+		bufferPool = new ByteBufferPool(SEGMENT_SIZE, elasticsearchTracingPlugin.getBufferPoolSizeMb() * 1024 * 1024 / SEGMENT_SIZE);
+		registerMetrics();
+		elasticsearchTracingPlugin.setSpanReporter(this);
 		this.updateReporter = new ElasticsearchUpdateSpanReporter(corePlugin, tracingPlugin, elasticsearchTracingPlugin, this);
 	}
 
 	@Override
-	public void report(SpanContextInformation spanContext, final SpanWrapper spanWrapper) {
+	public void report(SpanContextInformation spanContext, final SpanWrapper spanWrapper) throws IOException {
 		logger.debug("Reporting span");
 		if (elasticsearchTracingPlugin.isOnlyLogElasticsearchSpanReports()) {
 			final String spansIndex = "stagemonitor-spans-" + StringUtils.getLogstashStyleDate();
 			spanLogger.info(ElasticsearchClient.getBulkHeader("index", spansIndex, SPANS_TYPE) + JsonUtils.toJson(spanWrapper));
 		} else {
-			scheduleSendBulk(new SpanBulkIndexOutputStreamHandler(spanWrapper));
+			scheduleSendBulk(serialize(spanWrapper));
 		}
 	}
 
+	private void registerMetrics() {
+		metricRegistry.registerNewMetrics(queuedBytesMetricName, new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return queuedBytes.get();
+			}
+		});
+		metricRegistry.registerNewMetrics(bufferPoolUsageMetricName, new RatioGauge() {
+			@Override
+			protected Ratio getRatio() {
+				return Ratio.of(bufferPool.getSegmentsInUse() * 100.0, bufferPool.getMaxSegments());
+			}
+		});
+	}
+
+	private PooledBulkLine serialize(SpanWrapper spanWrapper) throws IOException {
+		final long start = System.nanoTime();
+		final PooledBulkLine bulkLine = PooledBulkLine.serialize(bufferPool, indexHeader, spanWrapper);
+		metricRegistry.timer(serializationTimeMetricName).update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		return bulkLine;
+	}
+
 	void scheduleSendBulk(OutputStreamHandler bulkBytes) {
 		if (logger.isDebugEnabled()) {
 			logger.debug("Scheduling bulk request\n{}", bulkBytes.toString());
 		}
 		final boolean addedToQueue = bulkQueue.offer(bulkBytes);
 		if (!addedToQueue) {
-			metricRegistry.counter(spansDroppedMetricName).inc();
+			// Elasticsearch can't keep up with the spans
+			if (!spill(bulkBytes)) {
+				metricRegistry.counter(spansDroppedMetricName).inc();
+			}
+			release(bulkBytes);
+		} else if (bulkBytes instanceof PooledBulkLine) {
+			queuedBytes.addAndGet(((PooledBulkLine) bulkBytes).size());
 		}
 		scheduleFlushIfBulkQueueExceedsMaxBatchSize();
 		if (!tracingPlugin.isReportAsync()) {
-			spanFlushingRunnable.run();
+			spanFlushingRunnables[0].run();
 		}
 	}
 
 	private void scheduleFlushIfBulkQueueExceedsMaxBatchSize() {
-		if (bulkQueue.size() > elasticsearchTracingPlugin.getMaxBatchSize() && scheduler.getQueue().isEmpty()) {
+		if (bulkQueue.size() > getBatchSize() && scheduler.getQueue().isEmpty()) {
 			synchronized (this) {
 				if (scheduler.getQueue().isEmpty()) {
-					scheduler.schedule(spanFlushingRunnable, 0, TimeUnit.SECONDS);
+					final int next = (nextSpanFlushingRunnable.getAndIncrement() & Integer.MAX_VALUE) % spanFlushingRunnables.length;
+					scheduler.schedule(spanFlushingRunnables[next], 0, TimeUnit.SECONDS);
 				}
 			}
 		}
 	}
 
-	static String getTodaysIndexName() {
-		return "stagemonitor-spans-" + StringUtils.getLogstashStyleDate();
+	private int getBatchSize() {
+		final int maxBatchSize = elasticsearchTracingPlugin.getMaxBatchSize();
+		if (adaptiveBatchSize != null) {
+			return adaptiveBatchSize.get(maxBatchSize);
+		}
+		return maxBatchSize;
 	}
 
-	private static class SpanBulkIndexOutputStreamHandler implements OutputStreamHandler {
+	/**
+	 * Returns the probability with which new traces should not be sampled so that the span queue does not overflow.
+	 * <p>
+	 * The probability is 0 until the queue is half full and then rises linearly to 1 when the queue is full.
+	 *
+	 * @return the probability with which new traces should not be sampled
+	 */
+	double getSamplingBackpressure() {
+		final double utilisation = (double) bulkQueue.size() / elasticsearchTracingPlugin.getMaxQueueSize();
+		return Math.max(0, Math.min(1, (utilisation - BACKPRESSURE_THRESHOLD) / (1 - BACKPRESSURE_THRESHOLD)));
+	}
 
-		private final SpanWrapper spanWrapper;
+	static String getTodaysIndexName() {
+		return "stagemonitor-spans-" + StringUtils.getLogstashStyleDate();
+	}
 
-		private SpanBulkIndexOutputStreamHandler(SpanWrapper spanWrapper) {
-			this.spanWrapper = spanWrapper;
+	/**
+	 * Writes the bulk lines to the {@link SpillLog} so that they can be sent when Elasticsearch is available again
+	 *
+	 * @return <code>true</code> if the bulk lines have been written to the {@link SpillLog}
+	 */
+	private boolean spill(OutputStreamHandler bulkLines) {
+		final SpillLog spillLog = corePlugin.getSpillLog();
+		if (spillLog == null) {
+			return false;
+		}
+		try {
+			final ByteArrayOutputStream os = new ByteArrayOutputStream();
+			bulkLines.withHttpURLConnection(os);
+			return spillLog.append(getBulkPath(), os.toByteArray());
+		} catch (IOException e) {
+			logger.warn(e.getMessage(), e);
+			return false;
 		}
+	}
 
-		@Override
-		public void withHttpURLConnection(OutputStream os) throws IOException {
-			os.write(indexHeader);
-			JsonUtils.writeWithoutClosingStream(os, spanWrapper);
-			os.write('\n');
+	private static String getBulkPath() {
+		return "/" + getTodaysIndexName() + "/" + SPANS_TYPE + "/_bulk";
+	}
+
+	/**
+	 * Gives the segments of {@link PooledBulkLine}s back to the pool after they have been sent or dropped
+	 */
+	private void release(OutputStreamHandler bulkLine) {
+		if (bulkLine instanceof PooledBulkLine) {
+			((PooledBulkLine) bulkLine).release();
 		}
 	}
 
@@ -153,34 +266,62 @@ public class ElasticsearchSpanReporter extends SpanReporter {
 
 		@Override
 		public Boolean call() throws Exception {
-			final int maxBatchSize = elasticsearchTracingPlugin.getMaxBatchSize();
+			final int batchSize = getBatchSize();
 			// the batching with drainTo should remove most of the contention imposed by the queue
 			// as there is less contention on the head of the queue caused by elements being added and immediately removed
-			bulkQueue.drainTo(currentBulk, maxBatchSize);
+			bulkQueue.drainTo(currentBulk, batchSize);
 			if (currentBulk.isEmpty()) {
 				return false;
 			}
 			logger.debug("Flushing {} span batch requests", currentBulk.size());
 			metricRegistry.histogram(bulkSizeMetricName).update(currentBulk.size());
-			sendBulkRequest();
-			// reusing the batch list is safe as this method is executed single threaded
-			currentBulk.clear();
-			return bulkQueue.size() >= maxBatchSize;
+			try {
+				sendBulkRequest();
+			} finally {
+				for (OutputStreamHandler bulkLine : currentBulk) {
+					if (bulkLine instanceof PooledBulkLine) {
+						queuedBytes.addAndGet(-((PooledBulkLine) bulkLine).size());
+					}
+					release(bulkLine);
+				}
+				// reusing the batch list is safe as this method is executed single threaded
+				currentBulk.clear();
+			}
+			return bulkQueue.size() >= batchSize;
 		}
 
 		private void sendBulkRequest() {
 			if (!elasticsearchClient.isElasticsearchAvailable()) {
+				if (spill(outputStreamHandler)) {
+					logger.debug("Elasticsearch is not available, spilled {} spans", currentBulk.size());
+				}
 				return;
 			}
-			final String url = elasticsearchClient.getElasticsearchUrl() + "/" + getTodaysIndexName() + "/" + SPANS_TYPE + "/_bulk";
-			httpClient.send("POST", url, CONTENT_TYPE_NDJSON, outputStreamHandler, responseHandler);
+			final String url = elasticsearchClient.getElasticsearchUrl() + getBulkPath();
+			final long start = System.currentTimeMillis();
+			responseHandler.failed = false;
+			responseHandler.retryable = false;
+			httpClient.sendBulk(url, CONTENT_TYPE_NDJSON, outputStreamHandler, responseHandler);
+			if (responseHandler.retryable && spill(outputStreamHandler)) {
+				logger.debug("Elasticsearch could not process the bulk request, spilled {} spans", currentBulk.size());
+			}
+			if (adaptiveBatchSize != null) {
+				adaptiveBatchSize.onBulkResponse(System.currentTimeMillis() - start, responseHandler.failed,
+						elasticsearchTracingPlugin.getMaxBatchSize());
+			}
 		}
 
 		private class BulkWritingOutputStreamHandler implements OutputStreamHandler {
 			@Override
 			public void withHttpURLConnection(OutputStream os) throws IOException {
+				// the serialized spans are written straight from their segments
+				final WritableByteChannel channel = Channels.newChannel(os);
 				for (OutputStreamHandler bulkLine : currentBulk) {
-					bulkLine.withHttpURLConnection(os);
+					if (bulkLine instanceof PooledBulkLine) {
+						((PooledBulkLine) bulkLine).writeTo(channel);
+					} else {
+						bulkLine.withHttpURLConnection(os);
+					}
 				}
 				os.close();
 			}
@@ -188,13 +329,32 @@ public class ElasticsearchSpanReporter extends SpanReporter {
 
 		private class BulkErrorCountingResponseHandler extends ElasticsearchClient.BulkErrorCountingResponseHandler {
 			private final Metric2Registry metricRegistry;
+			/**
+			 * Whether the last bulk request failed or contained errors
+			 */
+			private boolean failed;
+			/**
+			 * Whether the last bulk request failed because Elasticsearch was overloaded or could not be reached so that
+			 * it makes sense to send it again later
+			 */
+			private boolean retryable;
 
 			private BulkErrorCountingResponseHandler(Metric2Registry metricRegistry) {
 				this.metricRegistry = metricRegistry;
 			}
 
+			@Override
+			public Void handleResponse(HttpRequest<?> httpRequest, InputStream is, Integer statusCode, IOException e) throws IOException {
+				if (e != null || statusCode == null || statusCode >= 400) {
+					failed = true;
+					retryable = statusCode == null || statusCode == 429 || statusCode >= 500;
+				}
+				return super.handleResponse(httpRequest, is, statusCode, e);
+			}
+
 			@Override
 			public void onBulkError(int errorCount) {
+				failed = true;
 				metricRegistry.counter(spansDroppedMetricName).inc(errorCount);
 			}
 		}
@@ -203,7 +363,8 @@ public class ElasticsearchSpanReporter extends SpanReporter {
 	@Override
 	public boolean isActive(SpanContextInformation spanContext) {
 		final boolean logOnly = elasticsearchTracingPlugin.isOnlyLogElasticsearchSpanReports();
-		return elasticsearchClient.isElasticsearchAvailable() || logOnly;
+		// when there is a spill log, the spans are kept until Elasticsearch is available again
+		return elasticsearchClient.isElasticsearchAvailable() || logOnly || corePlugin.getSpillLog() != null;
 	}
 
 	@Override
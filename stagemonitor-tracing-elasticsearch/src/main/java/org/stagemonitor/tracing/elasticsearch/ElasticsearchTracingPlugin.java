@@ -9,6 +9,7 @@ import org.stagemonitor.tracing.TracingPlugin;
 import java.util.Collections;
 import java.util.List;
 
+import static org.stagemonitor.tracing.elasticsearch.ElasticsearchSpanReporter.bufferPoolUsageMetricName;
 import static org.stagemonitor.tracing.elasticsearch.ElasticsearchSpanReporter.bulkSizeMetricName;
 import static org.stagemonitor.tracing.elasticsearch.ElasticsearchSpanReporter.spansDroppedMetricName;
 
@@ -73,6 +74,45 @@ public class ElasticsearchTracingPlugin extends StagemonitorPlugin {
 					"You can monitor the amount of dropped spans via the counter " + spansDroppedMetricName.getName())
 			.configurationCategory(ELASTICSEARCH_TRACING_PLUGIN)
 			.buildWithDefault(1000);
+	private final ConfigurationOption<Integer> bufferPoolSizeMb = ConfigurationOption.integerOption()
+			.key("stagemonitor.tracing.elasticsearch.reporter.bufferPoolSizeMb")
+			.dynamic(false)
+			.label("Span buffer pool size (MB)")
+			.description("The spans are serialized as soon as they are reported into pooled, off-heap buffers which are " +
+					"reused after the spans have been sent to elasticsearch. " +
+					"This option limits the amount of off-heap memory the pool may allocate. " +
+					"If the pool is exhausted, spans are serialized into regular heap buffers. " +
+					"You can monitor the utilisation of the pool via the gauge " + bufferPoolUsageMetricName.getName())
+			.configurationCategory(ELASTICSEARCH_TRACING_PLUGIN)
+			.buildWithDefault(8);
+	private final ConfigurationOption<Integer> concurrentBulkSenders = ConfigurationOption.integerOption()
+			.key("stagemonitor.tracing.elasticsearch.reporter.concurrentBulkSenders")
+			.dynamic(false)
+			.label("Concurrent bulk senders")
+			.description("The number of threads which concurrently send span batches to elasticsearch. " +
+					"Increasing this value can help to keep up with a high amount of spans when elasticsearch responds slowly.")
+			.configurationCategory(ELASTICSEARCH_TRACING_PLUGIN)
+			.buildWithDefault(1);
+	private final ConfigurationOption<Integer> adaptiveBatchSizeTargetLatencyMs = ConfigurationOption.integerOption()
+			.key("stagemonitor.tracing.elasticsearch.reporter.adaptiveBatchSizeTargetLatencyMs")
+			.dynamic(false)
+			.label("Adaptive batch size target latency (ms)")
+			.description("When set to a value > 0, the batch size is adapted to the load of elasticsearch. " +
+					"If a _bulk request takes longer than the target latency or if documents are rejected, " +
+					"the batch size is halved. Otherwise, it is slowly increased up to the max batch size.")
+			.configurationCategory(ELASTICSEARCH_TRACING_PLUGIN)
+			.buildWithDefault(-1);
+	private final ConfigurationOption<Boolean> backpressureSampling = ConfigurationOption.booleanOption()
+			.key("stagemonitor.tracing.elasticsearch.reporter.backpressureSampling")
+			.dynamic(true)
+			.label("Sample less when the span queue fills up")
+			.description("If set to true, less traces are sampled as soon as the span queue is more than half full. " +
+					"The fuller the queue, the less traces are sampled. That way, the sampling rate drops before " +
+					"spans have to be dropped because the queue is full.")
+			.configurationCategory(ELASTICSEARCH_TRACING_PLUGIN)
+			.buildWithDefault(false);
+
+	private ElasticsearchSpanReporter spanReporter;
 
 	@Override
 	public List<Class<? extends StagemonitorPlugin>> dependsOn() {
@@ -95,6 +135,30 @@ public class ElasticsearchTracingPlugin extends StagemonitorPlugin {
 		return maxQueueSize.getValue();
 	}
 
+	public int getBufferPoolSizeMb() {
+		return bufferPoolSizeMb.getValue();
+	}
+
+	public int getConcurrentBulkSenders() {
+		return concurrentBulkSenders.getValue();
+	}
+
+	public int getAdaptiveBatchSizeTargetLatencyMs() {
+		return adaptiveBatchSizeTargetLatencyMs.getValue();
+	}
+
+	public boolean isBackpressureSampling() {
+		return backpressureSampling.getValue();
+	}
+
+	ElasticsearchSpanReporter getSpanReporter() {
+		return spanReporter;
+	}
+
+	void setSpanReporter(ElasticsearchSpanReporter spanReporter) {
+		this.spanReporter = spanReporter;
+	}
+
 	public String getSpanIndexTemplate() {
 		return spanIndexTemplate.getValue();
 	}
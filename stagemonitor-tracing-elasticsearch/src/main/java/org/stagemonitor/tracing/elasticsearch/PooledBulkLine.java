@@ -0,0 +1,135 @@
+package org.stagemonitor.tracing.elasticsearch;
+
+import org.stagemonitor.core.util.HttpClient;
+import org.stagemonitor.core.util.JsonUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bulk line which has been serialized eagerly into segments of a {@link ByteBufferPool}.
+ * <p>
+ * That way, the queue of the {@link ElasticsearchSpanReporter} only holds the compact serialized form and not the
+ * object graph of the span.
+ * <p>
+ * The segments have to be given back to the pool via {@link #release()} after the bulk line has been sent or dropped.
+ */
+class PooledBulkLine implements HttpClient.OutputStreamHandler {
+
+	private final ByteBufferPool pool;
+	private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>(2);
+	private int size;
+
+	private PooledBulkLine(ByteBufferPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Serializes the header, the json representation of the document and a trailing newline into pooled segments
+	 *
+	 * @param pool     the pool to acquire the segments from
+	 * @param header   the bulk action, including the trailing newline
+	 * @param document the document to serialize as json
+	 * @return the serialized bulk line
+	 */
+	static PooledBulkLine serialize(ByteBufferPool pool, byte[] header, Object document) throws IOException {
+		final PooledBulkLine bulkLine = new PooledBulkLine(pool);
+		try {
+			final SegmentOutputStream os = bulkLine.new SegmentOutputStream();
+			os.write(header);
+			JsonUtils.writeWithoutClosingStream(os, document);
+			os.write('\n');
+		} catch (IOException e) {
+			bulkLine.release();
+			throw e;
+		} catch (RuntimeException e) {
+			bulkLine.release();
+			throw e;
+		}
+		for (ByteBuffer segment : bulkLine.segments) {
+			segment.flip();
+		}
+		return bulkLine;
+	}
+
+	@Override
+	public void withHttpURLConnection(OutputStream os) throws IOException {
+		writeTo(Channels.newChannel(os));
+	}
+
+	/**
+	 * Writes all segments to the channel without copying them into an intermediate array first
+	 */
+	void writeTo(WritableByteChannel channel) throws IOException {
+		for (ByteBuffer segment : segments) {
+			segment.rewind();
+			while (segment.hasRemaining()) {
+				channel.write(segment);
+			}
+		}
+	}
+
+	/**
+	 * @return the size of the serialized bulk line in bytes
+	 */
+	int size() {
+		return size;
+	}
+
+	void release() {
+		for (ByteBuffer segment : segments) {
+			pool.release(segment);
+		}
+		segments.clear();
+	}
+
+	@Override
+	public String toString() {
+		final byte[] bytes = new byte[size];
+		int offset = 0;
+		for (ByteBuffer segment : segments) {
+			final ByteBuffer duplicate = segment.duplicate();
+			duplicate.rewind();
+			final int length = duplicate.remaining();
+			duplicate.get(bytes, offset, length);
+			offset += length;
+		}
+		return new String(bytes, 0, offset, ElasticsearchSpanReporter.UTF_8);
+	}
+
+	private class SegmentOutputStream extends OutputStream {
+
+		private ByteBuffer current;
+
+		@Override
+		public void write(int b) {
+			ensureCapacity().put((byte) b);
+			size++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			while (len > 0) {
+				final ByteBuffer segment = ensureCapacity();
+				final int length = Math.min(len, segment.remaining());
+				segment.put(b, off, length);
+				off += length;
+				len -= length;
+				size += length;
+			}
+		}
+
+		private ByteBuffer ensureCapacity() {
+			if (current == null || !current.hasRemaining()) {
+				current = pool.acquire();
+				segments.add(current);
+			}
+			return current;
+		}
+	}
+}
@@ -5,6 +5,7 @@ import io.jaegertracing.internal.metrics.Gauge;
 import io.jaegertracing.internal.metrics.Timer;
 import io.jaegertracing.spi.MetricsFactory;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.metrics2.MetricName;
 
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -22,22 +23,25 @@ public class Metric2RegistryStatsFactory implements MetricsFactory {
 
 	@Override
 	public Counter createCounter(String name, Map<String, String> tags) {
-		final com.codahale.metrics.Counter counter = metric2Registry.counter(name(name).tags(tags).build());
+		final MetricName metricName = name(name).tags(tags).build();
+		metric2Registry.counter(metricName);
 		return new Counter() {
 			@Override
 			public void inc(long delta) {
-				counter.inc(delta);
+				// not holding a reference to the counter, as it might be removed when idle
+				metric2Registry.counter(metricName).inc(delta);
 			}
 		};
 	}
 
 	@Override
 	public Timer createTimer(String name, Map<String, String> tags) {
-		final com.codahale.metrics.Timer timer = metric2Registry.timer(name(name).tags(tags).build());
+		final MetricName metricName = name(name).tags(tags).build();
+		metric2Registry.timer(metricName);
 		return new Timer() {
 			@Override
 			public void durationMicros(long time) {
-				timer.update(time, TimeUnit.MICROSECONDS);
+				metric2Registry.timer(metricName).update(time, TimeUnit.MICROSECONDS);
 			}
 		};
 	}
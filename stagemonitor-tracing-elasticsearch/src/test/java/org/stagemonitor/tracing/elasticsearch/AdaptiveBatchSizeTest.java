@@ -0,0 +1,50 @@
+package org.stagemonitor.tracing.elasticsearch;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveBatchSizeTest {
+
+	private final AdaptiveBatchSize adaptiveBatchSize = new AdaptiveBatchSize(100, 500);
+
+	@Test
+	public void testDecreaseOnHighLatency() throws Exception {
+		adaptiveBatchSize.onBulkResponse(1000, false, 100);
+		assertThat(adaptiveBatchSize.get(100)).isEqualTo(50);
+		adaptiveBatchSize.onBulkResponse(1000, false, 100);
+		assertThat(adaptiveBatchSize.get(100)).isEqualTo(25);
+	}
+
+	@Test
+	public void testDecreaseOnErrors() throws Exception {
+		adaptiveBatchSize.onBulkResponse(10, true, 100);
+		assertThat(adaptiveBatchSize.get(100)).isEqualTo(50);
+	}
+
+	@Test
+	public void testNotLowerThanMinBatchSize() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			adaptiveBatchSize.onBulkResponse(10, true, 100);
+		}
+		assertThat(adaptiveBatchSize.get(100)).isEqualTo(AdaptiveBatchSize.MIN_BATCH_SIZE);
+	}
+
+	@Test
+	public void testIncreaseAdditivelyUpToMaxBatchSize() throws Exception {
+		adaptiveBatchSize.onBulkResponse(10, true, 100);
+		adaptiveBatchSize.onBulkResponse(10, false, 100);
+		assertThat(adaptiveBatchSize.get(100)).isEqualTo(60);
+		for (int i = 0; i < 10; i++) {
+			adaptiveBatchSize.onBulkResponse(10, false, 100);
+		}
+		assertThat(adaptiveBatchSize.get(100)).isEqualTo(100);
+	}
+
+	@Test
+	public void testMaxBatchSizeDecreased() throws Exception {
+		assertThat(adaptiveBatchSize.get(20)).isEqualTo(20);
+		adaptiveBatchSize.onBulkResponse(10, true, 20);
+		assertThat(adaptiveBatchSize.get(20)).isEqualTo(10);
+	}
+}
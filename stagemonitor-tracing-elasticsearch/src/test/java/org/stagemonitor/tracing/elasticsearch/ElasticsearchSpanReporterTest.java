@@ -2,9 +2,15 @@ package org.stagemonitor.tracing.elasticsearch;
 
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.stagemonitor.core.elasticsearch.SpillLog;
+import org.stagemonitor.core.util.HttpClient;
 import org.stagemonitor.tracing.SpanContextInformation;
 import org.stagemonitor.tracing.reporter.SpanReporter;
 import org.stagemonitor.tracing.utils.SpanUtils;
@@ -26,6 +32,9 @@ import static org.mockito.ArgumentMatchers.any;
 
 public class ElasticsearchSpanReporterTest extends AbstractElasticsearchSpanReporterTest {
 
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
 	private ElasticsearchSpanReporter reporter;
 
 	@Override
@@ -43,8 +52,70 @@ public class ElasticsearchSpanReporterTest extends AbstractElasticsearchSpanRepo
 
 		final List<MockSpan> sampledSpans = getSampledSpans();
 		assertThat(sampledSpans).hasSize(1);
-		Mockito.verify(httpClient).send(any(), any(), any(), any(), any());
+		Mockito.verify(httpClient).sendBulk(any(), any(), any(), any());
+		Assert.assertTrue(reporter.isActive(spanContext));
+	}
+
+	@Test
+	public void testReleaseBuffersAfterFlush() throws Exception {
+		reportSpanWithCallTree(1000, "Report Me");
+
+		assertThat(registry.getTimers().get(ElasticsearchSpanReporter.serializationTimeMetricName).getCount()).isEqualTo(1);
+		assertThat(registry.getGauges().get(ElasticsearchSpanReporter.queuedBytesMetricName).getValue()).isEqualTo(0L);
+		assertThat(registry.getGauges().get(ElasticsearchSpanReporter.bufferPoolUsageMetricName).getValue()).isEqualTo(0.0);
+	}
+
+	@Test
+	public void testSamplingBackpressure() throws Exception {
+		Mockito.doReturn(4).when(elasticsearchTracingPlugin).getMaxQueueSize();
+		Mockito.doReturn(60000).when(elasticsearchTracingPlugin).getFlushDelayMs();
+		Mockito.when(tracingPlugin.isReportAsync()).thenReturn(true);
+		final ElasticsearchSpanReporter reporter = new ElasticsearchSpanReporter(spanLogger);
+		reporter.init(configuration);
+
+		reporter.scheduleSendBulk(Mockito.mock(HttpClient.OutputStreamHandler.class));
+		reporter.scheduleSendBulk(Mockito.mock(HttpClient.OutputStreamHandler.class));
+		assertThat(reporter.getSamplingBackpressure()).isEqualTo(0.0);
+
+		reporter.scheduleSendBulk(Mockito.mock(HttpClient.OutputStreamHandler.class));
+		assertThat(reporter.getSamplingBackpressure()).isEqualTo(0.5);
+
+		reporter.scheduleSendBulk(Mockito.mock(HttpClient.OutputStreamHandler.class));
+		assertThat(reporter.getSamplingBackpressure()).isEqualTo(1.0);
+	}
+
+	@Test
+	public void testSpillWhenElasticsearchIsNotAvailable() throws Exception {
+		final SpillLog spillLog = new SpillLog(temporaryFolder.newFolder(), 1024 * 1024, 1);
+		Mockito.when(corePlugin.getSpillLog()).thenReturn(spillLog);
+		Mockito.when(elasticsearchClient.isElasticsearchAvailable()).thenReturn(false);
+
+		final SpanContextInformation spanContext = reportSpanWithCallTree(1000, "Report Me");
+
 		Assert.assertTrue(reporter.isActive(spanContext));
+		Mockito.verify(httpClient, Mockito.times(0)).sendBulk(any(), any(), any(), any());
+		final SpillLog.Entry entry = spillLog.peek();
+		assertThat(entry.getPath()).isEqualTo("/" + ElasticsearchSpanReporter.getTodaysIndexName() + "/spans/_bulk");
+		assertThat(new String(entry.getPayload(), "UTF-8")).startsWith("{\"index\":{}}\n").contains("\"name\":\"Report Me\"");
+	}
+
+	@Test
+	public void testSpillWhenBulkRequestIsRejected() throws Exception {
+		final SpillLog spillLog = new SpillLog(temporaryFolder.newFolder(), 1024 * 1024, 1);
+		Mockito.when(corePlugin.getSpillLog()).thenReturn(spillLog);
+		Mockito.when(httpClient.sendBulk(any(), any(), any(), any())).then(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				return invocation.<HttpClient.ResponseHandler<?>>getArgument(3).handleResponse(null, null, 429, null);
+			}
+		});
+
+		reportSpanWithCallTree(1000, "Report Me");
+
+		Mockito.verify(httpClient).sendBulk(any(), any(), any(), any());
+		final SpillLog.Entry entry = spillLog.peek();
+		assertThat(entry.getPath()).isEqualTo("/" + ElasticsearchSpanReporter.getTodaysIndexName() + "/spans/_bulk");
+		assertThat(new String(entry.getPayload(), "UTF-8")).contains("\"name\":\"Report Me\"");
 	}
 
 	@Test
@@ -54,7 +125,7 @@ public class ElasticsearchSpanReporterTest extends AbstractElasticsearchSpanRepo
 
 		final List<MockSpan> sampledSpans = getSampledSpans();
 		assertThat(sampledSpans).hasSize(1);
-		Mockito.verify(httpClient, Mockito.times(0)).send(any(), any(), any(), any(), any());
+		Mockito.verify(httpClient, Mockito.times(0)).sendBulk(any(), any(), any(), any());
 		Mockito.verify(spanLogger).info(ArgumentMatchers.startsWith("{\"index\":{\"_index\":\"stagemonitor-spans-" + StringUtils.getLogstashStyleDate() + "\",\"_type\":\"spans\"}}\n"));
 		Assert.assertTrue(reporter.isActive(spanContext));
 	}
@@ -0,0 +1,55 @@
+package org.stagemonitor.tracing.elasticsearch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PooledBulkLineTest {
+
+	private final ByteBufferPool pool = new ByteBufferPool(8, 4);
+
+	@Test
+	public void testSerializeAcrossSegments() throws Exception {
+		final PooledBulkLine bulkLine = PooledBulkLine.serialize(pool, "{\"index\":{}}\n".getBytes("UTF-8"), Collections.singletonMap("foo", "bar"));
+
+		final String expected = "{\"index\":{}}\n{\"foo\":\"bar\"}\n";
+		assertThat(bulkLine.size()).isEqualTo(expected.length());
+		assertThat(pool.getSegmentsInUse()).isEqualTo(4);
+		assertThat(bulkLine.toString()).isEqualTo(expected);
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		bulkLine.withHttpURLConnection(output);
+		assertThat(output.toString("UTF-8")).isEqualTo(expected);
+
+		bulkLine.release();
+		assertThat(pool.getSegmentsInUse()).isZero();
+	}
+
+	@Test
+	public void testReuseSegments() throws Exception {
+		final ByteBuffer segment = pool.acquire();
+		assertThat(segment.isDirect()).isTrue();
+		segment.put((byte) 1);
+		pool.release(segment);
+
+		final ByteBuffer reused = pool.acquire();
+		assertThat(reused).isSameAs(segment);
+		assertThat(reused.position()).isZero();
+	}
+
+	@Test
+	public void testFallBackToHeapWhenPoolIsExhausted() throws Exception {
+		for (int i = 0; i < pool.getMaxSegments(); i++) {
+			assertThat(pool.acquire().isDirect()).isTrue();
+		}
+		final ByteBuffer heapBuffer = pool.acquire();
+		assertThat(heapBuffer.isDirect()).isFalse();
+		assertThat(pool.getSegmentsInUse()).isEqualTo(pool.getMaxSegments());
+
+		pool.release(heapBuffer);
+		assertThat(pool.getSegmentsInUse()).isEqualTo(pool.getMaxSegments());
+	}
+}
@@ -10,6 +10,7 @@ import org.stagemonitor.core.CorePlugin;
 import org.stagemonitor.core.Stagemonitor;
 import org.stagemonitor.core.StagemonitorPlugin;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.metrics2.ReservoirType;
 import org.stagemonitor.core.util.ExecutorUtils;
 import org.stagemonitor.tracing.anonymization.AnonymizingSpanEventListener;
 import org.stagemonitor.tracing.impl.DefaultTracerFactory;
@@ -144,6 +145,18 @@ public class TracingPlugin extends StagemonitorPlugin {
 					.tags("profiler", "experimental")
 					.configurationCategory(TRACING_PLUGIN)
 					.buildWithDefault(false);
+	private final ConfigurationOption<Boolean> profilerCallTreeBuffer = ConfigurationOption.booleanOption()
+					.key("stagemonitor.profiler.callTreeBuffer")
+					.dynamic(false)
+					.label("Activate Profiler Call Tree Buffer")
+					.description("Activates the experimental call tree buffer for the profiler. When enabled, the profiler " +
+									"records method calls into a reusable, per-thread buffer of primitive arrays instead of " +
+									"creating a CallStackElement for each profiled method call. The CallStackElement tree is " +
+									"only created when the call tree is actually reported. This aims to reduce heap usage and " +
+									"garbage collections caused by stagemonitor.")
+					.tags("profiler", "experimental")
+					.configurationCategory(TRACING_PLUGIN)
+					.buildWithDefault(false);
 	private final ConfigurationOption<Double> profilerRateLimitPerMinute = ConfigurationOption.doubleOption()
 					.key("stagemonitor.profiler.sampling.rateLimitPerMinute")
 					.aliasKeys("stagemonitor.requestmonitor.onlyCollectNCallTreesPerMinute")
@@ -222,7 +235,9 @@ public class TracingPlugin extends StagemonitorPlugin {
 					.key("stagemonitor.tracing.metrics.async")
 					.dynamic(true)
 					.label("Track Metrics Async")
-					.description("Set to true to track response time metrics asynchronously.")
+					.description("Set to true to track response time metrics asynchronously. " +
+							"Has no effect if stagemonitor.metrics.reservoir is set to HDR_HISTOGRAM, " +
+							"as the metrics are always tracked synchronously in that case.")
 					.configurationCategory(TRACING_PLUGIN)
 					.tags("metircs", "advanced")
 					.buildWithDefault(true);
@@ -316,6 +331,18 @@ public class TracingPlugin extends StagemonitorPlugin {
 					})
 					.configurationCategory(TRACING_PLUGIN)
 					.buildWithDefault(Collections.<String, Double>emptyMap());
+	private final ConfigurationOption<Boolean> samplingPercentPerThreadCounter = ConfigurationOption.booleanOption()
+					.key("stagemonitor.tracing.sampling.percent.perThreadCounter")
+					.dynamic(false)
+					.label("Use per-thread counters for the percentage based sampling")
+					.description("The percentage based sampling decides which spans to sample by incrementing a counter for " +
+									"each span. By default, this counter is shared by all threads, which guarantees the exact " +
+									"sampling percentage across every 100 spans. Under high load, this shared counter can become a " +
+									"point of contention. When set to true, each thread uses its own counter. " +
+									"The exact sampling percentage is then guaranteed across every 100 spans of a thread.")
+					.tags("sampling", "advanced")
+					.configurationCategory(TRACING_PLUGIN)
+					.buildWithDefault(false);
 	private final ConfigurationOption<Double> excludeCallTreeFromReportWhenFasterThanXPercentOfRequests = ConfigurationOption.doubleOption()
 					.key("stagemonitor.tracing.sampling.excludeCallTreeFromReportWhenFasterThanXPercentOfRequests")
 					.aliasKeys("stagemonitor.requestmonitor.elasticsearch.excludeCallTreeFromElasticsearchReportWhenFasterThanXPercentOfRequests")
@@ -449,7 +476,8 @@ public class TracingPlugin extends StagemonitorPlugin {
 			spanWrappingTracer.addEventListenerFactory(spanEventListenerFactory);
 		}
 		final ThreadPoolExecutor singleThreadDeamonPool = ExecutorUtils.createSingleThreadDeamonPool("metric-tracking", 1000, corePlugin);
-		final MetricsSpanEventListener spanEventListener = new MetricsSpanEventListener(metricRegistry, singleThreadDeamonPool, tracingPlugin);
+		final MetricsSpanEventListener spanEventListener = new MetricsSpanEventListener(metricRegistry, singleThreadDeamonPool, tracingPlugin,
+				corePlugin.getReservoirType() == ReservoirType.HDR_HISTOGRAM);
 		spanWrappingTracer.addEventListenerFactory(spanEventListener);
 		spanWrappingTracer.addEventListenerFactory(new CallTreeSpanEventListener(corePlugin.getMetricRegistry(), tracingPlugin));
 		spanWrappingTracer.addEventListenerFactory(new AnonymizingSpanEventListener(tracingPlugin));
@@ -541,6 +569,10 @@ public class TracingPlugin extends StagemonitorPlugin {
 		return profilerObjectPooling.getValue();
 	}
 
+	public boolean isProfilerCallTreeBufferActive() {
+		return profilerCallTreeBuffer.getValue();
+	}
+
 	public Collection<Pattern> getConfidentialParameters() {
 		return confidentialParameters.getValue();
 	}
@@ -596,6 +628,10 @@ public class TracingPlugin extends StagemonitorPlugin {
 		return rateLimitSpansPerMinutePercentPerType;
 	}
 
+	public boolean isSamplingPercentPerThreadCounter() {
+		return samplingPercentPerThreadCounter.getValue();
+	}
+
 	public double getExcludeExternalRequestsWhenFasterThanXPercent() {
 		return excludeExternalRequestsWhenFasterThanXPercent.getValue();
 	}
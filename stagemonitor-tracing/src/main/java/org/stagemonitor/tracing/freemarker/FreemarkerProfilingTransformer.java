@@ -10,7 +10,6 @@ import net.bytebuddy.matcher.ElementMatcher;
 import net.bytebuddy.matcher.ElementMatchers;
 
 import org.stagemonitor.core.instrument.StagemonitorByteBuddyTransformer;
-import org.stagemonitor.tracing.profiler.CallStackElement;
 import org.stagemonitor.tracing.profiler.Profiler;
 
 import static net.bytebuddy.matcher.ElementMatchers.named;
@@ -67,13 +66,6 @@ public class FreemarkerProfilingTransformer extends StagemonitorByteBuddyTransfo
 		Profiler.start(env.getCurrentTemplate().getName() + ':' + dot.getBeginLine() + '#' + dot.toString());
 	}
 
-	@Advice.OnMethodExit(inline = false, onThrowable = Throwable.class)
-	public static void onAfterEvaluate() {
-		final CallStackElement currentFreemarkerCall = Profiler.getMethodCallParent();
-		Profiler.stop();
-		removeCurrentNodeIfItHasNoChildren(currentFreemarkerCall);
-	}
-
 	/**
 	 * <pre>{@code
 	 * test.ftl:1#templateModel.getFoo() <- added by {@code freemarker.core.MethodCall#_eval(Environment)}
@@ -85,10 +77,9 @@ public class FreemarkerProfilingTransformer extends StagemonitorByteBuddyTransfo
 	 * invoked by {@code freemarker.core.MethodCall#_eval(Environment)}.
 	 * Therefore, <code>getFoo</code> does not invoke the model and thus is not relevant for the call tree
 	 */
-	private static void removeCurrentNodeIfItHasNoChildren(CallStackElement currentFreemarkerCall) {
-		if (currentFreemarkerCall != null && currentFreemarkerCall.getChildren().isEmpty()) {
-			currentFreemarkerCall.remove();
-		}
+	@Advice.OnMethodExit(inline = false, onThrowable = Throwable.class)
+	public static void onAfterEvaluate() {
+		Profiler.stopAndRemoveIfNoChildren();
 	}
 
 	/**
@@ -47,11 +47,22 @@ public class MetricsSpanEventListener extends StatelessSpanEventListener impleme
 	private final Metric2Registry metricRegistry;
 	private final ThreadPoolExecutor executorService;
 	private final TracingPlugin tracingPlugin;
+	private final boolean lockFreeReservoirs;
 
 	public MetricsSpanEventListener(Metric2Registry metricRegistry, ThreadPoolExecutor executorService, TracingPlugin tracingPlugin) {
+		this(metricRegistry, executorService, tracingPlugin, false);
+	}
+
+	/**
+	 * @param lockFreeReservoirs whether the timers are backed by lock-free reservoirs, in which case the metrics are
+	 *                           always tracked in the current thread
+	 */
+	public MetricsSpanEventListener(Metric2Registry metricRegistry, ThreadPoolExecutor executorService, TracingPlugin tracingPlugin,
+									boolean lockFreeReservoirs) {
 		this.metricRegistry = metricRegistry;
 		this.executorService = executorService;
 		this.tracingPlugin = tracingPlugin;
+		this.lockFreeReservoirs = lockFreeReservoirs;
 	}
 
 	@Override
@@ -73,7 +84,7 @@ public class MetricsSpanEventListener extends StatelessSpanEventListener impleme
 	private void trackResponseTimeMetricsAsync(final String operationName, final long durationNanos, final boolean error, final String operationType, final boolean trackMetricsByOperationName) {
 		try {
 			// tracking metrics in a single thread to reduce latency and contention of the locks in ExponentiallyDecayingReservoir
-			if (tracingPlugin.isTrackMetricsAsync() && executorService.getQueue().remainingCapacity() != 0) {
+			if (!lockFreeReservoirs && tracingPlugin.isTrackMetricsAsync() && executorService.getQueue().remainingCapacity() != 0) {
 				executorService.submit(new Runnable() {
 					@Override
 					public void run() {
@@ -36,6 +36,8 @@ public class CallStackElement {
 	@JsonIgnore
 	private CallStackElement parent;
 	private String signature;
+	@JsonIgnore
+	private int signatureId = SignatureRegistry.UNKNOWN;
 	private long executionTime;
 	private List<CallStackElement> children = new LinkedList<CallStackElement>();
 
@@ -47,6 +49,22 @@ public class CallStackElement {
 		return CallStackElement.create(parent, signature, System.nanoTime());
 	}
 
+	public static CallStackElement create(CallStackElement parent, int signatureId) {
+		return CallStackElement.create(parent, signatureId, System.nanoTime());
+	}
+
+	/**
+	 * This static factory method also sets the parent-child relationships.
+	 * @param parent the parent
+	 * @param signatureId the id of the signature which has been registered via {@link SignatureRegistry#register(String)}
+	 * @param startTimestamp the timestamp at the beginning of the method
+	 */
+	public static CallStackElement create(CallStackElement parent, int signatureId, long startTimestamp) {
+		final CallStackElement cse = CallStackElement.create(parent, SignatureRegistry.getSignature(signatureId), startTimestamp);
+		cse.signatureId = signatureId;
+		return cse;
+	}
+
 	/**
 	 * This static factory method also sets the parent-child relationships.
 	 * @param parent the parent
@@ -65,6 +83,7 @@ public class CallStackElement {
 
 		cse.executionTime = startTimestamp;
 		cse.signature = signature;
+		cse.signatureId = SignatureRegistry.UNKNOWN;
 		if (parent != null) {
 			cse.parent = parent;
 			parent.children.add(cse);
@@ -78,6 +97,7 @@ public class CallStackElement {
 		}
 		parent = null;
 		signature = null;
+		signatureId = SignatureRegistry.UNKNOWN;
 		executionTime = 0;
 		for (CallStackElement child : children) {
 			child.recycle();
@@ -144,6 +164,7 @@ public class CallStackElement {
 
 	public void setSignature(String signature) {
 		this.signature = signature;
+		this.signatureId = SignatureRegistry.UNKNOWN;
 	}
 
 	/**
@@ -154,15 +175,10 @@ public class CallStackElement {
 	 * otherwise
 	 */
 	public String getShortSignature() {
-		if (signature.indexOf('(') == -1 || signature.indexOf(':') != -1) {
-			return null;
-		}
-		String[] split = signature.substring(0, signature.indexOf('(')).split("\\.");
-		if (split.length > 1) {
-			return split[split.length - 2] + '#' + split[split.length - 1];
-		} else {
-			return split.length == 1 ? split[0] : "null";
+		if (signatureId != SignatureRegistry.UNKNOWN) {
+			return SignatureRegistry.getShortSignature(signatureId);
 		}
+		return SignatureRegistry.getShortSignature(signature);
 	}
 
 	public CallStackElement getParent() {
@@ -0,0 +1,222 @@
+package org.stagemonitor.tracing.profiler;
+
+import java.util.Arrays;
+
+/**
+ * A per-thread, reusable representation of a call tree which stores its nodes in parallel primitive arrays.
+ * <p>
+ * In contrast to {@link CallStackElement}, recording a method call does not allocate any objects once the arrays have
+ * grown to the size needed by the call trees of the current thread. The nodes are stored in pre-order, which means that
+ * a node that has just been stopped is always the last child of its parent and its descendants are stored after it.
+ * Therefore, removing a call that was faster than the threshold is just a matter of truncating the arrays.
+ * <p>
+ * The {@link CallStackElement} tree is only created on demand via {@link #toCallStackElement(CallStackElement)} when
+ * the call tree is actually reported.
+ * <p>
+ * This class is not thread safe and is meant to be used via a {@link ThreadLocal}
+ */
+final class CallTreeBuffer {
+
+	static final int INITIAL_CAPACITY = 256;
+	/**
+	 * Limits the heap a single thread can allocate for its call tree (~2 MB).
+	 * Calls which exceed the capacity are not recorded.
+	 */
+	static final int MAX_CAPACITY = 1 << 16;
+	private static final int NONE = -1;
+
+	/**
+	 * Only set for signatures which are not registered in the {@link SignatureRegistry}
+	 */
+	private String[] signatures;
+	private int[] signatureIds;
+	/**
+	 * Initially set to the start timestamp, set to the execution time after the call has been stopped
+	 */
+	private long[] executionTimes;
+	private int[] parents;
+	private int[] firstChildren;
+	private int[] lastChildren;
+	private int[] previousSiblings;
+	private int size;
+	private int current = NONE;
+	/**
+	 * The number of nested calls which could not be recorded because {@link #MAX_CAPACITY} has been reached
+	 */
+	private int overflowDepth;
+
+	CallTreeBuffer() {
+		this(INITIAL_CAPACITY);
+	}
+
+	CallTreeBuffer(int initialCapacity) {
+		signatures = new String[initialCapacity];
+		signatureIds = new int[initialCapacity];
+		executionTimes = new long[initialCapacity];
+		parents = new int[initialCapacity];
+		firstChildren = new int[initialCapacity];
+		lastChildren = new int[initialCapacity];
+		previousSiblings = new int[initialCapacity];
+	}
+
+	/**
+	 * Resets the buffer and records the root of the call tree
+	 *
+	 * @param signature      the signature of the root
+	 * @param startTimestamp the start timestamp of the root
+	 */
+	void activate(String signature, long startTimestamp) {
+		reset();
+		current = add(signature, SignatureRegistry.UNKNOWN, startTimestamp);
+	}
+
+	boolean isActive() {
+		return current != NONE;
+	}
+
+	void start(String signature, long startTimestamp) {
+		start(signature, SignatureRegistry.UNKNOWN, startTimestamp);
+	}
+
+	void start(int signatureId, long startTimestamp) {
+		start(null, signatureId, startTimestamp);
+	}
+
+	private void start(String signature, int signatureId, long startTimestamp) {
+		if (current == NONE) {
+			return;
+		}
+		final int index = add(signature, signatureId, startTimestamp);
+		if (index == NONE) {
+			overflowDepth++;
+		} else {
+			current = index;
+		}
+	}
+
+	/**
+	 * Stops the current call
+	 *
+	 * @param timestamp             the stop timestamp
+	 * @param minExecutionTime      the threshold for the minimum execution time
+	 * @param removeIfNoChildren    whether the call should be removed from the call tree if it did not invoke profiled
+	 *                              methods
+	 */
+	void stop(long timestamp, long minExecutionTime, boolean removeIfNoChildren) {
+		if (current == NONE) {
+			return;
+		}
+		if (overflowDepth > 0) {
+			overflowDepth--;
+			return;
+		}
+		final int index = current;
+		final long executionTime = timestamp - executionTimes[index];
+		executionTimes[index] = executionTime;
+		current = parents[index];
+		if (current != NONE && (executionTime < minExecutionTime || (removeIfNoChildren && firstChildren[index] == NONE))) {
+			removeLastChild(current, index);
+		}
+	}
+
+	/**
+	 * Adds a call with a known execution time as a child of the current call
+	 */
+	void addCall(String signature, long executionTime) {
+		if (current != NONE) {
+			add(signature, SignatureRegistry.UNKNOWN, executionTime);
+		}
+	}
+
+	/**
+	 * Clears the buffer but keeps the arrays so that they can be reused for the next call tree
+	 */
+	void reset() {
+		// don't retain potentially large signatures like SQL queries
+		Arrays.fill(signatures, 0, size, null);
+		size = 0;
+		current = NONE;
+		overflowDepth = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Creates the {@link CallStackElement} tree out of the recorded calls.
+	 *
+	 * @param root the {@link CallStackElement} representing the root of this call tree
+	 * @return the root
+	 */
+	CallStackElement toCallStackElement(CallStackElement root) {
+		if (size == 0) {
+			return root;
+		}
+		root.setExecutionTime(executionTimes[0]);
+		final CallStackElement[] elements = new CallStackElement[size];
+		elements[0] = root;
+		// as the nodes are stored in pre-order, the parent is always created before its children
+		for (int i = 1; i < size; i++) {
+			if (signatureIds[i] == SignatureRegistry.UNKNOWN) {
+				elements[i] = CallStackElement.create(elements[parents[i]], signatures[i], executionTimes[i]);
+			} else {
+				elements[i] = CallStackElement.create(elements[parents[i]], signatureIds[i], executionTimes[i]);
+			}
+		}
+		return root;
+	}
+
+	private int add(String signature, int signatureId, long executionTime) {
+		if (size == signatures.length && !grow()) {
+			return NONE;
+		}
+		final int index = size++;
+		signatures[index] = signature;
+		signatureIds[index] = signatureId;
+		executionTimes[index] = executionTime;
+		parents[index] = current;
+		firstChildren[index] = NONE;
+		lastChildren[index] = NONE;
+		previousSiblings[index] = NONE;
+		if (current != NONE) {
+			final int previousSibling = lastChildren[current];
+			if (previousSibling == NONE) {
+				firstChildren[current] = index;
+			}
+			previousSiblings[index] = previousSibling;
+			lastChildren[current] = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Removes the last child of the parent including all its descendants.
+	 * As the nodes are stored in pre-order, all nodes after the last child are its descendants.
+	 */
+	private void removeLastChild(int parent, int lastChild) {
+		final int previousSibling = previousSiblings[lastChild];
+		if (previousSibling == NONE) {
+			firstChildren[parent] = NONE;
+		}
+		lastChildren[parent] = previousSibling;
+		Arrays.fill(signatures, lastChild, size, null);
+		size = lastChild;
+	}
+
+	private boolean grow() {
+		if (signatures.length >= MAX_CAPACITY) {
+			return false;
+		}
+		final int newCapacity = Math.min(signatures.length * 2, MAX_CAPACITY);
+		signatures = Arrays.copyOf(signatures, newCapacity);
+		signatureIds = Arrays.copyOf(signatureIds, newCapacity);
+		executionTimes = Arrays.copyOf(executionTimes, newCapacity);
+		parents = Arrays.copyOf(parents, newCapacity);
+		firstChildren = Arrays.copyOf(firstChildren, newCapacity);
+		lastChildren = Arrays.copyOf(lastChildren, newCapacity);
+		previousSiblings = Arrays.copyOf(previousSiblings, newCapacity);
+		return true;
+	}
+
+}
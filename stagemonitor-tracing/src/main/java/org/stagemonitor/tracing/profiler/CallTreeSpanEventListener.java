@@ -99,7 +99,7 @@ public class CallTreeSpanEventListener extends StatelessSpanEventListener {
 	}
 
 	private void addCallTreeToSpan(SpanContextInformation info, Span span, String operationName) {
-		final CallStackElement callTree = info.getCallTree();
+		final CallStackElement callTree = Profiler.materializeCallTree(info.getCallTree());
 		callTree.setSignature(operationName);
 		final double minExecutionTimeMultiplier = tracingPlugin.getMinExecutionTimePercent() / 100;
 		if (minExecutionTimeMultiplier > 0d) {
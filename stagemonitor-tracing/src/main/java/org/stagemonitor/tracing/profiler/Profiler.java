@@ -7,63 +7,149 @@ public final class Profiler {
 
 	public static final long MIN_EXECUTION_TIME_NANOS = Stagemonitor.getPlugin(TracingPlugin.class).getMinExecutionTimeNanos();
 
+	private static final boolean CALL_TREE_BUFFER_ACTIVE = Stagemonitor.getPlugin(TracingPlugin.class).isProfilerCallTreeBufferActive();
+
 	private static final ThreadLocal<CallStackElement> methodCallParent = new ThreadLocal<CallStackElement>();
 
+	private static final ThreadLocal<CallTreeBuffer> callTreeBuffer = new ThreadLocal<CallTreeBuffer>() {
+		@Override
+		protected CallTreeBuffer initialValue() {
+			return new CallTreeBuffer();
+		}
+	};
+
 	private Profiler() {
 	}
 
 	public static void start(String signature) {
+		if (CALL_TREE_BUFFER_ACTIVE) {
+			callTreeBuffer.get().start(signature, System.nanoTime());
+			return;
+		}
 		final CallStackElement parent = methodCallParent.get();
 		if (parent != null) {
 			methodCallParent.set(CallStackElement.create(parent, signature));
 		}
 	}
 
+	/**
+	 * Starts a call whose signature has been registered via {@link SignatureRegistry#register(String)}
+	 *
+	 * @param signatureId the id of the signature
+	 */
+	public static void start(int signatureId) {
+		if (CALL_TREE_BUFFER_ACTIVE) {
+			callTreeBuffer.get().start(signatureId, System.nanoTime());
+			return;
+		}
+		final CallStackElement parent = methodCallParent.get();
+		if (parent != null) {
+			methodCallParent.set(CallStackElement.create(parent, signatureId));
+		}
+	}
+
 	public static void stop() {
+		if (CALL_TREE_BUFFER_ACTIVE) {
+			callTreeBuffer.get().stop(System.nanoTime(), MIN_EXECUTION_TIME_NANOS, false);
+			return;
+		}
 		final CallStackElement currentElement = methodCallParent.get();
 		if (currentElement != null) {
 			methodCallParent.set(currentElement.executionStopped(System.nanoTime(), MIN_EXECUTION_TIME_NANOS));
 		}
 	}
 
+	/**
+	 * Stops the current call and removes it from the call tree if it did not invoke any profiled methods
+	 */
+	public static void stopAndRemoveIfNoChildren() {
+		if (CALL_TREE_BUFFER_ACTIVE) {
+			callTreeBuffer.get().stop(System.nanoTime(), MIN_EXECUTION_TIME_NANOS, true);
+			return;
+		}
+		final CallStackElement currentElement = methodCallParent.get();
+		stop();
+		if (currentElement != null && currentElement.getChildren().isEmpty()) {
+			currentElement.remove();
+		}
+	}
+
 	public static void addIOCall(String signature, long executionTimeNanos) {
 		addCall(signature + ' ', executionTimeNanos);
 	}
 
 	public static void addCall(String signature, long executionTimeNanos) {
+		if (CALL_TREE_BUFFER_ACTIVE) {
+			callTreeBuffer.get().addCall(signature, executionTimeNanos);
+			return;
+		}
 		final CallStackElement currentCall = methodCallParent.get();
 		CallStackElement.create(currentCall, signature, executionTimeNanos);
 	}
 
 	public static boolean isProfilingActive() {
+		if (CALL_TREE_BUFFER_ACTIVE) {
+			return callTreeBuffer.get().isActive();
+		}
 		return methodCallParent.get() != null;
 	}
 
 	/**
 	 * Activates the profiling for the current thread by setting the provided
 	 * {@link CallStackElement} as the root of the call stack
+	 * <p>
+	 * If the call tree buffer is active (see {@link TracingPlugin#isProfilerCallTreeBufferActive()}),
+	 * the children of the returned root are only populated after calling {@link #materializeCallTree(CallStackElement)}
 	 *
 	 * @return the root of the call stack
 	 */
 	public static CallStackElement activateProfiling(String signature) {
 		CallStackElement root = CallStackElement.createRoot(signature);
-		methodCallParent.set(root);
+		if (CALL_TREE_BUFFER_ACTIVE) {
+			callTreeBuffer.get().activate(signature, root.getExecutionTime());
+		} else {
+			methodCallParent.set(root);
+		}
+		return root;
+	}
+
+	/**
+	 * Builds the {@link CallStackElement} tree out of the calls which have been recorded for the current thread if the
+	 * call tree buffer is active. Otherwise, the tree has already been built while profiling and this is a noop.
+	 *
+	 * @param root the root which has been returned by {@link #activateProfiling(String)}
+	 * @return the root
+	 */
+	public static CallStackElement materializeCallTree(CallStackElement root) {
+		if (CALL_TREE_BUFFER_ACTIVE) {
+			return callTreeBuffer.get().toCallStackElement(root);
+		}
 		return root;
 	}
 
 	public static void deactivateProfiling() {
+		if (CALL_TREE_BUFFER_ACTIVE) {
+			callTreeBuffer.get().reset();
+		}
 		methodCallParent.set(null);
 	}
 
 	/**
-	 * Adds the current
-	 * @return
+	 * Returns the current {@link CallStackElement}.
+	 * <p>
+	 * Always returns <code>null</code> if the call tree buffer is active, as the {@link CallStackElement}s are not
+	 * created while profiling.
+	 *
+	 * @return the current {@link CallStackElement}
 	 */
 	public static CallStackElement getMethodCallParent() {
 		return methodCallParent.get();
 	}
 
 	public static void clearMethodCallParent() {
+		if (CALL_TREE_BUFFER_ACTIVE) {
+			callTreeBuffer.get().reset();
+		}
 		methodCallParent.remove();
 	}
 }
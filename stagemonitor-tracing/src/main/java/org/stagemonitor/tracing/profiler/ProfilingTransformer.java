@@ -46,8 +46,8 @@ public class ProfilingTransformer extends StagemonitorByteBuddyTransformer {
 	}
 
 	@Advice.OnMethodEnter
-	public static void enter(@ProfilerSignature String signature) {
-		Profiler.start(signature);
+	public static void enter(@ProfilerSignature int signatureId) {
+		Profiler.start(signatureId);
 	}
 
 	@Advice.OnMethodExit(onThrowable = Throwable.class)
@@ -65,6 +65,9 @@ public class ProfilingTransformer extends StagemonitorByteBuddyTransformer {
 		return Collections.<Advice.OffsetMapping.Factory<?>>singletonList(new ProfilerDynamicValue());
 	}
 
+	/**
+	 * Injects the id of the signature of the instrumented method (see {@link SignatureRegistry})
+	 */
 	@Retention(RetentionPolicy.RUNTIME)
 	@Target(ElementType.PARAMETER)
 	public @interface ProfilerSignature {
@@ -85,7 +88,7 @@ public class ProfilingTransformer extends StagemonitorByteBuddyTransformer {
 					final String returnType = instrumentedMethod.getReturnType().asErasure().getSimpleName();
 					final String className = instrumentedMethod.getDeclaringType().getTypeName();
 					final String signature = String.format("%s %s.%s(%s)", returnType, className, instrumentedMethod.getName(), getSignature(instrumentedMethod));
-					return Target.ForStackManipulation.of(signature);
+					return Target.ForStackManipulation.of(SignatureRegistry.register(signature));
 				}
 			};
 		}
@@ -0,0 +1,118 @@
+package org.stagemonitor.tracing.profiler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A global registry which assigns a stable int id to each profiled method signature.
+ * <p>
+ * The ids are assigned once, when the {@link ProfilingTransformer} instruments a method and are baked into the advice
+ * so that the profiler only has to pass around ints in the hot path. Formatted forms of the signature, like the short
+ * signature, are computed once per id and cached.
+ * <p>
+ * Reading a signature by its id is lock-free and does not allocate.
+ */
+public final class SignatureRegistry {
+
+	/**
+	 * The id of signatures which are not registered, like I/O calls or dynamic signatures such as freemarker expressions
+	 */
+	public static final int UNKNOWN = -1;
+
+	private static final int PAGE_SHIFT = 10;
+	private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+	private static final int MAX_PAGES = 4096;
+
+	private static final ConcurrentMap<String, Integer> idsBySignature = new ConcurrentHashMap<String, Integer>();
+	private static final AtomicInteger nextId = new AtomicInteger();
+	private static final AtomicReferenceArray<AtomicReferenceArray<String>> signatures = new AtomicReferenceArray<AtomicReferenceArray<String>>(MAX_PAGES);
+	private static final AtomicReferenceArray<AtomicReferenceArray<String>> shortSignatures = new AtomicReferenceArray<AtomicReferenceArray<String>>(MAX_PAGES);
+	/**
+	 * Marks cached short signatures which are <code>null</code>
+	 */
+	private static final String NO_SHORT_SIGNATURE = new String();
+
+	private SignatureRegistry() {
+	}
+
+	/**
+	 * Returns the id of the signature and registers it, if it has not been registered yet.
+	 *
+	 * @param signature the method signature
+	 * @return the id of the signature
+	 * @throws IllegalStateException if the maximum number of signatures has been registered
+	 */
+	public static int register(String signature) {
+		final Integer id = idsBySignature.get(signature);
+		if (id != null) {
+			return id;
+		}
+		final int newId = nextId.getAndIncrement();
+		if (newId >= MAX_PAGES * PAGE_SIZE) {
+			throw new IllegalStateException("Can't register more than " + MAX_PAGES * PAGE_SIZE + " signatures");
+		}
+		// publish the signature before the id so that every id that can be observed resolves to a signature
+		getPage(signatures, newId).set(newId & PAGE_MASK, signature);
+		final Integer existingId = idsBySignature.putIfAbsent(signature, newId);
+		// if another thread registered the same signature concurrently, the slot of newId is never used
+		return existingId != null ? existingId : newId;
+	}
+
+	/**
+	 * @param id the id which has been returned by {@link #register(String)}
+	 * @return the full signature like <code>void org.example.Foo.bar(String)</code>
+	 */
+	public static String getSignature(int id) {
+		return signatures.get(id >>> PAGE_SHIFT).get(id & PAGE_MASK);
+	}
+
+	/**
+	 * @param id the id which has been returned by {@link #register(String)}
+	 * @return the cached result of {@link #getShortSignature(String)}
+	 */
+	public static String getShortSignature(int id) {
+		final AtomicReferenceArray<String> page = getPage(shortSignatures, id);
+		String shortSignature = page.get(id & PAGE_MASK);
+		if (shortSignature == null) {
+			shortSignature = getShortSignature(getSignature(id));
+			if (shortSignature == null) {
+				shortSignature = NO_SHORT_SIGNATURE;
+			}
+			page.set(id & PAGE_MASK, shortSignature);
+		}
+		return shortSignature == NO_SHORT_SIGNATURE ? null : shortSignature;
+	}
+
+	/**
+	 * Returns <code>null</code>, if the signature is no method signature (such as 'total') ClassName#methodName
+	 * otherwise
+	 *
+	 * @return <code>null</code>, if the signature is no method signature (such as 'total') ClassName#methodName
+	 * otherwise
+	 */
+	static String getShortSignature(String signature) {
+		if (signature.indexOf('(') == -1 || signature.indexOf(':') != -1) {
+			return null;
+		}
+		String[] split = signature.substring(0, signature.indexOf('(')).split("\\.");
+		if (split.length > 1) {
+			return split[split.length - 2] + '#' + split[split.length - 1];
+		} else {
+			return split.length == 1 ? split[0] : "null";
+		}
+	}
+
+	private static AtomicReferenceArray<String> getPage(AtomicReferenceArray<AtomicReferenceArray<String>> pages, int id) {
+		final int pageIndex = id >>> PAGE_SHIFT;
+		AtomicReferenceArray<String> page = pages.get(pageIndex);
+		if (page == null) {
+			pages.compareAndSet(pageIndex, null, new AtomicReferenceArray<String>(PAGE_SIZE));
+			page = pages.get(pageIndex);
+		}
+		return page;
+	}
+
+}
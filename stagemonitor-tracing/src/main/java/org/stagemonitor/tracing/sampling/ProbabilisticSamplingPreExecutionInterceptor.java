@@ -7,22 +7,31 @@ import org.stagemonitor.tracing.TracingPlugin;
 import org.stagemonitor.tracing.wrapper.SpanWrapper;
 
 import java.util.BitSet;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ProbabilisticSamplingPreExecutionInterceptor extends PreExecutionSpanInterceptor {
 
 	private static final int BIT_SET_SIZE = 100;
 	private BitSet defaultSampleDecisions;
-	private Map<String, BitSet> sampleDecisionsByType;
+	private SampleDecisionsByType sampleDecisionsByType;
 	private AtomicInteger spanCounter = new AtomicInteger();
+	private final ThreadLocal<int[]> threadLocalSpanCounter = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			// a random offset so that the first spans of all threads don't get the same sampling decisions
+			return new int[]{ThreadLocalRandom.current().nextInt(BIT_SET_SIZE)};
+		}
+	};
+	private boolean perThreadCounter;
 	private TracingPlugin tracingPlugin;
 
 	@Override
 	public void init(ConfigurationRegistry configuration) {
 		tracingPlugin = configuration.getConfig(TracingPlugin.class);
+		perThreadCounter = tracingPlugin.isSamplingPercentPerThreadCounter();
 
 		defaultSampleDecisions = getBitSet(tracingPlugin.getDefaultRateLimitSpansPercent());
 		setBitSetMap(tracingPlugin.getRateLimitSpansPerMinutePercentPerType());
@@ -48,15 +57,16 @@ public class ProbabilisticSamplingPreExecutionInterceptor extends PreExecutionSp
 	public void interceptReport(PreExecutionInterceptorContext context) {
 		final SpanContextInformation spanContext = context.getSpanContext();
 		final BitSet sampleDecisions;
-		final String operationType = spanContext.getOperationType();
-		if (sampleDecisionsByType.containsKey(operationType)) {
-			sampleDecisions = sampleDecisionsByType.get(operationType);
+		final SampleDecisionsByType sampleDecisionsByType = this.sampleDecisionsByType;
+		final int typeIndex = sampleDecisionsByType.indexOf(spanContext.getOperationType());
+		if (typeIndex != -1) {
+			sampleDecisions = sampleDecisionsByType.sampleDecisions[typeIndex];
 		} else if (isRoot(context.getSpanContext().getSpanWrapper())) {
 			sampleDecisions = defaultSampleDecisions;
 		} else {
 			return;
 		}
-		if (sampleDecisions != null && !isSampled(sampleDecisions, spanCounter)) {
+		if (sampleDecisions != null && !isSampled(sampleDecisions)) {
 			context.shouldNotReport(getClass());
 		}
 	}
@@ -65,16 +75,31 @@ public class ProbabilisticSamplingPreExecutionInterceptor extends PreExecutionSp
 		return tracingPlugin.isRoot(span);
 	}
 
-	private boolean isSampled(BitSet sampleDecisions, AtomicInteger spanCounter) {
-		return sampleDecisions.get(Math.abs(spanCounter.getAndIncrement()) % BIT_SET_SIZE);
+	private boolean isSampled(BitSet sampleDecisions) {
+		return sampleDecisions.get(nextSpanIndex());
+	}
+
+	private int nextSpanIndex() {
+		if (perThreadCounter) {
+			final int[] counter = threadLocalSpanCounter.get();
+			final int index = counter[0];
+			counter[0] = index + 1 == BIT_SET_SIZE ? 0 : index + 1;
+			return index;
+		}
+		// masking the sign bit instead of Math.abs as Math.abs(Integer.MIN_VALUE) is negative
+		return (spanCounter.getAndIncrement() & Integer.MAX_VALUE) % BIT_SET_SIZE;
 	}
 
 	private void setBitSetMap(Map<String, Double> newValue) {
-		Map<String, BitSet> rateLimiters = new HashMap<String, BitSet>();
+		final String[] operationTypes = new String[newValue.size()];
+		final BitSet[] sampleDecisions = new BitSet[newValue.size()];
+		int i = 0;
 		for (Map.Entry<String, Double> entry : newValue.entrySet()) {
-			rateLimiters.put(entry.getKey(), getBitSet(entry.getValue()));
+			operationTypes[i] = entry.getKey();
+			sampleDecisions[i] = getBitSet(entry.getValue());
+			i++;
 		}
-		sampleDecisionsByType = rateLimiters;
+		sampleDecisionsByType = new SampleDecisionsByType(operationTypes, sampleDecisions);
 	}
 
 	private BitSet getBitSet(double probability) {
@@ -114,4 +139,38 @@ public class ProbabilisticSamplingPreExecutionInterceptor extends PreExecutionSp
 		return result;
 	}
 
+	/**
+	 * The sample decisions per operation type, where the sample decisions of a type are stored at the same index as
+	 * the type.
+	 * <p>
+	 * The list of operation types is usually very short and the types are mostly string constants.
+	 * A linear scan which first compares the references is therefore cheaper than a hash map lookup.
+	 */
+	private static class SampleDecisionsByType {
+		private final String[] operationTypes;
+		private final BitSet[] sampleDecisions;
+
+		private SampleDecisionsByType(String[] operationTypes, BitSet[] sampleDecisions) {
+			this.operationTypes = operationTypes;
+			this.sampleDecisions = sampleDecisions;
+		}
+
+		private int indexOf(String operationType) {
+			if (operationType == null) {
+				return -1;
+			}
+			for (int i = 0; i < operationTypes.length; i++) {
+				if (operationTypes[i] == operationType) {
+					return i;
+				}
+			}
+			for (int i = 0; i < operationTypes.length; i++) {
+				if (operationTypes[i].equals(operationType)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
 }
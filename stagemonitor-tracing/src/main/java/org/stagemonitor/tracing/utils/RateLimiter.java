@@ -1,5 +1,7 @@
 package org.stagemonitor.tracing.utils;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 
 /*
  * Copyright (c) 2016, Uber Technologies, Inc
@@ -22,30 +24,52 @@ package org.stagemonitor.tracing.utils;
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
  * THE SOFTWARE.
  */
+/**
+ * A lock-free token bucket.
+ * <p>
+ * Instead of the balance and the time of the last tick, which would require a lock to update them atomically, the
+ * state of the bucket is a single timestamp: the point in time at which the balance is zero (which is also known as
+ * the theoretical arrival time of the generic cell rate algorithm). The balance at any point in time can be derived from
+ * that timestamp. Consuming a credit means advancing it via compare and swap, rejecting an item does not modify the
+ * state at all which is especially beneficial when the rate limit is exceeded.
+ */
 public class RateLimiter {
-	private final double creditsPerNanosecond;
-	private double balance;
-	private double maxBalance;
-	private long lastTick;
+	/**
+	 * Caps durations to prevent overflows for rates of zero credits per second (~36 years)
+	 */
+	private static final long MAX_NANOS = 1L << 60;
+
+	private final double nanosPerCredit;
+	private final long maxBalanceNanos;
+	private final AtomicLong zeroBalanceTimestamp;
 
 	public RateLimiter(double creditsPerSecond, double maxBalance) {
-		this.balance = maxBalance;
-		this.maxBalance = maxBalance;
-		this.creditsPerNanosecond = creditsPerSecond / 1.0e9;
+		this.nanosPerCredit = creditsPerSecond > 0 ? 1.0e9 / creditsPerSecond : Double.POSITIVE_INFINITY;
+		this.maxBalanceNanos = toNanos(maxBalance);
+		// the bucket is initially full
+		this.zeroBalanceTimestamp = new AtomicLong(System.nanoTime() - maxBalanceNanos);
 	}
 
-	public synchronized boolean checkCredit(double itemCost) {
-		long currentTime = System.nanoTime();
-		double elapsedTime = currentTime - lastTick;
-		lastTick = currentTime;
-		balance += elapsedTime * creditsPerNanosecond;
-		if (balance > maxBalance) {
-			balance = maxBalance;
+	public boolean checkCredit(double itemCost) {
+		final long costNanos = toNanos(itemCost);
+		while (true) {
+			final long currentTime = System.nanoTime();
+			final long zeroBalance = zeroBalanceTimestamp.get();
+			// the balance can't exceed the max balance
+			final long effectiveZeroBalance = Math.max(zeroBalance, currentTime - maxBalanceNanos);
+			if (currentTime - effectiveZeroBalance < costNanos) {
+				return false;
+			}
+			if (zeroBalanceTimestamp.compareAndSet(zeroBalance, effectiveZeroBalance + costNanos)) {
+				return true;
+			}
 		}
-		if (balance >= itemCost) {
-			balance -= itemCost;
-			return true;
+	}
+
+	private long toNanos(double credits) {
+		if (credits <= 0) {
+			return 0;
 		}
-		return false;
+		return (long) Math.min(credits * nanosPerCredit, MAX_NANOS);
 	}
 }
@@ -0,0 +1,116 @@
+package org.stagemonitor.tracing.profiler;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CallTreeBufferTest {
+
+	private final CallTreeBuffer buffer = new CallTreeBuffer(2);
+
+	@Test
+	public void testBuildCallTree() throws Exception {
+		buffer.activate("total", 0);
+		buffer.start("method1()", 10);
+		buffer.start("method1_1()", 20);
+		buffer.stop(30, 0, false);
+		buffer.addCall("select * from user ", 5);
+		buffer.stop(50, 0, false);
+		buffer.start("method2()", 60);
+		buffer.stop(100, 0, false);
+		buffer.stop(100, 0, false);
+
+		assertThat(buffer.isActive()).isFalse();
+		final CallStackElement total = buffer.toCallStackElement(CallStackElement.createRoot("total"));
+		assertThat(total.getExecutionTime()).isEqualTo(100);
+		assertThat(total.getChildren()).hasSize(2);
+		final CallStackElement method1 = total.getChildren().get(0);
+		assertThat(method1.getSignature()).isEqualTo("method1()");
+		assertThat(method1.getExecutionTime()).isEqualTo(40);
+		assertThat(method1.getChildren()).hasSize(2);
+		assertThat(method1.getChildren().get(0).getSignature()).isEqualTo("method1_1()");
+		assertThat(method1.getChildren().get(0).getExecutionTime()).isEqualTo(10);
+		assertThat(method1.getChildren().get(1).isIOQuery()).isTrue();
+		assertThat(method1.getChildren().get(1).getExecutionTime()).isEqualTo(5);
+		assertThat(total.getChildren().get(1).getSignature()).isEqualTo("method2()");
+		assertThat(total.getChildren().get(1).getExecutionTime()).isEqualTo(40);
+	}
+
+	@Test
+	public void testRemoveCallsFasterThanMinExecutionTime() throws Exception {
+		buffer.activate("total", 0);
+		buffer.start("slow()", 0);
+		buffer.stop(100, 50, false);
+		buffer.start("fast()", 100);
+		buffer.start("fastChild()", 100);
+		buffer.stop(101, 0, false);
+		buffer.stop(110, 50, false);
+		buffer.start("slow2()", 110);
+		buffer.stop(200, 50, false);
+		buffer.stop(200, 50, false);
+
+		assertThat(buffer.size()).isEqualTo(3);
+		final CallStackElement total = buffer.toCallStackElement(CallStackElement.createRoot("total"));
+		assertThat(total.getChildren()).extracting("signature").containsExactly("slow()", "slow2()");
+	}
+
+	@Test
+	public void testRemoveIfNoChildren() throws Exception {
+		buffer.activate("total", 0);
+		buffer.start("withChild()", 0);
+		buffer.start("child()", 0);
+		buffer.start("leaf()", 0);
+		buffer.stop(10, 0, true);
+		buffer.stop(10, 0, false);
+		buffer.stop(10, 0, true);
+		buffer.stop(10, 0, false);
+
+		final CallStackElement total = buffer.toCallStackElement(CallStackElement.createRoot("total"));
+		assertThat(total.getChildren()).extracting("signature").containsExactly("withChild()");
+		assertThat(total.getChildren().get(0).getChildren()).extracting("signature").containsExactly("child()");
+		assertThat(total.getChildren().get(0).getChildren().get(0).getChildren()).isEmpty();
+	}
+
+	@Test
+	public void testNotActive() throws Exception {
+		buffer.start("method()", 0);
+		buffer.addCall("select * from user ", 5);
+		buffer.stop(10, 0, false);
+
+		assertThat(buffer.isActive()).isFalse();
+		assertThat(buffer.size()).isZero();
+	}
+
+	@Test
+	public void testReuseAfterReset() throws Exception {
+		buffer.activate("total", 0);
+		for (int i = 0; i < 10; i++) {
+			buffer.start("method()", 0);
+			buffer.stop(10, 0, false);
+		}
+		buffer.reset();
+		assertThat(buffer.isActive()).isFalse();
+
+		buffer.activate("total", 0);
+		buffer.start("method()", 0);
+		buffer.stop(10, 0, false);
+		buffer.stop(10, 0, false);
+		final CallStackElement total = buffer.toCallStackElement(CallStackElement.createRoot("total"));
+		assertThat(total.getChildren()).hasSize(1);
+	}
+
+	@Test
+	public void testDropCallsWhenMaxCapacityIsReached() throws Exception {
+		buffer.activate("total", 0);
+		for (int i = 0; i < CallTreeBuffer.MAX_CAPACITY; i++) {
+			buffer.start("method()", 0);
+			buffer.start("nested()", 0);
+			buffer.stop(10, 0, false);
+			buffer.stop(10, 0, false);
+		}
+		assertThat(buffer.size()).isEqualTo(CallTreeBuffer.MAX_CAPACITY);
+		assertThat(buffer.isActive()).isTrue();
+		buffer.stop(10, 0, false);
+		assertThat(buffer.isActive()).isFalse();
+	}
+}
@@ -0,0 +1,71 @@
+package org.stagemonitor.tracing.profiler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SignatureRegistryTest {
+
+	@Test
+	public void testRegisterReturnsStableId() throws Exception {
+		final int id = SignatureRegistry.register("void org.example.SignatureRegistryTest.testRegisterReturnsStableId()");
+		assertThat(SignatureRegistry.register("void org.example.SignatureRegistryTest.testRegisterReturnsStableId()")).isEqualTo(id);
+		assertThat(SignatureRegistry.register("void org.example.SignatureRegistryTest.other()")).isNotEqualTo(id);
+		assertThat(SignatureRegistry.getSignature(id)).isEqualTo("void org.example.SignatureRegistryTest.testRegisterReturnsStableId()");
+	}
+
+	@Test
+	public void testGetShortSignature() throws Exception {
+		final int id = SignatureRegistry.register("void org.example.SignatureRegistryTest.testGetShortSignature(String)");
+		assertThat(SignatureRegistry.getShortSignature(id)).isEqualTo("SignatureRegistryTest#testGetShortSignature");
+		assertThat(SignatureRegistry.getShortSignature(id)).isSameAs(SignatureRegistry.getShortSignature(id));
+	}
+
+	@Test
+	public void testGetShortSignatureOfNoMethodSignature() throws Exception {
+		final int id = SignatureRegistry.register("test.ftl:1#templateModel.allTheThings()");
+		assertThat(SignatureRegistry.getShortSignature(id)).isNull();
+		assertThat(SignatureRegistry.getShortSignature(id)).isNull();
+	}
+
+	@Test
+	public void testCallStackElementUsesRegisteredSignature() throws Exception {
+		final int id = SignatureRegistry.register("void org.example.SignatureRegistryTest.testCallStackElementUsesRegisteredSignature()");
+		final CallStackElement root = CallStackElement.createRoot("total");
+		final CallStackElement child = CallStackElement.create(root, id);
+		assertThat(child.getSignature()).isEqualTo("void org.example.SignatureRegistryTest.testCallStackElementUsesRegisteredSignature()");
+		assertThat(child.getShortSignature()).isEqualTo("SignatureRegistryTest#testCallStackElementUsesRegisteredSignature");
+	}
+
+	@Test
+	public void testConcurrentRegistration() throws Exception {
+		final ExecutorService executorService = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<Integer>> ids = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < 100; i++) {
+				ids.add(executorService.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						return SignatureRegistry.register("void org.example.SignatureRegistryTest.testConcurrentRegistration()");
+					}
+				}));
+			}
+			final Set<Integer> distinctIds = new HashSet<Integer>();
+			for (Future<Integer> id : ids) {
+				distinctIds.add(id.get());
+			}
+			assertThat(distinctIds).hasSize(1);
+		} finally {
+			executorService.shutdown();
+		}
+	}
+}
@@ -10,6 +10,10 @@ import org.stagemonitor.tracing.SpanContextInformation;
 import org.stagemonitor.tracing.TracingPlugin;
 import org.stagemonitor.tracing.wrapper.SpanWrapper;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import io.opentracing.Tracer;
 import io.opentracing.util.GlobalTracer;
 
@@ -112,6 +116,86 @@ public class ProbabilisticSamplingPreExecutionInterceptorTest {
 		assertThat(reports).isEqualTo(51);
 	}
 
+	@Test
+	public void testSample51PercentPerThreadCounter() throws Exception {
+		tracingPlugin = spy(new TracingPlugin());
+		doReturn(true).when(tracingPlugin).isRoot(any());
+		configuration = ConfigurationRegistry.builder()
+				.addOptionProvider(tracingPlugin)
+				.addConfigSource(new SimpleSource().add("stagemonitor.tracing.sampling.percent.perThreadCounter", "true"))
+				.build();
+		interceptor = new ProbabilisticSamplingPreExecutionInterceptor();
+		interceptor.init(configuration);
+		tracingPlugin.getDefaultRateLimitSpansPercentOption().update(0.51, SimpleSource.NAME);
+
+		final AtomicInteger reports = new AtomicInteger();
+		final List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final Thread thread = new Thread(() -> {
+				for (int i = 0; i < 100; i++) {
+					final PreExecutionInterceptorContext context = new PreExecutionInterceptorContext(spanContext);
+					interceptor.interceptReport(context);
+					if (context.isReport()) {
+						reports.incrementAndGet();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertThat(reports.get()).isEqualTo(4 * 51);
+	}
+
+	@Test
+	public void testPerThreadCountersStartAtRandomOffsets() throws Exception {
+		tracingPlugin = spy(new TracingPlugin());
+		doReturn(true).when(tracingPlugin).isRoot(any());
+		configuration = ConfigurationRegistry.builder()
+				.addOptionProvider(tracingPlugin)
+				.addConfigSource(new SimpleSource().add("stagemonitor.tracing.sampling.percent.perThreadCounter", "true"))
+				.build();
+		interceptor = new ProbabilisticSamplingPreExecutionInterceptor();
+		interceptor.init(configuration);
+		tracingPlugin.getDefaultRateLimitSpansPercentOption().update(0.5, SimpleSource.NAME);
+
+		final AtomicInteger reports = new AtomicInteger();
+		final int threadCount = 40;
+		for (int t = 0; t < threadCount; t++) {
+			final Thread thread = new Thread(() -> {
+				final PreExecutionInterceptorContext context = new PreExecutionInterceptorContext(spanContext);
+				interceptor.interceptReport(context);
+				if (context.isReport()) {
+					reports.incrementAndGet();
+				}
+			});
+			thread.start();
+			thread.join();
+		}
+
+		// if all threads started at the same index, the first span of every thread would get the same decision
+		assertThat(reports.get()).isBetween(1, threadCount - 1);
+	}
+
+	@Test
+	public void testSampleByTypeWithNonConstantOperationType() throws Exception {
+		interceptor = new ProbabilisticSamplingPreExecutionInterceptor() {
+			@Override
+			protected boolean isRoot(SpanWrapper span) {
+				return false;
+			}
+		};
+		interceptor.init(configuration);
+		tracingPlugin.getRateLimitSpansPerMinutePercentPerTypeOption().update(singletonMap("jdbc", 0d), SimpleSource.NAME);
+		when(spanContext.getOperationType()).thenReturn(new String("jdbc"));
+
+		interceptor.interceptReport(context);
+		assertFalse(context.isReport());
+	}
+
 	@Test
 	public void testReportSpanGenericType() throws Exception {
 		when(spanContext.getOperationType()).thenReturn("jdbc");
@@ -0,0 +1,75 @@
+package org.stagemonitor.tracing.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RateLimiterTest {
+
+	@Test
+	public void testInitialBalanceIsMaxBalance() throws Exception {
+		final RateLimiter rateLimiter = new RateLimiter(1.0 / 60, 2);
+		assertThat(rateLimiter.checkCredit(1)).isTrue();
+		assertThat(rateLimiter.checkCredit(1)).isTrue();
+		assertThat(rateLimiter.checkCredit(1)).isFalse();
+	}
+
+	@Test
+	public void testCreditIsReplenished() throws Exception {
+		final RateLimiter rateLimiter = new RateLimiter(1000, 1);
+		assertThat(rateLimiter.checkCredit(1)).isTrue();
+		Thread.sleep(10);
+		assertThat(rateLimiter.checkCredit(1)).isTrue();
+	}
+
+	@Test
+	public void testZeroRate() throws Exception {
+		final RateLimiter rateLimiter = new RateLimiter(0, 0);
+		assertThat(rateLimiter.checkCredit(1)).isFalse();
+		assertThat(rateLimiter.checkCredit(1)).isFalse();
+	}
+
+	@Test
+	public void testZeroRateWithInitialBalance() throws Exception {
+		final RateLimiter rateLimiter = new RateLimiter(0, 1);
+		assertThat(rateLimiter.checkCredit(1)).isTrue();
+		assertThat(rateLimiter.checkCredit(1)).isFalse();
+	}
+
+	@Test
+	public void testConcurrentCheckCreditDoesNotExceedBalance() throws Exception {
+		final RateLimiter rateLimiter = new RateLimiter(1.0 / 60, 100);
+		final AtomicInteger granted = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < 1000; j++) {
+						if (rateLimiter.checkCredit(1)) {
+							granted.incrementAndGet();
+						}
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertThat(granted.get()).isEqualTo(100);
+	}
+}